@@ -0,0 +1,110 @@
+//
+// Created by octopus on 2020/7/1.
+//
+
+#include "AVInterleaver.h"
+
+AVInterleaver::AVInterleaver() {
+}
+
+AVInterleaver::~AVInterleaver() {
+    clear();
+}
+
+void AVInterleaver::setWindow(uint32_t windowMs) {
+    mWindowMs = windowMs;
+}
+
+void AVInterleaver::setReleaseHandle(ReleaseHandle releaseHandle) {
+    mReleaseHandle = releaseHandle;
+}
+
+void AVInterleaver::push(RTMPPacket *packet) {
+    if (!packet) {
+        return;
+    }
+    if (packet->m_nTimeStamp > mNewestTimestamp) {
+        mNewestTimestamp = packet->m_nTimeStamp;
+    }
+    // 视频之外的数据包 ( 音频, 以及其它消息 ) 都按音频一路处理
+    if (packet->m_packetType == RTMP_PACKET_TYPE_VIDEO) {
+        mVideo.push_back(packet);
+    } else {
+        mAudio.push_back(packet);
+    }
+}
+
+void AVInterleaver::advanceVideo(uint32_t timestamp) {
+    if (timestamp > mVideoProgress) {
+        mVideoProgress = timestamp;
+    }
+}
+
+RTMPPacket *AVInterleaver::pop() {
+    if (!mAudio.empty() && !mVideo.empty()) {
+        // 两路都有数据, 时间戳相同时先发音频
+        if (mVideo.front()->m_nTimeStamp < mAudio.front()->m_nTimeStamp) {
+            return popFront(mVideo);
+        }
+        return popFront(mAudio);
+    }
+
+    std::deque<RTMPPacket *> &queue = mAudio.empty() ? mVideo : mAudio;
+    if (queue.empty()) {
+        return 0;
+    }
+
+    // 视频一路已经前进到该音频数据包之后, 不会再有更早的视频数据包
+    if (mVideo.empty() && queue.front()->m_nTimeStamp <= mVideoProgress) {
+        return popFront(queue);
+    }
+
+    // 只有一路有数据, 另一路在等待窗口内可能还会到来更早的数据包
+    if (queue.front()->m_nTimeStamp + mWindowMs > mNewestTimestamp) {
+        return 0;
+    }
+    return popFront(queue);
+}
+
+RTMPPacket *AVInterleaver::popFront(std::deque<RTMPPacket *> &queue) {
+    RTMPPacket *packet = queue.front();
+    queue.pop_front();
+
+    // 迟到的数据包, 修正时间戳, 保证发出的时间戳单调不减
+    if (packet->m_nTimeStamp < mLastTimestamp) {
+        packet->m_nTimeStamp = mLastTimestamp;
+        mAdjustedPackets++;
+    } else {
+        mLastTimestamp = packet->m_nTimeStamp;
+    }
+    return packet;
+}
+
+void AVInterleaver::clear() {
+    while (!mAudio.empty()) {
+        RTMPPacket *packet = mAudio.front();
+        mAudio.pop_front();
+        if (mReleaseHandle) {
+            mReleaseHandle(packet);
+        }
+    }
+    while (!mVideo.empty()) {
+        RTMPPacket *packet = mVideo.front();
+        mVideo.pop_front();
+        if (mReleaseHandle) {
+            mReleaseHandle(packet);
+        }
+    }
+    mNewestTimestamp = 0;
+    mVideoProgress = 0;
+    mLastTimestamp = 0;
+    mAdjustedPackets = 0;
+}
+
+int AVInterleaver::size() {
+    return mAudio.size() + mVideo.size();
+}
+
+long AVInterleaver::getAdjustedPackets() {
+    return mAdjustedPackets;
+}
@@ -0,0 +1,117 @@
+//
+// Created by octopus on 2020/7/1.
+//
+
+#ifndef RTMP_PUSHER_AVINTERLEAVER_H
+#define RTMP_PUSHER_AVINTERLEAVER_H
+
+#include <deque>
+#include "librtmp/rtmp.h"
+
+/**
+ * 默认的交织等待窗口, 单位毫秒
+ * 一路数据包最多等待另一路这么长时间 ( 按时间戳计算 ), 超过后不再等待, 直接发出
+ */
+#define DEFAULT_INTERLEAVE_WINDOW_MS 300
+
+/**
+ * 音视频交织器, 按时间戳顺序发出音频与视频数据包
+ *
+ * 数据包的时间戳是采集时间, 音频与视频的编码耗时不同, 又在不同的线程中编码,
+ * 进入 packets 队列的顺序与时间戳顺序不一致, 直接发送会导致服务器收到的时间戳来回跳动
+ *
+ * 音频, 视频 各有一个按到达顺序排列的队列 ( 同一路数据包的时间戳本身就是递增的 ),
+ * 两路队列都有数据时, 发出时间戳较小的队首数据包;
+ * 只有一路有数据时, 等待另一路数据, 直到该数据包的时间戳落后于已经收到的最新时间戳超过等待窗口,
+ * 避免一路数据中断 ( 如切换摄像头, 没有音频 ) 时另一路一直被阻塞
+ *
+ * 视频跳过编码 ( 静止画面 ) 时没有数据包, 通过 advanceVideo 告知视频一路已经前进到的时间戳,
+ * 不超过该时间戳的音频不再等待视频
+ *
+ * 发出的时间戳保证单调不减, 迟到的数据包时间戳修正为上一个发出的时间戳
+ * 只在推流线程中访问, 不需要加锁
+ */
+class AVInterleaver {
+
+    /**
+     * 数据包释放函数类型
+     */
+    typedef void (*ReleaseHandle)(RTMPPacket *&);
+
+public:
+
+    AVInterleaver();
+
+    ~AVInterleaver();
+
+    /**
+     * 设置等待窗口, 0 表示不等待, 按到达顺序发出
+     * @param windowMs
+     */
+    void setWindow(uint32_t windowMs);
+
+    /**
+     * 设置数据包释放函数, 清空时调用
+     */
+    void setReleaseHandle(ReleaseHandle releaseHandle);
+
+    /**
+     * 放入一个数据包
+     */
+    void push(RTMPPacket *packet);
+
+    /**
+     * 视频一路已经前进到该时间戳, 之后不会再有更早的视频数据包, 如静止画面跳过编码
+     * @param timestamp 跳过编码的画面的时间戳
+     */
+    void advanceVideo(uint32_t timestamp);
+
+    /**
+     * 取出下一个可以发出的数据包, 没有可以发出的数据包返回 0
+     */
+    RTMPPacket *pop();
+
+    /**
+     * 释放所有数据包, 重置时间戳
+     */
+    void clear();
+
+    int size();
+
+    /**
+     * 时间戳被修正的数据包个数
+     */
+    long getAdjustedPackets();
+
+private:
+
+    RTMPPacket *popFront(std::deque<RTMPPacket *> &queue);
+
+    std::deque<RTMPPacket *> mAudio;
+
+    std::deque<RTMPPacket *> mVideo;
+
+    /**
+     * 已经收到的最新时间戳
+     */
+    uint32_t mNewestTimestamp = 0;
+
+    /**
+     * 视频一路已经前进到的时间戳
+     */
+    uint32_t mVideoProgress = 0;
+
+    /**
+     * 上一个发出的数据包的时间戳
+     */
+    uint32_t mLastTimestamp = 0;
+
+    uint32_t mWindowMs = DEFAULT_INTERLEAVE_WINDOW_MS;
+
+    long mAdjustedPackets = 0;
+
+    ReleaseHandle mReleaseHandle = 0;
+};
+
+
+#endif //RTMP_PUSHER_AVINTERLEAVER_H
@@ -18,13 +18,13 @@ AudioChannel::AudioChannel() {
 AudioChannel::~AudioChannel() {
     // 释放 FAAC 编码 AAC 缓冲区
     if (mFaacEncodeOutputBuffer) {
-        delete mFaacEncodeOutputBuffer;
+        delete[] mFaacEncodeOutputBuffer;
         mFaacEncodeOutputBuffer = 0;
     }
 
-    // 释放 FAAC 编码器
+    // 释放 FAAC 编码器, faacEncHandle 是 void* 类型, 不能使用 delete 释放
     if (mFaacEncHandle) {
-        delete mFaacEncHandle;
+        faacEncClose(mFaacEncHandle);
         mFaacEncHandle = 0;
     }
 }
@@ -38,6 +38,14 @@ void AudioChannel::setRTMPPacketPackUpCallBack(RTMPPacketPackUpCallBack rtmpPack
     this->mRtmpPacketPackUpCallBack = rtmpPacketPackUpCallBack;
 }
 
+/**
+ * 设置 RTMPPacket 数据包池
+ * @param packetPool
+ */
+void AudioChannel::setPacketPool(PacketPool *packetPool) {
+    this->mPacketPool = packetPool;
+}
+
 /**
  * 设置音频编码参数
  * @param sampleRateInHz    音频采样率
@@ -46,6 +54,8 @@ void AudioChannel::setRTMPPacketPackUpCallBack(RTMPPacketPackUpCallBack rtmpPack
 void AudioChannel::setAudioEncoderParameters(int sampleRateInHz, int channelConfig) {
     // 设置音频通道参数, 单声道 / 立体声
     mChannelConfig = channelConfig;
+    mSampleRate = sampleRateInHz;
+    mSampleClockStarted = 0;
 
     /*
         打开编码器
@@ -116,6 +126,9 @@ void AudioChannel::setAudioEncoderParameters(int sampleRateInHz, int channelConf
 
     // 初始化输出缓冲区, 保存 FAAC 编码输出数据
     mFaacEncodeOutputBuffer = new unsigned char[mMaxOutputBytes];
+
+    // 组装器一帧的大小就是 FAAC 一次输入的字节数, 16 位采样一个样本 2 字节
+    mPcmFrameAssembler.setFrameBytes(mInputSamples * 2);
 }
 
 /**
@@ -159,8 +172,15 @@ void AudioChannel::encodeAudioData(int8_t *data) {
             mMaxOutputBytes); // 输出缓冲区最大字节大小
 
 
+    // 送入编码器的样本个数, mInputSamples 是所有声道的样本个数
+    mInputSampleFrames += mInputSamples / mChannelConfig;
+
     // 组装 RTMP 数据包
     if (encodeAacDataByteCount > 0) {
+        // 按照样本时钟计算本帧 AAC 数据的时间戳
+        uint32_t timestamp = sampleClockTimestamp(mOutputSampleFrames);
+        mOutputSampleFrames += mInputSamples / mChannelConfig;
+
         /*
             数据的大小 :
             前面有 2 字节头信息
@@ -169,11 +189,11 @@ void AudioChannel::encodeAudioData(int8_t *data) {
          */
         int rtmpPackagesize = 2 + encodeAacDataByteCount;
 
-        // 创建 RTMP 数据包对象
-        RTMPPacket *rtmpPacket = new RTMPPacket;
-
-        // 为 RTMP 数据包分配内存
-        RTMPPacket_Alloc(rtmpPacket, rtmpPackagesize);
+        // 从数据包池中获取 RTMP 数据包对象, 不需要每次申请内存
+        RTMPPacket *rtmpPacket = mPacketPool->obtain(rtmpPackagesize);
+        if (!rtmpPacket) {
+            return;
+        }
 
         /*
             根据声道数生成相应的 文件头 标识
@@ -195,6 +215,8 @@ void AudioChannel::encodeAudioData(int8_t *data) {
         // 拷贝 AAC 音频数据到 RTMPPacket 数据包中
         memcpy(&rtmpPacket->m_body[2], mFaacEncodeOutputBuffer, encodeAacDataByteCount);
 
+        // 设置音频时间戳, 使用样本时钟, 不受音频线程调度抖动的影响
+        rtmpPacket->m_nTimeStamp = timestamp;
         // 设置绝对时间, 一般设置 0 即可
         rtmpPacket->m_hasAbsTimestamp = 0;
         // 设置 RTMP 数据包大小
@@ -214,6 +236,62 @@ void AudioChannel::encodeAudioData(int8_t *data) {
 }
 
 
+/**
+ * 编码 AudioRecord 读取到的 PCM 数据
+ * @param data          PCM 数据
+ * @param byteCount     本次读取到的字节数
+ * @param timestamp     本次读取完成的时间, 单位毫秒
+ * @return 编码的帧数
+ */
+int AudioChannel::encodeAudioSamples(int8_t *data, int byteCount, uint32_t timestamp) {
+    if (byteCount <= 0 || mSampleRate <= 0) {
+        return 0;
+    }
+
+    // 组装器中剩余的数据 与 本次读取的数据 是连续采集的, 读取完成的时间减去这些数据的时长,
+    // 就是其中第一个样本的采集时间
+    uint32_t bufferedMs = bytesToMs(mPcmFrameAssembler.getPendingBytes() + byteCount);
+    uint32_t captureTimestamp = timestamp > bufferedMs ? timestamp - bufferedMs : 0;
+
+    if (!mSampleClockStarted) {
+        mSampleClockStarted = 1;
+        mSampleClockBaseMs = captureTimestamp;
+        mInputSampleFrames = 0;
+        mOutputSampleFrames = 0;
+    } else {
+        // 采样线程没有及时读取, AudioRecord 丢弃了采样数据, 样本时钟落后于采集时间
+        // 只向前对齐, 保证时间戳单调递增
+        uint32_t expected = sampleClockTimestamp(mInputSampleFrames);
+        if (captureTimestamp > expected + AUDIO_CLOCK_RESYNC_MS) {
+            mSampleClockBaseMs += captureTimestamp - expected;
+        }
+    }
+    return mPcmFrameAssembler.append(data, byteCount, onPcmFrameAssembled, this);
+}
+
+/**
+ * 丢弃还没有凑满一帧的 PCM 数据, 重置样本时钟
+ */
+void AudioChannel::resetAudioSamples() {
+    mPcmFrameAssembler.reset();
+    mSampleClockStarted = 0;
+}
+
+uint32_t AudioChannel::bytesToMs(int byteCount) {
+    // 16 位采样, 每个样本 2 字节
+    return static_cast<uint32_t>(static_cast<int64_t>(byteCount) / (2 * mChannelConfig) * 1000
+                                 / mSampleRate);
+}
+
+uint32_t AudioChannel::sampleClockTimestamp(int64_t sampleFrames) {
+    return mSampleClockBaseMs + static_cast<uint32_t>(sampleFrames * 1000 / mSampleRate);
+}
+
+void AudioChannel::onPcmFrameAssembled(void *context, int8_t *frame) {
+    static_cast<AudioChannel *>(context)->encodeAudioData(frame);
+}
+
+
 /**
  * 获取音频解码信息
  * 推流音频数据时, 先发送解码信息包, 再推流 AAC 音频采样包
@@ -250,11 +328,11 @@ RTMPPacket *AudioChannel::getAudioDecodeInfo() {
      */
     int rtmpPackagesize = 2 + sizeOfDecoderSpecificInfo;
 
-    // 创建 RTMP 数据包对象
-    RTMPPacket *rtmpPacket = new RTMPPacket;
-
-    // 为 RTMP 数据包分配内存
-    RTMPPacket_Alloc(rtmpPacket, rtmpPackagesize);
+    // 从数据包池中获取 RTMP 数据包对象
+    RTMPPacket *rtmpPacket = mPacketPool->obtain(rtmpPackagesize);
+    if (!rtmpPacket) {
+        return 0;
+    }
 
     /*
         根据声道数生成相应的 文件头 标识
@@ -10,6 +10,13 @@
 #include <faac.h>
 #include <pthread.h>
 #include "librtmp/rtmp.h"
+#include "PacketPool.h"
+#include "PcmFrameAssembler.h"
+
+/**
+ * 样本时钟 与 采集时间 的偏差超过该值时, 认为采样数据丢失, 样本时钟向前对齐到采集时间, 单位毫秒
+ */
+#define AUDIO_CLOCK_RESYNC_MS 100
 
 
 /**
@@ -42,6 +49,13 @@ public:
      */
     void setRTMPPacketPackUpCallBack(RTMPPacketPackUpCallBack rtmpPacketPackUpCallBack);
 
+    /**
+     * 设置 RTMPPacket 数据包池
+     * 封装 RTMP 数据包时从池中获取数据包, 推流线程发送完毕后归还到池中
+     * @param packetPool
+     */
+    void setPacketPool(PacketPool *packetPool);
+
     /**
      * Java 层获取每次 FAAC 可以获取多少样本个数
      * 用于 AudioRecord 的 read 方法
@@ -53,10 +67,30 @@ public:
      * 音频数据编码
      * 接收 int8_t 类型的原因是, 这里处理的是 jbyte* 类型参数
      * jbyte 类型就是 int8_t 类型
+     * 时间戳由样本时钟计算, 需要先调用 encodeAudioSamples 对齐样本时钟
      * @param data
      */
     void encodeAudioData(int8_t *data);
 
+    /**
+     * 编码 AudioRecord 读取到的 PCM 数据, 读取的字节数可以不是一帧
+     * 不完整的数据先累积起来, 凑满 FAAC 一次输入的样本个数后再编码
+     *
+     * 音频数据包的时间戳由样本时钟计算 : 第一次读取的采集时间 + 已编码样本个数 / 采样率
+     * 不受音频线程调度抖动的影响
+     *
+     * @param data          PCM 数据
+     * @param byteCount     本次读取到的字节数
+     * @param timestamp     本次读取完成的时间, 相对于开始推流的时间, 单位毫秒
+     * @return 编码的帧数
+     */
+    int encodeAudioSamples(int8_t *data, int byteCount, uint32_t timestamp);
+
+    /**
+     * 丢弃还没有凑满一帧的 PCM 数据, 重置样本时钟, 开始推流时调用
+     */
+    void resetAudioSamples();
+
     /**
      * 获取音频解码信息
      * @return 音频解码数据包
@@ -70,11 +104,42 @@ private:
      */
     RTMPPacketPackUpCallBack mRtmpPacketPackUpCallBack;
 
+    /**
+     * RTMPPacket 数据包池
+     */
+    PacketPool *mPacketPool = 0;
+
     /**
      * 音频通道数
      */
     int mChannelConfig;
 
+    /**
+     * 音频采样率
+     */
+    int mSampleRate = 0;
+
+    /**
+     * 样本时钟是否已经对齐到采集时间
+     */
+    int mSampleClockStarted = 0;
+
+    /**
+     * 样本时钟起点, 第一个样本的采集时间, 相对于开始推流的时间, 单位毫秒
+     */
+    uint32_t mSampleClockBaseMs = 0;
+
+    /**
+     * 从样本时钟起点开始, 送入 FAAC 编码器的样本个数 ( 每个声道的样本个数 )
+     */
+    int64_t mInputSampleFrames = 0;
+
+    /**
+     * 从样本时钟起点开始, FAAC 输出的 AAC 帧对应的样本个数 ( 每个声道的样本个数 )
+     * FAAC 编码器有若干帧的延迟, AAC 帧的时间戳按照输出的帧数计算
+     */
+    int64_t mOutputSampleFrames = 0;
+
     /**
      * 输入样本个数, 需要进行编码的 PCM 音频样本个数
      * FAAC 编码器最多一次可以接收的样本个数
@@ -95,14 +160,35 @@ private:
      * PCM 音频 FAAC 编码器
      * 将 PCM 采样数据编码成 FAAC 编码器
      */
-    faacEncHandle mFaacEncHandle;
+    faacEncHandle mFaacEncHandle = 0;
 
     /**
      * FAAC 编码输出缓冲区
      * FAAC 编码后的 AAC 裸数据, 存储到该缓冲区中
      * 该缓冲区在初始化 FAAC 编码器时创建
      */
-    unsigned char* mFaacEncodeOutputBuffer;
+    unsigned char* mFaacEncodeOutputBuffer = 0;
+
+    /**
+     * PCM 音频帧组装器
+     * 将 AudioRecord 不完整的读取数据组装成 FAAC 一次输入的完整数据
+     */
+    PcmFrameAssembler mPcmFrameAssembler;
+
+    /**
+     * 组装器凑满一帧后的回调, 对该帧进行编码
+     */
+    static void onPcmFrameAssembled(void *context, int8_t *frame);
+
+    /**
+     * PCM 字节数对应的时长, 单位毫秒
+     */
+    uint32_t bytesToMs(int byteCount);
+
+    /**
+     * 样本个数对应的样本时钟时间戳, 单位毫秒
+     */
+    uint32_t sampleClockTimestamp(int64_t sampleFrames);
 
 };
 
@@ -0,0 +1,91 @@
+//
+// Created by octopus on 2020/6/25.
+//
+
+#include "BitrateController.h"
+
+BitrateController::BitrateController() {
+    mBitrate.store(0);
+    mMinBitrate.store(0);
+    mMaxBitrate.store(0);
+}
+
+void BitrateController::setRange(int initialBitrate, int minBitrate, int maxBitrate) {
+    if (initialBitrate < minBitrate) {
+        initialBitrate = minBitrate;
+    }
+    if (initialBitrate > maxBitrate) {
+        initialBitrate = maxBitrate;
+    }
+    mMinBitrate.store(minBitrate);
+    mMaxBitrate.store(maxBitrate);
+    mBitrate.store(initialBitrate);
+}
+
+void BitrateController::onPacketSent(int bytes, long sendTimeUs) {
+    mIntervalBytes += bytes;
+    mIntervalSendTimeUs += sendTimeUs;
+}
+
+int BitrateController::onSample(uint32_t nowMs, uint32_t backlogDurationMs) {
+    if (mIntervalStartMs == 0) {
+        mIntervalStartMs = nowMs;
+        return 0;
+    }
+    uint32_t elapsedMs = nowMs - mIntervalStartMs;
+    if (elapsedMs < BITRATE_ADJUST_INTERVAL_MS) {
+        return 0;
+    }
+
+    // 本周期实际发送速率, 单位 bps
+    long sentBitrate = mIntervalBytes * 8 * 1000 / elapsedMs;
+    // 发送耗时占比
+    long busyPercent = mIntervalSendTimeUs / 10 / elapsedMs;
+
+    int minBitrate = mMinBitrate.load();
+    int maxBitrate = mMaxBitrate.load();
+    int bitrate = mBitrate.load();
+    int target = bitrate;
+
+    if (minBitrate < maxBitrate && bitrate > 0) {
+        int congested = backlogDurationMs > HIGH_WATERMARK_MS
+                        || (backlogDurationMs > LOW_WATERMARK_MS && backlogDurationMs > mLastBacklogMs)
+                        || busyPercent > BUSY_PERCENT;
+        if (congested) {
+            mIdleIntervals = 0;
+            long decreased = (long) bitrate * 3 / 4;
+            long linkLimited = sentBitrate * 9 / 10;
+            target = (int) (linkLimited > 0 && linkLimited < decreased ? linkLimited : decreased);
+        } else if (backlogDurationMs < LOW_WATERMARK_MS) {
+            if (++mIdleIntervals >= INCREASE_AFTER_IDLE_INTERVALS) {
+                mIdleIntervals = 0;
+                target = (int) ((long) bitrate * 11 / 10);
+            }
+        } else {
+            mIdleIntervals = 0;
+        }
+
+        if (target < minBitrate) {
+            target = minBitrate;
+        }
+        if (target > maxBitrate) {
+            target = maxBitrate;
+        }
+    }
+
+    // 开始下一个周期
+    mIntervalStartMs = nowMs;
+    mIntervalBytes = 0;
+    mIntervalSendTimeUs = 0;
+    mLastBacklogMs = backlogDurationMs;
+
+    if (target == bitrate) {
+        return 0;
+    }
+    mBitrate.store(target);
+    return target;
+}
+
+int BitrateController::getBitrate() {
+    return mBitrate.load();
+}
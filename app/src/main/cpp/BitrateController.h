@@ -0,0 +1,117 @@
+//
+// Created by octopus on 2020/6/25.
+//
+
+#ifndef RTMP_PUSHER_BITRATECONTROLLER_H
+#define RTMP_PUSHER_BITRATECONTROLLER_H
+
+#include <atomic>
+#include <inttypes.h>
+
+/**
+ * 码率调整周期, 单位毫秒
+ */
+#define BITRATE_ADJUST_INTERVAL_MS 1000
+
+/**
+ * 自适应码率控制器
+ *
+ * 在推流线程中统计 RTMP_SendPacket 发送的字节数和耗时, 以及待发送队列的时间跨度
+ * 每隔 BITRATE_ADJUST_INTERVAL_MS 毫秒计算一次目标码率 :
+ *
+ *      网络拥塞 ( 待发送队列超过高水位, 或者持续增长, 或者发送线程大部分时间阻塞在 RTMP_SendPacket 中 ) :
+ *          目标码率 = min( 当前码率 * 0.75, 实际发送速率 * 0.9 )
+ *      网络空闲 ( 待发送队列低于低水位, 连续 3 个周期 ) :
+ *          目标码率 = 当前码率 * 1.1
+ *
+ * 目标码率限制在 [ 最小码率, 最大码率 ] 区间内, 由 VedioChannel 通过 x264_encoder_reconfig 生效
+ * 不需要关闭并重新打开 x264 编码器
+ */
+class BitrateController {
+
+public:
+    BitrateController();
+
+    /**
+     * 设置码率范围, 单位 bps, 可以在任意线程中调用
+     * 最小码率 大于等于 最大码率 时, 关闭自适应码率
+     * @param initialBitrate 初始码率
+     * @param minBitrate 最小码率
+     * @param maxBitrate 最大码率
+     */
+    void setRange(int initialBitrate, int minBitrate, int maxBitrate);
+
+    /**
+     * 一个数据包发送完毕, 在推流线程中调用
+     * @param bytes 发送的字节数
+     * @param sendTimeUs RTMP_SendPacket 耗时, 单位微秒
+     */
+    void onPacketSent(int bytes, long sendTimeUs);
+
+    /**
+     * 采样待发送队列状态, 每个周期计算一次目标码率, 在推流线程中调用
+     * @param nowMs 当前时间, 单位毫秒
+     * @param backlogDurationMs 待发送队列的时间跨度, 单位毫秒
+     * @return 码率需要调整时返回新的目标码率, 单位 bps, 不需要调整返回 0
+     */
+    int onSample(uint32_t nowMs, uint32_t backlogDurationMs);
+
+    /**
+     * 当前目标码率, 单位 bps
+     */
+    int getBitrate();
+
+private:
+
+    /**
+     * 待发送队列高水位, 超过该值认为网络拥塞, 单位毫秒
+     */
+    static const uint32_t HIGH_WATERMARK_MS = 500;
+
+    /**
+     * 待发送队列低水位, 低于该值认为网络空闲, 单位毫秒
+     */
+    static const uint32_t LOW_WATERMARK_MS = 100;
+
+    /**
+     * 发送耗时占周期时长的比例超过该值, 认为网络拥塞, 单位百分比
+     */
+    static const int BUSY_PERCENT = 80;
+
+    /**
+     * 连续多少个空闲周期后提高码率
+     */
+    static const int INCREASE_AFTER_IDLE_INTERVALS = 3;
+
+    std::atomic<int> mBitrate;
+    std::atomic<int> mMinBitrate;
+    std::atomic<int> mMaxBitrate;
+
+    /**
+     * 本周期开始时间
+     */
+    uint32_t mIntervalStartMs = 0;
+
+    /**
+     * 本周期发送的字节数
+     */
+    long mIntervalBytes = 0;
+
+    /**
+     * 本周期 RTMP_SendPacket 总耗时, 单位微秒
+     */
+    long mIntervalSendTimeUs = 0;
+
+    /**
+     * 上一个周期结束时, 待发送队列的时间跨度
+     */
+    uint32_t mLastBacklogMs = 0;
+
+    /**
+     * 连续空闲周期个数
+     */
+    int mIdleIntervals = 0;
+};
+
+
+#endif //RTMP_PUSHER_BITRATECONTROLLER_H
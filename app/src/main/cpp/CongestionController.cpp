@@ -0,0 +1,352 @@
+//
+// Created by octopus on 2020/6/24.
+//
+
+#include "CongestionController.h"
+#include <algorithm>
+#include <utility>
+
+CongestionController::CongestionController() {
+    mLatencyBudgetMs.store(DEFAULT_LATENCY_BUDGET_MS);
+    mByteBudget.store(DEFAULT_BYTE_BUDGET);
+    mDroppedFrames.store(0);
+    mDroppedGops.store(0);
+    mDroppedBytes.store(0);
+}
+
+CongestionController::~CongestionController() {
+    clear();
+}
+
+void CongestionController::setBudget(int latencyBudgetMs, int byteBudget) {
+    mLatencyBudgetMs.store(latencyBudgetMs);
+    mByteBudget.store(byteBudget);
+}
+
+void CongestionController::setReleaseHandle(ReleaseHandle releaseHandle) {
+    mReleaseHandle = releaseHandle;
+}
+
+/**
+ * 解析数据包类型
+ *
+ * 视频数据包 m_body 格式 :
+ *      [0] 帧类型 ( 高 4 位, 1 关键帧, 2 非关键帧 ) + 编码类型 ( 低 4 位, 7 AVC )
+ *      [1] 包类型, 0 AVC 序列头, 1 视频数据
+ *      [2 ~ 4] 合成时间
+ *      之后是若干个 4 字节长度 + NAL 数据
+ *
+ * 音频数据包 m_body 格式 :
+ *      [0] AF / AE
+ *      [1] 0 AAC 序列头, 1 AAC 数据
+ */
+CongestionController::PacketKind CongestionController::kindOf(RTMPPacket *packet) {
+    if (!packet || !packet->m_body || packet->m_nBodySize < 2) {
+        return KIND_OTHER;
+    }
+    uint8_t *body = reinterpret_cast<uint8_t *>(packet->m_body);
+
+    if (packet->m_packetType == RTMP_PACKET_TYPE_AUDIO) {
+        return body[1] == 0x00 ? KIND_AUDIO_HEADER : KIND_AUDIO;
+    }
+
+    if (packet->m_packetType != RTMP_PACKET_TYPE_VIDEO) {
+        return KIND_OTHER;
+    }
+
+    if (body[1] == 0x00) {
+        return KIND_VIDEO_HEADER;
+    }
+    if ((body[0] >> 4) == 1) {
+        return KIND_KEY_FRAME;
+    }
+
+    // 遍历该帧中的 NAL 单元, 所有图像条带的 nal_ref_idc 都是 0 时, 该帧不被其它帧参考, 可以丢弃
+    uint32_t size = packet->m_nBodySize;
+    uint32_t offset = 5;
+    int hasSlice = 0;
+    while (offset + 5 <= size) {
+        uint32_t nalLength = (body[offset] << 24) | (body[offset + 1] << 16)
+                             | (body[offset + 2] << 8) | body[offset + 3];
+        uint8_t nalHeader = body[offset + 4];
+        int nalType = nalHeader & 0x1F;
+        if (nalType >= 1 && nalType <= 5) {
+            hasSlice = 1;
+            if (nalHeader & 0x60) {
+                return KIND_INTER_FRAME;
+            }
+        }
+        offset += 4 + nalLength;
+    }
+    return hasSlice ? KIND_DISPOSABLE_FRAME : KIND_INTER_FRAME;
+}
+
+void CongestionController::push(RTMPPacket *packet) {
+    if (!packet) {
+        return;
+    }
+    PacketKind kind = kindOf(packet);
+    if (mWaitKeyFrame) {
+        if (kind == KIND_INTER_FRAME || kind == KIND_DISPOSABLE_FRAME) {
+            // 之前的 GOP 已经丢弃了一部分, 后续的非关键帧无法解码, 直接丢弃
+            drop(packet);
+            return;
+        }
+        if (kind == KIND_KEY_FRAME) {
+            mWaitKeyFrame = 0;
+        }
+    }
+    BacklogEntry entry = {packet, kind};
+    mBacklog.push_back(entry);
+    mBytes += packet->m_nBodySize;
+    if (isVideoFrame(kind)) {
+        mVideoFrames++;
+    }
+}
+
+void CongestionController::sync() {
+    if (!overBudget()) {
+        return;
+    }
+    dropDisposableFrames();
+    Backlog::iterator first = firstVideoFrame();
+    while (first != mBacklog.end() && overBudget(durationFrom(first))) {
+        first = dropOldestGop(first);
+    }
+}
+
+RTMPPacket *CongestionController::pop() {
+    if (mBacklog.empty()) {
+        return 0;
+    }
+    RTMPPacket *packet = mBacklog.front().packet;
+    onRemoved(mBacklog.front());
+    mBacklog.pop_front();
+    return packet;
+}
+
+RTMPPacket *CongestionController::front() {
+    return mBacklog.empty() ? 0 : mBacklog.front().packet;
+}
+
+RTMPPacket *CongestionController::popAudio(uint32_t maxTimestamp) {
+    for (Backlog::iterator it = mBacklog.begin(); it != mBacklog.end(); ++it) {
+        RTMPPacket *packet = it->packet;
+        if (packet->m_packetType != RTMP_PACKET_TYPE_AUDIO) {
+            continue;
+        }
+        // 第一个音频数据包不满足条件时, 之后的音频数据包时间戳更大, 同样不满足
+        if (packet->m_nTimeStamp > maxTimestamp) {
+            return 0;
+        }
+        onRemoved(*it);
+        mBacklog.erase(it);
+        return packet;
+    }
+    return 0;
+}
+
+void CongestionController::clear() {
+    while (!mBacklog.empty()) {
+        RTMPPacket *packet = mBacklog.front().packet;
+        mBacklog.pop_front();
+        if (mReleaseHandle) {
+            mReleaseHandle(packet);
+        }
+    }
+    mBytes = 0;
+    mVideoFrames = 0;
+    mWaitKeyFrame = 0;
+}
+
+int CongestionController::empty() {
+    return mBacklog.empty();
+}
+
+int CongestionController::size() {
+    return mBacklog.size();
+}
+
+long CongestionController::bytes() {
+    return mBytes;
+}
+
+uint32_t CongestionController::duration() {
+    if (mBacklog.size() < 2) {
+        return 0;
+    }
+    return durationFrom(mBacklog.begin());
+}
+
+int CongestionController::trimToLatestKeyFrame() {
+    Backlog::iterator latest = mBacklog.end();
+    Backlog::iterator it = mBacklog.begin();
+    for (; it != mBacklog.end(); ++it) {
+        if (it->kind == KIND_KEY_FRAME) {
+            latest = it;
+        }
+    }
+
+    int foundKeyFrame = latest != mBacklog.end();
+
+    // 关键帧之前只保留最新的序列头, 之前的序列头与其它数据包全部丢弃
+    BacklogEntry *audioHeader = 0;
+    BacklogEntry *videoHeader = 0;
+    int trimmed = 0;
+    for (it = mBacklog.begin(); it != latest; ++it) {
+        BacklogEntry *entry = &*it;
+        BacklogEntry **header = entry->kind == KIND_AUDIO_HEADER ? &audioHeader
+                                : entry->kind == KIND_VIDEO_HEADER ? &videoHeader : 0;
+        if (header) {
+            std::swap(*header, entry);
+        }
+        if (entry) {
+            onRemoved(*entry);
+            if (mReleaseHandle) {
+                mReleaseHandle(entry->packet);
+            }
+            trimmed++;
+        }
+    }
+    Backlog kept;
+    if (audioHeader) {
+        kept.push_back(*audioHeader);
+    }
+    if (videoHeader) {
+        kept.push_back(*videoHeader);
+    }
+    kept.insert(kept.end(), latest, mBacklog.end());
+    mBacklog.swap(kept);
+
+    if (!foundKeyFrame) {
+        mWaitKeyFrame = 1;
+    }
+    return trimmed;
+}
+
+int CongestionController::startsWithKeyFrame() {
+    Backlog::iterator first = firstVideoFrame();
+    return first != mBacklog.end() && first->kind == KIND_KEY_FRAME;
+}
+
+long CongestionController::getDroppedFrames() {
+    return mDroppedFrames.load();
+}
+
+long CongestionController::getDroppedGops() {
+    return mDroppedGops.load();
+}
+
+long CongestionController::getDroppedBytes() {
+    return mDroppedBytes.load();
+}
+
+int CongestionController::isVideoFrame(PacketKind kind) {
+    return kind == KIND_KEY_FRAME || kind == KIND_INTER_FRAME || kind == KIND_DISPOSABLE_FRAME;
+}
+
+int CongestionController::overBudget() {
+    Backlog::iterator first = firstVideoFrame();
+    return overBudget(first == mBacklog.end() ? 0 : durationFrom(first));
+}
+
+int CongestionController::overBudget(uint32_t videoDurationMs) {
+    int latencyBudgetMs = mLatencyBudgetMs.load();
+    int byteBudget = mByteBudget.load();
+    if (latencyBudgetMs > 0 && videoDurationMs > (uint32_t) latencyBudgetMs) {
+        return 1;
+    }
+    if (byteBudget > 0 && mBytes > byteBudget) {
+        return 1;
+    }
+    return 0;
+}
+
+CongestionController::Backlog::iterator CongestionController::firstVideoFrame() {
+    if (mVideoFrames == 0) {
+        return mBacklog.end();
+    }
+    Backlog::iterator it = mBacklog.begin();
+    while (it != mBacklog.end() && !isVideoFrame(it->kind)) {
+        ++it;
+    }
+    return it;
+}
+
+uint32_t CongestionController::durationFrom(Backlog::iterator first) {
+    uint32_t firstTimestamp = first->packet->m_nTimeStamp;
+    uint32_t last = mBacklog.back().packet->m_nTimeStamp;
+    return last > firstTimestamp ? last - firstTimestamp : 0;
+}
+
+void CongestionController::onRemoved(const BacklogEntry &entry) {
+    mBytes -= entry.packet->m_nBodySize;
+    if (isVideoFrame(entry.kind)) {
+        mVideoFrames--;
+    }
+}
+
+void CongestionController::drop(RTMPPacket *packet) {
+    mDroppedFrames.fetch_add(1);
+    mDroppedBytes.fetch_add(packet->m_nBodySize);
+    if (mReleaseHandle) {
+        mReleaseHandle(packet);
+    }
+}
+
+void CongestionController::dropDisposableFrames() {
+    // 保留的数据包前移覆盖丢弃的数据包, 最后一次性删除队尾, 整个队列只遍历一次
+    // 第一个保留的视频帧确定之后, 延迟不再随丢弃变化, 只有字节数在减少
+    Backlog::iterator write = mBacklog.begin();
+    Backlog::iterator read = mBacklog.begin();
+    int keptVideoFrame = 0;
+    uint32_t videoDurationMs = 0;
+    for (; read != mBacklog.end(); ++read) {
+        if (isVideoFrame(read->kind)) {
+            if (!keptVideoFrame) {
+                videoDurationMs = durationFrom(read);
+            }
+            if (!overBudget(videoDurationMs)) {
+                break;
+            }
+            if (read->kind == KIND_DISPOSABLE_FRAME) {
+                onRemoved(*read);
+                drop(read->packet);
+                continue;
+            }
+            keptVideoFrame = 1;
+        }
+        if (write != read) {
+            *write = *read;
+        }
+        ++write;
+    }
+    if (write != read) {
+        mBacklog.erase(std::copy(read, mBacklog.end(), write), mBacklog.end());
+    }
+}
+
+CongestionController::Backlog::iterator
+CongestionController::dropOldestGop(Backlog::iterator first) {
+    // 从第一个视频帧开始丢弃, 直到下一个关键帧, 保留其中的音频数据包和序列头
+    Backlog::iterator write = first;
+    Backlog::iterator it = first;
+    for (; it != mBacklog.end(); ++it) {
+        if (it->kind == KIND_KEY_FRAME && it != first) {
+            break;
+        }
+        if (isVideoFrame(it->kind)) {
+            onRemoved(*it);
+            drop(it->packet);
+        } else {
+            *write++ = *it;
+        }
+    }
+
+    if (it == mBacklog.end()) {
+        // 队列中没有下一个关键帧, 之后到来的非关键帧也要丢弃, 直到收到关键帧
+        mWaitKeyFrame = 1;
+    }
+    mDroppedGops.fetch_add(1);
+    return mBacklog.erase(write, it);
+}
@@ -0,0 +1,248 @@
+//
+// Created by octopus on 2020/6/24.
+//
+
+#ifndef RTMP_PUSHER_CONGESTIONCONTROLLER_H
+#define RTMP_PUSHER_CONGESTIONCONTROLLER_H
+
+#include <deque>
+#include <atomic>
+#include "librtmp/rtmp.h"
+
+/**
+ * 默认的延迟预算, 待发送数据包的时间跨度超过该值开始丢帧, 单位毫秒
+ */
+#define DEFAULT_LATENCY_BUDGET_MS 3000
+
+/**
+ * 默认的字节预算, 待发送数据包的总字节数超过该值开始丢帧
+ */
+#define DEFAULT_BYTE_BUDGET (4 * 1024 * 1024)
+
+/**
+ * 拥塞控制, 网络上行阻塞时按照 GOP 丢弃视频帧
+ *
+ * 推流线程从 packets 队列中取出的数据包, 先放入本类维护的待发送队列 ( backlog ) 中
+ * 该队列只在推流线程中访问, 相当于 SafeQueue 的 sync 同步回调, 可以安全的修改队列中间的元素
+ *
+ * 当待发送视频帧的 时间跨度 超过延迟预算, 或者 总字节数 超过字节预算时 :
+ *      1. 先丢弃非参考帧 ( nal_ref_idc 为 0 的帧 ), 丢弃后不影响其它帧解码
+ *      2. 再丢弃整个 GOP, 从队首开始丢弃视频帧, 直到下一个关键帧 ( IDR 帧 )
+ *         如果队列中没有下一个关键帧, 丢弃当前 GOP 剩余的帧, 并丢弃之后到来的帧, 直到收到关键帧
+ *
+ * AVC 序列头 ( SPS / PPS ), AAC 序列头, 以及音频数据包永远不会被丢弃
+ */
+class CongestionController {
+
+    /**
+     * 数据包释放函数类型
+     */
+    typedef void (*ReleaseHandle)(RTMPPacket *&);
+
+public:
+
+    /**
+     * 数据包类型
+     */
+    enum PacketKind {
+        KIND_OTHER,
+        KIND_AUDIO_HEADER,
+        KIND_AUDIO,
+        KIND_VIDEO_HEADER,
+        KIND_KEY_FRAME,
+        KIND_INTER_FRAME,
+        KIND_DISPOSABLE_FRAME
+    };
+
+    CongestionController();
+
+    ~CongestionController();
+
+    /**
+     * 设置预算, 可以在任意线程中调用
+     * @param latencyBudgetMs 延迟预算, 单位毫秒, 0 表示不限制
+     * @param byteBudget 字节预算, 0 表示不限制
+     */
+    void setBudget(int latencyBudgetMs, int byteBudget);
+
+    /**
+     * 设置数据包释放函数, 丢弃数据包时调用
+     */
+    void setReleaseHandle(ReleaseHandle releaseHandle);
+
+    /**
+     * 将数据包放入待发送队列, 只能在推流线程中调用
+     * 如果正在等待关键帧, 非关键帧会被直接丢弃
+     */
+    void push(RTMPPacket *packet);
+
+    /**
+     * 检查预算, 超出预算时丢帧, 只能在推流线程中调用
+     */
+    void sync();
+
+    /**
+     * 取出队首数据包, 队列为空返回 0, 只能在推流线程中调用
+     */
+    RTMPPacket *pop();
+
+    /**
+     * 队首数据包, 不取出, 队列为空返回 0, 只能在推流线程中调用
+     */
+    RTMPPacket *front();
+
+    /**
+     * 取出队列中第一个音频数据包 ( 包括 AAC 序列头 ), 音频数据包之间的顺序不变
+     * 发送调度器使用, 音频可以越过排在前面的视频帧先发送
+     * @param maxTimestamp 音频数据包的时间戳超过该值时不取出, 限制音频领先视频的时间
+     * @return 没有满足条件的音频数据包返回 0
+     */
+    RTMPPacket *popAudio(uint32_t maxTimestamp);
+
+    /**
+     * 释放待发送队列中的所有数据包
+     */
+    void clear();
+
+    int empty();
+
+    int size();
+
+    /**
+     * 待发送数据包总字节数
+     */
+    long bytes();
+
+    /**
+     * 待发送数据包时间跨度, 单位毫秒
+     */
+    uint32_t duration();
+
+    /**
+     * 丢弃最后一个关键帧之前的 音频 与 视频 数据包, 只保留最新的 AVC 序列头 与 AAC 序列头
+     * 连接服务器期间缓存的数据 ( 预缓冲 ) 从关键帧开始发送, 观众端可以立即解码出画面, 之后再追上实时数据
+     * 队列中没有关键帧时, 之后到来的非关键帧也要丢弃, 直到收到关键帧
+     * 丢弃的数据包不计入拥塞丢帧统计, 只能在推流线程中调用
+     * @return 丢弃的数据包个数
+     */
+    int trimToLatestKeyFrame();
+
+    /**
+     * 待发送队列中的第一个视频帧是否是关键帧
+     */
+    int startsWithKeyFrame();
+
+    /**
+     * 丢弃的视频帧个数
+     */
+    long getDroppedFrames();
+
+    /**
+     * 丢弃的 GOP 个数
+     */
+    long getDroppedGops();
+
+    /**
+     * 丢弃的字节数
+     */
+    long getDroppedBytes();
+
+    /**
+     * 解析数据包类型
+     */
+    static PacketKind kindOf(RTMPPacket *packet);
+
+private:
+
+    /**
+     * 待发送队列中的元素, 放入队列时解析一次数据包类型, 之后不再重复解析 NAL 单元
+     */
+    struct BacklogEntry {
+        RTMPPacket *packet;
+        PacketKind kind;
+    };
+
+    typedef std::deque<BacklogEntry> Backlog;
+
+    /**
+     * 是否是视频帧 ( 关键帧, 非关键帧, 非参考帧 ), 序列头不算
+     */
+    static int isVideoFrame(PacketKind kind);
+
+    /**
+     * 是否超出预算
+     * 延迟按照 队列中第一个视频帧 到 队尾 的时间跨度计算
+     * 音频与序列头不会被丢弃, 只有它们超出预算时, 丢弃视频帧也无济于事
+     */
+    int overBudget();
+
+    /**
+     * 是否超出预算
+     * @param videoDurationMs 队列中第一个视频帧 到 队尾 的时间跨度, 单位毫秒
+     */
+    int overBudget(uint32_t videoDurationMs);
+
+    /**
+     * 队列中第一个视频帧, 只跳过队首的音频与序列头, 没有视频帧时直接返回队尾
+     */
+    Backlog::iterator firstVideoFrame();
+
+    /**
+     * first 到 队尾 的时间跨度, 单位毫秒
+     */
+    uint32_t durationFrom(Backlog::iterator first);
+
+    /**
+     * 从队列中移除一个元素前更新字节数与视频帧个数
+     */
+    void onRemoved(const BacklogEntry &entry);
+
+    /**
+     * 丢弃一个数据包, 更新统计数据
+     */
+    void drop(RTMPPacket *packet);
+
+    /**
+     * 第一步 : 从队首开始丢弃非参考帧, 直到满足预算
+     */
+    void dropDisposableFrames();
+
+    /**
+     * 第二步 : 丢弃队首的一个 GOP
+     * @param first 队列中第一个视频帧
+     * @return 丢弃之后队列中第一个视频帧, 即下一个关键帧, 没有时返回队尾
+     */
+    Backlog::iterator dropOldestGop(Backlog::iterator first);
+
+    /**
+     * 待发送队列
+     */
+    Backlog mBacklog;
+
+    /**
+     * 待发送数据包总字节数
+     */
+    long mBytes = 0;
+
+    /**
+     * 待发送队列中的视频帧个数, 为 0 时不需要查找第一个视频帧
+     */
+    int mVideoFrames = 0;
+
+    /**
+     * 是否正在等待关键帧, 为 1 时非关键帧直接丢弃
+     */
+    int mWaitKeyFrame = 0;
+
+    std::atomic<int> mLatencyBudgetMs;
+    std::atomic<int> mByteBudget;
+
+    std::atomic<long> mDroppedFrames;
+    std::atomic<long> mDroppedGops;
+    std::atomic<long> mDroppedBytes;
+
+    ReleaseHandle mReleaseHandle = 0;
+};
+
+
+#endif //RTMP_PUSHER_CONGESTIONCONTROLLER_H
@@ -0,0 +1,89 @@
+//
+// Created by octopus on 2020/7/2.
+//
+
+#ifndef RTMP_PUSHER_ENCODERPROFILE_H
+#define RTMP_PUSHER_ENCODERPROFILE_H
+
+/**
+ * 码率控制方式, 与 Java 层 EncoderProfile 中的 RC_* 常量一致
+ */
+enum RateControl {
+    RATE_CONTROL_ABR = 0,
+    RATE_CONTROL_CRF = 1,
+    RATE_CONTROL_CQP = 2
+};
+
+/**
+ * 使用 preset / tune 中的默认值
+ */
+#define ENCODER_PROFILE_PRESET_DEFAULT -1
+
+/**
+ * x264 视频编码器配置, 由 Java 层 EncoderProfile 转换而来
+ * 默认值与之前固定的编码参数一致
+ */
+struct EncoderProfile {
+
+    /**
+     * 编码速度预设, ultrafast ~ placebo
+     */
+    char preset[16] = "ultrafast";
+
+    /**
+     * 编码场景, 空字符串表示不设置
+     */
+    char tune[32] = "zerolatency";
+
+    /**
+     * H.264 规格限制, baseline / main / high, 空字符串表示不限制
+     */
+    char profile[16] = "";
+
+    /**
+     * H.264 级别, 32 表示 3.2
+     */
+    int levelIdc = 32;
+
+    /**
+     * 编码线程个数, 0 表示由 x264 自动决定
+     */
+    int threads = 1;
+
+    /**
+     * 是否使用条带多线程
+     */
+    int slicedThreads = 0;
+
+    /**
+     * 码率控制前向预测帧数, -1 表示使用 preset / tune 中的值
+     */
+    int lookahead = ENCODER_PROFILE_PRESET_DEFAULT;
+
+    /**
+     * 关键帧间隔, 单位秒
+     */
+    int keyintSeconds = 2;
+
+    /**
+     * 连续 B 帧最大个数, -1 表示使用 preset / tune 中的值
+     */
+    int bframes = 0;
+
+    /**
+     * 码率控制方式
+     */
+    int rateControl = RATE_CONTROL_ABR;
+
+    /**
+     * CRF 质量因子
+     */
+    float rateFactor = 23;
+
+    /**
+     * CQP 量化参数
+     */
+    int qp = 23;
+};
+
+#endif //RTMP_PUSHER_ENCODERPROFILE_H
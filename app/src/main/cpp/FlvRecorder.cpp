@@ -0,0 +1,328 @@
+//
+// Created by octopus on 2020/7/11.
+//
+
+#include <errno.h>
+#include <fcntl.h>
+#include <string.h>
+#include <unistd.h>
+#include "FlvRecorder.h"
+#include "CongestionController.h"
+#include "MonotonicClock.h"
+#include "RtmpLog.h"
+
+/**
+ * FLV tag 头长度 : 类型 1, 数据长度 3, 时间戳 3 + 扩展时间戳 1, 流 ID 3
+ */
+#define FLV_TAG_HEADER_SIZE 11
+
+/**
+ * FLV 文件头长度
+ */
+#define FLV_HEADER_SIZE 9
+
+/**
+ * 写入线程每次从队列中最多取出的数据包个数
+ */
+#define RECORD_BATCH_SIZE 64
+
+/**
+ * AMF 字符串, 只在编码期间引用常量字符串
+ */
+static AVal makeAVal(const char *value) {
+    AVal av;
+    av.av_val = const_cast<char *>(value);
+    av.av_len = static_cast<int>(strlen(value));
+    return av;
+}
+
+static void putUint24(char *out, uint32_t value) {
+    out[0] = (char) (value >> 16);
+    out[1] = (char) (value >> 8);
+    out[2] = (char) value;
+}
+
+static void putUint32(char *out, uint32_t value) {
+    out[0] = (char) (value >> 24);
+    out[1] = (char) (value >> 16);
+    out[2] = (char) (value >> 8);
+    out[3] = (char) value;
+}
+
+FlvRecorder::FlvRecorder() : mQueue(RECORD_QUEUE_CAPACITY) {
+    mRecording.store(0);
+    mWrittenBytes.store(0);
+    mDroppedPackets.store(0);
+    mWriteCalls.store(0);
+}
+
+FlvRecorder::~FlvRecorder() {
+    stop();
+}
+
+void FlvRecorder::setReleaseHandle(ReleaseHandle releaseHandle) {
+    mReleaseHandle = releaseHandle;
+    mQueue.setReleaseHandle(releaseHandle);
+}
+
+int FlvRecorder::start(const char *path, int width, int height, int fps) {
+    if (mThreadStarted) {
+        return 0;
+    }
+    mFd = open(path, O_WRONLY | O_CREAT | O_TRUNC, 0644);
+    if (mFd < 0) {
+        LOGE("创建录制文件 %s 失败 : %s", path, strerror(errno));
+        return 0;
+    }
+    mWidth = width;
+    mHeight = height;
+    mFps = fps;
+    mFailed = 0;
+    mFileBytes = 0;
+    mTimestampValid = 0;
+    mWaitKeyFrame = 0;
+    mBuffer.clear();
+    mBuffer.reserve(RECORD_WRITE_BUFFER_BYTES);
+    mWrittenBytes.store(0);
+    mDroppedPackets.store(0);
+    mWriteCalls.store(0);
+
+    mQueue.setWork(1);
+    mRecording.store(1);
+    if (pthread_create(&mThread, 0, run, this) != 0) {
+        mRecording.store(0);
+        mQueue.setWork(0);
+        close(mFd);
+        mFd = -1;
+        return 0;
+    }
+    mThreadStarted = 1;
+    LOGI("开始录制 %s", path);
+    return 1;
+}
+
+void FlvRecorder::push(RTMPPacket *packet) {
+    if (!mRecording.load()) {
+        release(packet);
+        return;
+    }
+    CongestionController::PacketKind kind = CongestionController::kindOf(packet);
+    int videoFrame = kind == CongestionController::KIND_KEY_FRAME
+                     || kind == CongestionController::KIND_INTER_FRAME
+                     || kind == CongestionController::KIND_DISPOSABLE_FRAME;
+    if (videoFrame && mWaitKeyFrame) {
+        if (kind != CongestionController::KIND_KEY_FRAME) {
+            mDroppedPackets.fetch_add(1);
+            release(packet);
+            return;
+        }
+        mWaitKeyFrame = 0;
+    }
+    if (!mQueue.push(packet)) {
+        // 磁盘写入跟不上, 数据包已经被释放
+        mDroppedPackets.fetch_add(1);
+        if (videoFrame) {
+            mWaitKeyFrame = 1;
+        }
+    }
+}
+
+void FlvRecorder::stop() {
+    if (!mThreadStarted) {
+        return;
+    }
+    // 写入线程取出剩余的数据包后退出
+    mRecording.store(0);
+    mQueue.setWork(0);
+    pthread_join(mThread, 0);
+    mThreadStarted = 0;
+    mQueue.clear();
+    LOGI("录制结束 : 写入 %lld 字节, write 调用 %lld 次, 丢弃 %lld 个数据包",
+         static_cast<long long>(mWrittenBytes.load()), static_cast<long long>(mWriteCalls.load()),
+         static_cast<long long>(mDroppedPackets.load()));
+}
+
+int FlvRecorder::isRecording() {
+    return mRecording.load();
+}
+
+int64_t FlvRecorder::getWrittenBytes() {
+    return mWrittenBytes.load();
+}
+
+int64_t FlvRecorder::getDroppedPackets() {
+    return mDroppedPackets.load();
+}
+
+int64_t FlvRecorder::getWriteCalls() {
+    return mWriteCalls.load();
+}
+
+void *FlvRecorder::run(void *args) {
+    static_cast<FlvRecorder *>(args)->loop();
+    return 0;
+}
+
+void FlvRecorder::loop() {
+    RTMPPacket *batch[RECORD_BATCH_SIZE];
+    appendHeader();
+    flush();
+    int64_t lastFlushUs = monotonicTimeUs();
+
+    while (true) {
+        // 缓冲区为空时阻塞等待, 否则只取出已经就绪的数据包, 按时写入缓冲区中的数据
+        int count = mBuffer.empty() ? mQueue.waitAndDrain(batch, RECORD_BATCH_SIZE)
+                                    : mQueue.drain(batch, RECORD_BATCH_SIZE);
+        for (int i = 0; i < count; i++) {
+            append(batch[i]);
+            release(batch[i]);
+        }
+        if (count > 0) {
+            continue;
+        }
+        if (!mRecording.load()) {
+            break;
+        }
+        int64_t now = monotonicTimeUs();
+        if (now - lastFlushUs >= RECORD_FLUSH_INTERVAL_MS * 1000LL) {
+            flush();
+            lastFlushUs = now;
+        } else {
+            usleep(RECORD_POLL_INTERVAL_MS * 1000);
+        }
+    }
+
+    flush();
+    updateMetaData();
+    close(mFd);
+    mFd = -1;
+}
+
+void FlvRecorder::appendHeader() {
+    // FLV 文件头 : "FLV", 版本 1, 有音频 ( 0x04 ) 与视频 ( 0x01 ), 文件头长度 9, 之后是 PreviousTagSize0
+    char header[FLV_HEADER_SIZE + 4] = {'F', 'L', 'V', 0x01, 0x05, 0, 0, 0, FLV_HEADER_SIZE,
+                                        0, 0, 0, 0};
+    mBuffer.insert(mBuffer.end(), header, header + sizeof(header));
+
+    // onMetaData : AMF0 字符串 "onMetaData" 与 ECMA 数组
+    char body[256];
+    char *end = body + sizeof(body);
+    char *p = body;
+    AVal name = makeAVal("onMetaData");
+    p = AMF_EncodeString(p, end, &name);
+    *p++ = AMF_ECMA_ARRAY;
+    int count = mWidth > 0 ? 7 : 4;
+    p = AMF_EncodeInt32(p, end, count);
+
+    // duration 与 filesize 停止录制时才知道, 先写入 0, 记录数值的位置
+    AVal duration = makeAVal("duration");
+    p = AMF_EncodeNamedNumber(p, end, &duration, 0);
+    size_t durationPosition = p - 8 - body;
+    AVal fileSize = makeAVal("filesize");
+    p = AMF_EncodeNamedNumber(p, end, &fileSize, 0);
+    size_t fileSizePosition = p - 8 - body;
+    if (mWidth > 0) {
+        AVal width = makeAVal("width");
+        p = AMF_EncodeNamedNumber(p, end, &width, mWidth);
+        AVal height = makeAVal("height");
+        p = AMF_EncodeNamedNumber(p, end, &height, mHeight);
+        AVal framerate = makeAVal("framerate");
+        p = AMF_EncodeNamedNumber(p, end, &framerate, mFps);
+    }
+    // 7 : AVC, 10 : AAC
+    AVal videoCodecId = makeAVal("videocodecid");
+    p = AMF_EncodeNamedNumber(p, end, &videoCodecId, 7);
+    AVal audioCodecId = makeAVal("audiocodecid");
+    p = AMF_EncodeNamedNumber(p, end, &audioCodecId, 10);
+    // ECMA 数组结束标记
+    *p++ = 0;
+    *p++ = 0;
+    *p++ = AMF_OBJECT_END;
+    uint32_t bodySize = p - body;
+
+    char tagHeader[FLV_TAG_HEADER_SIZE] = {RTMP_PACKET_TYPE_INFO};
+    putUint24(tagHeader + 1, bodySize);
+    size_t bodyOffset = mBuffer.size() + FLV_TAG_HEADER_SIZE;
+    mDurationOffset = bodyOffset + durationPosition;
+    mFileSizeOffset = bodyOffset + fileSizePosition;
+    mBuffer.insert(mBuffer.end(), tagHeader, tagHeader + FLV_TAG_HEADER_SIZE);
+    mBuffer.insert(mBuffer.end(), body, p);
+    char previousTagSize[4];
+    putUint32(previousTagSize, FLV_TAG_HEADER_SIZE + bodySize);
+    mBuffer.insert(mBuffer.end(), previousTagSize, previousTagSize + 4);
+}
+
+void FlvRecorder::append(RTMPPacket *packet) {
+    if (mFailed || (packet->m_packetType != RTMP_PACKET_TYPE_AUDIO
+                    && packet->m_packetType != RTMP_PACKET_TYPE_VIDEO)) {
+        return;
+    }
+    uint32_t tagSize = FLV_TAG_HEADER_SIZE + packet->m_nBodySize;
+    if (!mBuffer.empty() && mBuffer.size() + tagSize + 4 > RECORD_WRITE_BUFFER_BYTES) {
+        flush();
+    }
+
+    // 交织排序后时间戳不回退, 以第一个数据包为 0
+    if (!mTimestampValid) {
+        mTimestampValid = 1;
+        mFirstTimestamp = packet->m_nTimeStamp;
+    }
+    uint32_t timestamp = packet->m_nTimeStamp - mFirstTimestamp;
+    mLastTimestamp = timestamp;
+
+    // tag 头 : 时间戳低 24 位在前, 高 8 位是扩展时间戳, 流 ID 总是 0
+    char tagHeader[FLV_TAG_HEADER_SIZE];
+    tagHeader[0] = packet->m_packetType;
+    putUint24(tagHeader + 1, packet->m_nBodySize);
+    putUint24(tagHeader + 4, timestamp & 0xFFFFFF);
+    tagHeader[7] = (char) (timestamp >> 24);
+    putUint24(tagHeader + 8, 0);
+    mBuffer.insert(mBuffer.end(), tagHeader, tagHeader + FLV_TAG_HEADER_SIZE);
+    mBuffer.insert(mBuffer.end(), packet->m_body, packet->m_body + packet->m_nBodySize);
+    char previousTagSize[4];
+    putUint32(previousTagSize, tagSize);
+    mBuffer.insert(mBuffer.end(), previousTagSize, previousTagSize + 4);
+}
+
+void FlvRecorder::flush() {
+    size_t offset = 0;
+    while (!mFailed && offset < mBuffer.size()) {
+        ssize_t written = write(mFd, mBuffer.data() + offset, mBuffer.size() - offset);
+        mWriteCalls.fetch_add(1);
+        if (written < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            LOGE("写入录制文件失败 : %s, 停止录制", strerror(errno));
+            mFailed = 1;
+            break;
+        }
+        offset += written;
+    }
+    mFileBytes += offset;
+    mWrittenBytes.store(mFileBytes);
+    mBuffer.clear();
+}
+
+void FlvRecorder::updateMetaData() {
+    if (mFailed) {
+        return;
+    }
+    patchNumber(mDurationOffset, mLastTimestamp / 1000.0);
+    patchNumber(mFileSizeOffset, mFileBytes);
+}
+
+void FlvRecorder::patchNumber(off_t offset, double value) {
+    // AMF 数值 : 1 字节类型标记 + 8 字节大端 double, 只覆盖 double 部分
+    char number[9];
+    AMF_EncodeNumber(number, number + sizeof(number), value);
+    if (pwrite(mFd, number + 1, 8, offset) != 8) {
+        LOGE("更新录制文件 onMetaData 失败 : %s", strerror(errno));
+    }
+}
+
+void FlvRecorder::release(RTMPPacket *packet) {
+    if (packet && mReleaseHandle) {
+        mReleaseHandle(packet);
+    }
+}
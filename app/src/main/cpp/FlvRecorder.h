@@ -0,0 +1,195 @@
+//
+// Created by octopus on 2020/7/11.
+//
+
+#ifndef RTMP_PUSHER_FLVRECORDER_H
+#define RTMP_PUSHER_FLVRECORDER_H
+
+#include <atomic>
+#include <stdint.h>
+#include <vector>
+#include <pthread.h>
+#include <sys/types.h>
+#include "librtmp/rtmp.h"
+#include "RingQueue.h"
+
+/**
+ * 录制数据包队列容量
+ */
+#define RECORD_QUEUE_CAPACITY 1024
+
+/**
+ * 写入缓冲区大小, 缓冲区满时写入文件, 单位字节
+ * 2 Mbps 的直播流大约 2 秒写入一次, 每次一个系统调用
+ */
+#define RECORD_WRITE_BUFFER_BYTES (512 * 1024)
+
+/**
+ * 缓冲区中的数据最多等待该时间后写入文件, 单位毫秒
+ */
+#define RECORD_FLUSH_INTERVAL_MS 2000
+
+/**
+ * 缓冲区中有数据时, 写入线程等待新数据的轮询间隔, 单位毫秒
+ */
+#define RECORD_POLL_INTERVAL_MS 20
+
+/**
+ * 本地 FLV 录制
+ *
+ * 分发线程将交织排序后的数据包增加一个引用后交给本类, 与推流目的地共享同一份编码数据, 不需要再次编码
+ * 录制的是编码器输出的全部数据, 不受各个推流目的地拥塞丢帧的影响
+ *
+ * 磁盘写入在单独的写入线程中进行, 不会阻塞分发线程, 推流线程与编码线程 :
+ *      写入线程将数据包转换为 FLV tag 拷贝到写入缓冲区, 立即归还数据包引用
+ *      缓冲区满 ( RECORD_WRITE_BUFFER_BYTES ), 或者数据等待超过 RECORD_FLUSH_INTERVAL_MS 时, 一次 write 写入文件
+ *      磁盘写入太慢导致队列已满时, 丢弃数据包, 并跳过之后的非关键帧, 直到下一个关键帧
+ *
+ * 文件格式 : FLV 文件头, onMetaData, 音视频 tag, 每个 tag 之后是 PreviousTagSize
+ * RTMP 音视频消息的数据部分与 FLV tag 的数据部分相同, 时间戳以第一个数据包为 0
+ * 停止录制时更新 onMetaData 中的 duration 与 filesize
+ */
+class FlvRecorder {
+
+    /**
+     * 数据包释放函数类型
+     */
+    typedef void (*ReleaseHandle)(RTMPPacket *&);
+
+public:
+    FlvRecorder();
+
+    ~FlvRecorder();
+
+    /**
+     * 设置数据包释放函数, 归还数据包引用时调用
+     */
+    void setReleaseHandle(ReleaseHandle releaseHandle);
+
+    /**
+     * 创建 FLV 文件, 启动写入线程, 文件头在写入线程中写入
+     * @param path      文件路径, 文件已经存在时覆盖
+     * @param width     视频宽度, 写入 onMetaData, 0 表示不写入
+     * @param height    视频高度
+     * @param fps       视频帧率
+     * @return 成功返回 1
+     */
+    int start(const char *path, int width, int height, int fps);
+
+    /**
+     * 放入一个数据包, 只能在分发线程中调用, 数据包的一个引用交给本类
+     * 没有在录制, 或者需要跳过该数据包时, 直接归还该引用
+     */
+    void push(RTMPPacket *packet);
+
+    /**
+     * 停止录制, 等待写入线程写入剩余的数据, 更新 onMetaData, 关闭文件
+     */
+    void stop();
+
+    /**
+     * 是否正在录制
+     */
+    int isRecording();
+
+    /**
+     * 已经写入文件的字节数
+     */
+    int64_t getWrittenBytes();
+
+    /**
+     * 队列已满或者等待关键帧时丢弃的数据包个数
+     */
+    int64_t getDroppedPackets();
+
+    /**
+     * write 系统调用次数
+     */
+    int64_t getWriteCalls();
+
+private:
+    static void *run(void *args);
+
+    void loop();
+
+    /**
+     * 写入 FLV 文件头 与 onMetaData, 记录 duration 与 filesize 的位置
+     */
+    void appendHeader();
+
+    /**
+     * 将数据包转换为 FLV tag 追加到写入缓冲区, 缓冲区容纳不下时先写入文件
+     */
+    void append(RTMPPacket *packet);
+
+    /**
+     * 将写入缓冲区中的数据写入文件
+     */
+    void flush();
+
+    /**
+     * 停止录制时更新 onMetaData 中的 duration 与 filesize
+     */
+    void updateMetaData();
+
+    /**
+     * 将 AMF 数值写入文件的指定位置
+     */
+    void patchNumber(off_t offset, double value);
+
+    void release(RTMPPacket *packet);
+
+    RingQueue<RTMPPacket *> mQueue;
+
+    std::atomic<int> mRecording;
+
+    /**
+     * 队列已满丢弃过视频帧, 跳过之后的非关键帧, 直到下一个关键帧, 只在分发线程中访问
+     */
+    int mWaitKeyFrame = 0;
+
+    pthread_t mThread;
+    int mThreadStarted = 0;
+
+    // 以下成员只在写入线程中访问
+
+    int mFd = -1;
+
+    /**
+     * 写入出错 ( 如磁盘已满 ), 之后的数据不再写入
+     */
+    int mFailed = 0;
+
+    std::vector<char> mBuffer;
+
+    /**
+     * 文件当前大小
+     */
+    int64_t mFileBytes = 0;
+
+    /**
+     * 第一个数据包的时间戳, 作为文件的时间戳 0
+     */
+    uint32_t mFirstTimestamp = 0;
+    uint32_t mLastTimestamp = 0;
+    int mTimestampValid = 0;
+
+    int mWidth = 0;
+    int mHeight = 0;
+    int mFps = 0;
+
+    /**
+     * onMetaData 中 duration 与 filesize 数值在文件中的位置
+     */
+    off_t mDurationOffset = 0;
+    off_t mFileSizeOffset = 0;
+
+    std::atomic<int64_t> mWrittenBytes;
+    std::atomic<int64_t> mDroppedPackets;
+    std::atomic<int64_t> mWriteCalls;
+
+    ReleaseHandle mReleaseHandle = 0;
+};
+
+
+#endif //RTMP_PUSHER_FLVRECORDER_H
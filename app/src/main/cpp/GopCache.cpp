@@ -0,0 +1,106 @@
+//
+// Created by octopus on 2020/7/8.
+//
+
+#include "GopCache.h"
+#include "CongestionController.h"
+
+GopCache::GopCache() {
+}
+
+GopCache::~GopCache() {
+    clear();
+}
+
+void GopCache::setReleaseHandle(ReleaseHandle releaseHandle) {
+    mReleaseHandle = releaseHandle;
+}
+
+void GopCache::setMaxBytes(long maxBytes) {
+    mMaxBytes = maxBytes;
+}
+
+void GopCache::onSent(RTMPPacket *packet) {
+    if (!packet) {
+        return;
+    }
+    switch (CongestionController::kindOf(packet)) {
+        case CongestionController::KIND_AUDIO_HEADER:
+            release(mAudioHeader);
+            mAudioHeader = packet;
+            return;
+        case CongestionController::KIND_VIDEO_HEADER:
+            release(mVideoHeader);
+            mVideoHeader = packet;
+            return;
+        case CongestionController::KIND_KEY_FRAME:
+            // 新的 GOP 开始, 上一个 GOP 不再需要
+            releaseGop();
+            mGopValid = 1;
+            break;
+        case CongestionController::KIND_AUDIO:
+        case CongestionController::KIND_INTER_FRAME:
+        case CongestionController::KIND_DISPOSABLE_FRAME:
+            if (!mGopValid) {
+                release(packet);
+                return;
+            }
+            break;
+        default:
+            release(packet);
+            return;
+    }
+
+    mGop.push_back(packet);
+    mGopBytes += packet->m_nBodySize;
+    if (mMaxBytes > 0 && mGopBytes > mMaxBytes) {
+        // GOP 过大 ( 如关键帧间隔很长 ), 不再缓存, 重连后等待下一个关键帧
+        releaseGop();
+    }
+}
+
+int GopCache::getWarmUpPackets(std::vector<RTMPPacket *> &out, int includeGop) {
+    size_t count = out.size();
+    if (mAudioHeader) {
+        out.push_back(mAudioHeader);
+    }
+    if (mVideoHeader) {
+        out.push_back(mVideoHeader);
+    }
+    if (includeGop && mGopValid && mVideoHeader) {
+        out.insert(out.end(), mGop.begin(), mGop.end());
+    }
+    return out.size() - count;
+}
+
+void GopCache::clear() {
+    release(mAudioHeader);
+    mAudioHeader = 0;
+    release(mVideoHeader);
+    mVideoHeader = 0;
+    releaseGop();
+}
+
+int GopCache::getGopPackets() {
+    return mGop.size();
+}
+
+long GopCache::getGopBytes() {
+    return mGopBytes;
+}
+
+void GopCache::releaseGop() {
+    while (!mGop.empty()) {
+        RTMPPacket *packet = mGop.front();
+        mGop.pop_front();
+        release(packet);
+    }
+    mGopBytes = 0;
+    mGopValid = 0;
+}
+
+void GopCache::release(RTMPPacket *packet) {
+    if (packet && mReleaseHandle) {
+        mReleaseHandle(packet);
+    }
+}
@@ -0,0 +1,111 @@
+//
+// Created by octopus on 2020/7/8.
+//
+
+#ifndef RTMP_PUSHER_GOPCACHE_H
+#define RTMP_PUSHER_GOPCACHE_H
+
+#include <deque>
+#include <vector>
+#include "librtmp/rtmp.h"
+
+/**
+ * 默认的 GOP 缓存上限, 超过该值后当前 GOP 不再缓存, 直到下一个关键帧, 单位字节
+ */
+#define DEFAULT_GOP_CACHE_BYTES (2 * 1024 * 1024)
+
+/**
+ * GOP 缓存, 断线重连后预热新的连接
+ *
+ * 推流线程发送完毕的数据包交给本类, 本类保留 :
+ *      1. 最新的 AVC 序列头 与 AAC 序列头
+ *      2. 从最新的关键帧开始已经发送的 音频 与 视频 数据包 ( 当前 GOP )
+ * 其它数据包直接归还到数据包池, 收到新的关键帧时归还上一个 GOP 的数据包
+ *
+ * 保留的是已经发送完毕的数据包本身, 不拷贝数据, 稳定推流后缓存占用 一个 GOP 的数据包
+ * 只在推流线程中访问, 不需要加锁
+ */
+class GopCache {
+
+    /**
+     * 数据包释放函数类型
+     */
+    typedef void (*ReleaseHandle)(RTMPPacket *&);
+
+public:
+
+    GopCache();
+
+    ~GopCache();
+
+    /**
+     * 设置数据包释放函数, 归还数据包时调用
+     */
+    void setReleaseHandle(ReleaseHandle releaseHandle);
+
+    /**
+     * 设置当前 GOP 缓存上限, 单位字节
+     */
+    void setMaxBytes(long maxBytes);
+
+    /**
+     * 数据包发送完毕 ( 或者发送失败 ) 后调用, 数据包的所有权交给本类
+     */
+    void onSent(RTMPPacket *packet);
+
+    /**
+     * 获取重连后需要重新发送的数据包, 数据包的所有权仍然属于本类
+     * 顺序为 AAC 序列头, AVC 序列头, 当前 GOP 中的数据包
+     * @param out           输出数据包
+     * @param includeGop    是否包含当前 GOP, 0 时只输出序列头
+     * @return 输出的数据包个数
+     */
+    int getWarmUpPackets(std::vector<RTMPPacket *> &out, int includeGop);
+
+    /**
+     * 归还所有缓存的数据包
+     */
+    void clear();
+
+    /**
+     * 当前 GOP 缓存的数据包个数
+     */
+    int getGopPackets();
+
+    /**
+     * 当前 GOP 缓存的字节数
+     */
+    long getGopBytes();
+
+private:
+
+    /**
+     * 归还当前 GOP 中的数据包
+     */
+    void releaseGop();
+
+    void release(RTMPPacket *packet);
+
+    RTMPPacket *mAudioHeader = 0;
+
+    RTMPPacket *mVideoHeader = 0;
+
+    /**
+     * 当前 GOP, 第一个视频帧是关键帧
+     */
+    std::deque<RTMPPacket *> mGop;
+
+    long mGopBytes = 0;
+
+    /**
+     * 当前 GOP 是否有效, 还没有收到关键帧, 或者超出缓存上限时为 0
+     */
+    int mGopValid = 0;
+
+    long mMaxBytes = DEFAULT_GOP_CACHE_BYTES;
+
+    ReleaseHandle mReleaseHandle = 0;
+};
+
+
+#endif //RTMP_PUSHER_GOPCACHE_H
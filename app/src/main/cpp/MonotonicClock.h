@@ -0,0 +1,35 @@
+//
+// Created by octopus on 2020/7/15.
+//
+
+#ifndef RTMP_PUSHER_MONOTONICCLOCK_H
+#define RTMP_PUSHER_MONOTONICCLOCK_H
+
+#include <stdint.h>
+#include <time.h>
+
+/**
+ * 单调递增的时间, CLOCK_MONOTONIC 时钟, 单位微秒
+ * 与 Java 层 System.nanoTime() 是同一个时钟
+ * armeabi-v7a 上 long 只有 32 位, 开机约 35.8 分钟后就会溢出, 必须使用 64 位计算
+ */
+inline int64_t monotonicTimeUs() {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return now.tv_sec * 1000000LL + now.tv_nsec / 1000;
+}
+
+/**
+ * 将 CLOCK_MONOTONIC 时间转为相对于开始推流时间的 RTMP 时间戳, 单位毫秒
+ * 采集时间 ( System.nanoTime() ) 与发送完成时间都通过该方法转换, 两端使用同一个 64 位时钟
+ * 先用 64 位计算相对时间, 再截断为 32 位, 与开机时长无关, 推流 49.7 天之后才回绕
+ * 开始推流之前的时间, 时间戳为 0
+ * @param timeNanos     CLOCK_MONOTONIC 时间, 单位纳秒
+ * @param startTimeMs   开始推流的时间, CLOCK_MONOTONIC 时钟, 单位毫秒
+ */
+inline uint32_t streamTimestampMs(int64_t timeNanos, int64_t startTimeMs) {
+    int64_t timestamp = timeNanos / 1000000 - startTimeMs;
+    return timestamp > 0 ? static_cast<uint32_t>(timestamp) : 0;
+}
+
+#endif //RTMP_PUSHER_MONOTONICCLOCK_H
@@ -0,0 +1,397 @@
+//
+// Created by octopus on 2020/6/22.
+//
+
+#include <string.h>
+#include "NV21Converter.h"
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#define NV21_USE_NEON 1
+#include <arm_neon.h>
+#elif defined(__SSE2__)
+#define NV21_USE_SSE2 1
+#include <emmintrin.h>
+#endif
+
+/**
+ * 分块大小, 64 x 64 的 Y 数据块 + 两个 32 x 32 的 UV 数据块
+ * 源数据和目标数据加起来只占几十 KB, 可以完整的放在 L1 / L2 缓存中
+ */
+#define TILE_SIZE 64
+
+/**
+ * 平面遍历方式
+ *
+ * 目标图像 ( x, y ) 位置的像素, 对应的源图像元素索引为 :
+ *      origin + x * colStep + y * rowStep
+ *
+ * 旋转 0 度 / 180 度时, colStep 为 ±1, rowStep 为 ±width, 按行读取源图像
+ * 旋转 90 度 / 270 度时, colStep 为 ±width, rowStep 为 ±1, 按列读取源图像, 需要转置
+ */
+struct PlaneWalk {
+    long origin;
+    long colStep;
+    long rowStep;
+};
+
+/**
+ * 计算平面遍历方式
+ * @param rotation  顺时针旋转角度, 已经规范成 0 / 90 / 180 / 270
+ * @param mirror    是否水平镜像
+ * @param width     源平面宽度, 单位是元素个数 ( Y 平面 1 字节一个元素, VU 平面 2 字节一个元素 )
+ * @param height    源平面高度
+ * @return
+ */
+static PlaneWalk computePlaneWalk(int rotation, int mirror, int width, int height) {
+    PlaneWalk walk;
+    int dstWidth;
+    switch (rotation) {
+        case 90:
+            // 目标 ( x, y ) 对应源图像 ( y, height - 1 - x )
+            walk.origin = (long) (height - 1) * width;
+            walk.colStep = -width;
+            walk.rowStep = 1;
+            dstWidth = height;
+            break;
+        case 180:
+            // 目标 ( x, y ) 对应源图像 ( width - 1 - x, height - 1 - y )
+            walk.origin = (long) (height - 1) * width + width - 1;
+            walk.colStep = -1;
+            walk.rowStep = -width;
+            dstWidth = width;
+            break;
+        case 270:
+            // 目标 ( x, y ) 对应源图像 ( width - 1 - y, x )
+            walk.origin = width - 1;
+            walk.colStep = width;
+            walk.rowStep = -1;
+            dstWidth = height;
+            break;
+        default:
+            walk.origin = 0;
+            walk.colStep = 1;
+            walk.rowStep = width;
+            dstWidth = width;
+            break;
+    }
+    if (mirror) {
+        // 水平镜像 : 目标 x 替换为 dstWidth - 1 - x
+        walk.origin += (long) (dstWidth - 1) * walk.colStep;
+        walk.colStep = -walk.colStep;
+    }
+    return walk;
+}
+
+/**
+ * 将旋转角度规范为 0 / 90 / 180 / 270
+ */
+static int normalizeRotation(int rotation) {
+    rotation %= 360;
+    if (rotation < 0) {
+        rotation += 360;
+    }
+    return rotation / 90 * 90;
+}
+
+/**
+ * 标量处理 Y 平面的一个矩形区域 [xBegin, xEnd) x [yBegin, yEnd)
+ */
+static void lumaRegionScalar(const uint8_t *src, const PlaneWalk &walk,
+                             uint8_t *dst, int stride,
+                             int xBegin, int xEnd, int yBegin, int yEnd) {
+    for (int y = yBegin; y < yEnd; y++) {
+        const uint8_t *p = src + walk.origin + y * walk.rowStep + xBegin * walk.colStep;
+        uint8_t *d = dst + (long) y * stride;
+        for (int x = xBegin; x < xEnd; x++) {
+            d[x] = *p;
+            p += walk.colStep;
+        }
+    }
+}
+
+/**
+ * 标量处理 VU 平面的一个矩形区域, 同时拆分出 U / V 数据
+ * NV21 中 V 在前 ( 偶数位置 ), U 在后 ( 奇数位置 )
+ */
+static void chromaRegionScalar(const uint8_t *srcVU, const PlaneWalk &walk,
+                               uint8_t *dstU, int uStride, uint8_t *dstV, int vStride,
+                               int xBegin, int xEnd, int yBegin, int yEnd) {
+    for (int y = yBegin; y < yEnd; y++) {
+        const uint8_t *p = srcVU + 2 * (walk.origin + y * walk.rowStep + xBegin * walk.colStep);
+        uint8_t *u = dstU + (long) y * uStride;
+        uint8_t *v = dstV + (long) y * vStride;
+        for (int x = xBegin; x < xEnd; x++) {
+            v[x] = p[0];
+            u[x] = p[1];
+            p += 2 * walk.colStep;
+        }
+    }
+}
+
+/**
+ * 拆分一行 VU 交替存储的数据, 不旋转时使用
+ */
+static void deinterleaveRow(const uint8_t *vu, uint8_t *u, uint8_t *v, int count) {
+    int i = 0;
+#if NV21_USE_NEON
+    for (; i + 16 <= count; i += 16) {
+        // vld2q_u8 按照 2 字节交替读取, val[0] 是 V 数据, val[1] 是 U 数据
+        uint8x16x2_t pair = vld2q_u8(vu + 2 * i);
+        vst1q_u8(v + i, pair.val[0]);
+        vst1q_u8(u + i, pair.val[1]);
+    }
+#elif NV21_USE_SSE2
+    const __m128i lowMask = _mm_set1_epi16(0x00FF);
+    for (; i + 16 <= count; i += 16) {
+        __m128i a = _mm_loadu_si128((const __m128i *) (vu + 2 * i));
+        __m128i b = _mm_loadu_si128((const __m128i *) (vu + 2 * i + 16));
+        // 低字节是 V, 高字节是 U
+        __m128i vv = _mm_packus_epi16(_mm_and_si128(a, lowMask), _mm_and_si128(b, lowMask));
+        __m128i uu = _mm_packus_epi16(_mm_srli_epi16(a, 8), _mm_srli_epi16(b, 8));
+        _mm_storeu_si128((__m128i *) (v + i), vv);
+        _mm_storeu_si128((__m128i *) (u + i), uu);
+    }
+#endif
+    for (; i < count; i++) {
+        v[i] = vu[2 * i];
+        u[i] = vu[2 * i + 1];
+    }
+}
+
+#if NV21_USE_NEON || NV21_USE_SSE2
+
+#if NV21_USE_NEON
+
+/**
+ * 8 x 8 字节矩阵转置, r[i] 是第 i 行, 转置后 r[i] 是原来的第 i 列
+ */
+static inline void transpose8x8(uint8x8_t r[8]) {
+    uint8x8x2_t t0 = vtrn_u8(r[0], r[1]);
+    uint8x8x2_t t1 = vtrn_u8(r[2], r[3]);
+    uint8x8x2_t t2 = vtrn_u8(r[4], r[5]);
+    uint8x8x2_t t3 = vtrn_u8(r[6], r[7]);
+
+    uint16x4x2_t u0 = vtrn_u16(vreinterpret_u16_u8(t0.val[0]), vreinterpret_u16_u8(t1.val[0]));
+    uint16x4x2_t u1 = vtrn_u16(vreinterpret_u16_u8(t0.val[1]), vreinterpret_u16_u8(t1.val[1]));
+    uint16x4x2_t u2 = vtrn_u16(vreinterpret_u16_u8(t2.val[0]), vreinterpret_u16_u8(t3.val[0]));
+    uint16x4x2_t u3 = vtrn_u16(vreinterpret_u16_u8(t2.val[1]), vreinterpret_u16_u8(t3.val[1]));
+
+    uint32x2x2_t v0 = vtrn_u32(vreinterpret_u32_u16(u0.val[0]), vreinterpret_u32_u16(u2.val[0]));
+    uint32x2x2_t v1 = vtrn_u32(vreinterpret_u32_u16(u1.val[0]), vreinterpret_u32_u16(u3.val[0]));
+    uint32x2x2_t v2 = vtrn_u32(vreinterpret_u32_u16(u0.val[1]), vreinterpret_u32_u16(u2.val[1]));
+    uint32x2x2_t v3 = vtrn_u32(vreinterpret_u32_u16(u1.val[1]), vreinterpret_u32_u16(u3.val[1]));
+
+    r[0] = vreinterpret_u8_u32(v0.val[0]);
+    r[1] = vreinterpret_u8_u32(v1.val[0]);
+    r[2] = vreinterpret_u8_u32(v2.val[0]);
+    r[3] = vreinterpret_u8_u32(v3.val[0]);
+    r[4] = vreinterpret_u8_u32(v0.val[1]);
+    r[5] = vreinterpret_u8_u32(v1.val[1]);
+    r[6] = vreinterpret_u8_u32(v2.val[1]);
+    r[7] = vreinterpret_u8_u32(v3.val[1]);
+}
+
+typedef uint8x8_t Row8;
+
+static inline Row8 loadRow8(const uint8_t *p) { return vld1_u8(p); }
+
+static inline void storeRow8(uint8_t *p, Row8 r) { vst1_u8(p, r); }
+
+/**
+ * 读取 8 组 VU 数据, 拆分成 8 字节 V 数据与 8 字节 U 数据
+ */
+static inline void loadVURow8(const uint8_t *p, Row8 &v, Row8 &u) {
+    uint8x8x2_t pair = vld2_u8(p);
+    v = pair.val[0];
+    u = pair.val[1];
+}
+
+#else
+
+/**
+ * 8 x 8 字节矩阵转置, 每行数据存放在 __m128i 的低 8 字节中
+ */
+static inline void transpose8x8(__m128i r[8]) {
+    __m128i a01 = _mm_unpacklo_epi8(r[0], r[1]);
+    __m128i a23 = _mm_unpacklo_epi8(r[2], r[3]);
+    __m128i a45 = _mm_unpacklo_epi8(r[4], r[5]);
+    __m128i a67 = _mm_unpacklo_epi8(r[6], r[7]);
+
+    __m128i b0 = _mm_unpacklo_epi16(a01, a23);
+    __m128i b1 = _mm_unpackhi_epi16(a01, a23);
+    __m128i b2 = _mm_unpacklo_epi16(a45, a67);
+    __m128i b3 = _mm_unpackhi_epi16(a45, a67);
+
+    __m128i c0 = _mm_unpacklo_epi32(b0, b2);
+    __m128i c1 = _mm_unpackhi_epi32(b0, b2);
+    __m128i c2 = _mm_unpacklo_epi32(b1, b3);
+    __m128i c3 = _mm_unpackhi_epi32(b1, b3);
+
+    r[0] = c0;
+    r[1] = _mm_srli_si128(c0, 8);
+    r[2] = c1;
+    r[3] = _mm_srli_si128(c1, 8);
+    r[4] = c2;
+    r[5] = _mm_srli_si128(c2, 8);
+    r[6] = c3;
+    r[7] = _mm_srli_si128(c3, 8);
+}
+
+typedef __m128i Row8;
+
+static inline Row8 loadRow8(const uint8_t *p) { return _mm_loadl_epi64((const __m128i *) p); }
+
+static inline void storeRow8(uint8_t *p, Row8 r) { _mm_storel_epi64((__m128i *) p, r); }
+
+static inline void loadVURow8(const uint8_t *p, Row8 &v, Row8 &u) {
+    __m128i pair = _mm_loadu_si128((const __m128i *) p);
+    const __m128i lowMask = _mm_set1_epi16(0x00FF);
+    v = _mm_packus_epi16(_mm_and_si128(pair, lowMask), _mm_setzero_si128());
+    u = _mm_packus_epi16(_mm_srli_epi16(pair, 8), _mm_setzero_si128());
+}
+
+#endif
+
+/**
+ * 处理目标 Y 平面中以 ( x0, y0 ) 为左上角的 8 x 8 块, 仅用于旋转 90 / 270 度
+ *
+ * 此时源图像中沿目标 y 方向的 8 个像素是内存连续的,
+ * 按目标 x 方向读取 8 次, 每次读取 8 字节, 转置后第 k 行就是目标图像中的一行
+ */
+static inline void lumaBlock8x8(const uint8_t *src, const PlaneWalk &walk,
+                                uint8_t *dst, int stride, int x0, int y0) {
+    // 从内存地址较小的一端开始读取
+    long yStart = walk.rowStep > 0 ? y0 : y0 + 7;
+    const uint8_t *base = src + walk.origin + yStart * walk.rowStep + x0 * walk.colStep;
+    Row8 r[8];
+    for (int i = 0; i < 8; i++) {
+        r[i] = loadRow8(base + i * walk.colStep);
+    }
+    transpose8x8(r);
+    for (int k = 0; k < 8; k++) {
+        int row = walk.rowStep > 0 ? y0 + k : y0 + 7 - k;
+        storeRow8(dst + (long) row * stride + x0, r[k]);
+    }
+}
+
+/**
+ * 处理目标 U / V 平面中以 ( x0, y0 ) 为左上角的 8 x 8 块, 仅用于旋转 90 / 270 度
+ */
+static inline void chromaBlock8x8(const uint8_t *srcVU, const PlaneWalk &walk,
+                                  uint8_t *dstU, int uStride, uint8_t *dstV, int vStride,
+                                  int x0, int y0) {
+    long yStart = walk.rowStep > 0 ? y0 : y0 + 7;
+    const uint8_t *base = srcVU + 2 * (walk.origin + yStart * walk.rowStep + x0 * walk.colStep);
+    Row8 v[8];
+    Row8 u[8];
+    for (int i = 0; i < 8; i++) {
+        loadVURow8(base + 2 * i * walk.colStep, v[i], u[i]);
+    }
+    transpose8x8(v);
+    transpose8x8(u);
+    for (int k = 0; k < 8; k++) {
+        int row = walk.rowStep > 0 ? y0 + k : y0 + 7 - k;
+        storeRow8(dstV + (long) row * vStride + x0, v[k]);
+        storeRow8(dstU + (long) row * uStride + x0, u[k]);
+    }
+}
+
+#endif
+
+/**
+ * 按分块处理一个平面
+ * @param luma  1 处理 Y 平面, 0 处理 VU 平面
+ * @param simd  是否使用 SIMD 8 x 8 转置, 只有旋转 90 / 270 度时才需要转置
+ */
+static void rotatePlaneTiled(const uint8_t *src, const PlaneWalk &walk, int luma, int simd,
+                             int dstWidth, int dstHeight, int tileSize,
+                             const I420Planes &dst) {
+    for (int ty = 0; ty < dstHeight; ty += tileSize) {
+        int yEnd = ty + tileSize < dstHeight ? ty + tileSize : dstHeight;
+        for (int tx = 0; tx < dstWidth; tx += tileSize) {
+            int xEnd = tx + tileSize < dstWidth ? tx + tileSize : dstWidth;
+
+            // 分块内可以按 8 x 8 处理的部分
+            int x8End = tx;
+            int y8End = ty;
+#if NV21_USE_NEON || NV21_USE_SSE2
+            if (simd) {
+                x8End = tx + ((xEnd - tx) & ~7);
+                y8End = ty + ((yEnd - ty) & ~7);
+                for (int by = ty; by < y8End; by += 8) {
+                    for (int bx = tx; bx < x8End; bx += 8) {
+                        if (luma) {
+                            lumaBlock8x8(src, walk, dst.y, dst.yStride, bx, by);
+                        } else {
+                            chromaBlock8x8(src, walk, dst.u, dst.uStride, dst.v, dst.vStride,
+                                           bx, by);
+                        }
+                    }
+                }
+            }
+#endif
+            // 右侧剩余部分 与 底部剩余部分 使用标量处理
+            if (luma) {
+                lumaRegionScalar(src, walk, dst.y, dst.yStride, x8End, xEnd, ty, yEnd);
+                lumaRegionScalar(src, walk, dst.y, dst.yStride, tx, x8End, y8End, yEnd);
+            } else {
+                chromaRegionScalar(src, walk, dst.u, dst.uStride, dst.v, dst.vStride,
+                                   x8End, xEnd, ty, yEnd);
+                chromaRegionScalar(src, walk, dst.u, dst.uStride, dst.v, dst.vStride,
+                                   tx, x8End, y8End, yEnd);
+            }
+        }
+    }
+}
+
+/**
+ * 旋转并转换
+ * @param simd 是否允许使用 SIMD 实现
+ */
+static void convert(const uint8_t *src, int srcWidth, int srcHeight,
+                    int rotation, int mirror, const I420Planes &dst, int simd) {
+    rotation = normalizeRotation(rotation);
+    mirror = mirror ? 1 : 0;
+
+    // Y 数据个数, VU 数据紧跟在 Y 数据之后
+    const uint8_t *srcVU = src + (long) srcWidth * srcHeight;
+    int chromaWidth = srcWidth / 2;
+    int chromaHeight = srcHeight / 2;
+
+    int transposed = rotation == 90 || rotation == 270;
+    int dstWidth = transposed ? srcHeight : srcWidth;
+    int dstHeight = transposed ? srcWidth : srcHeight;
+
+    if (rotation == 0 && !mirror) {
+        // 不需要旋转, 直接按行拷贝 Y 数据, 按行拆分 VU 数据
+        for (int y = 0; y < srcHeight; y++) {
+            memcpy(dst.y + (long) y * dst.yStride, src + (long) y * srcWidth, srcWidth);
+        }
+        for (int y = 0; y < chromaHeight; y++) {
+            deinterleaveRow(srcVU + (long) y * srcWidth,
+                            dst.u + (long) y * dst.uStride,
+                            dst.v + (long) y * dst.vStride,
+                            chromaWidth);
+        }
+        return;
+    }
+
+    int useSimd = simd && transposed;
+
+    PlaneWalk lumaWalk = computePlaneWalk(rotation, mirror, srcWidth, srcHeight);
+    rotatePlaneTiled(src, lumaWalk, 1, useSimd, dstWidth, dstHeight, TILE_SIZE, dst);
+
+    PlaneWalk chromaWalk = computePlaneWalk(rotation, mirror, chromaWidth, chromaHeight);
+    rotatePlaneTiled(srcVU, chromaWalk, 0, useSimd, dstWidth / 2, dstHeight / 2,
+                     TILE_SIZE / 2, dst);
+}
+
+void nv21RotateToI420(const uint8_t *src, int srcWidth, int srcHeight,
+                      int rotation, int mirror, const I420Planes &dst) {
+    convert(src, srcWidth, srcHeight, rotation, mirror, dst, 1);
+}
+
+void nv21RotateToI420Scalar(const uint8_t *src, int srcWidth, int srcHeight,
+                            int rotation, int mirror, const I420Planes &dst) {
+    convert(src, srcWidth, srcHeight, rotation, mirror, dst, 0);
+}
@@ -0,0 +1,55 @@
+//
+// Created by octopus on 2020/6/22.
+//
+
+#ifndef RTMP_PUSHER_NV21CONVERTER_H
+#define RTMP_PUSHER_NV21CONVERTER_H
+
+#include <inttypes.h>
+
+/**
+ * NV21 图像旋转 + 转换为 I420 格式
+ *
+ * Camera 采集的 NV21 数据需要先旋转, 再将交替存储的 VU 数据拆分成 x264 需要的 I420 三个平面
+ * 这里将上述两次遍历合并成一次遍历, 直接写入 x264_picture_t 的 img.plane[] 中
+ *
+ * 遍历时按照 64 x 64 的分块 ( tile ) 进行, 每个分块内部再按照 8 x 8 的小块转置,
+ * 保证读写的数据都在 CPU 缓存中, 避免按列跨行读取时缓存失效
+ *
+ * ARM 平台使用 NEON 指令, x86 平台使用 SSE2 指令, 其它平台使用标量实现
+ */
+
+/**
+ * 目标图像的三个平面, 以及每个平面一行的字节数
+ */
+struct I420Planes {
+    uint8_t *y;
+    uint8_t *u;
+    uint8_t *v;
+    int yStride;
+    int uStride;
+    int vStride;
+};
+
+/**
+ * 将 NV21 图像旋转后转为 I420 格式
+ *
+ * @param src       NV21 格式源图像数据, 前 srcWidth * srcHeight 字节是 Y 数据, 之后是 VU 交替存储的数据
+ * @param srcWidth  源图像宽度, 即 Camera 预览宽度, 必须是偶数
+ * @param srcHeight 源图像高度, 即 Camera 预览高度, 必须是偶数
+ * @param rotation  顺时针旋转角度, 取值 0 / 90 / 180 / 270
+ *                  旋转 90 / 270 度时, 目标图像宽度为 srcHeight, 高度为 srcWidth
+ * @param mirror    是否在旋转后水平镜像, 用于前置摄像头
+ * @param dst       目标 I420 图像平面
+ */
+void nv21RotateToI420(const uint8_t *src, int srcWidth, int srcHeight,
+                      int rotation, int mirror, const I420Planes &dst);
+
+/**
+ * 标量实现, 所有平台都可以使用
+ * 主要用于 SIMD 实现处理不了的边角数据, 以及测试 SIMD 实现的正确性
+ */
+void nv21RotateToI420Scalar(const uint8_t *src, int srcWidth, int srcHeight,
+                            int rotation, int mirror, const I420Planes &dst);
+
+#endif //RTMP_PUSHER_NV21CONVERTER_H
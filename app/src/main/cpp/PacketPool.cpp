@@ -0,0 +1,186 @@
+//
+// Created by octopus on 2020/6/26.
+//
+
+#include <stdlib.h>
+#include "PacketPool.h"
+
+const int PacketPool::SIZE_CLASSES[PACKET_POOL_SIZE_CLASSES] = {
+        512, 2 * 1024, 8 * 1024, 32 * 1024, 128 * 1024, 512 * 1024
+};
+
+PacketPool::PacketPool() {
+    for (int i = 0; i < PACKET_POOL_SIZE_CLASSES; i++) {
+        pthread_mutex_init(&mFreeLists[i].mutex, 0);
+        mFreeLists[i].head = 0;
+    }
+    mHighWaterBytes.store(DEFAULT_POOL_HIGH_WATER_BYTES);
+    mInUseBytes.store(0);
+    mPeakInUseBytes.store(0);
+    mPooledBytes.store(0);
+    mHeapAllocations.store(0);
+}
+
+PacketPool::~PacketPool() {
+    for (int i = 0; i < PACKET_POOL_SIZE_CLASSES; i++) {
+        PacketNode *node = mFreeLists[i].head;
+        while (node) {
+            PacketNode *next = node->next;
+            freeNode(node);
+            node = next;
+        }
+        mFreeLists[i].head = 0;
+        pthread_mutex_destroy(&mFreeLists[i].mutex);
+    }
+}
+
+int PacketPool::sizeClassOf(int bodySize) {
+    for (int i = 0; i < PACKET_POOL_SIZE_CLASSES; i++) {
+        if (bodySize <= SIZE_CLASSES[i]) {
+            return i;
+        }
+    }
+    return -1;
+}
+
+int64_t PacketPool::bytesOf(PacketNode *node) {
+    return node->capacity + RTMP_MAX_HEADER_SIZE;
+}
+
+PacketPool::PacketNode *PacketPool::allocateNode(int sizeClass, int capacity) {
+    PacketNode *node = static_cast<PacketNode *>(malloc(sizeof(PacketNode)));
+    if (!node) {
+        return 0;
+    }
+    // 与 RTMPPacket_Alloc 一致, m_body 之前预留块头空间
+    char *buffer = static_cast<char *>(malloc(capacity + RTMP_MAX_HEADER_SIZE));
+    if (!buffer) {
+        free(node);
+        return 0;
+    }
+    node->packet.m_body = buffer + RTMP_MAX_HEADER_SIZE;
+    node->sizeClass = sizeClass;
+    node->capacity = capacity;
+    node->next = 0;
+    mHeapAllocations.fetch_add(1);
+    mPooledBytes.fetch_add(bytesOf(node));
+    return node;
+}
+
+void PacketPool::freeNode(PacketNode *node) {
+    mPooledBytes.fetch_sub(bytesOf(node));
+    free(node->packet.m_body - RTMP_MAX_HEADER_SIZE);
+    free(node);
+}
+
+void PacketPool::preallocate(int bodySize, int count) {
+    int sizeClass = sizeClassOf(bodySize);
+    if (sizeClass < 0) {
+        return;
+    }
+    FreeList &freeList = mFreeLists[sizeClass];
+    for (int i = 0; i < count; i++) {
+        PacketNode *node = allocateNode(sizeClass, SIZE_CLASSES[sizeClass]);
+        if (!node) {
+            return;
+        }
+        pthread_mutex_lock(&freeList.mutex);
+        node->next = freeList.head;
+        freeList.head = node;
+        pthread_mutex_unlock(&freeList.mutex);
+    }
+}
+
+RTMPPacket *PacketPool::obtain(int bodySize) {
+    int sizeClass = sizeClassOf(bodySize);
+    PacketNode *node = 0;
+
+    if (sizeClass >= 0) {
+        FreeList &freeList = mFreeLists[sizeClass];
+        pthread_mutex_lock(&freeList.mutex);
+        node = freeList.head;
+        if (node) {
+            freeList.head = node->next;
+        }
+        pthread_mutex_unlock(&freeList.mutex);
+    }
+
+    if (!node) {
+        // 空闲链表为空, 或者超过最大级别, 从堆中申请
+        node = allocateNode(sizeClass, sizeClass >= 0 ? SIZE_CLASSES[sizeClass] : bodySize);
+        if (!node) {
+            return 0;
+        }
+    }
+    node->next = 0;
+    node->refs.store(1);
+
+    // 与 new RTMPPacket + RTMPPacket_Reset 一致, 重置数据包头字段
+    RTMPPacket *packet = &node->packet;
+    packet->m_headerType = 0;
+    packet->m_packetType = 0;
+    packet->m_hasAbsTimestamp = 0;
+    packet->m_nChannel = 0;
+    packet->m_nTimeStamp = 0;
+    packet->m_nInfoField2 = 0;
+    packet->m_nBodySize = 0;
+    packet->m_nBytesRead = 0;
+    packet->m_chunk = 0;
+
+    int64_t inUse = mInUseBytes.fetch_add(bytesOf(node)) + bytesOf(node);
+    int64_t peak = mPeakInUseBytes.load();
+    while (inUse > peak && !mPeakInUseBytes.compare_exchange_weak(peak, inUse)) {
+    }
+    return packet;
+}
+
+void PacketPool::retain(RTMPPacket *packet, int count) {
+    if (packet && count > 0) {
+        reinterpret_cast<PacketNode *>(packet)->refs.fetch_add(count);
+    }
+}
+
+void PacketPool::recycle(RTMPPacket *&packet) {
+    if (!packet) {
+        return;
+    }
+    PacketNode *node = reinterpret_cast<PacketNode *>(packet);
+    packet = 0;
+    if (node->refs.fetch_sub(1) > 1) {
+        // 其它推流目的地仍然持有该数据包
+        return;
+    }
+    mInUseBytes.fetch_sub(bytesOf(node));
+
+    if (node->sizeClass < 0 || mPooledBytes.load() > mHighWaterBytes.load()) {
+        // 超过最大级别的数据包不复用, 持有内存超过高水位时不再缓存
+        freeNode(node);
+        return;
+    }
+
+    FreeList &freeList = mFreeLists[node->sizeClass];
+    pthread_mutex_lock(&freeList.mutex);
+    node->next = freeList.head;
+    freeList.head = node;
+    pthread_mutex_unlock(&freeList.mutex);
+}
+
+void PacketPool::setHighWaterBytes(int64_t highWaterBytes) {
+    mHighWaterBytes.store(highWaterBytes);
+}
+
+int64_t PacketPool::getInUseBytes() {
+    return mInUseBytes.load();
+}
+
+int64_t PacketPool::getPeakInUseBytes() {
+    return mPeakInUseBytes.load();
+}
+
+int64_t PacketPool::getPooledBytes() {
+    return mPooledBytes.load();
+}
+
+int64_t PacketPool::getHeapAllocations() {
+    return mHeapAllocations.load();
+}
@@ -0,0 +1,173 @@
+//
+// Created by octopus on 2020/6/26.
+//
+
+#ifndef RTMP_PUSHER_PACKETPOOL_H
+#define RTMP_PUSHER_PACKETPOOL_H
+
+#include <atomic>
+#include <stdint.h>
+#include <pthread.h>
+#include "librtmp/rtmp.h"
+
+/**
+ * 尺寸分级个数
+ */
+#define PACKET_POOL_SIZE_CLASSES 6
+
+/**
+ * 默认的高水位, 数据包池持有的内存总量 ( 使用中 + 空闲 ) 超过该值时, 归还的数据包直接释放
+ */
+#define DEFAULT_POOL_HIGH_WATER_BYTES (8 * 1024 * 1024)
+
+/**
+ * RTMPPacket 数据包池
+ *
+ * 音频编码线程, 视频编码线程 封装 RTMP 数据包时从池中获取数据包
+ * 推流线程发送完毕后将数据包归还到池中, 替代每个数据包一次 new RTMPPacket + RTMPPacket_Alloc ( calloc )
+ *
+ * 按照数据包大小分为若干个尺寸级别, 每个级别维护一个空闲链表 :
+ *      512 B   : AAC 音频数据包, AAC 序列头
+ *      2 KB    : AVC 序列头, 码率较低时的 P 帧
+ *      8 KB / 32 KB : P 帧
+ *      128 KB / 512 KB : I 帧
+ * 超过最大级别的数据包直接从堆中分配, 归还时释放
+ *
+ * 稳定推流后, 空闲链表中总有可以复用的数据包, 封装 / 发送数据包都不会申请内存
+ * 数据包结构与 RTMPPacket_Alloc 申请的一致, m_body 之前预留了 RTMP_MAX_HEADER_SIZE 字节, 供 RTMP_SendPacket 写入块头
+ *
+ * 数据包带有引用计数, 同一个数据包可以交给多个推流目的地, 最后一个引用归还时才放回空闲链表
+ */
+class PacketPool {
+
+public:
+    PacketPool();
+
+    ~PacketPool();
+
+    /**
+     * 预先分配数据包, 放入空闲链表
+     * @param bodySize 数据包 m_body 大小
+     * @param count 数据包个数
+     */
+    void preallocate(int bodySize, int count);
+
+    /**
+     * 获取一个数据包, 可以在任意线程中调用
+     * 数据包头字段已经重置, m_body 至少可以容纳 bodySize 字节, m_nBodySize 需要调用者设置
+     * @param bodySize 数据包 m_body 大小
+     * @return 申请内存失败返回 0
+     */
+    RTMPPacket *obtain(int bodySize);
+
+    /**
+     * 增加数据包的引用计数, 可以在任意线程中调用
+     * obtain 获取的数据包引用计数为 1, 每个引用都需要调用一次 recycle
+     * 数据包被多个线程共享期间, 任何线程都不能再修改数据包内容
+     * @param packet 必须是 obtain 获取的数据包
+     * @param count 增加的引用个数
+     */
+    void retain(RTMPPacket *packet, int count = 1);
+
+    /**
+     * 归还数据包的一个引用, 可以在任意线程中调用
+     * 最后一个引用归还时数据包才回到池中, 数据包池持有的内存超过高水位时, 直接释放该数据包
+     * @param packet 必须是 obtain 获取的数据包, 归还后置为 0
+     */
+    void recycle(RTMPPacket *&packet);
+
+    /**
+     * 设置高水位, 单位字节, 可以在任意线程中调用
+     */
+    void setHighWaterBytes(int64_t highWaterBytes);
+
+    /**
+     * 正在使用中的数据包字节数
+     */
+    int64_t getInUseBytes();
+
+    /**
+     * 正在使用中的数据包字节数峰值
+     */
+    int64_t getPeakInUseBytes();
+
+    /**
+     * 数据包池持有的内存总量 ( 使用中 + 空闲 )
+     */
+    int64_t getPooledBytes();
+
+    /**
+     * 从堆中申请数据包的次数, 稳定推流后该值不再增长
+     */
+    int64_t getHeapAllocations();
+
+private:
+
+    /**
+     * 池中的数据包节点
+     * RTMPPacket 必须是第一个成员, 归还时将 RTMPPacket * 转换为 PacketNode *
+     */
+    struct PacketNode {
+        RTMPPacket packet;
+        /**
+         * 尺寸级别, -1 表示超过最大级别, 不放入空闲链表
+         */
+        int sizeClass;
+        /**
+         * m_body 容量
+         */
+        int capacity;
+        /**
+         * 引用计数, 节点通过 malloc 申请, 在 obtain 中初始化
+         */
+        std::atomic<int> refs;
+        /**
+         * 空闲链表中的下一个节点
+         */
+        PacketNode *next;
+    };
+
+    /**
+     * 空闲链表
+     */
+    struct FreeList {
+        pthread_mutex_t mutex;
+        PacketNode *head;
+    };
+
+    /**
+     * 各尺寸级别 m_body 容量
+     */
+    static const int SIZE_CLASSES[PACKET_POOL_SIZE_CLASSES];
+
+    /**
+     * 根据数据包大小计算尺寸级别, 超过最大级别返回 -1
+     */
+    static int sizeClassOf(int bodySize);
+
+    /**
+     * 从堆中申请一个数据包节点, m_body 之前预留 RTMP_MAX_HEADER_SIZE 字节
+     */
+    PacketNode *allocateNode(int sizeClass, int capacity);
+
+    /**
+     * 释放数据包节点
+     */
+    void freeNode(PacketNode *node);
+
+    /**
+     * 节点占用的字节数
+     */
+    static int64_t bytesOf(PacketNode *node);
+
+    FreeList mFreeLists[PACKET_POOL_SIZE_CLASSES];
+
+    std::atomic<int64_t> mHighWaterBytes;
+    std::atomic<int64_t> mInUseBytes;
+    std::atomic<int64_t> mPeakInUseBytes;
+    std::atomic<int64_t> mPooledBytes;
+    std::atomic<int64_t> mHeapAllocations;
+};
+
+
+#endif //RTMP_PUSHER_PACKETPOOL_H
@@ -0,0 +1,85 @@
+//
+// Created by octopus on 2020/6/30.
+//
+
+#include <string.h>
+#include "PcmFrameAssembler.h"
+
+PcmFrameAssembler::PcmFrameAssembler() {
+}
+
+PcmFrameAssembler::~PcmFrameAssembler() {
+    if (mFrameBuffer) {
+        delete[] mFrameBuffer;
+        mFrameBuffer = 0;
+    }
+}
+
+void PcmFrameAssembler::setFrameBytes(int frameBytes) {
+    if (frameBytes != mFrameBytes) {
+        if (mFrameBuffer) {
+            delete[] mFrameBuffer;
+            mFrameBuffer = 0;
+        }
+        if (frameBytes > 0) {
+            mFrameBuffer = new int8_t[frameBytes];
+        }
+        mFrameBytes = frameBytes > 0 ? frameBytes : 0;
+    }
+    mPendingBytes = 0;
+}
+
+int PcmFrameAssembler::getFrameBytes() {
+    return mFrameBytes;
+}
+
+void PcmFrameAssembler::reset() {
+    mPendingBytes = 0;
+}
+
+int PcmFrameAssembler::getPendingBytes() {
+    return mPendingBytes;
+}
+
+int PcmFrameAssembler::append(int8_t *data, int byteCount, FrameCallBack callBack, void *context) {
+    if (!mFrameBuffer || !data || byteCount <= 0) {
+        return 0;
+    }
+
+    int frames = 0;
+
+    // 1. 先补齐缓冲区中上一次剩余的不完整帧
+    if (mPendingBytes > 0) {
+        int copyBytes = mFrameBytes - mPendingBytes;
+        if (copyBytes > byteCount) {
+            copyBytes = byteCount;
+        }
+        memcpy(mFrameBuffer + mPendingBytes, data, copyBytes);
+        mPendingBytes += copyBytes;
+        data += copyBytes;
+        byteCount -= copyBytes;
+
+        if (mPendingBytes < mFrameBytes) {
+            // 还没有凑满一帧, 等待下一次读取
+            return 0;
+        }
+        callBack(context, mFrameBuffer);
+        mPendingBytes = 0;
+        frames++;
+    }
+
+    // 2. 剩余数据中的完整帧直接回调, 不拷贝
+    while (byteCount >= mFrameBytes) {
+        callBack(context, data);
+        data += mFrameBytes;
+        byteCount -= mFrameBytes;
+        frames++;
+    }
+
+    // 3. 最后不足一帧的数据保存到缓冲区中
+    if (byteCount > 0) {
+        memcpy(mFrameBuffer, data, byteCount);
+        mPendingBytes = byteCount;
+    }
+    return frames;
+}
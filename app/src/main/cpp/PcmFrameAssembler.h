@@ -0,0 +1,85 @@
+//
+// Created by octopus on 2020/6/30.
+//
+
+#ifndef RTMP_PUSHER_PCMFRAMEASSEMBLER_H
+#define RTMP_PUSHER_PCMFRAMEASSEMBLER_H
+
+#include <stdint.h>
+
+/**
+ * PCM 音频帧组装器
+ *
+ * AudioRecord.read 不保证每次都能读满 FAAC 一次编码需要的字节数,
+ * 如果直接将整个缓冲区交给 FAAC 编码, 缓冲区后半部分是上一次读取的旧数据, 会产生杂音
+ *
+ * 组装器内部有一块 FAAC 一帧大小的缓冲区, 用于累积不完整的读取数据,
+ * 只有凑够一帧完整的 PCM 数据后才回调编码
+ * 读取数据本身就是完整的帧时, 直接使用读取的数据回调, 不经过内部缓冲区拷贝
+ *
+ * 缓冲区只在设置帧大小时申请一次, 组装过程中不申请内存
+ * 只能在音频采样线程中调用
+ */
+class PcmFrameAssembler {
+
+public:
+
+    /**
+     * 完整 PCM 帧回调函数
+     * @param context   调用 append 时传入的上下文
+     * @param frame     一帧完整的 PCM 数据, 字节数是 getFrameBytes()
+     */
+    typedef void (*FrameCallBack)(void *context, int8_t *frame);
+
+    PcmFrameAssembler();
+    ~PcmFrameAssembler();
+
+    /**
+     * 设置一帧的字节数, 即 FAAC 编码器一次输入的 样本个数 * 2
+     * 会丢弃缓冲区中未凑满一帧的数据
+     * @param frameBytes
+     */
+    void setFrameBytes(int frameBytes);
+
+    int getFrameBytes();
+
+    /**
+     * 丢弃缓冲区中未凑满一帧的数据, 重新开始推流时调用
+     */
+    void reset();
+
+    /**
+     * 放入读取到的 PCM 数据, 每凑满一帧回调一次
+     * @param data          PCM 数据
+     * @param byteCount     PCM 数据字节数
+     * @param callBack      完整帧回调
+     * @param context       回调上下文
+     * @return 回调的完整帧个数
+     */
+    int append(int8_t *data, int byteCount, FrameCallBack callBack, void *context);
+
+    /**
+     * 缓冲区中未凑满一帧的字节数
+     */
+    int getPendingBytes();
+
+private:
+
+    /**
+     * 累积不完整帧的缓冲区, 大小为一帧
+     */
+    int8_t *mFrameBuffer = 0;
+
+    /**
+     * 一帧的字节数
+     */
+    int mFrameBytes = 0;
+
+    /**
+     * 缓冲区中已经累积的字节数
+     */
+    int mPendingBytes = 0;
+};
+
+
+#endif //RTMP_PUSHER_PCMFRAMEASSEMBLER_H
@@ -0,0 +1,109 @@
+//
+// Created by octopus on 2020/7/10.
+//
+
+#ifndef RTMP_PUSHER_PUSHDESTINATION_H
+#define RTMP_PUSHER_PUSHDESTINATION_H
+
+#include <atomic>
+#include <pthread.h>
+#include "librtmp/rtmp.h"
+#include "RingQueue.h"
+#include "CongestionController.h"
+#include "GopCache.h"
+#include "RtmpChunkWriter.h"
+#include "SendScheduler.h"
+#include "StreamStats.h"
+
+/**
+ * 最多同时推流的目的地个数
+ */
+#define MAX_PUSH_DESTINATIONS 4
+
+/**
+ * 每个目的地的数据包队列容量, 与编码线程到分发线程的 packets 队列相同
+ */
+#define DESTINATION_QUEUE_CAPACITY 1024
+
+/**
+ * 推流目的地, 如 主源站, 备用源站, CDN 合作方的推流地址
+ *
+ * 所有目的地共享同一份编码数据 :
+ *      分发线程从 packets 队列中取出数据包, 交织排序后增加引用计数, 放入每个目的地的队列, 不拷贝数据
+ *      交织排序修正时间戳在分发之前完成, 分发之后数据包内容不再修改
+ *
+ * 每个目的地有独立的推流线程, 连接, 块写入器, 拥塞控制, 发送调度, GOP 缓存, 断线重连与发送统计
+ * 某个目的地网络阻塞时只在自己的待发送队列中按 GOP 丢帧, 其它目的地不受影响
+ *
+ * 对象是全局数组中的元素, 不会被释放, 推流结束后 Java 层仍然可以读取统计数据
+ */
+struct PushDestination {
+
+    PushDestination() : queue(DESTINATION_QUEUE_CAPACITY), active(0) {
+    }
+
+    /**
+     * 目的地序号, 0 为主目的地
+     * 自适应码率只根据主目的地的发送情况调整编码码率, 其它目的地带宽不足时由各自的拥塞控制丢帧
+     */
+    int index = 0;
+
+    /**
+     * 推流地址, 堆内存, 由分发线程在推流结束时释放
+     */
+    char *pushPath = 0;
+
+    /**
+     * 分发线程放入, 本目的地推流线程取出的数据包队列
+     */
+    RingQueue<RTMPPacket *> queue;
+
+    /**
+     * 待发送队列与丢帧策略
+     */
+    CongestionController congestionController;
+
+    /**
+     * 音频优先与视频分片的发送调度
+     */
+    SendScheduler scheduler;
+
+    /**
+     * 断线重连后预热新连接使用的 GOP 缓存
+     */
+    GopCache gopCache;
+
+    /**
+     * 本目的地连接使用的块写入器
+     */
+    RtmpChunkWriter chunkWriter;
+
+    /**
+     * 本目的地的发送统计, 编码相关的统计数据在全局的 streamStats 中
+     */
+    StreamStats stats;
+
+    /**
+     * 推流线程是否仍在工作, 放弃重连后为 0, 分发线程不再向该目的地分发数据包
+     */
+    std::atomic<int> active;
+
+    /**
+     * 数据包队列已满丢弃过视频帧, 分发线程跳过之后的非关键帧, 直到下一个关键帧
+     * 只在分发线程中访问
+     */
+    int waitKeyFrame = 0;
+
+    /**
+     * 推流线程 ID
+     */
+    pthread_t pid;
+
+    /**
+     * 推流线程是否已经创建, 并且还没有被回收
+     */
+    int threadStarted = 0;
+};
+
+
+#endif //RTMP_PUSHER_PUSHDESTINATION_H
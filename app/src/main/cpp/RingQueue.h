@@ -0,0 +1,291 @@
+//
+// Created by octopus on 2020/6/23.
+//
+
+#ifndef RTMP_PUSHER_RINGQUEUE_H
+#define RTMP_PUSHER_RINGQUEUE_H
+
+#include <atomic>
+#include <stddef.h>
+#include <stdint.h>
+#include <pthread.h>
+#include <sched.h>
+
+/**
+ * 缓存行大小, 生产者与消费者频繁修改的变量放在不同的缓存行中, 避免伪共享
+ */
+#define RING_QUEUE_CACHE_LINE 64
+
+/**
+ * 有界无锁环形队列, 多生产者单消费者
+ *
+ * 视频编码线程, 音频编码线程 作为生产者, 将 RTMPPacket 数据包放入队列
+ * 推流线程 作为消费者, 一次性取出所有已经就绪的数据包
+ *
+ * 与 SafeQueue 相比 :
+ *      入队出队不需要加锁, 不需要为每个元素申请内存 ( std::queue 的 deque 节点 )
+ *      消费者只有在队列为空时才会通过条件变量阻塞等待
+ *      生产者只有在消费者阻塞等待时, 才需要加锁唤醒消费者
+ *
+ * 每个槽位带有一个序号, 生产者通过 CAS 抢占入队位置, 写入元素后修改槽位序号发布数据
+ * 消费者根据槽位序号判断数据是否就绪
+ */
+template<typename T>
+class RingQueue {
+
+    /**
+     * 定义 队列 元素释放时回调的函数类型
+     */
+    typedef void (*ReleaseHandle)(T &);
+
+public:
+    /**
+     * 构造方法
+     * @param capacity 队列容量, 会向上取整为 2 的幂
+     */
+    RingQueue(size_t capacity) {
+        mCapacity = 2;
+        while (mCapacity < capacity) {
+            mCapacity <<= 1;
+        }
+        mMask = mCapacity - 1;
+        mCells = new Cell[mCapacity];
+        for (size_t i = 0; i < mCapacity; i++) {
+            mCells[i].sequence.store(i, std::memory_order_relaxed);
+        }
+        mEnqueuePos.store(0, std::memory_order_relaxed);
+        mDequeuePos.store(0, std::memory_order_relaxed);
+        mWork.store(0, std::memory_order_relaxed);
+        mSleeping.store(0, std::memory_order_relaxed);
+        releaseHandle = 0;
+        pthread_mutex_init(&mutex, NULL);
+        pthread_cond_init(&cond, NULL);
+    }
+
+    /**
+     * 析构方法
+     */
+    ~RingQueue() {
+        clear();
+        delete[] mCells;
+        pthread_cond_destroy(&cond);
+        pthread_mutex_destroy(&mutex);
+    }
+
+    /**
+     * 向队列中添加元素, 可以在多个线程中同时调用
+     * 队列没有工作, 或者队列已满时, 调用 releaseHandle 释放该元素
+     * @param value
+     * @return 添加成功返回 1, 失败返回 0
+     */
+    int push(T value) {
+        if (!mWork.load(std::memory_order_acquire) || !tryPush(value)) {
+            if (releaseHandle) {
+                releaseHandle(value);
+            }
+            return 0;
+        }
+
+        // 与 waitAndDrain 中设置 mSleeping 的操作配对
+        // 保证 要么消费者能看到新数据, 要么生产者能看到消费者在等待
+        std::atomic_thread_fence(std::memory_order_seq_cst);
+        if (mSleeping.load(std::memory_order_relaxed)) {
+            pthread_mutex_lock(&mutex);
+            pthread_cond_signal(&cond);
+            pthread_mutex_unlock(&mutex);
+        }
+        return 1;
+    }
+
+    /**
+     * 取出当前所有就绪的元素, 最多取出 max 个, 只能在消费者线程中调用
+     * 队列为空时不阻塞
+     * @param out 存放取出的元素
+     * @param max out 数组大小
+     * @return 取出的元素个数
+     */
+    int drain(T *out, int max) {
+        size_t pos = mDequeuePos.load(std::memory_order_relaxed);
+        int count = 0;
+        while (count < max) {
+            Cell &cell = mCells[pos & mMask];
+            size_t sequence = cell.sequence.load(std::memory_order_acquire);
+            if (sequence != pos + 1) {
+                // 该槽位的数据还没有发布
+                break;
+            }
+            out[count++] = cell.value;
+            // 释放槽位, 生产者在下一轮可以使用该槽位
+            cell.sequence.store(pos + mCapacity, std::memory_order_release);
+            pos++;
+        }
+        mDequeuePos.store(pos, std::memory_order_relaxed);
+        return count;
+    }
+
+    /**
+     * 取出当前所有就绪的元素, 队列为空时阻塞等待, 只能在消费者线程中调用
+     * @param out 存放取出的元素
+     * @param max out 数组大小
+     * @return 取出的元素个数, 队列停止工作时返回 0
+     */
+    int waitAndDrain(T *out, int max) {
+        int count = drain(out, max);
+        if (count > 0) {
+            return count;
+        }
+
+        // 先短暂让出 CPU, 数据包通常很快就会到来, 避免进入条件变量等待
+        for (int i = 0; i < SPIN_COUNT && mWork.load(std::memory_order_acquire); i++) {
+            sched_yield();
+            count = drain(out, max);
+            if (count > 0) {
+                return count;
+            }
+        }
+
+        pthread_mutex_lock(&mutex);
+        mSleeping.store(1, std::memory_order_relaxed);
+        std::atomic_thread_fence(std::memory_order_seq_cst);
+        while (mWork.load(std::memory_order_acquire) && (count = drain(out, max)) == 0) {
+            pthread_cond_wait(&cond, &mutex);
+        }
+        mSleeping.store(0, std::memory_order_relaxed);
+        pthread_mutex_unlock(&mutex);
+
+        if (count == 0) {
+            // 停止工作时, 仍然取出剩余的数据, 由调用者释放
+            count = drain(out, max);
+        }
+        return count;
+    }
+
+    /**
+     * 设置当前是否工作, 停止工作时唤醒阻塞等待的消费者
+     * @param work
+     */
+    void setWork(int work) {
+        pthread_mutex_lock(&mutex);
+        mWork.store(work, std::memory_order_release);
+        pthread_cond_signal(&cond);
+        pthread_mutex_unlock(&mutex);
+    }
+
+    int empty() {
+        return size() == 0;
+    }
+
+    /**
+     * 队列中的元素个数, 是一个近似值
+     */
+    int size() {
+        size_t enqueuePos = mEnqueuePos.load(std::memory_order_relaxed);
+        size_t dequeuePos = mDequeuePos.load(std::memory_order_relaxed);
+        return enqueuePos > dequeuePos ? (int) (enqueuePos - dequeuePos) : 0;
+    }
+
+    int capacity() {
+        return (int) mCapacity;
+    }
+
+    /**
+     * 释放队列中的所有元素, 只能在消费者线程中调用, 或者在没有消费者时调用
+     */
+    void clear() {
+        T batch[CLEAR_BATCH_SIZE];
+        int count;
+        while ((count = drain(batch, CLEAR_BATCH_SIZE)) > 0) {
+            for (int i = 0; i < count; i++) {
+                if (releaseHandle) {
+                    releaseHandle(batch[i]);
+                }
+            }
+        }
+    }
+
+    void setReleaseHandle(ReleaseHandle r) {
+        releaseHandle = r;
+    }
+
+private:
+
+    /**
+     * 队列为空时, 进入条件变量等待前让出 CPU 的次数
+     */
+    static const int SPIN_COUNT = 16;
+
+    /**
+     * clear 方法每次取出的元素个数
+     */
+    static const int CLEAR_BATCH_SIZE = 32;
+
+    /**
+     * 队列槽位
+     */
+    struct Cell {
+        /**
+         * 槽位序号
+         *      等于 pos 时, 生产者可以向该槽位写入第 pos 个元素
+         *      等于 pos + 1 时, 第 pos 个元素已经写入, 消费者可以读取
+         */
+        std::atomic<size_t> sequence;
+        T value;
+    };
+
+    /**
+     * 尝试入队
+     * @return 队列已满返回 0
+     */
+    int tryPush(T value) {
+        size_t pos = mEnqueuePos.load(std::memory_order_relaxed);
+        Cell *cell;
+        while (true) {
+            cell = &mCells[pos & mMask];
+            size_t sequence = cell->sequence.load(std::memory_order_acquire);
+            intptr_t diff = (intptr_t) sequence - (intptr_t) pos;
+            if (diff == 0) {
+                // 槽位空闲, 抢占该入队位置
+                if (mEnqueuePos.compare_exchange_weak(pos, pos + 1, std::memory_order_relaxed)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                // 槽位中的数据还没有被消费者取走, 队列已满
+                return 0;
+            } else {
+                // 其它生产者已经抢占了该位置
+                pos = mEnqueuePos.load(std::memory_order_relaxed);
+            }
+        }
+        cell->value = value;
+        // 发布数据
+        cell->sequence.store(pos + 1, std::memory_order_release);
+        return 1;
+    }
+
+    alignas(RING_QUEUE_CACHE_LINE) std::atomic<size_t> mEnqueuePos;
+
+    alignas(RING_QUEUE_CACHE_LINE) std::atomic<size_t> mDequeuePos;
+
+    alignas(RING_QUEUE_CACHE_LINE) std::atomic<int> mSleeping;
+
+    std::atomic<int> mWork;
+
+    alignas(RING_QUEUE_CACHE_LINE) Cell *mCells;
+
+    size_t mCapacity;
+
+    size_t mMask;
+
+    pthread_cond_t cond;
+    pthread_mutex_t mutex;
+
+    /**
+     * 函数指针类型
+     *      typedef void (*ReleaseHandle)(T &)
+     * 在元素释放时回调该函数
+     */
+    ReleaseHandle releaseHandle;
+};
+
+
+#endif //RTMP_PUSHER_RINGQUEUE_H
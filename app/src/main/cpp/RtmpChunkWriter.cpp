@@ -0,0 +1,669 @@
+//
+// Created by octopus on 2020/6/27.
+//
+
+#include <errno.h>
+#include <fcntl.h>
+#include <poll.h>
+#include <string.h>
+#include <netdb.h>
+#include <unistd.h>
+#include <netinet/in.h>
+#include <netinet/tcp.h>
+#include <sys/ioctl.h>
+#include <sys/socket.h>
+#include <string>
+#include "RtmpChunkWriter.h"
+#include "MonotonicClock.h"
+#include "RtmpLog.h"
+
+#ifndef MSG_NOSIGNAL
+#define MSG_NOSIGNAL 0
+#endif
+
+/**
+ * 查询 socket 发送缓冲区中还没有发送的字节数, Linux 2.6.39 开始支持, 定义在 linux/sockios.h 中
+ */
+#ifndef SIOCOUTQNSD
+#define SIOCOUTQNSD 0x894B
+#endif
+
+/**
+ * Set Chunk Size 协议控制消息类型, librtmp 没有导出该定义
+ */
+#define RTMP_PACKET_TYPE_CHUNK_SIZE 0x01
+
+RtmpChunkWriter::RtmpChunkWriter() {
+    memset(mChunkStreams, 0, sizeof(mChunkStreams));
+    mInterrupted.store(0);
+    mSendTimeoutMs.store(DEFAULT_SEND_TIMEOUT_MS);
+    mWriteCalls.store(0);
+    mHeaderBytes.store(0);
+    mBodyBytes.store(0);
+    mSendTimeouts.store(0);
+    if (pipe(mWakeFds) == 0) {
+        fcntl(mWakeFds[0], F_SETFL, fcntl(mWakeFds[0], F_GETFL) | O_NONBLOCK);
+        fcntl(mWakeFds[1], F_SETFL, fcntl(mWakeFds[1], F_GETFL) | O_NONBLOCK);
+    } else {
+        mWakeFds[0] = -1;
+        mWakeFds[1] = -1;
+    }
+    pthread_mutex_init(&mConnectMutex, 0);
+}
+
+RtmpChunkWriter::~RtmpChunkWriter() {
+    endConnect();
+    pthread_mutex_destroy(&mConnectMutex);
+    if (mWakeFds[0] >= 0) {
+        close(mWakeFds[0]);
+        close(mWakeFds[1]);
+    }
+}
+
+void RtmpChunkWriter::attach(RTMP *rtmp) {
+    if (mNonBlockingSocket >= 0) {
+        setNonBlocking(mNonBlockingSocket, 0);
+        mNonBlockingSocket = -1;
+    }
+    if (rtmp && !(rtmp->Link.protocol & RTMP_FEATURE_HTTP) && RTMP_IsConnected(rtmp)) {
+        int socket = rtmp->m_sb.sb_socket;
+        int sendBuffer = SEND_SOCKET_BUFFER_BYTES;
+        setsockopt(socket, SOL_SOCKET, SO_SNDBUF, &sendBuffer, sizeof(sendBuffer));
+        setNonBlocking(socket, 1);
+        mNonBlockingSocket = socket;
+    }
+    mRtmp = rtmp;
+    mBroken = 0;
+    mDelivered = 0;
+    mLastProgressUs = monotonicTimeUs();
+    mUnsent = 0;
+    mStreamId = rtmp ? rtmp->m_stream_id : 0;
+    mChunkSize = rtmp ? rtmp->m_outChunkSize : 128;
+    memset(mChunkStreams, 0, sizeof(mChunkStreams));
+    mPackets = 0;
+    mCount = 0;
+    mPacketIndex = 0;
+    mBodyOffset = 0;
+    mBodyEnd = 0;
+    mIovCount = 0;
+    mIovSent = 0;
+}
+
+int RtmpChunkWriter::setChunkSize(int chunkSize) {
+    if (!mRtmp) {
+        return FALSE;
+    }
+    if (chunkSize < MIN_CHUNK_SIZE) {
+        chunkSize = MIN_CHUNK_SIZE;
+    }
+    if (chunkSize > MAX_CHUNK_SIZE) {
+        chunkSize = MAX_CHUNK_SIZE;
+    }
+
+    // Set Chunk Size 协议控制消息 : 块流 ID 2, 消息类型 1, 4 字节大端块大小
+    char buffer[RTMP_MAX_HEADER_SIZE + 4];
+    RTMPPacket packet;
+    memset(&packet, 0, sizeof(packet));
+    packet.m_body = buffer + RTMP_MAX_HEADER_SIZE;
+    packet.m_nChannel = 0x02;
+    packet.m_headerType = RTMP_PACKET_SIZE_LARGE;
+    packet.m_packetType = RTMP_PACKET_TYPE_CHUNK_SIZE;
+    packet.m_nBodySize = 4;
+    AMF_EncodeInt32(packet.m_body, packet.m_body + 4, chunkSize);
+
+    if (!RTMP_SendPacket(mRtmp, &packet, FALSE)) {
+        return FALSE;
+    }
+    // librtmp 自己发送的控制消息, 同样使用新的块大小
+    mRtmp->m_outChunkSize = chunkSize;
+    mChunkSize = chunkSize;
+    return TRUE;
+}
+
+void RtmpChunkWriter::begin(RTMPPacket **packets, int count) {
+    mPackets = packets;
+    mCount = count;
+    mPacketIndex = 0;
+    mBodyOffset = 0;
+    mBodyEnd = 0;
+    mIovCount = 0;
+    mIovSent = 0;
+}
+
+int RtmpChunkWriter::writeMessageHeader(RTMPPacket *packet, uint8_t *header) {
+    ChunkStream &stream = mChunkStreams[packet->m_nChannel];
+    uint32_t timestamp = packet->m_nTimeStamp;
+    int fmt;
+    uint32_t timestampField;
+
+    if (!stream.valid || stream.streamId != mStreamId
+        || timestamp < stream.timestamp) {
+        // 绝对时间戳
+        fmt = 0;
+        timestampField = timestamp;
+    } else if (stream.bodySize != packet->m_nBodySize
+               || stream.packetType != packet->m_packetType) {
+        fmt = 1;
+        timestampField = timestamp - stream.timestamp;
+    } else {
+        fmt = 2;
+        timestampField = timestamp - stream.timestamp;
+    }
+
+    stream.valid = 1;
+    stream.timestamp = timestamp;
+    stream.bodySize = packet->m_nBodySize;
+    stream.packetType = packet->m_packetType;
+    stream.streamId = mStreamId;
+
+    stream.extendedTimestamp = timestampField >= 0xFFFFFF;
+    stream.extendedTimestampValue = timestampField;
+    uint32_t timestamp24 = stream.extendedTimestamp ? 0xFFFFFF : timestampField;
+
+    int length = 0;
+    header[length++] = (uint8_t) ((fmt << 6) | packet->m_nChannel);
+    header[length++] = (uint8_t) (timestamp24 >> 16);
+    header[length++] = (uint8_t) (timestamp24 >> 8);
+    header[length++] = (uint8_t) timestamp24;
+    if (fmt <= 1) {
+        header[length++] = (uint8_t) (packet->m_nBodySize >> 16);
+        header[length++] = (uint8_t) (packet->m_nBodySize >> 8);
+        header[length++] = (uint8_t) packet->m_nBodySize;
+        header[length++] = packet->m_packetType;
+    }
+    if (fmt == 0) {
+        // 消息流 ID 是小端字节序
+        int32_t streamId = mStreamId;
+        header[length++] = (uint8_t) streamId;
+        header[length++] = (uint8_t) (streamId >> 8);
+        header[length++] = (uint8_t) (streamId >> 16);
+        header[length++] = (uint8_t) (streamId >> 24);
+    }
+    if (stream.extendedTimestamp) {
+        header[length++] = (uint8_t) (timestampField >> 24);
+        header[length++] = (uint8_t) (timestampField >> 16);
+        header[length++] = (uint8_t) (timestampField >> 8);
+        header[length++] = (uint8_t) timestampField;
+    }
+    return length;
+}
+
+void RtmpChunkWriter::refill() {
+    mIovCount = 0;
+    mIovSent = 0;
+    int headerOffset = 0;
+
+    while (mPacketIndex < mCount && mIovCount + 2 <= CHUNK_WRITER_MAX_IOV) {
+        RTMPPacket *packet = mPackets[mPacketIndex];
+        uint8_t *header = mHeaders + headerOffset;
+        int headerLength;
+
+        if (mBodyOffset == 0) {
+            headerLength = writeMessageHeader(packet, header);
+        } else {
+            // 同一个消息的后续块, 只有 1 字节基本头
+            ChunkStream &stream = mChunkStreams[packet->m_nChannel];
+            headerLength = 0;
+            header[headerLength++] = (uint8_t) (0xC0 | packet->m_nChannel);
+            if (stream.extendedTimestamp) {
+                header[headerLength++] = (uint8_t) (stream.extendedTimestampValue >> 24);
+                header[headerLength++] = (uint8_t) (stream.extendedTimestampValue >> 16);
+                header[headerLength++] = (uint8_t) (stream.extendedTimestampValue >> 8);
+                header[headerLength++] = (uint8_t) stream.extendedTimestampValue;
+            }
+        }
+        headerOffset += headerLength;
+
+        mIov[mIovCount].iov_base = header;
+        mIov[mIovCount].iov_len = headerLength;
+        mIovCount++;
+
+        uint32_t end = mBodyEnd ? mBodyEnd : packet->m_nBodySize;
+        uint32_t chunk = end - mBodyOffset;
+        if (chunk > (uint32_t) mChunkSize) {
+            chunk = mChunkSize;
+        }
+        if (chunk > 0) {
+            // 数据部分直接引用 m_body, 不拷贝
+            mIov[mIovCount].iov_base = packet->m_body + mBodyOffset;
+            mIov[mIovCount].iov_len = chunk;
+            mIovCount++;
+        }
+
+        mBodyOffset += chunk;
+        if (mBodyOffset >= end) {
+            mPacketIndex++;
+            mBodyOffset = 0;
+        }
+    }
+}
+
+int RtmpChunkWriter::flush() {
+    if (!mRtmp || !RTMP_IsConnected(mRtmp)) {
+        return WRITE_ERROR;
+    }
+    int socket = mRtmp->m_sb.sb_socket;
+
+    while (true) {
+        if (mIovSent == mIovCount) {
+            if (mPacketIndex >= mCount) {
+                return WRITE_DONE;
+            }
+            refill();
+        }
+
+        struct msghdr message;
+        memset(&message, 0, sizeof(message));
+        message.msg_iov = mIov + mIovSent;
+        message.msg_iovlen = mIovCount - mIovSent;
+
+        ssize_t written = sendmsg(socket, &message, MSG_NOSIGNAL);
+        mWriteCalls.fetch_add(1);
+        if (written < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            if (errno == EAGAIN || errno == EWOULDBLOCK) {
+                return WRITE_AGAIN;
+            }
+            return WRITE_ERROR;
+        }
+
+        // 跳过已经写入的 iovec, 部分写入的 iovec 调整起始位置
+        // 按实际写入 socket 的字节数累计块头 / 数据字节数, 与 SIOCOUTQNSD 相减得到已经发送到网络上的字节数
+        int64_t headerBytes = 0;
+        int64_t bodyBytes = 0;
+        while (written > 0 && mIovSent < mIovCount) {
+            struct iovec &iov = mIov[mIovSent];
+            size_t length = (size_t) written < iov.iov_len ? written : iov.iov_len;
+            if (isHeader(iov)) {
+                headerBytes += length;
+            } else {
+                bodyBytes += length;
+            }
+            if (length == iov.iov_len) {
+                mIovSent++;
+            } else {
+                iov.iov_base = static_cast<uint8_t *>(iov.iov_base) + length;
+                iov.iov_len -= length;
+            }
+            written -= length;
+        }
+        mHeaderBytes.fetch_add(headerBytes);
+        mBodyBytes.fetch_add(bodyBytes);
+    }
+}
+
+int RtmpChunkWriter::send(RTMPPacket **packets, int count) {
+    if (mRtmp && (mRtmp->Link.protocol & RTMP_FEATURE_HTTP)) {
+        // RTMPT 隧道需要通过 HTTP POST 发送, 仍然使用 librtmp
+        for (int i = 0; i < count; i++) {
+            if (!sendCopy(packets[i])) {
+                return WRITE_ERROR;
+            }
+        }
+        return WRITE_DONE;
+    }
+
+    begin(packets, count);
+    int result = writeAll();
+    mPackets = 0;
+    mCount = 0;
+    return result;
+}
+
+int RtmpChunkWriter::sendSlice(RTMPPacket *packet, uint32_t &offset, uint32_t maxBytes) {
+    if (mRtmp && (mRtmp->Link.protocol & RTMP_FEATURE_HTTP)) {
+        if (offset == 0 && !sendCopy(packet)) {
+            return WRITE_ERROR;
+        }
+        offset = packet->m_nBodySize;
+        return WRITE_DONE;
+    }
+
+    // 除最后一个块外, 每个块都必须是完整的块大小, 分片长度向上对齐到整数个块
+    uint32_t chunkSize = mChunkSize;
+    uint32_t length = maxBytes > chunkSize ? (maxBytes + chunkSize - 1) / chunkSize * chunkSize
+                                           : chunkSize;
+    uint32_t end = packet->m_nBodySize - offset > length ? offset + length : packet->m_nBodySize;
+
+    mSlicePacket = packet;
+    begin(&mSlicePacket, 1);
+    mBodyOffset = offset;
+    mBodyEnd = end;
+    int result = writeAll();
+    mPackets = 0;
+    mCount = 0;
+    mBodyEnd = 0;
+    mSlicePacket = 0;
+    if (result == WRITE_DONE) {
+        offset = end;
+    }
+    return result;
+}
+
+int RtmpChunkWriter::writeAll() {
+    if (mInterrupted.load()) {
+        return WRITE_INTERRUPTED;
+    }
+    // 截止时间从本次写入开始计算, 等待期间 socket 一直不可写时超时
+    int64_t deadlineUs = monotonicTimeUs() + mSendTimeoutMs.load() * 1000LL;
+    int result;
+    while ((result = flush()) == WRITE_AGAIN) {
+        result = waitWritable(deadlineUs);
+        if (result != WRITE_DONE) {
+            break;
+        }
+    }
+    if (result == WRITE_TIMEOUT || result == WRITE_INTERRUPTED) {
+        // 已经写入的部分无法撤回, 连接中留下了写了一部分的块
+        mBroken = 1;
+        if (result == WRITE_TIMEOUT) {
+            mSendTimeouts.fetch_add(1);
+            LOGW("写入 %d ms 没有完成, 连接已经不可用", mSendTimeoutMs.load());
+        }
+    }
+    return result;
+}
+
+int RtmpChunkWriter::waitWritable(int64_t deadlineUs) {
+    struct pollfd fds[2];
+    fds[0].fd = mRtmp->m_sb.sb_socket;
+    fds[0].events = POLLOUT;
+    fds[1].fd = mWakeFds[0];
+    fds[1].events = POLLIN;
+    while (true) {
+        if (mInterrupted.load()) {
+            return WRITE_INTERRUPTED;
+        }
+        int64_t remainingUs = deadlineUs - monotonicTimeUs();
+        if (remainingUs <= 0) {
+            return WRITE_TIMEOUT;
+        }
+        fds[0].revents = 0;
+        fds[1].revents = 0;
+        int ready = poll(fds, 2, static_cast<int>((remainingUs + 999) / 1000));
+        if (ready < 0 && errno != EINTR) {
+            return WRITE_ERROR;
+        }
+        if (fds[1].revents & POLLIN) {
+            // wakeup 不影响写入, interrupt 在下一次循环时返回
+            drainWakeup();
+        }
+        if (fds[0].revents) {
+            return WRITE_DONE;
+        }
+    }
+}
+
+void RtmpChunkWriter::setSendTimeout(int timeoutMs) {
+    mSendTimeoutMs.store(timeoutMs > 0 ? timeoutMs : DEFAULT_SEND_TIMEOUT_MS);
+}
+
+int RtmpChunkWriter::connectServer(RTMP *rtmp) {
+    if (rtmp->Link.socksport) {
+        return RTMP_Connect(rtmp, 0);
+    }
+    if (!rtmp->Link.hostname.av_len) {
+        return FALSE;
+    }
+
+    // 与 RTMP_Connect 相同只使用 IPv4 地址
+    std::string hostname(rtmp->Link.hostname.av_val, rtmp->Link.hostname.av_len);
+    struct addrinfo hints;
+    memset(&hints, 0, sizeof(hints));
+    hints.ai_family = AF_INET;
+    hints.ai_socktype = SOCK_STREAM;
+    struct addrinfo *address = 0;
+    if (getaddrinfo(hostname.c_str(), 0, &hints, &address) != 0 || !address) {
+        LOGE("解析服务器地址 %s 失败", hostname.c_str());
+        return FALSE;
+    }
+    struct sockaddr_in service;
+    memcpy(&service, address->ai_addr, sizeof(service));
+    freeaddrinfo(address);
+    service.sin_port = htons(rtmp->Link.port);
+
+    rtmp->m_sb.sb_timedout = FALSE;
+    rtmp->m_pausing = 0;
+    rtmp->m_fDuration = 0.0;
+
+    int socket = ::socket(AF_INET, SOCK_STREAM, IPPROTO_TCP);
+    if (socket < 0) {
+        LOGE("创建 socket 失败 : %s", strerror(errno));
+        return FALSE;
+    }
+    // 登记连接过程中的 socket, 与 interrupt 互斥 : 要么这里看到中断状态, 要么 interrupt 看到登记的 socket
+    pthread_mutex_lock(&mConnectMutex);
+    int interrupted = mInterrupted.load();
+    if (!interrupted) {
+        if (mConnectingSocket >= 0) {
+            close(mConnectingSocket);
+        }
+        mConnectingSocket = dup(socket);
+    }
+    pthread_mutex_unlock(&mConnectMutex);
+    if (interrupted) {
+        close(socket);
+        return FALSE;
+    }
+    setNonBlocking(socket, 1);
+    int64_t deadlineUs = monotonicTimeUs() + rtmp->Link.timeout * 1000000LL;
+    int connected = ::connect(socket, reinterpret_cast<struct sockaddr *>(&service),
+                              sizeof(service)) == 0;
+    if (!connected && errno == EINPROGRESS) {
+        connected = waitConnected(socket, deadlineUs);
+    } else if (!connected) {
+        LOGE("连接服务器 %s 失败 : %s", hostname.c_str(), strerror(errno));
+    }
+    if (!connected) {
+        endConnect();
+        close(socket);
+        return FALSE;
+    }
+    setNonBlocking(socket, 0);
+
+    struct timeval timeout;
+    timeout.tv_sec = rtmp->Link.timeout;
+    timeout.tv_usec = 0;
+    setsockopt(socket, SOL_SOCKET, SO_RCVTIMEO, &timeout, sizeof(timeout));
+    int on = 1;
+    setsockopt(socket, IPPROTO_TCP, TCP_NODELAY, &on, sizeof(on));
+
+    rtmp->m_sb.sb_socket = socket;
+    rtmp->m_bSendCounter = TRUE;
+    // 握手失败时 RTMP_Connect1 会关闭 socket, 被 interrupt shutdown 时读取立即失败
+    if (!RTMP_Connect1(rtmp, 0)) {
+        endConnect();
+        return FALSE;
+    }
+    return TRUE;
+}
+
+void RtmpChunkWriter::endConnect() {
+    pthread_mutex_lock(&mConnectMutex);
+    if (mConnectingSocket >= 0) {
+        close(mConnectingSocket);
+        mConnectingSocket = -1;
+    }
+    pthread_mutex_unlock(&mConnectMutex);
+}
+
+int RtmpChunkWriter::waitConnected(int socket, int64_t deadlineUs) {
+    struct pollfd fds[2];
+    fds[0].fd = socket;
+    fds[0].events = POLLOUT;
+    fds[1].fd = mWakeFds[0];
+    fds[1].events = POLLIN;
+    while (true) {
+        if (mInterrupted.load()) {
+            LOGW("连接服务器被中断");
+            return FALSE;
+        }
+        int64_t remainingUs = deadlineUs - monotonicTimeUs();
+        if (remainingUs <= 0) {
+            LOGE("连接服务器超时");
+            return FALSE;
+        }
+        fds[0].revents = 0;
+        fds[1].revents = 0;
+        int ready = poll(fds, 2, static_cast<int>((remainingUs + 999) / 1000));
+        if (ready < 0 && errno != EINTR) {
+            return FALSE;
+        }
+        if (fds[1].revents & POLLIN) {
+            // wakeup 不影响连接, interrupt 在下一次循环时返回
+            drainWakeup();
+        }
+        if (fds[0].revents) {
+            int error = 0;
+            socklen_t length = sizeof(error);
+            if (getsockopt(socket, SOL_SOCKET, SO_ERROR, &error, &length) < 0) {
+                error = errno;
+            }
+            if (error) {
+                LOGE("连接服务器失败 : %s", strerror(error));
+                return FALSE;
+            }
+            return TRUE;
+        }
+    }
+}
+
+void RtmpChunkWriter::interrupt() {
+    mInterrupted.store(1);
+    // 握手与发布流阶段阻塞在 socket 读取上, shutdown 后读取立即返回
+    pthread_mutex_lock(&mConnectMutex);
+    if (mConnectingSocket >= 0) {
+        shutdown(mConnectingSocket, SHUT_RDWR);
+    }
+    pthread_mutex_unlock(&mConnectMutex);
+    wakeup();
+}
+
+void RtmpChunkWriter::resetInterrupt() {
+    mInterrupted.store(0);
+    drainWakeup();
+}
+
+void RtmpChunkWriter::wakeup() {
+    if (mWakeFds[1] >= 0) {
+        char signal = 1;
+        // 管道已满时已经有未读的唤醒信号, 忽略写入失败
+        ssize_t ignored = write(mWakeFds[1], &signal, 1);
+        (void) ignored;
+    }
+}
+
+int RtmpChunkWriter::sleep(int timeoutUs) {
+    if (mInterrupted.load()) {
+        return 0;
+    }
+    if (mWakeFds[0] < 0) {
+        usleep(static_cast<useconds_t>(timeoutUs));
+        return !mInterrupted.load();
+    }
+    struct pollfd fd;
+    fd.fd = mWakeFds[0];
+    fd.events = POLLIN;
+    fd.revents = 0;
+    // poll 的精度是毫秒, 向上取整, 不会提前醒来导致忙等
+    if (poll(&fd, 1, (timeoutUs + 999) / 1000) > 0) {
+        drainWakeup();
+    }
+    return !mInterrupted.load();
+}
+
+void RtmpChunkWriter::drainWakeup() {
+    if (mWakeFds[0] < 0) {
+        return;
+    }
+    char buffer[64];
+    while (read(mWakeFds[0], buffer, sizeof(buffer)) > 0) {
+    }
+}
+
+int RtmpChunkWriter::canSendControl() {
+    if (!mRtmp || !RTMP_IsConnected(mRtmp) || mBroken) {
+        return FALSE;
+    }
+    if (mNonBlockingSocket < 0) {
+        return TRUE;
+    }
+    struct pollfd fd;
+    fd.fd = mNonBlockingSocket;
+    fd.events = POLLOUT;
+    fd.revents = 0;
+    return poll(&fd, 1, 0) > 0 && (fd.revents & POLLOUT);
+}
+
+int RtmpChunkWriter::isHeader(const struct iovec &iov) {
+    const uint8_t *base = static_cast<const uint8_t *>(iov.iov_base);
+    return base >= mHeaders && base < mHeaders + sizeof(mHeaders);
+}
+
+void RtmpChunkWriter::setNonBlocking(int socket, int nonBlocking) {
+    int flags = fcntl(socket, F_GETFL);
+    if (flags < 0) {
+        return;
+    }
+    fcntl(socket, F_SETFL, nonBlocking ? flags | O_NONBLOCK : flags & ~O_NONBLOCK);
+}
+
+int RtmpChunkWriter::getUnsentBytes() {
+    if (!mRtmp || !RTMP_IsConnected(mRtmp) || (mRtmp->Link.protocol & RTMP_FEATURE_HTTP)) {
+        return -1;
+    }
+    int bytes = 0;
+    if (ioctl(mRtmp->m_sb.sb_socket, SIOCOUTQNSD, &bytes) < 0) {
+        return -1;
+    }
+    int64_t delivered = mHeaderBytes.load() + mBodyBytes.load() - bytes;
+    if (bytes == 0 || delivered != mDelivered) {
+        mDelivered = delivered;
+        mLastProgressUs = monotonicTimeUs();
+    }
+    mUnsent = bytes;
+    return bytes;
+}
+
+int RtmpChunkWriter::checkStalled() {
+    if (mUnsent <= 0
+        || monotonicTimeUs() - mLastProgressUs < mSendTimeoutMs.load() * 1000LL) {
+        return FALSE;
+    }
+    mSendTimeouts.fetch_add(1);
+    LOGW("%d ms 没有发送任何数据, 连接已经不可用", mSendTimeoutMs.load());
+    return TRUE;
+}
+
+int RtmpChunkWriter::getChunkSize() {
+    return mChunkSize;
+}
+
+int RtmpChunkWriter::sendCopy(RTMPPacket *packet) {
+    // RTMP_SendPacket 会在 m_body 中写入后续块的块头, 数据包可能正在被其它连接发送, 不能直接修改
+    mCopyBuffer.resize(RTMP_MAX_HEADER_SIZE + packet->m_nBodySize);
+    RTMPPacket copy = *packet;
+    copy.m_body = mCopyBuffer.data() + RTMP_MAX_HEADER_SIZE;
+    copy.m_nInfoField2 = mStreamId;
+    copy.m_chunk = 0;
+    memcpy(copy.m_body, packet->m_body, packet->m_nBodySize);
+    return RTMP_SendPacket(mRtmp, &copy, FALSE);
+}
+
+int64_t RtmpChunkWriter::getWriteCalls() {
+    return mWriteCalls.load();
+}
+
+int64_t RtmpChunkWriter::getHeaderBytes() {
+    return mHeaderBytes.load();
+}
+
+int64_t RtmpChunkWriter::getBodyBytes() {
+    return mBodyBytes.load();
+}
+
+int64_t RtmpChunkWriter::getSendTimeouts() {
+    return mSendTimeouts.load();
+}
@@ -0,0 +1,407 @@
+//
+// Created by octopus on 2020/6/27.
+//
+
+#ifndef RTMP_PUSHER_RTMPCHUNKWRITER_H
+#define RTMP_PUSHER_RTMPCHUNKWRITER_H
+
+#include <atomic>
+#include <vector>
+#include <stdint.h>
+#include <pthread.h>
+#include <sys/uio.h>
+#include "librtmp/rtmp.h"
+
+/**
+ * 默认的发送块大小, 单位字节
+ * librtmp 默认 128 字节, 一个 60 KB 的关键帧要拆分成 480 个块, 每个块一个块头, 一次 send 调用
+ */
+#define DEFAULT_CHUNK_SIZE 4096
+
+/**
+ * 发送块大小的取值范围
+ */
+#define MIN_CHUNK_SIZE 128
+#define MAX_CHUNK_SIZE 65536
+
+/**
+ * 一次 sendmsg 最多提交的 iovec 个数, 小于 Linux / Android 的 IOV_MAX ( 1024 )
+ */
+#define CHUNK_WRITER_MAX_IOV 256
+
+/**
+ * 默认的写入截止时间, 单位毫秒
+ * 一次写入 ( 一批合并发送的数据包, 或者一个视频分片 ) 超过该时间仍然没有写完时, 认为连接已经不可用
+ */
+#define DEFAULT_SEND_TIMEOUT_MS 5000
+
+/**
+ * 连接的 socket 发送缓冲区大小, 单位字节 ( 内核实际分配两倍 )
+ * 自动增长的发送缓冲区可以达到几 MB, 上行拥塞时几秒的数据积压在内核中, 拥塞控制无法丢弃
+ */
+#define SEND_SOCKET_BUFFER_BYTES (128 * 1024)
+
+/**
+ * RTMP 块写入器, 替代推流线程中的 RTMP_SendPacket
+ *
+ * RTMP_SendPacket 每个块调用一次 send, 并且会把后续块的块头写入 m_body 中 ( 修改数据包内容 )
+ * 本类将一个或多个数据包拆分成块, 块头写入单独的缓冲区, 数据部分直接引用 m_body,
+ * 通过 iovec 一次 sendmsg 系统调用发送, 不修改数据包内容
+ *
+ * 块头按照 RTMP 规范压缩 :
+ *      fmt 0 : 该块流第一个消息, 流 ID 变化, 或者时间戳回退, 12 字节
+ *      fmt 1 : 消息长度或类型变化, 8 字节, 时间戳为增量
+ *      fmt 2 : 只有时间戳变化, 4 字节
+ *      fmt 3 : 同一个消息的后续块, 1 字节
+ *      时间戳 ( 增量 ) 超过 0xFFFFFF 时, 附加 4 字节扩展时间戳, fmt 3 块同样附加
+ *
+ * 写入过程可以中断 : flush 在 socket 缓冲区已满时返回 WRITE_AGAIN, 再次调用 flush 从中断位置继续写入
+ * 数据包在写入完成之前必须保持有效
+ *
+ * 关联连接后 socket 设置为非阻塞, 并限制发送缓冲区大小 ( TCP_NODELAY 由 librtmp 连接时设置 ) :
+ *      send / sendSlice 在 socket 缓冲区已满时通过 poll 等待 socket 可写, 写了一部分的 iovec 记录在本类中
+ *      每次写入有截止时间, 上行网络中断时不会无限阻塞, 超时返回 WRITE_TIMEOUT, 由调用者断开连接后重连
+ *      poll 同时等待唤醒管道, 其它线程调用 interrupt 后正在进行的写入立即返回 WRITE_INTERRUPTED
+ * RTMPT 隧道仍然使用阻塞 socket, 不支持截止时间与中断
+ *
+ * 一个大的消息可以分成若干次写入 ( sendSlice ), 每次写入整数个块, 两次写入之间可以发送其它块流上的消息
+ * 如 关键帧分片发送期间插入音频消息, RTMP 规范允许不同块流的块交错发送
+ *
+ * 消息流 ID 使用关联连接的流 ID, 不读取数据包的 m_nInfoField2
+ * 同一个数据包可以同时由多个连接 ( 多个推流目的地 ) 的写入器发送
+ */
+class RtmpChunkWriter {
+
+public:
+
+    /**
+     * flush 返回值 : 全部写入完成
+     */
+    static const int WRITE_DONE = 1;
+
+    /**
+     * flush 返回值 : socket 缓冲区已满, 需要稍后继续写入 ( 非阻塞 socket )
+     */
+    static const int WRITE_AGAIN = 0;
+
+    /**
+     * flush 返回值 : 写入出错, 连接已经不可用
+     */
+    static const int WRITE_ERROR = -1;
+
+    /**
+     * send / sendSlice 返回值 : 超过截止时间仍然没有写完, 连接中可能有写了一部分的消息, 不能继续使用
+     */
+    static const int WRITE_TIMEOUT = -2;
+
+    /**
+     * send / sendSlice 返回值 : 被 interrupt 中断, 连接中可能有写了一部分的消息, 不能继续使用
+     */
+    static const int WRITE_INTERRUPTED = -3;
+
+    RtmpChunkWriter();
+
+    ~RtmpChunkWriter();
+
+    /**
+     * 关联 RTMP 连接, 重置块流状态, 每次建立连接后调用
+     * 非 RTMPT 连接的 socket 设置为非阻塞, 并设置发送缓冲区大小
+     * 之前关联的连接恢复为阻塞 socket, librtmp 关闭连接时可以发送 FCUnpublish / deleteStream 消息
+     * @param rtmp 已经连接 RTMP 流的 RTMP 对象, 之后发送的消息使用该连接的流 ID, 0 表示取消关联
+     */
+    void attach(RTMP *rtmp);
+
+    /**
+     * 向服务器发送 Set Chunk Size 消息, 之后按照新的块大小拆分数据包
+     * 通过 librtmp 发送, 只能在关联连接后立即调用, 此时发送缓冲区为空, 非阻塞 socket 可以立即写入
+     * @param chunkSize 块大小, 限制在 [ MIN_CHUNK_SIZE, MAX_CHUNK_SIZE ] 区间内
+     * @return 成功返回 TRUE
+     */
+    int setChunkSize(int chunkSize);
+
+    /**
+     * 开始写入一批数据包, 之后调用 flush 写入
+     * @param packets 数据包数组, 写入完成之前数组与数据包都必须保持有效
+     * @param count 数据包个数
+     */
+    void begin(RTMPPacket **packets, int count);
+
+    /**
+     * 写入 begin 设置的数据包
+     * @return WRITE_DONE / WRITE_AGAIN / WRITE_ERROR
+     */
+    int flush();
+
+    /**
+     * 写入一批数据包, socket 缓冲区已满时等待, 直到写完, 超过截止时间, 或者被中断
+     * @return WRITE_DONE / WRITE_ERROR / WRITE_TIMEOUT / WRITE_INTERRUPTED
+     */
+    int send(RTMPPacket **packets, int count);
+
+    /**
+     * 写入一个消息的一部分, 从 offset 开始最多写入 maxBytes 字节 ( 向上对齐到整数个块 ), 等待方式与 send 相同
+     * 同一个消息的各个分片必须按顺序写入, 分片之间不能写入同一个块流上的其它消息
+     * RTMPT 隧道不支持分片, offset 为 0 时写入整个消息
+     * @param offset 本次写入的起始位置, 写入成功后更新为下一个分片的起始位置, 等于消息长度时写入完毕
+     * @return WRITE_DONE / WRITE_ERROR / WRITE_TIMEOUT / WRITE_INTERRUPTED
+     */
+    int sendSlice(RTMPPacket *packet, uint32_t &offset, uint32_t maxBytes);
+
+    /**
+     * 设置每次写入的截止时间, 可以在任意线程中调用, 下一次写入时生效
+     * @param timeoutMs 单位毫秒, 小于等于 0 时使用 DEFAULT_SEND_TIMEOUT_MS
+     */
+    void setSendTimeout(int timeoutMs);
+
+    /**
+     * 连接 RTMP 服务器并握手, 代替 RTMP_Connect, 可以在连接线程中调用
+     * TCP 连接使用非阻塞 socket, poll 同时等待唤醒管道, 截止时间为 Link.timeout 秒 :
+     *      RTMP_Connect 阻塞在 connect 上, 服务器不响应 SYN 时要等待系统的连接超时 ( 一分钟以上 ), 期间无法停止推流
+     *      本方法在 interrupt 后立即返回
+     * 连接成功后 socket 恢复为阻塞模式, 与 RTMP_Connect 相同设置读超时与 TCP_NODELAY, 再由 RTMP_Connect1 握手
+     * 握手与之后 RTMP_ConnectStream 的读取是阻塞的, 每次读取由 Link.timeout 限制 :
+     *      从创建 socket 到调用 endConnect 期间, interrupt 对该 socket 执行 shutdown, 阻塞的读取立即返回
+     * 域名解析仍然是阻塞的, 通过 SOCKS 代理连接时仍然使用 RTMP_Connect, 不能被中断
+     * @return 成功返回 TRUE, 失败或者被中断返回 FALSE, 失败时 socket 已经关闭
+     */
+    int connectServer(RTMP *rtmp);
+
+    /**
+     * 连接过程结束, connectServer 之后 RTMP_ConnectStream 完成 ( 无论成功或者失败 ) 时调用
+     * 之后 interrupt 不再 shutdown 该连接的 socket
+     */
+    void endConnect();
+
+    /**
+     * 中断正在进行的写入与等待, 之后的写入直接返回 WRITE_INTERRUPTED, 直到调用 resetInterrupt
+     * 正在进行的 connectServer 同样被中断, 连接过程中 ( endConnect 之前 ) 的 socket 被 shutdown
+     * 可以在任意线程中调用, 停止推流时调用
+     */
+    void interrupt();
+
+    /**
+     * 清除中断状态, 开始推流时调用
+     */
+    void resetInterrupt();
+
+    /**
+     * 唤醒 sleep, 不中断写入, 可以在任意线程中调用
+     * 修改发送相关的配置后调用, 推流线程立即按照新的配置调度
+     */
+    void wakeup();
+
+    /**
+     * 等待 timeoutUs 微秒, 被 wakeup / interrupt 唤醒时提前返回, 代替推流线程中的 usleep
+     * @return 被中断返回 0
+     */
+    int sleep(int timeoutUs);
+
+    /**
+     * 是否可以在关联的连接上发送 librtmp 控制消息 :
+     * 没有写了一部分的数据 ( 超时或者中断的写入 ), 并且 socket 发送缓冲区可以立即写入
+     * 不满足时关闭连接不能再发送 FCUnpublish / deleteStream 消息
+     */
+    int canSendControl();
+
+    /**
+     * socket 发送缓冲区中还没有发送到网络上的字节数 ( SIOCOUTQNSD ), 不包括已经发送等待确认的数据
+     * 网络上行带宽不足时, 新写入的数据要排在这些数据之后
+     * 同时记录链路发送数据的进度, 供 checkStalled 判断链路是否中断
+     * @return 无法获取时 ( 没有连接, RTMPT 隧道, 系统不支持 ) 返回 -1
+     */
+    int getUnsentBytes();
+
+    /**
+     * 最近一次 getUnsentBytes 时发送缓冲区中有未发送的数据, 并且超过写入截止时间没有发送任何数据
+     * 发送调度器暂停写入视频时 socket 不会写满, 写入不会超时, 由该方法发现上行网络中断
+     * @return 链路中断返回 TRUE, 计入写入超时次数
+     */
+    int checkStalled();
+
+    /**
+     * 当前的发送块大小
+     */
+    int getChunkSize();
+
+    /**
+     * sendmsg 系统调用次数
+     */
+    int64_t getWriteCalls();
+
+    /**
+     * 已经写入 socket 的块头字节数, 不包括暂存在 iovec 中还没有写入的部分
+     */
+    int64_t getHeaderBytes();
+
+    /**
+     * 已经写入 socket 的消息数据字节数, 不包括暂存在 iovec 中还没有写入的部分
+     */
+    int64_t getBodyBytes();
+
+    /**
+     * 超过截止时间的写入次数
+     */
+    int64_t getSendTimeouts();
+
+private:
+
+    /**
+     * 块流 ( chunk stream ) 上一个消息的头信息, 用于压缩块头
+     */
+    struct ChunkStream {
+        int valid;
+        uint32_t timestamp;
+        uint32_t bodySize;
+        uint8_t packetType;
+        int32_t streamId;
+        /**
+         * 该块流当前消息是否使用扩展时间戳, 后续的 fmt 3 块也需要附加
+         * 按块流记录, 分片发送的消息中间插入其它块流的消息后仍然有效
+         */
+        int extendedTimestamp;
+        uint32_t extendedTimestampValue;
+    };
+
+    /**
+     * 单字节块基本头支持的块流 ID 个数
+     */
+    static const int CHUNK_STREAMS = 64;
+
+    /**
+     * 一个块头的最大字节数 : 基本头 1 + 消息头 11 + 扩展时间戳 4
+     */
+    static const int MAX_CHUNK_HEADER = 16;
+
+    /**
+     * 从中断位置继续, 将数据包拆分成块, 填充 iovec 数组, 直到数组已满或者数据包全部拆分完毕
+     */
+    void refill();
+
+    /**
+     * 写入一个消息的第一个块的块头
+     * @return 块头长度
+     */
+    int writeMessageHeader(RTMPPacket *packet, uint8_t *header);
+
+    /**
+     * RTMPT 隧道通过 RTMP_SendPacket 发送, 该函数会修改数据包
+     * 先将数据包拷贝到本类的缓冲区中, 再发送拷贝
+     */
+    int sendCopy(RTMPPacket *packet);
+
+    /**
+     * 写入 begin 设置的数据, socket 缓冲区已满时等待 socket 可写
+     * @return WRITE_DONE / WRITE_ERROR / WRITE_TIMEOUT / WRITE_INTERRUPTED
+     */
+    int writeAll();
+
+    /**
+     * 等待 socket 可写, 直到 deadlineUs ( CLOCK_MONOTONIC, 单位微秒 )
+     * @return socket 可写 ( 或者出错, 由 sendmsg 返回错误 ) 返回 WRITE_DONE, 否则返回 WRITE_TIMEOUT / WRITE_INTERRUPTED
+     */
+    int waitWritable(int64_t deadlineUs);
+
+    /**
+     * 等待非阻塞 connect 完成, 直到截止时间或者被中断
+     * @return 连接成功返回 TRUE
+     */
+    int waitConnected(int socket, int64_t deadlineUs);
+
+    /**
+     * 读出唤醒管道中的所有数据
+     */
+    void drainWakeup();
+
+    /**
+     * iovec 指向块头缓冲区 mHeaders 时是块头, 否则是数据包的 m_body
+     */
+    int isHeader(const struct iovec &iov);
+
+    /**
+     * 关联连接时设置 socket 为非阻塞, 取消关联时恢复
+     */
+    void setNonBlocking(int socket, int nonBlocking);
+
+    RTMP *mRtmp = 0;
+
+    /**
+     * 设置为非阻塞的 socket, -1 表示使用阻塞 socket ( 没有关联连接, RTMPT 隧道 )
+     */
+    int mNonBlockingSocket = -1;
+
+    /**
+     * 上一次写入超时或者被中断, 连接中有写了一部分的数据
+     */
+    int mBroken = 0;
+
+    /**
+     * getUnsentBytes 记录的发送进度 : 已经发送到网络上的字节数, 该值最后一次变化 ( 或者没有积压 ) 的时间
+     */
+    int64_t mDelivered = 0;
+    int64_t mLastProgressUs = 0;
+    int mUnsent = 0;
+
+    /**
+     * 唤醒管道, [0] 读端, [1] 写端, 都是非阻塞的
+     */
+    int mWakeFds[2];
+
+    /**
+     * 连接过程中的 socket 的副本 ( dup ), -1 表示没有正在进行的连接
+     * 使用副本 shutdown : librtmp 握手失败时关闭原来的 socket, 描述符可能被其它连接复用, 副本在 endConnect 之前一直有效
+     * 由 mConnectMutex 保护, interrupt 在其它线程中访问
+     */
+    int mConnectingSocket = -1;
+    pthread_mutex_t mConnectMutex;
+
+    std::atomic<int> mInterrupted;
+    std::atomic<int> mSendTimeoutMs;
+
+    /**
+     * 消息流 ID, 关联连接时从 RTMP 对象中获取
+     */
+    int32_t mStreamId = 0;
+
+    /**
+     * sendCopy 使用的缓冲区, m_body 之前预留 RTMP_MAX_HEADER_SIZE 字节
+     */
+    std::vector<char> mCopyBuffer;
+
+    int mChunkSize = 128;
+
+    ChunkStream mChunkStreams[CHUNK_STREAMS];
+
+    // 当前写入的数据包
+    RTMPPacket **mPackets = 0;
+    int mCount = 0;
+    int mPacketIndex = 0;
+    uint32_t mBodyOffset = 0;
+
+    /**
+     * 分片写入时当前分片的结束位置, 0 表示写入整个消息
+     */
+    uint32_t mBodyEnd = 0;
+
+    /**
+     * 分片写入的数据包, begin 需要数据包数组
+     */
+    RTMPPacket *mSlicePacket = 0;
+
+    // 待写入的 iovec 数组
+    struct iovec mIov[CHUNK_WRITER_MAX_IOV];
+    int mIovCount = 0;
+    int mIovSent = 0;
+
+    /**
+     * 块头缓冲区, 每个块最多占用 MAX_CHUNK_HEADER 字节
+     */
+    uint8_t mHeaders[CHUNK_WRITER_MAX_IOV / 2 * MAX_CHUNK_HEADER];
+
+    std::atomic<int64_t> mWriteCalls;
+    std::atomic<int64_t> mHeaderBytes;
+    std::atomic<int64_t> mBodyBytes;
+    std::atomic<int64_t> mSendTimeouts;
+};
+
+
+#endif //RTMP_PUSHER_RTMPCHUNKWRITER_H
@@ -0,0 +1,78 @@
+//
+// Created by octopus on 2020/6/29.
+//
+
+#ifndef RTMP_PUSHER_RTMPLOG_H
+#define RTMP_PUSHER_RTMPLOG_H
+
+#include <atomic>
+#include <stdint.h>
+#include <time.h>
+#include <android/log.h>
+
+/**
+ * 日志标签
+ */
+#define RTMP_LOG_TAG "RTMP"
+
+/**
+ * 日志输出级别, 低于该级别的日志不输出, 默认 ANDROID_LOG_INFO
+ * 使用函数内的静态变量, 头文件被多个源文件包含时只有一份
+ */
+inline std::atomic<int> &rtmpLogLevel() {
+    static std::atomic<int> level(ANDROID_LOG_INFO);
+    return level;
+}
+
+/**
+ * 单调递增的时间, 单位毫秒, 用于日志限流
+ */
+inline uint32_t rtmpLogNowMs() {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (uint32_t) (now.tv_sec * 1000LL + now.tv_nsec / 1000000);
+}
+
+/**
+ * 按照级别输出日志, 级别判断在格式化参数之前, 关闭的级别没有任何开销
+ */
+#define RTMP_LOG(priority, ...) \
+    do { \
+        if ((priority) >= rtmpLogLevel().load(std::memory_order_relaxed)) { \
+            __android_log_print((priority), RTMP_LOG_TAG, __VA_ARGS__); \
+        } \
+    } while (0)
+
+#define LOGD(...) RTMP_LOG(ANDROID_LOG_DEBUG, __VA_ARGS__)
+#define LOGI(...) RTMP_LOG(ANDROID_LOG_INFO, __VA_ARGS__)
+#define LOGW(...) RTMP_LOG(ANDROID_LOG_WARN, __VA_ARGS__)
+#define LOGE(...) RTMP_LOG(ANDROID_LOG_ERROR, __VA_ARGS__)
+
+/**
+ * 限流日志, 每个调用位置每 intervalMs 毫秒最多输出一条, 用于每帧 / 每个数据包都可能执行的代码
+ * 被限流丢弃的日志条数, 在下一次输出时一并输出
+ */
+#define RTMP_LOG_RATE_LIMITED(priority, intervalMs, ...) \
+    do { \
+        if ((priority) >= rtmpLogLevel().load(std::memory_order_relaxed)) { \
+            static std::atomic<uint32_t> rtmpLogLastMs(0); \
+            static std::atomic<uint32_t> rtmpLogSuppressed(0); \
+            uint32_t rtmpLogNow = rtmpLogNowMs() | 1; \
+            uint32_t rtmpLogLast = rtmpLogLastMs.load(std::memory_order_relaxed); \
+            if ((rtmpLogLast == 0 || rtmpLogNow - rtmpLogLast >= (uint32_t) (intervalMs)) \
+                && rtmpLogLastMs.compare_exchange_strong(rtmpLogLast, rtmpLogNow)) { \
+                __android_log_print((priority), RTMP_LOG_TAG, __VA_ARGS__); \
+                uint32_t rtmpLogCount = rtmpLogSuppressed.exchange(0); \
+                if (rtmpLogCount > 0) { \
+                    __android_log_print((priority), RTMP_LOG_TAG, "( 省略了 %u 条相同位置的日志 )", rtmpLogCount); \
+                } \
+            } else { \
+                rtmpLogSuppressed.fetch_add(1, std::memory_order_relaxed); \
+            } \
+        } \
+    } while (0)
+
+#define LOGI_RATE_LIMITED(intervalMs, ...) RTMP_LOG_RATE_LIMITED(ANDROID_LOG_INFO, intervalMs, __VA_ARGS__)
+#define LOGW_RATE_LIMITED(intervalMs, ...) RTMP_LOG_RATE_LIMITED(ANDROID_LOG_WARN, intervalMs, __VA_ARGS__)
+
+#endif //RTMP_PUSHER_RTMPLOG_H
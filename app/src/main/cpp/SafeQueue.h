@@ -59,7 +59,6 @@ public:
         if (work) {
             q.push(new_value);
             pthread_cond_signal(&cond);
-            pthread_mutex_unlock(&mutex);
         }else{
             //如果没有加入到队列中 , 那么释放该值
             releaseHandle(new_value);
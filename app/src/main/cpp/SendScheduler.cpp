@@ -0,0 +1,260 @@
+//
+// Created by octopus on 2020/7/12.
+//
+
+#include <algorithm>
+#include "SendScheduler.h"
+#include "MonotonicClock.h"
+
+SendScheduler::SendScheduler() {
+    mEnabled.store(1);
+    mEstimatedBitrate.store(0);
+    mSlicedFrames.store(0);
+    mAudioOvertakes.store(0);
+    mPacingWaits.store(0);
+}
+
+SendScheduler::~SendScheduler() {
+    clear();
+}
+
+void SendScheduler::setReleaseHandle(ReleaseHandle releaseHandle) {
+    mReleaseHandle = releaseHandle;
+}
+
+void SendScheduler::setEnabled(int enabled) {
+    mEnabled.store(enabled);
+}
+
+void SendScheduler::reset() {
+    mRateBytesPerMs = 0;
+    mSampleStartUs = 0;
+    mSampleDelivered = 0;
+    mNextSendUs = 0;
+    mLastProbeUs = 0;
+    mWaitUs = 0;
+    mEstimatedBitrate.store(0);
+}
+
+int SendScheduler::schedule(CongestionController &congestionController, RtmpChunkWriter &writer,
+                            RTMPPacket **sent, int max, int *sentCount, int *sentBytes) {
+    *sentCount = 0;
+    *sentBytes = 0;
+    if (!mEnabled.load() && !mCurrent) {
+        return sendInOrder(congestionController, writer, sent, max, 0xFFFFFFFF,
+                           sentCount, sentBytes);
+    }
+
+    RTMPPacket *head = mCurrent ? mCurrent : congestionController.front();
+    if (!head) {
+        return SCHEDULE_IDLE;
+    }
+
+    // 1. 音频优先, 越过排在前面的视频帧, 最多领先 SCHEDULER_AUDIO_LEAD_MS 毫秒
+    int videoAhead = head->m_packetType == RTMP_PACKET_TYPE_VIDEO;
+    uint32_t maxTimestamp = head->m_nTimeStamp + SCHEDULER_AUDIO_LEAD_MS;
+    int count = 0;
+    int bytes = 0;
+    RTMPPacket *packet;
+    while (count < max && (packet = congestionController.popAudio(maxTimestamp))) {
+        bytes += packet->m_nBodySize;
+        sent[count++] = packet;
+    }
+    int64_t nowUs = monotonicTimeUs();
+    if (count > 0) {
+        if (videoAhead) {
+            mAudioOvertakes.fetch_add(count);
+        }
+        *sentCount = count;
+        *sentBytes = bytes;
+        // 音频同样占用链路带宽
+        onWritten(bytes, nowUs);
+        return writer.send(sent, count) == RtmpChunkWriter::WRITE_DONE ? SCHEDULE_SENT
+                                                                      : SCHEDULE_ERROR;
+    }
+
+    // 2. 视频按顺序发送, 发送缓冲区中未发送的数据超过目标时, 等待链路发送
+    int chunkSize = writer.getChunkSize();
+    int unsent = writer.getUnsentBytes();
+    updateRate(writer, unsent, nowUs);
+    int target = queueTargetBytes(chunkSize);
+    uint32_t slice = sliceBytes(chunkSize);
+    int64_t waitUs = 0;
+    if (unsent > target) {
+        if (writer.checkStalled()) {
+            // 链路超过写入截止时间没有发送任何数据, 与写入超时一样断开连接
+            return abort(sent, sentCount);
+        }
+        waitUs = mRateBytesPerMs > 0 ? (unsent - target) * 1000LL / mRateBytesPerMs
+                                     : SCHEDULER_MAX_WAIT_US;
+    } else if (mNextSendUs > nowUs) {
+        // 按照估计速率匀速发送
+        waitUs = mNextSendUs - nowUs;
+        if (unsent == 0 && (mCurrent || congestionController.bytes() > slice)
+            && nowUs - mLastProbeUs >= SCHEDULER_RATE_SAMPLE_MS * 1000LL) {
+            // 有数据等待匀速发送, 链路却没有积压, 链路可以更快的发送, 逐步提高估计值
+            mLastProbeUs = nowUs;
+            mRateBytesPerMs += std::max<int64_t>(mRateBytesPerMs >> SCHEDULER_RATE_PROBE_SHIFT, 1);
+            mEstimatedBitrate.store(static_cast<long>(mRateBytesPerMs * 8000));
+        }
+    }
+    if (waitUs > 0) {
+        mWaitUs = static_cast<int>(std::min<int64_t>(
+                std::max<int64_t>(waitUs, SCHEDULER_MIN_WAIT_US), SCHEDULER_MAX_WAIT_US));
+        mPacingWaits.fetch_add(1);
+        return SCHEDULE_WAIT;
+    }
+
+    if (!mCurrent) {
+        if (congestionController.front()->m_nBodySize <= slice) {
+            // 小的数据包合并发送, 总长度不超过一个分片
+            int result = sendInOrder(congestionController, writer, sent, max, slice,
+                                     sentCount, sentBytes);
+            onWritten(*sentBytes, nowUs);
+            return result;
+        }
+        mCurrent = congestionController.pop();
+        mOffset = 0;
+        mSlicedFrames.fetch_add(1);
+    }
+
+    // 3. 发送大的视频帧的一个分片
+    uint32_t offset = mOffset;
+    if (writer.sendSlice(mCurrent, mOffset, slice) != RtmpChunkWriter::WRITE_DONE) {
+        return abort(sent, sentCount);
+    }
+    *sentBytes = mOffset - offset;
+    onWritten(*sentBytes, nowUs);
+    if (mOffset >= mCurrent->m_nBodySize) {
+        sent[0] = mCurrent;
+        *sentCount = 1;
+        mCurrent = 0;
+        mOffset = 0;
+    }
+    return SCHEDULE_SENT;
+}
+
+int SendScheduler::abort(RTMPPacket **sent, int *sentCount) {
+    if (mCurrent) {
+        sent[0] = mCurrent;
+        *sentCount = 1;
+        mCurrent = 0;
+        mOffset = 0;
+    }
+    return SCHEDULE_ERROR;
+}
+
+int SendScheduler::sendInOrder(CongestionController &congestionController,
+                               RtmpChunkWriter &writer, RTMPPacket **sent, int max,
+                               uint32_t maxBytes, int *sentCount, int *sentBytes) {
+    int count = 0;
+    uint32_t bytes = 0;
+    RTMPPacket *packet;
+    while (count < max && (packet = congestionController.front())
+           && (count == 0 || bytes + packet->m_nBodySize <= maxBytes)) {
+        congestionController.pop();
+        bytes += packet->m_nBodySize;
+        sent[count++] = packet;
+    }
+    if (count == 0) {
+        return SCHEDULE_IDLE;
+    }
+    *sentCount = count;
+    *sentBytes = bytes;
+    return writer.send(sent, count) == RtmpChunkWriter::WRITE_DONE ? SCHEDULE_SENT
+                                                                      : SCHEDULE_ERROR;
+}
+
+void SendScheduler::updateRate(RtmpChunkWriter &writer, int unsent, int64_t nowUs) {
+    if (unsent < 0) {
+        return;
+    }
+    int64_t delivered = writer.getHeaderBytes() + writer.getBodyBytes() - unsent;
+    if (unsent == 0) {
+        // 积压的数据已经全部发送, 结束采样, 之后没有积压的时间不代表链路速率
+        // 积压持续的时间足够长时, 仍然作为一次采样 ( 积压在上一次检查之后的某个时刻发送完毕, 速率略微偏低 )
+        if (mSampleStartUs && nowUs - mSampleStartUs >= SCHEDULER_RATE_SAMPLE_MS * 1000LL) {
+            addRateSample(delivered, nowUs);
+        }
+        mSampleStartUs = 0;
+        return;
+    }
+
+    if (mSampleStartUs == 0) {
+        mSampleStartUs = nowUs;
+        mSampleDelivered = delivered;
+        return;
+    }
+    if (nowUs - mSampleStartUs >= SCHEDULER_RATE_SAMPLE_MS * 1000LL) {
+        addRateSample(delivered, nowUs);
+        mSampleStartUs = nowUs;
+        mSampleDelivered = delivered;
+    }
+}
+
+void SendScheduler::addRateSample(int64_t delivered, int64_t nowUs) {
+    // 采样区间内发送缓冲区一直有积压, 送到网络上的速率就是链路速率
+    int64_t rate = (delivered - mSampleDelivered) * 1000 / (nowUs - mSampleStartUs);
+    if (rate > 0) {
+        mRateBytesPerMs = mRateBytesPerMs > 0 ? (mRateBytesPerMs * 3 + rate) / 4 : rate;
+        mEstimatedBitrate.store(static_cast<long>(mRateBytesPerMs * 8000));
+    }
+}
+
+void SendScheduler::onWritten(int bytes, int64_t nowUs) {
+    if (mRateBytesPerMs <= 0 || bytes <= 0) {
+        return;
+    }
+    // bytes / ( 估计速率 * 比例 ), 单位微秒
+    int64_t durationUs = bytes * 1000LL * 100 / (mRateBytesPerMs * SCHEDULER_PACING_GAIN_PERCENT);
+    mNextSendUs = std::max(mNextSendUs, nowUs) + durationUs;
+}
+
+int SendScheduler::queueTargetBytes(int chunkSize) {
+    if (mRateBytesPerMs <= 0) {
+        return SCHEDULER_DEFAULT_SLICE_BYTES;
+    }
+    return static_cast<int>(std::max<int64_t>(mRateBytesPerMs * SCHEDULER_QUEUE_TARGET_MS,
+                                              chunkSize));
+}
+
+uint32_t SendScheduler::sliceBytes(int chunkSize) {
+    if (mRateBytesPerMs <= 0) {
+        return SCHEDULER_DEFAULT_SLICE_BYTES;
+    }
+    int64_t bytes = mRateBytesPerMs * SCHEDULER_SLICE_MS;
+    return static_cast<uint32_t>(std::min<int64_t>(std::max<int64_t>(bytes, chunkSize),
+                                                   SCHEDULER_MAX_SLICE_BYTES));
+}
+
+int SendScheduler::getWaitUs() {
+    return mWaitUs;
+}
+
+int SendScheduler::hasPending() {
+    return mCurrent != 0;
+}
+
+void SendScheduler::clear() {
+    if (mCurrent && mReleaseHandle) {
+        mReleaseHandle(mCurrent);
+    }
+    mCurrent = 0;
+    mOffset = 0;
+}
+
+long SendScheduler::getEstimatedBitrate() {
+    return mEstimatedBitrate.load();
+}
+
+long SendScheduler::getSlicedFrames() {
+    return mSlicedFrames.load();
+}
+
+long SendScheduler::getAudioOvertakes() {
+    return mAudioOvertakes.load();
+}
+
+long SendScheduler::getPacingWaits() {
+    return mPacingWaits.load();
+}
@@ -0,0 +1,261 @@
+//
+// Created by octopus on 2020/7/12.
+//
+
+#ifndef RTMP_PUSHER_SENDSCHEDULER_H
+#define RTMP_PUSHER_SENDSCHEDULER_H
+
+#include <atomic>
+#include <stdint.h>
+#include "librtmp/rtmp.h"
+#include "CongestionController.h"
+#include "RtmpChunkWriter.h"
+
+/**
+ * 音频最多领先排在前面的视频帧的时间, 单位毫秒
+ * 超过该时间的音频数据包按原来的顺序发送, 避免服务器端音视频时间戳相差太大
+ */
+#define SCHEDULER_AUDIO_LEAD_MS 500
+
+/**
+ * socket 发送缓冲区中未发送数据的目标时长, 单位毫秒
+ * 超过该时长对应的字节数时暂停发送视频, 之后写入的音频最多排在这些数据之后
+ */
+#define SCHEDULER_QUEUE_TARGET_MS 20
+
+/**
+ * 大的视频帧每个分片的时长, 单位毫秒, 按照估计的链路速率换算为字节数
+ */
+#define SCHEDULER_SLICE_MS 10
+
+/**
+ * 还没有估计出链路速率时的分片大小 与 未发送数据目标, 单位字节
+ */
+#define SCHEDULER_DEFAULT_SLICE_BYTES (16 * 1024)
+
+/**
+ * 分片大小上限, 单位字节
+ */
+#define SCHEDULER_MAX_SLICE_BYTES (64 * 1024)
+
+/**
+ * 暂停发送视频时每次等待的时间范围, 单位微秒, 等待期间到来的音频仍然可以及时发送
+ */
+#define SCHEDULER_MIN_WAIT_US 1000
+#define SCHEDULER_MAX_WAIT_US 5000
+
+/**
+ * 链路速率采样的最短时间, 单位毫秒
+ */
+#define SCHEDULER_RATE_SAMPLE_MS 20
+
+/**
+ * 按照估计的链路速率发送视频时, 发送速率相对估计值的比例, 单位百分比
+ * 略高于估计值, 链路速率提高时发送缓冲区中会重新出现积压, 可以重新测量
+ */
+#define SCHEDULER_PACING_GAIN_PERCENT 125
+
+/**
+ * 按照估计速率发送, 但发送缓冲区中没有积压时, 每个采样周期将估计值提高 1 / 16
+ */
+#define SCHEDULER_RATE_PROBE_SHIFT 4
+
+/**
+ * 发送调度器, 位于待发送队列 ( CongestionController ) 与块写入器之间, 每个推流目的地一个
+ *
+ * 所有数据包按时间戳顺序排队时, 一个 100 KB 的关键帧要完整写入 socket 之后才能发送后面的音频,
+ * 上行带宽较低时每个关键帧都会导致观众端音频卡顿, 本类将数据包分为两类调度 :
+ *
+ *      音频 ( 包括 AAC 序列头 ) 优先 :
+ *          越过待发送队列中排在前面的视频帧立即发送, 不受下面的发送缓冲区限制
+ *          音频之间的顺序不变, 最多领先视频 SCHEDULER_AUDIO_LEAD_MS 毫秒
+ *      视频 ( 包括 AVC 序列头 ) 按顺序发送 :
+ *          超过一个分片的视频帧拆分为整数个块的分片, 分片之间可以插入音频消息 ( 音频与视频使用不同的块流 )
+ *          发送每个分片之前检查 socket 发送缓冲区中未发送的数据, 超过 SCHEDULER_QUEUE_TARGET_MS 毫秒
+ *          对应的字节数时暂停发送视频
+ *          估计出链路速率后, 视频按照 估计速率 * SCHEDULER_PACING_GAIN_PERCENT 匀速发送,
+ *          关键帧的突发数据留在待发送队列中 ( 音频可以越过 ), 而不是网络中的路由器队列里
+ *
+ * 链路速率 : 发送缓冲区中一直有未发送的数据时, 单位时间内送到网络上的字节数, 取指数加权平均
+ *           匀速发送受到限制而发送缓冲区中没有积压时, 逐步提高估计值, 跟随带宽恢复
+ * 音频的排队延迟约为 SCHEDULER_QUEUE_TARGET_MS + SCHEDULER_SLICE_MS 加上网络中的排队, 不再取决于关键帧的大小
+ *
+ * 系统不支持查询未发送字节数时 ( 如 RTMPT 隧道 ), 只进行分片与音频优先, 不暂停发送
+ * 只能在推流线程中调用, 统计数据可以在任意线程中读取
+ */
+class SendScheduler {
+
+    /**
+     * 数据包释放函数类型
+     */
+    typedef void (*ReleaseHandle)(RTMPPacket *&);
+
+public:
+
+    /**
+     * schedule 返回值 : 写入了数据, 发送完毕的数据包放入 sent 数组 ( 只写入视频帧的一个分片时为 0 个 )
+     */
+    static const int SCHEDULE_SENT = 1;
+
+    /**
+     * schedule 返回值 : 待发送队列为空, 没有数据需要写入
+     */
+    static const int SCHEDULE_IDLE = 0;
+
+    /**
+     * schedule 返回值 : 发送缓冲区中未发送的数据超过目标, 等待 getWaitUs 微秒后再调用
+     */
+    static const int SCHEDULE_WAIT = 2;
+
+    /**
+     * schedule 返回值 : 写入出错 ( 包括超过写入截止时间, 被中断, 链路中断 ), 尝试发送的数据包 ( 包括发送了一部分的视频帧 ) 放入 sent 数组
+     */
+    static const int SCHEDULE_ERROR = -1;
+
+    SendScheduler();
+
+    ~SendScheduler();
+
+    /**
+     * 设置数据包释放函数, 清空时归还正在分片发送的视频帧
+     */
+    void setReleaseHandle(ReleaseHandle releaseHandle);
+
+    /**
+     * 是否启用音频优先与视频分片, 关闭时按照待发送队列的顺序合并发送, 可以在任意线程中调用
+     */
+    void setEnabled(int enabled);
+
+    /**
+     * 建立新的连接后调用, 重新估计链路速率
+     */
+    void reset();
+
+    /**
+     * 从待发送队列中选择数据并写入, 每次最多写入一个视频分片或一批合并的数据包
+     * @param congestionController  待发送队列
+     * @param writer                已经关联连接的块写入器
+     * @param sent                  发送完毕 ( 或者出错时尝试发送 ) 的数据包, 调用者负责归还
+     * @param max                   sent 数组长度
+     * @param sentCount             sent 中的数据包个数
+     * @param sentBytes             本次写入的消息数据字节数
+     * @return SCHEDULE_SENT / SCHEDULE_IDLE / SCHEDULE_WAIT / SCHEDULE_ERROR
+     */
+    int schedule(CongestionController &congestionController, RtmpChunkWriter &writer,
+                 RTMPPacket **sent, int max, int *sentCount, int *sentBytes);
+
+    /**
+     * schedule 返回 SCHEDULE_WAIT 时需要等待的时间, 单位微秒
+     */
+    int getWaitUs();
+
+    /**
+     * 是否有发送了一部分的视频帧, 此时不能阻塞等待新的数据包
+     */
+    int hasPending();
+
+    /**
+     * 归还正在分片发送的视频帧
+     */
+    void clear();
+
+    /**
+     * 估计的链路速率, 单位 bps, 还没有估计出时为 0
+     */
+    long getEstimatedBitrate();
+
+    /**
+     * 分片发送的视频帧个数
+     */
+    long getSlicedFrames();
+
+    /**
+     * 越过视频帧提前发送的音频数据包个数
+     */
+    long getAudioOvertakes();
+
+    /**
+     * 因为发送缓冲区中未发送数据超过目标而暂停发送视频的次数
+     */
+    long getPacingWaits();
+
+private:
+
+    /**
+     * 按照待发送队列的顺序合并发送, 总长度不超过 maxBytes ( 至少一个数据包 )
+     */
+    int sendInOrder(CongestionController &congestionController, RtmpChunkWriter &writer,
+                    RTMPPacket **sent, int max, uint32_t maxBytes, int *sentCount, int *sentBytes);
+
+    /**
+     * 写入出错或者链路中断, 正在分片发送的视频帧放入 sent 数组交给调用者
+     * @return SCHEDULE_ERROR
+     */
+    int abort(RTMPPacket **sent, int *sentCount);
+
+    /**
+     * 根据发送缓冲区中未发送的字节数更新链路速率估计
+     */
+    void updateRate(RtmpChunkWriter &writer, int unsent, int64_t nowUs);
+
+    /**
+     * 采样区间结束, 更新链路速率的指数加权平均
+     */
+    void addRateSample(int64_t delivered, int64_t nowUs);
+
+    /**
+     * 写入 bytes 字节后, 按照估计速率推迟下一次发送视频的时间
+     */
+    void onWritten(int bytes, int64_t nowUs);
+
+    /**
+     * 发送缓冲区中未发送数据的目标字节数
+     */
+    int queueTargetBytes(int chunkSize);
+
+    /**
+     * 视频分片字节数
+     */
+    uint32_t sliceBytes(int chunkSize);
+
+    std::atomic<int> mEnabled;
+
+    /**
+     * 正在分片发送的视频帧, 以及下一个分片的起始位置
+     */
+    RTMPPacket *mCurrent = 0;
+    uint32_t mOffset = 0;
+
+    int mWaitUs = 0;
+
+    /**
+     * 估计的链路速率, 单位 字节 / 毫秒, 0 表示还没有估计出
+     */
+    int64_t mRateBytesPerMs = 0;
+
+    /**
+     * 当前采样区间的开始时间, 已经送到网络上的字节数, 0 表示没有在采样
+     */
+    int64_t mSampleStartUs = 0;
+    int64_t mSampleDelivered = 0;
+
+    /**
+     * 匀速发送 : 下一次允许发送视频的时间, 0 表示还没有估计出链路速率, 不限制
+     */
+    int64_t mNextSendUs = 0;
+
+    /**
+     * 上一次因为匀速发送受限而提高估计值的时间
+     */
+    int64_t mLastProbeUs = 0;
+
+    std::atomic<long> mEstimatedBitrate;
+    std::atomic<long> mSlicedFrames;
+    std::atomic<long> mAudioOvertakes;
+    std::atomic<long> mPacingWaits;
+
+    ReleaseHandle mReleaseHandle = 0;
+};
+
+
+#endif //RTMP_PUSHER_SENDSCHEDULER_H
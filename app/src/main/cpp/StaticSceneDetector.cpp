@@ -0,0 +1,66 @@
+//
+// Created by octopus on 2020/7/13.
+//
+
+#include <stdlib.h>
+#include "StaticSceneDetector.h"
+
+void StaticSceneDetector::setThreshold(int threshold) {
+    mThreshold = threshold > 0 ? threshold : STATIC_SCENE_DEFAULT_THRESHOLD;
+}
+
+int StaticSceneDetector::isStatic(const uint8_t *y, int width, int height) {
+    // 采样点按行存储, 采样点个数向上取整, 最后一行 / 一列采样点可能不足一个采样间隔
+    int columns = (width + STATIC_SCENE_SAMPLE_STEP - 1) / STATIC_SCENE_SAMPLE_STEP;
+    int rows = (height + STATIC_SCENE_SAMPLE_STEP - 1) / STATIC_SCENE_SAMPLE_STEP;
+    mSamples.resize(columns * rows);
+    mSampleWidth = width;
+    mSampleHeight = height;
+    uint8_t *sample = mSamples.data();
+    for (int row = 0; row < rows; row++) {
+        const uint8_t *line = y + row * STATIC_SCENE_SAMPLE_STEP * width;
+        for (int column = 0; column < columns; column++) {
+            *sample++ = line[column * STATIC_SCENE_SAMPLE_STEP];
+        }
+    }
+
+    if (mReferenceWidth != width || mReferenceHeight != height) {
+        return 0;
+    }
+
+    // 逐个区块比较, 任何一个区块的平均差超过阈值就认为画面有变化
+    for (int tileRow = 0; tileRow < rows; tileRow += STATIC_SCENE_TILE_SAMPLES) {
+        int tileRows = rows - tileRow < STATIC_SCENE_TILE_SAMPLES ? rows - tileRow
+                                                                  : STATIC_SCENE_TILE_SAMPLES;
+        for (int tileColumn = 0; tileColumn < columns; tileColumn += STATIC_SCENE_TILE_SAMPLES) {
+            int tileColumns = columns - tileColumn < STATIC_SCENE_TILE_SAMPLES
+                              ? columns - tileColumn : STATIC_SCENE_TILE_SAMPLES;
+            int difference = 0;
+            for (int row = tileRow; row < tileRow + tileRows; row++) {
+                const uint8_t *current = mSamples.data() + row * columns + tileColumn;
+                const uint8_t *reference = mReference.data() + row * columns + tileColumn;
+                for (int column = 0; column < tileColumns; column++) {
+                    difference += abs(current[column] - reference[column]);
+                }
+            }
+            if (difference > mThreshold * tileRows * tileColumns) {
+                return 0;
+            }
+        }
+    }
+    return 1;
+}
+
+void StaticSceneDetector::updateReference() {
+    mReference.swap(mSamples);
+    mReferenceWidth = mSampleWidth;
+    mReferenceHeight = mSampleHeight;
+}
+
+void StaticSceneDetector::reset() {
+    // 同时作废还没有成为参考画面的采样结果
+    mSampleWidth = 0;
+    mSampleHeight = 0;
+    mReferenceWidth = 0;
+    mReferenceHeight = 0;
+}
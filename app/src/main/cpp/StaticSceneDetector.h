@@ -0,0 +1,86 @@
+//
+// Created by octopus on 2020/7/13.
+//
+
+#ifndef RTMP_PUSHER_STATICSCENEDETECTOR_H
+#define RTMP_PUSHER_STATICSCENEDETECTOR_H
+
+#include <inttypes.h>
+#include <vector>
+
+/**
+ * 采样间隔, 水平与垂直方向每隔该数量的像素采样一个 Y 值
+ * 1280 x 720 的画面采样 160 x 90 个点, 比较耗时在几十微秒以内
+ */
+#define STATIC_SCENE_SAMPLE_STEP 8
+
+/**
+ * 区块边长, 单位采样点, 8 x 8 个采样点覆盖 64 x 64 像素
+ */
+#define STATIC_SCENE_TILE_SAMPLES 8
+
+/**
+ * 默认的区块差异阈值 : 区块内每个采样点的平均 Y 值差 ( 0 ~ 255 )
+ * 高于摄像头的传感器噪声, 低于口型, 手势, 书写等局部变化
+ */
+#define STATIC_SCENE_DEFAULT_THRESHOLD 3
+
+/**
+ * 静止画面检测
+ *
+ * 比较 Camera 采集的 NV21 图像的 Y 平面与上一次编码的画面, 判断画面是否没有变化 :
+ *      按照 STATIC_SCENE_SAMPLE_STEP 间隔采样 Y 值, 采样点划分为 STATIC_SCENE_TILE_SAMPLES 边长的区块
+ *      每个区块分别计算与参考画面的平均绝对差, 所有区块都不超过阈值时认为画面静止
+ *      按区块判断而不是整幅画面平均, 讲话时只有嘴部变化的画面也能检测出变化
+ *
+ * 参考画面是上一次编码的画面, 不是上一次输入的画面
+ * 缓慢的变化 ( 如光线渐变, 慢速平移 ) 累积超过阈值后仍然会被编码
+ *
+ * 只比较旋转之前的 NV21 数据, 在 NV21 转 I420 之前完成, 跳过的帧不需要转换也不需要 x264 编码
+ * 不是线程安全的, 由 VedioChannel 在编码锁内调用
+ */
+class StaticSceneDetector {
+
+public:
+
+    /**
+     * 设置区块差异阈值
+     * @param threshold 区块内每个采样点的平均 Y 值差, 小于等于 0 时使用 STATIC_SCENE_DEFAULT_THRESHOLD
+     */
+    void setThreshold(int threshold);
+
+    /**
+     * 采样一帧图像的 Y 平面, 与参考画面比较
+     * 采样结果保存在本类中, 该帧被编码后调用 updateReference 作为新的参考画面
+     * @param y         NV21 图像的 Y 平面, 每行 width 字节
+     * @return 与参考画面相比没有变化返回 1, 没有参考画面或者尺寸改变时返回 0
+     */
+    int isStatic(const uint8_t *y, int width, int height);
+
+    /**
+     * 将最近一次 isStatic 采样的画面作为参考画面, 该帧被编码后调用
+     */
+    void updateReference();
+
+    /**
+     * 清除参考画面与最近一次的采样结果, 如重新创建编码器, 下一帧一定会被编码
+     */
+    void reset();
+
+private:
+
+    int mThreshold = STATIC_SCENE_DEFAULT_THRESHOLD;
+
+    /**
+     * 最近一次采样的画面与参考画面, 以及对应的图像尺寸, 参考画面尺寸为 0 表示没有参考画面
+     */
+    std::vector<uint8_t> mSamples;
+    std::vector<uint8_t> mReference;
+    int mSampleWidth = 0;
+    int mSampleHeight = 0;
+    int mReferenceWidth = 0;
+    int mReferenceHeight = 0;
+};
+
+
+#endif //RTMP_PUSHER_STATICSCENEDETECTOR_H
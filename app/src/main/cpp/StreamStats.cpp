@@ -0,0 +1,121 @@
+//
+// Created by octopus on 2020/6/29.
+//
+
+#include "StreamStats.h"
+
+const long StreamStats::ENCODE_TIME_BUCKET_BOUNDS_US[ENCODE_TIME_BUCKETS - 1] = {
+        5000, 10000, 20000, 33000, 50000, 100000
+};
+
+StreamStats::StreamStats() {
+    reset();
+}
+
+void StreamStats::reset() {
+    mVideoFramesEncoded.store(0);
+    mAudioFramesEncoded.store(0);
+    mEncodeTimeTotalUs.store(0);
+    for (int i = 0; i < ENCODE_TIME_BUCKETS; i++) {
+        mEncodeTimeHistogram[i].store(0);
+    }
+    mStaticSkippedFrames.store(0);
+    mStaticSavedEncodeUs.store(0);
+    mStaticSavedBytes.store(0);
+    mQueueFullDropped.store(0);
+    mPacketsSent.store(0);
+    mBytesSent.store(0);
+    mSendLatencyTotalMs.store(0);
+    mSendLatencySamples.store(0);
+    mSendLatencyMaxMs.store(0);
+    mBacklogPackets.store(0);
+    mBacklogBytes.store(0);
+    mBacklogDurationMs.store(0);
+    mReconnects.store(0);
+    mConnectTimeMs.store(-1);
+    mFirstKeyFrameMs.store(-1);
+}
+
+void StreamStats::onVideoFrameEncoded(int64_t encodeTimeUs) {
+    mVideoFramesEncoded.fetch_add(1, std::memory_order_relaxed);
+    mEncodeTimeTotalUs.fetch_add(encodeTimeUs, std::memory_order_relaxed);
+    int bucket = 0;
+    while (bucket < ENCODE_TIME_BUCKETS - 1 && encodeTimeUs >= ENCODE_TIME_BUCKET_BOUNDS_US[bucket]) {
+        bucket++;
+    }
+    mEncodeTimeHistogram[bucket].fetch_add(1, std::memory_order_relaxed);
+}
+
+void StreamStats::onVideoFrameSkipped(int64_t savedEncodeUs, int64_t savedBytes) {
+    mStaticSkippedFrames.fetch_add(1, std::memory_order_relaxed);
+    mStaticSavedEncodeUs.fetch_add(savedEncodeUs, std::memory_order_relaxed);
+    mStaticSavedBytes.fetch_add(savedBytes, std::memory_order_relaxed);
+}
+
+void StreamStats::onAudioFrameEncoded() {
+    mAudioFramesEncoded.fetch_add(1, std::memory_order_relaxed);
+}
+
+void StreamStats::onQueueFullDropped() {
+    mQueueFullDropped.fetch_add(1, std::memory_order_relaxed);
+}
+
+void StreamStats::onPacketsSent(int packets, int64_t bytes) {
+    mPacketsSent.fetch_add(packets, std::memory_order_relaxed);
+    mBytesSent.fetch_add(bytes, std::memory_order_relaxed);
+}
+
+void StreamStats::onSendLatency(uint32_t latencyMs) {
+    mSendLatencyTotalMs.fetch_add(latencyMs, std::memory_order_relaxed);
+    mSendLatencySamples.fetch_add(1, std::memory_order_relaxed);
+    uint32_t max = mSendLatencyMaxMs.load(std::memory_order_relaxed);
+    while (latencyMs > max && !mSendLatencyMaxMs.compare_exchange_weak(max, latencyMs)) {
+    }
+}
+
+void StreamStats::publishBacklog(int packets, int64_t bytes, uint32_t durationMs) {
+    mBacklogPackets.store(packets, std::memory_order_relaxed);
+    mBacklogBytes.store(bytes, std::memory_order_relaxed);
+    mBacklogDurationMs.store(durationMs, std::memory_order_relaxed);
+}
+
+void StreamStats::onReconnect() {
+    mReconnects.fetch_add(1, std::memory_order_relaxed);
+}
+
+void StreamStats::onConnected(int64_t elapsedMs) {
+    mConnectTimeMs.store(elapsedMs, std::memory_order_relaxed);
+}
+
+void StreamStats::onKeyFrameSent(int64_t elapsedMs) {
+    int64_t unset = -1;
+    mFirstKeyFrameMs.compare_exchange_strong(unset, elapsedMs);
+}
+
+void StreamStats::snapshot(int64_t *out) {
+    out[STAT_VIDEO_FRAMES_ENCODED] = mVideoFramesEncoded.load(std::memory_order_relaxed);
+    out[STAT_AUDIO_FRAMES_ENCODED] = mAudioFramesEncoded.load(std::memory_order_relaxed);
+    out[STAT_ENCODE_TIME_TOTAL_US] = mEncodeTimeTotalUs.load(std::memory_order_relaxed);
+    for (int i = 0; i < ENCODE_TIME_BUCKETS; i++) {
+        out[STAT_ENCODE_TIME_HISTOGRAM + i] = mEncodeTimeHistogram[i].load(std::memory_order_relaxed);
+    }
+    out[STAT_STATIC_SKIPPED_FRAMES] = mStaticSkippedFrames.load(std::memory_order_relaxed);
+    out[STAT_STATIC_SAVED_ENCODE_MS] = mStaticSavedEncodeUs.load(std::memory_order_relaxed) / 1000;
+    out[STAT_STATIC_SAVED_BYTES] = mStaticSavedBytes.load(std::memory_order_relaxed);
+    out[STAT_BACKLOG_PACKETS] = mBacklogPackets.load(std::memory_order_relaxed);
+    out[STAT_BACKLOG_BYTES] = mBacklogBytes.load(std::memory_order_relaxed);
+    out[STAT_BACKLOG_DURATION_MS] = mBacklogDurationMs.load(std::memory_order_relaxed);
+    out[STAT_PACKETS_SENT] = mPacketsSent.load(std::memory_order_relaxed);
+    out[STAT_BYTES_SENT] = mBytesSent.load(std::memory_order_relaxed);
+
+    // 发送延迟只统计两次采样之间的数据包
+    int64_t samples = mSendLatencySamples.exchange(0);
+    int64_t totalMs = mSendLatencyTotalMs.exchange(0);
+    out[STAT_SEND_LATENCY_AVG_MS] = samples > 0 ? totalMs / samples : 0;
+    out[STAT_SEND_LATENCY_MAX_MS] = mSendLatencyMaxMs.exchange(0);
+
+    out[STAT_QUEUE_FULL_DROPPED] = mQueueFullDropped.load(std::memory_order_relaxed);
+    out[STAT_RECONNECTS] = mReconnects.load(std::memory_order_relaxed);
+    out[STAT_CONNECT_TIME_MS] = mConnectTimeMs.load(std::memory_order_relaxed);
+    out[STAT_FIRST_KEY_FRAME_MS] = mFirstKeyFrameMs.load(std::memory_order_relaxed);
+}
@@ -0,0 +1,164 @@
+//
+// Created by octopus on 2020/6/29.
+//
+
+#ifndef RTMP_PUSHER_STREAMSTATS_H
+#define RTMP_PUSHER_STREAMSTATS_H
+
+#include <atomic>
+#include <stdint.h>
+
+/**
+ * 视频编码耗时直方图的区间个数
+ */
+#define ENCODE_TIME_BUCKETS 7
+
+/**
+ * 统计数据数组中各项数据的位置, 与 Java 层 PushStats 中的定义一致
+ */
+enum StatIndex {
+    STAT_VIDEO_FRAMES_ENCODED = 0,
+    STAT_AUDIO_FRAMES_ENCODED,
+    STAT_ENCODE_TIME_TOTAL_US,
+    // 视频编码耗时直方图, 共 ENCODE_TIME_BUCKETS 个区间
+    STAT_ENCODE_TIME_HISTOGRAM,
+    STAT_QUEUE_PACKETS = STAT_ENCODE_TIME_HISTOGRAM + ENCODE_TIME_BUCKETS,
+    STAT_BACKLOG_PACKETS,
+    STAT_BACKLOG_BYTES,
+    STAT_BACKLOG_DURATION_MS,
+    STAT_PACKETS_SENT,
+    STAT_BYTES_SENT,
+    STAT_SEND_LATENCY_AVG_MS,
+    STAT_SEND_LATENCY_MAX_MS,
+    STAT_CONGESTION_DROPPED_FRAMES,
+    STAT_CONGESTION_DROPPED_GOPS,
+    STAT_QUEUE_FULL_DROPPED,
+    STAT_RECONNECTS,
+    STAT_CURRENT_BITRATE,
+    STAT_POOL_IN_USE_BYTES,
+    STAT_WRITE_CALLS,
+    STAT_CONNECT_TIME_MS,
+    STAT_FIRST_KEY_FRAME_MS,
+    STAT_RECORD_BYTES,
+    STAT_RECORD_DROPPED,
+    STAT_SEND_TIMEOUTS,
+    STAT_STATIC_SKIPPED_FRAMES,
+    STAT_STATIC_SAVED_ENCODE_MS,
+    STAT_STATIC_SAVED_BYTES,
+    STAT_COUNT
+};
+
+/**
+ * 推流统计数据
+ *
+ * 各个线程只更新原子计数器, 不加锁, 不输出日志
+ * Java 层调用 LivePusher.getStats() 时采样一次
+ *
+ * 发送延迟 ( 数据包封装完成 到 发送完成 ) 统计的是两次采样之间的平均值与最大值, 采样后清零
+ * 待发送队列的状态由推流线程在每次发送后发布, 其它线程不直接访问待发送队列
+ */
+class StreamStats {
+
+public:
+    StreamStats();
+
+    /**
+     * 视频编码耗时直方图各区间的上限, 单位微秒, 最后一个区间没有上限
+     * 0 ~ 5 ms, 5 ~ 10 ms, 10 ~ 20 ms, 20 ~ 33 ms, 33 ~ 50 ms, 50 ~ 100 ms, 100 ms 以上
+     */
+    static const long ENCODE_TIME_BUCKET_BOUNDS_US[ENCODE_TIME_BUCKETS - 1];
+
+    /**
+     * 一帧视频编码完成, 在视频编码线程中调用
+     * @param encodeTimeUs 编码耗时, 单位微秒
+     */
+    void onVideoFrameEncoded(int64_t encodeTimeUs);
+
+    /**
+     * 静止画面跳过编码, 在视频编码线程中调用, 不计入编码帧数与编码耗时
+     * @param savedEncodeUs 估计节省的编码耗时, 单位微秒
+     * @param savedBytes 估计节省的编码输出字节数
+     */
+    void onVideoFrameSkipped(int64_t savedEncodeUs, int64_t savedBytes);
+
+    /**
+     * 一帧音频编码完成, 在音频编码线程中调用
+     */
+    void onAudioFrameEncoded();
+
+    /**
+     * 数据包队列已满, 数据包被丢弃
+     */
+    void onQueueFullDropped();
+
+    /**
+     * 一批数据包发送完成, 在推流线程中调用
+     * @param packets 数据包个数
+     * @param bytes 字节数
+     */
+    void onPacketsSent(int packets, int64_t bytes);
+
+    /**
+     * 记录一个数据包的发送延迟, 在推流线程中调用
+     * @param latencyMs 数据包封装完成 到 发送完成 的时间, 单位毫秒
+     */
+    void onSendLatency(uint32_t latencyMs);
+
+    /**
+     * 发布待发送队列的状态, 在推流线程中调用
+     */
+    void publishBacklog(int packets, int64_t bytes, uint32_t durationMs);
+
+    /**
+     * 重新连接 RTMP 服务器
+     */
+    void onReconnect();
+
+    /**
+     * 第一次连接成功, 在推流线程中调用
+     * @param elapsedMs 开始推流 到 连接成功 的时间, 单位毫秒
+     */
+    void onConnected(int64_t elapsedMs);
+
+    /**
+     * 关键帧发送完成, 只记录第一个关键帧, 在推流线程中调用
+     * @param elapsedMs 开始推流 到 第一个关键帧发送完成 的时间, 单位毫秒
+     */
+    void onKeyFrameSent(int64_t elapsedMs);
+
+    /**
+     * 采样统计数据, 写入数组对应的位置, 发送延迟采样后清零
+     * 队列, 拥塞控制, 码率等其它模块的数据由调用者填写
+     * @param out 长度为 STAT_COUNT 的数组
+     */
+    void snapshot(int64_t *out);
+
+    /**
+     * 清空统计数据, 开始推流时调用
+     */
+    void reset();
+
+private:
+    std::atomic<int64_t> mVideoFramesEncoded;
+    std::atomic<int64_t> mAudioFramesEncoded;
+    std::atomic<int64_t> mEncodeTimeTotalUs;
+    std::atomic<int64_t> mEncodeTimeHistogram[ENCODE_TIME_BUCKETS];
+    std::atomic<int64_t> mStaticSkippedFrames;
+    std::atomic<int64_t> mStaticSavedEncodeUs;
+    std::atomic<int64_t> mStaticSavedBytes;
+    std::atomic<int64_t> mQueueFullDropped;
+    std::atomic<int64_t> mPacketsSent;
+    std::atomic<int64_t> mBytesSent;
+    std::atomic<int64_t> mSendLatencyTotalMs;
+    std::atomic<int64_t> mSendLatencySamples;
+    std::atomic<uint32_t> mSendLatencyMaxMs;
+    std::atomic<int> mBacklogPackets;
+    std::atomic<int64_t> mBacklogBytes;
+    std::atomic<uint32_t> mBacklogDurationMs;
+    std::atomic<int64_t> mReconnects;
+    std::atomic<int64_t> mConnectTimeMs;
+    std::atomic<int64_t> mFirstKeyFrameMs;
+};
+
+
+#endif //RTMP_PUSHER_STREAMSTATS_H
@@ -2,6 +2,8 @@
 // Created by octopus on 2020/6/12.
 //
 #include "VedioChannel.h"
+#include "MonotonicClock.h"
+#include "RtmpLog.h"
 
 /**
  * 构造方法
@@ -9,6 +11,12 @@
 VedioChannel::VedioChannel() {
     // 初始化互斥锁, 设置视频编码参数 与 编码互斥
     pthread_mutex_init(&mMutex, 0);
+    mPendingBitrate.store(0);
+    mKeyFrameRequested.store(0);
+    mStaticSceneEnabled.store(0);
+    mStaticSceneThreshold.store(STATIC_SCENE_DEFAULT_THRESHOLD);
+    mAverageEncodeTimeUs.store(0);
+    mAverageFrameBytes.store(0);
 }
 
 /**
@@ -30,32 +38,48 @@ void VedioChannel::setRTMPPacketPackUpCallBack(RTMPPacketPackUpCallBack rtmpPack
     this->rtmpPacketPackUpCallBack = rtmpPacketPackUpCallBack;
 }
 
+void VedioChannel::setPacketPool(PacketPool *packetPool) {
+    this->mPacketPool = packetPool;
+}
+
+/**
+ * 两个编码器配置是否相同
+ */
+static int sameEncoderProfile(const EncoderProfile &a, const EncoderProfile &b) {
+    return !strcmp(a.preset, b.preset) && !strcmp(a.tune, b.tune) && !strcmp(a.profile, b.profile)
+           && a.levelIdc == b.levelIdc && a.threads == b.threads
+           && a.slicedThreads == b.slicedThreads && a.lookahead == b.lookahead
+           && a.keyintSeconds == b.keyintSeconds && a.bframes == b.bframes
+           && a.rateControl == b.rateControl && a.rateFactor == b.rateFactor && a.qp == b.qp;
+}
+
 /**
  * 设置视频编码参数
+ * 尺寸, 帧率与编码器配置都没有改变时继续使用当前的编码器
+ * 否则在不持有编码锁的情况下创建新的编码器, 然后替换当前的编码器, 新编码器的第一帧是 IDR 帧
  * @param width 宽度
  * @param height 高度
  * @param fps 帧率
  * @param bitrate 码率
+ * @param profile x264 编码器配置
  */
-void VedioChannel::setVideoEncoderParameters(int width, int height, int fps, int bitrate) {
-    // 加锁, 设置视频编码参数 与 编码互斥
+void VedioChannel::setVideoEncoderParameters(int width, int height, int fps, int bitrate,
+                                             const EncoderProfile &profile) {
+    // 切换摄像头, 重新打开 Camera 时会多次回调该方法, 大部分情况下尺寸与配置都没有改变
+    // 此时继续使用当前的编码器, 只调整码率, 不重新打开编码器, 也不会插入关键帧
     pthread_mutex_lock(&mMutex);
+    int reuseEncoder = x264VedioCodec && width == mWidth && height == mHeight && fps == mFps
+                       && sameEncoderProfile(profile, mProfile);
+    int bitrateChanged = bitrate != mBitrate;
+    pthread_mutex_unlock(&mMutex);
+    if (reuseEncoder) {
+        if (bitrateChanged) {
+            updateBitrate(bitrate);
+        }
+        return;
+    }
 
-    // 设置视频编码参数
-
-    // 图像宽度
-    mWidth = width;
-    // 图像高度
-    mHeight = height;
-    // 帧率
-    mFps = fps;
-    // 码率
-    mBitrate = bitrate;
-
-    // 灰色值的个数, 单位字节
-    YByteCount = width * height;
-    // U 色彩值, V 饱和度 个数
-    UVByteCount = YByteCount / 4;
+    // 下面创建新的编码器, 创建期间不持有编码锁, 编码线程继续使用之前的编码器编码
 
     // 设置 x264 编码器参数
     x264_param_t x264Param;
@@ -75,30 +99,54 @@ void VedioChannel::setVideoEncoderParameters(int width, int height, int fps, int
      * "stillimage", "psnr", "ssim", "fastdecode", "zerolatency", 0 };
      *
      * 编码速度快, 意味着牺牲了画面的质量
+     *
+     * 默认配置为 ultrafast + zerolatency, 可以通过 EncoderProfile 修改
      */
-    x264_param_default_preset(&x264Param, "ultrafast", "zerolatency");
+    const char *tune = profile.tune[0] ? profile.tune : 0;
+    if (x264_param_default_preset(&x264Param, profile.preset, tune) < 0) {
+        LOGE("x264 预设 %s / %s 无效, 使用 ultrafast / zerolatency", profile.preset,
+             tune ? tune : "");
+        x264_param_default_preset(&x264Param, "ultrafast", "zerolatency");
+    }
 
     // 编码规格设定, 32 对应的是 3.2 编码规格, 该规格下有指定的 码率, 帧率要求
     // 参考 https://www.wanweibaike.com/wiki-H.264 中的最大性能级别
-    x264Param.i_level_idc = 32;
+    x264Param.i_level_idc = profile.levelIdc;
 
     // 设置输入到 x264 编码器的数据格式, 宽度, 高度等参数
     x264Param.i_csp = X264_CSP_I420;
-    x264Param.i_width = mWidth;
-    x264Param.i_height = mHeight;
+    x264Param.i_width = width;
+    x264Param.i_height = height;
 
     /*
        设置码率相关参数
-       码率有三种模式 : X264_RC_CQP 恒定质量, X264_RC_CRF 恒定码率, X264_RC_ABR 平均码率
-       这里设置一个平均码率输出
+       码率有三种模式 : X264_RC_CQP 恒定量化参数, X264_RC_CRF 恒定质量因子, X264_RC_ABR 平均码率
+       默认设置一个平均码率输出
      */
-    x264Param.rc.i_rc_method = X264_RC_ABR;
-    // 设置码率, 单位是 kbps
-    x264Param.rc.i_bitrate = bitrate / 1000;
-    // 设置最大码率, 单位 kbps, 该配置与 i_vbv_buffer_size 配套使用
-    x264Param.rc.i_vbv_max_bitrate = bitrate / 1000 * 1.2;
-    // 该配置与 i_vbv_max_bitrate 配置配套使用, 码率控制缓冲区大小
-    x264Param.rc.i_vbv_buffer_size = bitrate / 1000;
+    if (profile.rateControl == RATE_CONTROL_CQP) {
+        // 恒定量化参数, 不受码率限制
+        x264Param.rc.i_rc_method = X264_RC_CQP;
+        x264Param.rc.i_qp_constant = profile.qp;
+    } else if (profile.rateControl == RATE_CONTROL_CRF) {
+        // 恒定质量因子, 码率参数作为 VBV 最大码率, 画面简单时码率更低
+        x264Param.rc.i_rc_method = X264_RC_CRF;
+        x264Param.rc.f_rf_constant = profile.rateFactor;
+        x264Param.rc.i_vbv_max_bitrate = bitrate / 1000;
+        x264Param.rc.i_vbv_buffer_size = bitrate / 1000;
+    } else {
+        x264Param.rc.i_rc_method = X264_RC_ABR;
+        // 设置码率, 单位是 kbps
+        x264Param.rc.i_bitrate = bitrate / 1000;
+        // 设置最大码率, 单位 kbps, 该配置与 i_vbv_buffer_size 配套使用
+        x264Param.rc.i_vbv_max_bitrate = bitrate / 1000 * 1.2;
+        // 该配置与 i_vbv_max_bitrate 配置配套使用, 码率控制缓冲区大小
+        x264Param.rc.i_vbv_buffer_size = bitrate / 1000;
+    }
+
+    // 码率控制前向预测的帧数, 预测帧数越多, 码率分配越合理, 但输出延迟越大
+    if (profile.lookahead != ENCODER_PROFILE_PRESET_DEFAULT) {
+        x264Param.rc.i_lookahead = profile.lookahead;
+    }
 
     // 设置帧率相关参数, 帧率是个有理数, 使用分数形式表示
     x264Param.i_fps_num = fps;  // 分子
@@ -134,6 +182,14 @@ void VedioChannel::setVideoEncoderParameters(int width, int height, int fps, int
      */
     x264Param.b_repeat_headers = 1;
 
+    /*
+       不使用 Annex-B 格式输出, 每个 NAL 单元之前是 4 字节大端长度, 而不是 00 00 00 01 起始码
+       这正是 FLV 视频标签中 AVC 数据的格式 ( AVCC ), 编码输出的数据不需要逐个 NAL 改写
+       x264 保证一帧的所有 NAL 单元在内存中是连续的,
+       一帧数据可以一次性拷贝到 RTMP 数据包中, 封装为一个 FLV 视频标签
+     */
+    x264Param.b_annexb = 0;
+
     // 计算帧间距的依据, 该设置表示使用 fps 帧率计算帧间距
     // 两帧之间间隔多少 fps
     // 也可以使用时间戳计算帧间距
@@ -151,76 +207,309 @@ void VedioChannel::setVideoEncoderParameters(int width, int height, int fps, int
        当用户2进入房间, 此时刚过去一个关键帧, 10秒内没有关键帧
        该用户需要等待 10 秒后收到关键帧数据后, 才有画面显示出来
      */
-    x264Param.i_keyint_max = fps * 2;
+    x264Param.i_keyint_max = fps * (profile.keyintSeconds > 0 ? profile.keyintSeconds : 2);
 
-    // 设置 B 帧个数, 这里设置没有 B 帧, 只有 I 帧和 P 帧
+    // 设置 B 帧个数, 默认没有 B 帧, 只有 I 帧和 P 帧
     // B 帧解码时, 既要参考前面的帧, 又要参考后面的帧
-    // B 帧能减少传输的数据量, 但同时降低了解码速度, 直播中解码速度必须要快
-    x264Param.i_bframe = 0;
-
-    // 是否开启多线程
-    x264Param.i_threads = 1;
+    // B 帧能减少传输的数据量, 但同时降低了解码速度, 并且输出会延迟 B 帧个数的帧, 直播中解码速度必须要快
+    if (profile.bframes != ENCODER_PROFILE_PRESET_DEFAULT) {
+        x264Param.i_bframe = profile.bframes;
+    }
 
+    /*
+       编码线程个数, 0 表示由 x264 根据 CPU 核数决定
+       条带多线程 : 一帧画面拆分成多个条带, 多个线程同时编码, 不增加延迟, 压缩率略低
+       帧级多线程 : 多个线程同时编码不同的帧, 吞吐量更高, 但每个线程会使输出延迟一帧
+     */
+    x264Param.i_threads = profile.threads > 0 ? profile.threads : X264_THREADS_AUTO;
+    x264Param.b_sliced_threads = profile.slicedThreads;
 
-    // 只要调用该方法, x264_picture_t 必须重新进行初始化
-    // 因为图片大小改变了, 那么对应的图片不能再使用原来的参数了
-    // 释放原来的 x264_picture_t 图片, 重新进行初始化
-    if (x264EncodePicture) {
-        x264_picture_clean(x264EncodePicture);
-        delete x264EncodePicture;
-        x264EncodePicture = 0;
+    // 限制 H.264 规格, 如 baseline 会关闭 B 帧与 CABAC
+    if (profile.profile[0] && x264_param_apply_profile(&x264Param, profile.profile) < 0) {
+        LOGE("x264 规格 %s 无效或与其它参数冲突, 不限制规格", profile.profile);
     }
 
-    // 初始化 x264 编码图片
-    x264EncodePicture = new x264_picture_t;
-    // 为 x264 编码图片分配内存
-    x264_picture_alloc(x264EncodePicture, X264_CSP_I420, x264Param.i_width, x264Param.i_height);
 
+    // 图片大小可能改变了, 创建新的 x264 编码图片, 并为其分配内存
+    x264_picture_t *encodePicture = new x264_picture_t;
+    x264_picture_alloc(encodePicture, X264_CSP_I420, x264Param.i_width, x264Param.i_height);
 
-    // 关闭之前的视频编码器, 更新了参数, 需要创建新的编码器
-    if (x264VedioCodec) {
-        x264_encoder_close(x264VedioCodec);
-        x264VedioCodec = 0;
-    }
-    // 打开 x264 视频编码器
-    x264VedioCodec = x264_encoder_open(&x264Param);
+    // 打开新的 x264 视频编码器, 第一帧一定是 IDR 帧, 并附带新的 SPS / PPS
+    x264_t *vedioCodec = x264_encoder_open(&x264Param);
+
+    // 加锁, 与编码互斥, 只在这里替换编码器与参数
+    pthread_mutex_lock(&mMutex);
+    x264_picture_t *oldEncodePicture = x264EncodePicture;
+    x264_t *oldVedioCodec = x264VedioCodec;
+    x264EncodePicture = encodePicture;
+    x264VedioCodec = vedioCodec;
+    // 新的编码图片中还没有画面, 不能重复编码, 也没有可以比较的参考画面
+    mPictureValid = 0;
+    mStaticSceneDetector.reset();
+    mKeyintMs = 1000 * (profile.keyintSeconds > 0 ? profile.keyintSeconds : 2);
+    mSkippedSinceKeyFrame = 0;
 
+    // 图像宽度
+    mWidth = width;
+    // 图像高度
+    mHeight = height;
+    // 帧率
+    mFps = fps;
+    // 码率
+    mBitrate = bitrate;
+    // 编码器配置
+    mProfile = profile;
+
+    // 灰色值的个数, 单位字节
+    YByteCount = width * height;
+    // U 色彩值, V 饱和度 个数
+    UVByteCount = YByteCount / 4;
+
+    // 新的编码器已经使用参数中的码率, 之前等待生效的码率作废
+    mPendingBitrate.store(0);
 
     // 解锁, 设置视频编码参数 与 编码互斥
     pthread_mutex_unlock(&mMutex);
+
+    // 在锁外关闭之前的编码器, 释放之前的编码图片
+    if (oldVedioCodec) {
+        x264_encoder_close(oldVedioCodec);
+    }
+    if (oldEncodePicture) {
+        x264_picture_clean(oldEncodePicture);
+        delete oldEncodePicture;
+    }
+}
+
+
+/**
+ * 设置 NV21 图像旋转角度
+ * @param rotation 顺时针旋转角度
+ * @param mirror 旋转后是否水平镜像
+ */
+void VedioChannel::setVideoRotation(int rotation, int mirror) {
+    // 加锁, 与编码互斥, 保证一帧图像使用同一个旋转角度
+    pthread_mutex_lock(&mMutex);
+    if (rotation != mRotation || mirror != mMirror) {
+        // 同样的输入画面旋转后不同, 不能与之前编码的画面比较
+        mStaticSceneDetector.reset();
+    }
+    mRotation = rotation;
+    mMirror = mirror;
+    pthread_mutex_unlock(&mMutex);
+}
+
+/**
+ * 设置静止画面检测
+ * @param enabled 是否启用
+ * @param threshold 区块差异阈值
+ */
+void VedioChannel::setStaticSceneDetection(int enabled, int threshold) {
+    // 只记录参数, 由编码线程在下一帧编码前生效
+    mStaticSceneThreshold.store(threshold);
+    mStaticSceneEnabled.store(enabled);
+}
+
+/**
+ * 一帧 NV21 图像数据的字节数
+ */
+int VedioChannel::getInputByteCount() {
+    return YByteCount + UVByteCount * 2;
+}
+
+long VedioChannel::getAverageEncodeTimeUs() {
+    return mAverageEncodeTimeUs.load();
+}
+
+long VedioChannel::getAverageFrameBytes() {
+    return mAverageFrameBytes.load();
 }
 
+/**
+ * 调整视频码率
+ * @param bitrate 码率, 单位 bps
+ */
+void VedioChannel::updateBitrate(int bitrate) {
+    // 只记录码率, 由编码线程在下一帧编码前生效, 避免推流线程等待编码锁
+    mPendingBitrate.store(bitrate);
+}
 
+/**
+ * 请求将下一帧编码为关键帧
+ */
+void VedioChannel::requestKeyFrame() {
+    mKeyFrameRequested.store(1);
+}
+
+/**
+ * 重新配置 x264 编码器的码率
+ */
+void VedioChannel::applyPendingBitrate() {
+    int bitrate = mPendingBitrate.exchange(0);
+    if (bitrate <= 0 || !x264VedioCodec || bitrate == mBitrate) {
+        return;
+    }
+
+    // 获取编码器当前参数, 只修改码率控制相关参数
+    // x264_encoder_reconfig 可以在编码过程中修改码率, 不会重新输出 SPS / PPS, 也不会强制插入关键帧
+    x264_param_t x264Param;
+    x264_encoder_parameters(x264VedioCodec, &x264Param);
+    if (x264Param.rc.i_rc_method == X264_RC_CQP) {
+        // 恒定量化参数模式不受码率控制
+        return;
+    } else if (x264Param.rc.i_rc_method == X264_RC_CRF) {
+        // 恒定质量因子模式只调整 VBV 最大码率
+        x264Param.rc.i_vbv_max_bitrate = bitrate / 1000;
+        x264Param.rc.i_vbv_buffer_size = bitrate / 1000;
+    } else {
+        x264Param.rc.i_bitrate = bitrate / 1000;
+        x264Param.rc.i_vbv_max_bitrate = bitrate / 1000 * 1.2;
+        x264Param.rc.i_vbv_buffer_size = bitrate / 1000;
+    }
+    if (x264_encoder_reconfig(x264VedioCodec, &x264Param) == 0) {
+        mBitrate = bitrate;
+    }
+}
 
 /**
  * 视频数据编码
  * 接收 int8_t 类型的原因是, 这里处理的是 jbyte* 类型参数
  * jbyte 类型就是 int8_t 类型
  * @param data 视频数据指针
+ * @param timestamp 采集时间戳, 单位毫秒
+ * @return 编码了一帧返回 1, 跳过编码返回 0
  */
-void VedioChannel::encodeCameraData(int8_t *data) {
+int VedioChannel::encodeCameraData(int8_t *data, uint32_t timestamp,
+                                   InputReleaseCallBack inputReleaseCallBack, void *context) {
     // 加锁, 设置视频编码参数 与 编码互斥
     pthread_mutex_lock(&mMutex);
+    int64_t startUs = monotonicTimeUs();
+
+    // 推流线程根据网络状况调整了码率, 在编码本帧之前生效
+    applyPendingBitrate();
 
     // 参数中的 data 是 NV21 格式的
     // 前面 YByteCount 字节个 Y 灰度数据
     // 之后是 UVByteCount 字节个 VU 数据交替存储
     // UVByteCount 字节 V 数据, UVByteCount 字节 U 数据
 
-    // 从 Camera 采集的 NV21 格式的 data 数据中
-    // 将 YUV 中的 Y 灰度值数据, U 色彩值数据, V 色彩饱和度数据提取出来
-    memcpy(x264EncodePicture->img.plane[0], data, YByteCount);
+    // 旋转 90 / 270 度时, Camera 采集的图像宽高与编码图像宽高是交换的
+    int transposed = mRotation == 90 || mRotation == 270;
+    int srcWidth = transposed ? mHeight : mWidth;
+    int srcHeight = transposed ? mWidth : mHeight;
+
+    // 跳过的帧没有计入 x264 按帧数计算的关键帧间隔, 按时间请求关键帧, 之后加入的观众仍然可以及时看到画面
+    // 每一帧都检查, 静止画面结束后第一个有变化的帧同样可能需要编码为关键帧
+    // 编码器有延迟时关键帧稍后才输出, 这里就开始重新计时, 避免连续请求
+    if (mSkippedSinceKeyFrame > 0 && timestamp - mLastKeyFrameTimestamp >= mKeyintMs) {
+        mKeyFrameRequested.store(1);
+        mLastKeyFrameTimestamp = timestamp;
+        mSkippedSinceKeyFrame = 0;
+    }
+
+    // 画面与上一次编码的画面相同时跳过 NV21 转换与 x264 编码, x264 编码图片中保留上一次编码的画面
+    if (skipStaticFrame(reinterpret_cast<const uint8_t *>(data), srcWidth, srcHeight)) {
+        if (inputReleaseCallBack) {
+            inputReleaseCallBack(context);
+        }
+        int encoded = 0;
+        if (timestamp - mLastEncodedTimestamp >= STATIC_SCENE_KEEPALIVE_MS) {
+            // 长时间没有输出视频帧, 重复编码保留的画面, x264 几乎全部编码为跳过宏块, 只有几十字节
+            encodePicture(timestamp);
+            encoded = 1;
+        }
+        pthread_mutex_unlock(&mMutex);
+        return encoded;
+    }
+
+    // 一次遍历完成 NV21 图像旋转, 并将 Y 灰度值数据, U 色彩值数据, V 色彩饱和度数据
+    // 直接写入到 x264 编码图片的 3 个平面中
+    I420Planes planes;
+    planes.y = x264EncodePicture->img.plane[0];
+    planes.u = x264EncodePicture->img.plane[1];
+    planes.v = x264EncodePicture->img.plane[2];
+    planes.yStride = x264EncodePicture->img.i_stride[0];
+    planes.uStride = x264EncodePicture->img.i_stride[1];
+    planes.vStride = x264EncodePicture->img.i_stride[2];
+    nv21RotateToI420(reinterpret_cast<const uint8_t *>(data), srcWidth, srcHeight,
+                     mRotation, mMirror, planes);
+
+    // NV21 数据已经全部写入 x264 编码图片, 编码时不再访问输入数据, 尽早释放
+    if (inputReleaseCallBack) {
+        inputReleaseCallBack(context);
+    }
+    mPictureValid = 1;
+
+    int keyFrame = 0;
+    int frameSize = encodePicture(timestamp, &keyFrame);
+    // 本帧成为之后比较的参考画面, 没有启用检测时本帧没有采样, 参考画面保持无效
+    mStaticSceneDetector.updateReference();
+    if (frameSize > 0 && !keyFrame) {
+        // 只统计非关键帧, 跳过的静止画面如果编码也是非关键帧
+        long encodeTimeUs = static_cast<long>(monotonicTimeUs() - startUs);
+        long averageUs = mAverageEncodeTimeUs.load();
+        long averageBytes = mAverageFrameBytes.load();
+        mAverageEncodeTimeUs.store(averageUs > 0 ? (averageUs * 7 + encodeTimeUs) / 8 : encodeTimeUs);
+        mAverageFrameBytes.store(averageBytes > 0 ? (averageBytes * 7 + frameSize) / 8 : frameSize);
+    }
+
+    // 解锁, 设置视频编码参数 与 编码互斥
+    pthread_mutex_unlock(&mMutex);
+    return 1;
+}
 
-    // 取出 NV21 数据中交替存储的 VU 数据
-    // V 在前 ( 偶数位置 ), U 在后 ( 奇数位置 ), 交替存储
-    for(int i = 0; i < UVByteCount; i ++){
-        // U 色相 / 色彩值数据, 存储在 YByteCount 后的奇数索引位置
-        *(x264EncodePicture->img.plane[1] + i) = *(data + YByteCount + i * 2 + 1);
+/**
+ * 静止画面检测, 判断本帧是否可以跳过编码
+ * @param data NV21 图像数据
+ * @param width 旋转之前的宽度
+ * @param height 旋转之前的高度
+ * @return 可以跳过返回 1
+ */
+int VedioChannel::skipStaticFrame(const uint8_t *data, int width, int height) {
+    if (!mStaticSceneEnabled.load()) {
+        // 关闭期间不更新参考画面, 重新启用时参考画面已经过时
+        mStaticSceneDetector.reset();
+        return 0;
+    }
+    mStaticSceneDetector.setThreshold(mStaticSceneThreshold.load());
+    // 先采样比较, 即使本帧不能跳过, 采样结果也用于更新参考画面
+    int isStatic = mStaticSceneDetector.isStatic(data, width, height);
+    if (!isStatic || !mPictureValid || mKeyFrameRequested.load()) {
+        return 0;
+    }
+    if (x264_encoder_delayed_frames(x264VedioCodec) > 0) {
+        // 编码器有延迟 ( 帧级多线程, 前向预测, B 帧 ) 时, 跳过输入会使已经输入的画面迟迟不能输出, 不跳过
+        return 0;
+    }
+    mSkippedSinceKeyFrame++;
+    return 1;
+}
 
-        // V 色彩饱和度数据, 存储在 YByteCount 后的偶数索引位置
-        *(x264EncodePicture->img.plane[2] + i) = *(data + YByteCount + i * 2);
+/**
+ * 重复编码上一帧画面
+ * @param timestamp 本帧的时间戳, 单位毫秒
+ * @return 编码器中没有画面 ( 还没有编码过画面, 或者重新创建了编码器 ) 返回 0
+ */
+int VedioChannel::encodeRepeatedFrame(uint32_t timestamp) {
+    pthread_mutex_lock(&mMutex);
+    int valid = mPictureValid;
+    if (valid) {
+        applyPendingBitrate();
+        // 画面与参考帧相同, x264 几乎全部编码为跳过宏块, 编码很快, 数据量很小
+        encodePicture(timestamp);
     }
+    pthread_mutex_unlock(&mMutex);
+    return valid;
+}
 
+/**
+ * 编码 x264 编码图片中的画面, 封装为 RTMP 数据包
+ * 调用时已经持有 mMutex
+ * @param timestamp 采集时间戳, 单位毫秒
+ * @param keyFrame 输出的是否是关键帧
+ * @return 输出的一帧画面的字节数
+ */
+int VedioChannel::encodePicture(uint32_t timestamp, int *keyFrame) {
     // 下面两个是编码时需要传入的参数, 这两个参数地址, x264 编码器会想这两个地址写入值
 
     // 编码后的数据, 这是一个帧数据
@@ -245,8 +534,19 @@ void VedioChannel::encodeCameraData(int8_t *data) {
         关键帧数据 : SPS 帧, PPS 帧, 画面帧
 
      */
+    // 输入图片携带采集时间戳, x264 原样输出到 pic_out 中
+    // 编码器有延迟时 ( 帧级多线程, 前向预测, B 帧 ), 输出的画面不一定是本次输入的画面, 因此时间戳取 pic_out 中的值
+    x264EncodePicture->i_pts = timestamp;
+    // 请求了关键帧时强制编码为 IDR 帧, x264 同时输出 SPS / PPS
+    x264EncodePicture->i_type = mKeyFrameRequested.exchange(0) ? X264_TYPE_IDR : X264_TYPE_AUTO;
     x264_encoder_encode(x264VedioCodec, &pp_nal, &pi_nal, x264EncodePicture, &pic_out);
 
+    // RTMP 时间戳是解码时间戳, 有 B 帧时解码时间戳早于显示时间戳, 差值写入 FLV 视频标签的合成时间
+    // 开始推流时 x264 输出的解码时间戳可能是负数, 截取为 0
+    int64_t decodeTimestamp = pic_out.i_dts > 0 ? pic_out.i_dts : 0;
+    uint32_t outputTimestamp = static_cast<uint32_t>(decodeTimestamp);
+    int32_t compositionTime = static_cast<int32_t>(pic_out.i_pts - decodeTimestamp);
+
     // 下面要提取数据中 SPS 和 PPS 数据
     // 只有关键帧 ( I 帧 ) 数据, 并且配置了 x264Param.b_repeat_headers = 1 参数
     // 每个关键帧都会附带 SPS PPS 数据, 才能获取如下 SPS PPS 数据
@@ -261,51 +561,63 @@ void VedioChannel::encodeCameraData(int8_t *data) {
     uint8_t pps[100];
 
     /*
-        pp_nal[i].p_payload 数据时编码后的数据, 前四位默认是 00 00 00 01
-        pp_nal[i].i_payload 是编码后的数据大小, 这个大小包括前 4 位的 00 00 00 01 数据
-            一般情况下, 是要将前四位数据扣除, pp_nal[i].i_payload - 4
-
-        pp_nal[i].p_payload 是 x264 编码后的数据
-        pp_nal[i].i_payload 是 x264 编码后的数据长度
-        根据上述两个数据封装 RTMP 数据包
-        封装好之后, 将 RTMP 数据包推流到服务器中
-
-        帧数据的长度为 pp_nal[i].i_payload - 4 原理
-        每个帧开始的位置是 4 字节的分隔符
-        第 0, 1, 2, 3 四字节是 00 00 00 01 数据
-        作用是分割不同的帧
-
-        帧数据拷贝从 pp_nal[i].p_payload + 4 开始
-        前 4 个字节 0, 1, 2, 3 都是分割符, 不是真实的数据
-        这里要从 第 4 个字节开始拷贝数据
+        pp_nal[i].p_payload 是 x264 编码后的数据, 前 4 字节是大端表示的 NAL 单元长度 ( b_annexb = 0 )
+        pp_nal[i].i_payload 是编码后的数据大小, 这个大小包括前 4 字节的长度数据
 
+        SPS / PPS 数据需要剔除前 4 字节长度, 封装到 AVC 序列头中
+        其余 NAL 单元 ( SEI, 图像条带 ) 组成一帧画面, 在内存中是连续的,
+        连同 4 字节长度前缀一起封装到一个 FLV 视频标签中, 而不是每个 NAL 单元一个 RTMP 数据包
      */
+    // 一帧画面数据的起始地址
+    uint8_t *frameData = 0;
+    // 一帧画面数据的大小
+    int frameSize = 0;
+    // 是否是关键帧
+    int isKeyFrame = 0;
+
     for(int i = 0; i < pi_nal; i ++){
         if(pp_nal[i].i_type == NAL_SPS){
-            // 4 字节分隔符是 x264 编码后生成的 H.264 数据中的数据, 这里需要剔除该数据
+            // 4 字节长度是 x264 编码后生成的数据, 这里需要剔除该数据
             spsLen = pp_nal[i].i_payload - 4;
-            // 拷贝 H.264 数据时, 需要越过 4 字节 间隔数据
+            // 拷贝 H.264 数据时, 需要越过 4 字节长度
             memcpy(sps, pp_nal[i].p_payload + 4, spsLen);
 
         }else if(pp_nal[i].i_type == NAL_PPS){
-            // 4 字节分隔符是 x264 编码后生成的 H.264 数据中的数据, 这里需要剔除该数据
+            // 4 字节长度是 x264 编码后生成的数据, 这里需要剔除该数据
             ppsLen = pp_nal[i].i_payload - 4;
-            // 拷贝 H.264 数据时, 需要越过 4 字节 间隔数据
+            // 拷贝 H.264 数据时, 需要越过 4 字节长度
             memcpy(pps, pp_nal[i].p_payload + 4, ppsLen);
 
             // 向 RTMP 服务器端发送 SPS 和 PPS 数据
             // 发送时机是关键帧编码完成之后
-            sendSpsPpsToRtmpServer(sps, pps, spsLen, ppsLen);
+            sendSpsPpsToRtmpServer(sps, pps, spsLen, ppsLen, outputTimestamp);
         }else {
-            // 封装关键帧 ( I 帧 ) , 非关键帧 ( P 帧 ) , 没有设置 B 帧, 因此这里没有 B 帧
-            // pp_nal[i].i_payload 表示数据帧大小
-            // pp_nal[i].p_payload 存放数据帧数据
-            sendFrameToRtmpServer(pp_nal[i].i_type, pp_nal[i].i_payload, pp_nal[i].p_payload);
+            // 关键帧 ( I 帧 ) , 非关键帧 ( P 帧 ) 以及附带的 SEI 数据, 没有设置 B 帧, 因此这里没有 B 帧
+            // 第一个 NAL 单元的地址就是一帧数据的起始地址, 之后的 NAL 单元紧随其后
+            if (!frameData) {
+                frameData = pp_nal[i].p_payload;
+            }
+            frameSize += pp_nal[i].i_payload;
+            if (pp_nal[i].i_type == NAL_SLICE_IDR) {
+                isKeyFrame = 1;
+            }
         }
     }
 
-    // 解锁, 设置视频编码参数 与 编码互斥
-    pthread_mutex_unlock(&mMutex);
+    if (frameData) {
+        // 一帧画面的所有 NAL 单元封装为一个 RTMP 数据包
+        sendFrameToRtmpServer(isKeyFrame, frameSize, frameData, outputTimestamp, compositionTime);
+    }
+
+    mLastEncodedTimestamp = timestamp;
+    if (isKeyFrame) {
+        mLastKeyFrameTimestamp = timestamp;
+        mSkippedSinceKeyFrame = 0;
+    }
+    if (keyFrame) {
+        *keyFrame = isKeyFrame;
+    }
+    return frameSize;
 }
 
 /**
@@ -314,10 +626,10 @@ void VedioChannel::encodeCameraData(int8_t *data) {
  * @param pps       PPS 数据
  * @param spsLen    SPS 长度
  * @param ppsLen    PPS 长度
+ * @param timestamp 时间戳, 与之后的关键帧相同
  */
-void VedioChannel::sendSpsPpsToRtmpServer(uint8_t *sps, uint8_t *pps, int spsLen, int ppsLen) {
-    // 创建 RTMP 数据包, 将数据都存入该 RTMP 数据包中
-    RTMPPacket *rtmpPacket = new RTMPPacket;
+void VedioChannel::sendSpsPpsToRtmpServer(uint8_t *sps, uint8_t *pps, int spsLen, int ppsLen,
+                                          uint32_t timestamp) {
 
     /*
         计算整个 SPS 和 PPS 数据的大小
@@ -361,8 +673,11 @@ void VedioChannel::sendSpsPpsToRtmpServer(uint8_t *sps, uint8_t *pps, int spsLen
      */
     int rtmpPackagesize = 10 + 3 + spsLen + 3 + ppsLen;
 
-    // 为 RTMP 数据包分配内存
-    RTMPPacket_Alloc(rtmpPacket, rtmpPackagesize);
+    // 从数据包池中获取 RTMP 数据包, 将数据都存入该 RTMP 数据包中
+    RTMPPacket *rtmpPacket = mPacketPool->obtain(rtmpPackagesize);
+    if (!rtmpPacket) {
+        return;
+    }
 
     // 记录下一个要写入数据的索引位置
     int nextPosition = 0;
@@ -424,8 +739,8 @@ void VedioChannel::sendSpsPpsToRtmpServer(uint8_t *sps, uint8_t *pps, int spsLen
     rtmpPacket->m_nBodySize = rtmpPackagesize;
     // 分配 RTMP 通道, 随意分配
     rtmpPacket->m_nChannel = 10;
-    // 设置视频时间戳, 如果是 SPP PPS 数据, 没有时间戳
-    rtmpPacket->m_nTimeStamp = 0;
+    // 设置视频时间戳, SPS PPS 数据使用之后关键帧的时间戳, 保证视频时间戳单调递增
+    rtmpPacket->m_nTimeStamp = timestamp;
     // 设置绝对时间, 对于 SPS PPS 赋值 0 即可
     rtmpPacket->m_hasAbsTimestamp = 0;
     // 设置头类型, 随意设置一个
@@ -438,69 +753,45 @@ void VedioChannel::sendSpsPpsToRtmpServer(uint8_t *sps, uint8_t *pps, int spsLen
 
 /**
  * 封装视频帧 , 关键帧 和 非关键帧
- * @param type  视频帧类型
- * @param payload   视频帧大小
- * @param p_payload 视频帧数据
+ * 一帧画面的所有 NAL 单元封装到一个 FLV 视频标签中
+ * @param keyFrame  是否是关键帧
+ * @param payload   一帧数据大小, 包括每个 NAL 单元的 4 字节长度
+ * @param p_payload 一帧数据, AVCC 格式, 每个 NAL 单元之前是 4 字节大端长度
+ * @param timestamp 该帧的解码时间戳
+ * @param compositionTime 显示时间戳 与 解码时间戳 之差
  */
-void VedioChannel::sendFrameToRtmpServer(int type, int payload, uint8_t *p_payload) {
-    // 判定分隔符是 00 00 00 01 还是 00 00 01
-    // 根据 第 2 位 的值判定
-    // 如果 第 2 位 值为 01, 说明分隔符是 00 00 01
-    // 如果 第 2 位 值为 00, 说明分隔符是 00 00 00 01
-    if (p_payload[2] == 0x00){
-        // 识别出分隔符是 00 00 00 01
-        // 要将 x264 编码出的数据个数减去 4, 只统计实际的数据帧个数
-        payload -= 4;
-        // 从 x264 编码后的数据向外拿数据时, 越过开始的 00 00 00 01 数据
-        p_payload += 4;
-    } else if(p_payload[2] == 0x01){
-        // 识别出分隔符是 00 00 01
-        // 要将 x264 编码出的数据个数减去 3, 只统计实际的数据帧个数
-        payload -= 3;
-        // 从 x264 编码后的数据向外拿数据时, 越过开始的 00 00 01 数据
-        p_payload += 3;
-    }
-
-    // 创建 RTMP 数据包
-    RTMPPacket *rtmpPacket = new RTMPPacket;
-
+void VedioChannel::sendFrameToRtmpServer(int keyFrame, int payload, uint8_t *p_payload,
+                                         uint32_t timestamp, int32_t compositionTime) {
     /*
         计算 RTMP 数据包大小
 
         帧类型 : 1 字节, 关键帧 17, 非关键帧 27
         包类型 : 1 字节, 1 表示数据帧 ( 关键帧 / 非关键帧 ), 0 表示 AVC 序列头
-        合成时间 : 3 字节, 设置 00 00 00
-        数据长度 : 4 字节, 赋值 payload 代表的数据长度
+        合成时间 : 3 字节, 显示时间戳 与 解码时间戳 之差, 没有 B 帧时为 00 00 00
+        之后是 x264 输出的 NAL 单元, 已经带有 4 字节长度, 不需要再单独写入
 
      */
-    int rtmpPackagesize = 9 + payload;
+    int rtmpPackagesize = 5 + payload;
 
-    // 为 RTMP 数据包分配内存
-    RTMPPacket_Alloc(rtmpPacket, rtmpPackagesize);
-    // 重置 RTMP 数据包
-    RTMPPacket_Reset(rtmpPacket);
+    // 从数据包池中获取 RTMP 数据包, 数据包头字段已经重置
+    // m_body 之前预留了 RTMP_MAX_HEADER_SIZE 字节, 发送时 RTMP 块头直接写入该区域
+    RTMPPacket *rtmpPacket = mPacketPool->obtain(rtmpPackagesize);
+    if (!rtmpPacket) {
+        return;
+    }
 
     // 设置帧类型, 非关键帧类型 27, 关键帧类型 17
-    rtmpPacket->m_body[0] = 0x27;
-    if (type == NAL_SLICE_IDR) {
-        rtmpPacket->m_body[0] = 0x17;
-    }
+    rtmpPacket->m_body[0] = keyFrame ? 0x17 : 0x27;
 
     // 设置包类型, 01 是数据帧, 00 是 AVC 序列头封装 SPS PPS 数据
     rtmpPacket->m_body[1] = 0x01;
-    // 合成时间戳, AVC 数据直接赋值 00 00 00
-    rtmpPacket->m_body[2] = 0x00;
-    rtmpPacket->m_body[3] = 0x00;
-    rtmpPacket->m_body[4] = 0x00;
+    // 合成时间戳, 24 位大端有符号数
+    rtmpPacket->m_body[2] = (compositionTime >> 16) & 0xFF;
+    rtmpPacket->m_body[3] = (compositionTime >> 8) & 0xFF;
+    rtmpPacket->m_body[4] = compositionTime & 0xFF;
 
-    // 数据长度, 需要使用 4 位表示
-    rtmpPacket->m_body[5] = (payload >> 24) & 0xFF;
-    rtmpPacket->m_body[6] = (payload >> 16) & 0xFF;
-    rtmpPacket->m_body[7] = (payload >> 8) & 0xFF;
-    rtmpPacket->m_body[8] = (payload) & 0xFF;
-
-    // H.264 数据帧数据
-    memcpy(&rtmpPacket->m_body[9], p_payload, payload);
+    // H.264 数据帧数据, 一帧只拷贝一次
+    memcpy(&rtmpPacket->m_body[5], p_payload, payload);
 
     // 设置 RTMP 包类型, 视频类型数据
     rtmpPacket->m_packetType = RTMP_PACKET_TYPE_VIDEO;
@@ -508,6 +799,8 @@ void VedioChannel::sendFrameToRtmpServer(int type, int payload, uint8_t *p_paylo
     rtmpPacket->m_nBodySize = rtmpPackagesize;
     // 分配 RTMP 通道, 随意分配
     rtmpPacket->m_nChannel = 10;
+    // 设置视频时间戳, 使用采集时间计算的解码时间戳, 不受编码耗时影响
+    rtmpPacket->m_nTimeStamp = timestamp;
     // 设置绝对时间, 对于 SPS PPS 赋值 0 即可
     rtmpPacket->m_hasAbsTimestamp = 0;
     // 设置头类型, 随意设置一个
@@ -516,4 +809,4 @@ void VedioChannel::sendFrameToRtmpServer(int type, int payload, uint8_t *p_paylo
     // 调用回调接口, 将该封装好的 RTMPPacket 数据包放入 native-lib 类中的 线程安全队列中
     // 这是个 RTMPPacketPackUpCallBack 类型的函数指针
     rtmpPacketPackUpCallBack(rtmpPacket);
-}
\ No newline at end of file
+}
@@ -9,7 +9,18 @@
 #include <inttypes.h>
 #include <x264.h>
 #include <pthread.h>
+#include <atomic>
 #include "librtmp/rtmp.h"
+#include "PacketPool.h"
+#include "NV21Converter.h"
+#include "EncoderProfile.h"
+#include "StaticSceneDetector.h"
+
+/**
+ * 静止画面跳过编码时, 至少每隔该时间重复编码一次上一帧画面, 单位毫秒
+ * 观众端与服务器端不会因为长时间没有视频数据而认为视频流中断
+ */
+#define STATIC_SCENE_KEEPALIVE_MS 1000
 
 
 /**
@@ -28,6 +39,12 @@ class VedioChannel {
     typedef void (*RTMPPacketPackUpCallBack)(RTMPPacket* packet);
 
 public:
+    /**
+     * 函数指针, NV21 图像数据转换到 x264 编码图片之后调用
+     * 此后不再访问输入数据, 调用者可以在该回调中释放输入数据 ( 如 ReleasePrimitiveArrayCritical )
+     */
+    typedef void (*InputReleaseCallBack)(void *context);
+
     /**
      * 构造方法
      */
@@ -45,16 +62,78 @@ public:
      * @param height 高度
      * @param fps 帧率
      * @param bitrate 码率
+     * @param profile x264 编码器配置, 预设, 线程, 关键帧间隔, 码率控制方式等
+     */
+    void setVideoEncoderParameters(int width, int height, int fps, int bitrate,
+                                   const EncoderProfile &profile = EncoderProfile());
+
+    /**
+     * 设置 Camera 采集的 NV21 图像需要旋转的角度
+     * 旋转操作在编码前与 NV21 转 I420 操作一起完成
+     * @param rotation 顺时针旋转角度, 0 / 90 / 180 / 270
+     *                 旋转 90 / 270 度时, Camera 预览宽高与编码宽高是交换的
+     * @param mirror   旋转后是否水平镜像
+     */
+    void setVideoRotation(int rotation, int mirror);
+
+    /**
+     * 调整视频码率, 可以在任意线程中调用, 不会阻塞
+     * 新的码率在编码下一帧之前, 通过 x264_encoder_reconfig 生效, 不需要重新打开编码器
+     * @param bitrate 码率, 单位 bps
+     */
+    void updateBitrate(int bitrate);
+
+    /**
+     * 请求将下一帧编码为关键帧 ( IDR 帧 ), 可以在任意线程中调用, 不会阻塞
+     * 如开始推流时, 观众端收到关键帧之后才能解码出画面
      */
-    void setVideoEncoderParameters(int width, int height, int fps, int bitrate);
+    void requestKeyFrame();
+
+    /**
+     * 设置静止画面检测, 可以在任意线程中调用, 不会阻塞
+     * 启用后与上一次编码的画面相比没有变化的帧不进行 NV21 转换与 x264 编码,
+     * 观众端继续显示上一帧画面, 关键帧间隔按时间保持不变
+     * 只在编码器没有延迟输出的画面时跳过 ( 默认的 zerolatency 配置 )
+     * @param enabled   是否启用, 默认关闭
+     * @param threshold 区块差异阈值, 参考 StaticSceneDetector, 小于等于 0 时使用默认值
+     */
+    void setStaticSceneDetection(int enabled, int threshold);
 
     /**
      * 视频数据编码
      * 接收 int8_t 类型的原因是, 这里处理的是 jbyte* 类型参数
      * jbyte 类型就是 int8_t 类型
      * @param data
+     * @param timestamp 该画面的采集时间, 相对于开始推流的时间, 单位毫秒, 作为 RTMP 数据包时间戳
+     * @param inputReleaseCallBack 输入数据使用完毕回调, 在 x264 编码之前调用, 可以为 0
+     * @param context 回调参数
+     * @return 编码了一帧返回 1, 静止画面跳过编码 ( 或者编码器还没有创建 ) 返回 0
      */
-    void encodeCameraData(int8_t *data);
+    int encodeCameraData(int8_t *data, uint32_t timestamp,
+                         InputReleaseCallBack inputReleaseCallBack = 0, void *context = 0);
+
+    /**
+     * 重复编码上一帧画面, 如切换摄像头期间没有新的画面时, 保持视频数据连续
+     * @param timestamp 本帧的时间戳, 相对于开始推流的时间, 单位毫秒
+     * @return 没有可以重复的画面时返回 0
+     */
+    int encodeRepeatedFrame(uint32_t timestamp);
+
+    /**
+     * 一帧 NV21 图像数据的字节数
+     */
+    int getInputByteCount();
+
+    /**
+     * 非关键帧的平均编码耗时 ( NV21 转换 + x264 编码 ), 单位微秒, 指数加权平均
+     * 用于估计跳过静止画面节省的编码时间
+     */
+    long getAverageEncodeTimeUs();
+
+    /**
+     * 非关键帧的平均编码输出字节数, 指数加权平均, 用于估计跳过静止画面节省的数据量
+     */
+    long getAverageFrameBytes();
 
     /**
      * 设置打包完毕回调函数
@@ -64,6 +143,13 @@ public:
      */
     void setRTMPPacketPackUpCallBack(RTMPPacketPackUpCallBack rtmpPacketPackUpCallBack);
 
+    /**
+     * 设置 RTMPPacket 数据包池
+     * 封装 RTMP 数据包时从池中获取数据包, 推流线程发送完毕后归还到池中
+     * @param packetPool
+     */
+    void setPacketPool(PacketPool *packetPool);
+
 private:
     /**
      * 互斥锁
@@ -79,10 +165,65 @@ private:
 
     // 下面是视频编码参数, 宽度, 高度, 帧率, 码率
 
-    int mWidth;
-    int mHeight;
-    int mFps;
-    int mBitrate;
+    int mWidth = 0;
+    int mHeight = 0;
+    int mFps = 0;
+    int mBitrate = 0;
+
+    /**
+     * x264 编码器配置
+     */
+    EncoderProfile mProfile;
+
+    /**
+     * NV21 图像顺时针旋转角度
+     */
+    int mRotation = 0;
+
+    /**
+     * 旋转后是否水平镜像
+     */
+    int mMirror = 0;
+
+    /**
+     * 等待生效的码率, 单位 bps, 0 表示没有需要调整的码率
+     */
+    std::atomic<int> mPendingBitrate;
+
+    /**
+     * 是否需要将下一帧编码为关键帧 ( IDR 帧 )
+     */
+    std::atomic<int> mKeyFrameRequested;
+
+    /**
+     * x264 编码图片中是否有完整的画面, 可以重复编码
+     */
+    int mPictureValid = 0;
+
+    /**
+     * 静止画面检测, 是否启用与区块差异阈值
+     */
+    StaticSceneDetector mStaticSceneDetector;
+    std::atomic<int> mStaticSceneEnabled;
+    std::atomic<int> mStaticSceneThreshold;
+
+    /**
+     * 关键帧间隔, 单位毫秒, 跳过静止画面时 x264 按帧数计算的关键帧间隔会变长, 按时间请求关键帧
+     */
+    uint32_t mKeyintMs = 2000;
+
+    /**
+     * 上一个关键帧 与 上一次编码的时间戳, 上一个关键帧之后跳过的帧数
+     */
+    uint32_t mLastKeyFrameTimestamp = 0;
+    uint32_t mLastEncodedTimestamp = 0;
+    int mSkippedSinceKeyFrame = 0;
+
+    /**
+     * 非关键帧的平均编码耗时 ( 微秒 ) 与 平均输出字节数
+     */
+    std::atomic<long> mAverageEncodeTimeUs;
+    std::atomic<long> mAverageFrameBytes;
 
     // I240 / NV21 格式的图像数据信息
     // YUV 数据的个数
@@ -93,12 +234,12 @@ private:
     /**
      * Y 灰度数据的个数
      */
-    int YByteCount;
+    int YByteCount = 0;
 
     /**
      * 色彩度 U, 饱和度 V 数据个数
      */
-    int UVByteCount;
+    int UVByteCount = 0;
 
     /**
      * x264 需要编码的图片
@@ -110,21 +251,57 @@ private:
      */
     RTMPPacketPackUpCallBack rtmpPacketPackUpCallBack;
 
+    /**
+     * RTMPPacket 数据包池
+     */
+    PacketPool *mPacketPool = 0;
+
     /**
      * x264 视频编码器
      */
     x264_t *x264VedioCodec = 0;
 
+    /**
+     * 如果有等待生效的码率, 重新配置 x264 编码器的码率控制参数
+     * 在编码线程中调用, 调用时已经持有 mMutex
+     */
+    void applyPendingBitrate();
+
+    /**
+     * 编码 x264 编码图片中的画面, 封装为 RTMP 数据包
+     * 调用时已经持有 mMutex
+     * @param keyFrame 输出的是否是关键帧, 可以为 0
+     * @return 输出的一帧画面的字节数, 编码器有延迟没有输出时为 0
+     */
+    int encodePicture(uint32_t timestamp, int *keyFrame = 0);
+
+    /**
+     * 静止画面检测, 判断本帧是否可以跳过编码, 调用时已经持有 mMutex
+     * @param data 本帧 NV21 图像数据, 旋转之前的宽高
+     */
+    int skipStaticFrame(const uint8_t *data, int width, int height);
+
     /**
      * 将 SPS / PPS 数据发送到 RTMP 服务器端
      * @param sps   SPS 数据
      * @param pps   PPS 数据
      * @param spsLen   SPS 长度
      * @param ppsLen PPS 长度
+     * @param timestamp 时间戳, 与之后的关键帧相同
      */
-    void sendSpsPpsToRtmpServer(uint8_t *sps, uint8_t *pps, int spsLen, int ppsLen);
+    void sendSpsPpsToRtmpServer(uint8_t *sps, uint8_t *pps, int spsLen, int ppsLen,
+                                uint32_t timestamp);
 
-    void sendFrameToRtmpServer(int type, int payload, uint8_t *p_payload);
+    /**
+     * 将一帧画面封装为一个 RTMP 视频数据包
+     * @param keyFrame  是否是关键帧
+     * @param payload   一帧数据大小
+     * @param p_payload 一帧数据, 每个 NAL 单元之前是 4 字节长度
+     * @param timestamp 该帧的解码时间戳
+     * @param compositionTime 显示时间戳 与 解码时间戳 之差, 没有 B 帧时为 0
+     */
+    void sendFrameToRtmpServer(int keyFrame, int payload, uint8_t *p_payload, uint32_t timestamp,
+                               int32_t compositionTime);
 };
 
 
@@ -0,0 +1,255 @@
+//
+// Created by octopus on 2020/7/14.
+//
+
+/**
+ * 音视频交织正确性测试
+ *
+ * 覆盖 :
+ *      两路都有数据时按时间戳顺序发出, 时间戳相同时先发音频
+ *      视频编码滞后于音频 ( 不超过等待窗口 ) 时, 发出的时间戳严格有序, 不修正时间戳
+ *      只有一路有数据时, 等待另一路直到落后最新时间戳 300 ms ( 默认等待窗口 ), 边界前后各检查一次
+ *      advanceVideo 之后不超过该时间戳的音频不再等待视频
+ *      超过等待窗口才到达的数据包, 时间戳修正为上一个发出的时间戳
+ *      等待窗口为 0 时按到达顺序发出, clear 释放所有数据包
+ *
+ * 运行方式 : av_interleaver_test
+ */
+
+#include <string.h>
+#include <deque>
+#include <vector>
+#include "../AVInterleaver.h"
+#include "HostTest.h"
+
+/**
+ * 测试数据包, 只设置类型与时间戳, 交织器不访问数据部分
+ */
+static RTMPPacket *createPacket(uint8_t type, uint32_t timestamp) {
+    RTMPPacket *packet = new RTMPPacket;
+    memset(packet, 0, sizeof(RTMPPacket));
+    packet->m_packetType = type;
+    packet->m_nTimeStamp = timestamp;
+    return packet;
+}
+
+static RTMPPacket *audio(uint32_t timestamp) {
+    return createPacket(RTMP_PACKET_TYPE_AUDIO, timestamp);
+}
+
+static RTMPPacket *video(uint32_t timestamp) {
+    return createPacket(RTMP_PACKET_TYPE_VIDEO, timestamp);
+}
+
+static int releasedPackets = 0;
+
+static void releasePacket(RTMPPacket *&packet) {
+    delete packet;
+    packet = 0;
+    releasedPackets++;
+}
+
+/**
+ * 取出当前可以发出的所有数据包
+ */
+static std::vector<RTMPPacket *> popAll(AVInterleaver &interleaver) {
+    std::vector<RTMPPacket *> packets;
+    RTMPPacket *packet;
+    while ((packet = interleaver.pop())) {
+        packets.push_back(packet);
+    }
+    return packets;
+}
+
+static void release(std::vector<RTMPPacket *> &packets) {
+    for (size_t i = 0; i < packets.size(); i++) {
+        releasePacket(packets[i]);
+    }
+    packets.clear();
+}
+
+/**
+ * 两路都有数据时按时间戳顺序发出, 时间戳相同时先发音频
+ */
+static void testOrdering() {
+    AVInterleaver interleaver;
+    interleaver.setReleaseHandle(releasePacket);
+    interleaver.push(video(40));
+    interleaver.push(video(80));
+    interleaver.push(audio(0));
+    interleaver.push(audio(40));
+    interleaver.push(audio(100));
+
+    std::vector<RTMPPacket *> packets = popAll(interleaver);
+    // 音频 100 之前视频一路已经没有数据, 在等待窗口内等待视频
+    CHECK_EQ(4, packets.size());
+    CHECK_EQ(0, packets[0]->m_nTimeStamp);
+    CHECK_EQ(RTMP_PACKET_TYPE_AUDIO, packets[1]->m_packetType);
+    CHECK_EQ(40, packets[1]->m_nTimeStamp);
+    CHECK_EQ(RTMP_PACKET_TYPE_VIDEO, packets[2]->m_packetType);
+    CHECK_EQ(40, packets[2]->m_nTimeStamp);
+    CHECK_EQ(80, packets[3]->m_nTimeStamp);
+    CHECK_EQ(1, interleaver.size());
+    CHECK_EQ(0, interleaver.getAdjustedPackets());
+    release(packets);
+}
+
+/**
+ * 视频编码滞后音频 150 ms, 两路按到达顺序放入, 发出的时间戳有序且不修正
+ */
+static void testEncodeDelay() {
+    AVInterleaver interleaver;
+    interleaver.setReleaseHandle(releasePacket);
+
+    // 按到达时间模拟 : 音频每 23 ms 一个, 编码后立即到达; 视频每 33 ms 一帧, 编码后 150 ms 到达
+    std::deque<uint32_t> pendingVideo;
+    uint32_t nextAudio = 0;
+    uint32_t nextVideo = 0;
+    std::vector<RTMPPacket *> emitted;
+    for (uint32_t now = 0; now <= 5000; now++) {
+        if (now == nextAudio) {
+            interleaver.push(audio(now));
+            nextAudio += 23;
+        }
+        if (now == nextVideo) {
+            pendingVideo.push_back(now);
+            nextVideo += 33;
+        }
+        while (!pendingVideo.empty() && pendingVideo.front() + 150 <= now) {
+            interleaver.push(video(pendingVideo.front()));
+            pendingVideo.pop_front();
+        }
+        std::vector<RTMPPacket *> packets = popAll(interleaver);
+        emitted.insert(emitted.end(), packets.begin(), packets.end());
+    }
+
+    int ordered = 1;
+    for (size_t i = 1; i < emitted.size(); i++) {
+        ordered &= emitted[i - 1]->m_nTimeStamp <= emitted[i]->m_nTimeStamp;
+    }
+    CHECK(ordered);
+    CHECK_EQ(0, interleaver.getAdjustedPackets());
+    // 等待中的数据包不超过等待窗口 ( 视频滞后 150 ms 内的音频 ), 其余全部发出
+    CHECK(emitted.size() > 300);
+    CHECK(interleaver.size() <= 300 / 23 + 1);
+    release(emitted);
+}
+
+/**
+ * 只有一路有数据时的等待窗口边界
+ */
+static void testWindow() {
+    AVInterleaver interleaver;
+    interleaver.setReleaseHandle(releasePacket);
+    interleaver.push(audio(1000));
+    CHECK(interleaver.pop() == 0);
+
+    // 最新时间戳落后 299 ms, 继续等待视频
+    interleaver.push(audio(1299));
+    CHECK(interleaver.pop() == 0);
+
+    // 落后 300 ms, 不再等待
+    interleaver.push(audio(1300));
+    std::vector<RTMPPacket *> packets = popAll(interleaver);
+    CHECK_EQ(1, packets.size());
+    CHECK_EQ(1000, packets[0]->m_nTimeStamp);
+    release(packets);
+
+    // 视频一路中断 ( 如切换摄像头 ), 之后只有视频 : 同样按窗口等待音频
+    interleaver.clear();
+    interleaver.push(video(2000));
+    interleaver.push(video(2033));
+    CHECK(interleaver.pop() == 0);
+    interleaver.push(video(2300));
+    packets = popAll(interleaver);
+    CHECK_EQ(1, packets.size());
+    CHECK_EQ(2000, packets[0]->m_nTimeStamp);
+    release(packets);
+}
+
+/**
+ * 静止画面跳过编码, advanceVideo 之后不超过该时间戳的音频不再等待视频
+ */
+static void testAdvanceVideo() {
+    AVInterleaver interleaver;
+    interleaver.setReleaseHandle(releasePacket);
+    interleaver.push(audio(100));
+    interleaver.push(audio(123));
+    CHECK(interleaver.pop() == 0);
+
+    interleaver.advanceVideo(110);
+    std::vector<RTMPPacket *> packets = popAll(interleaver);
+    CHECK_EQ(1, packets.size());
+    CHECK_EQ(100, packets[0]->m_nTimeStamp);
+    release(packets);
+
+    // 进度不会回退
+    interleaver.advanceVideo(50);
+    CHECK(interleaver.pop() == 0);
+    interleaver.advanceVideo(123);
+    packets = popAll(interleaver);
+    CHECK_EQ(1, packets.size());
+    CHECK_EQ(123, packets[0]->m_nTimeStamp);
+    release(packets);
+}
+
+/**
+ * 超过等待窗口才到达的数据包, 时间戳修正为上一个发出的时间戳
+ */
+static void testLatePacket() {
+    AVInterleaver interleaver;
+    interleaver.setReleaseHandle(releasePacket);
+    interleaver.push(audio(0));
+    interleaver.push(audio(500));
+    interleaver.push(audio(800));
+    // 音频 500 落后最新时间戳 300 ms, 不再等待视频
+    std::vector<RTMPPacket *> packets = popAll(interleaver);
+    CHECK_EQ(2, packets.size());
+    CHECK_EQ(500, packets[1]->m_nTimeStamp);
+    release(packets);
+
+    // 视频 200 到达时音频 500 已经发出, 修正为 500, 之后仍然按时间戳顺序发出
+    interleaver.push(video(200));
+    interleaver.push(video(900));
+    packets = popAll(interleaver);
+    CHECK_EQ(2, packets.size());
+    CHECK_EQ(RTMP_PACKET_TYPE_VIDEO, packets[0]->m_packetType);
+    CHECK_EQ(500, packets[0]->m_nTimeStamp);
+    CHECK_EQ(RTMP_PACKET_TYPE_AUDIO, packets[1]->m_packetType);
+    CHECK_EQ(800, packets[1]->m_nTimeStamp);
+    CHECK_EQ(1, interleaver.getAdjustedPackets());
+    release(packets);
+}
+
+/**
+ * 等待窗口为 0 时按到达顺序发出, clear 释放所有数据包
+ */
+static void testNoWindowAndClear() {
+    AVInterleaver interleaver;
+    interleaver.setReleaseHandle(releasePacket);
+    interleaver.setWindow(0);
+    interleaver.push(video(100));
+    std::vector<RTMPPacket *> packets = popAll(interleaver);
+    CHECK_EQ(1, packets.size());
+    release(packets);
+
+    interleaver.setWindow(DEFAULT_INTERLEAVE_WINDOW_MS);
+    interleaver.push(audio(200));
+    interleaver.push(audio(223));
+    interleaver.push(audio(246));
+    CHECK_EQ(3, interleaver.size());
+    int released = releasedPackets;
+    interleaver.clear();
+    CHECK_EQ(0, interleaver.size());
+    CHECK_EQ(released + 3, releasedPackets);
+}
+
+int main() {
+    testOrdering();
+    testEncodeDelay();
+    testWindow();
+    testAdvanceVideo();
+    testLatePacket();
+    testNoWindowAndClear();
+    return hostTestResult("av_interleaver_test");
+}
@@ -0,0 +1,320 @@
+//
+// Created by octopus on 2020/6/27.
+//
+
+/**
+ * RTMP 块发送基准测试
+ *
+ * 使用 socketpair 作为本地的 RTMP 服务器替身 : 接收线程读取推流端写入的数据, 按照 RTMP 块格式重组消息,
+ * 校验消息的类型, 长度, 数据内容, 统计收到的字节数
+ * 模拟 30 fps 视频 + 44100 Hz AAC 音频的数据包, 对比 :
+ *      1. RTMP_SendPacket, 默认块大小 128 字节 ( 修改前的推流方式 )
+ *      2. RTMP_SendPacket, 块大小 4096 字节
+ *      3. RtmpChunkWriter, 块大小 4096 字节, 每次合并发送 8 个数据包
+ * 输出每种方式的 send / sendmsg 系统调用次数, 块头字节数与耗时
+ *
+ * 系统调用次数通过链接选项 -Wl,--wrap=send,--wrap=sendmsg 统计
+ *
+ * 运行方式 : chunk_writer_benchmark [数据包个数]
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <pthread.h>
+#include <unistd.h>
+#include <sys/socket.h>
+#include <map>
+#include <vector>
+#include "../RtmpChunkWriter.h"
+
+/**
+ * 每次合并发送的数据包个数, 与 native-lib.cpp 中的 SEND_BATCH_SIZE 一致
+ */
+#define SEND_BATCH_SIZE 8
+
+#define VIDEO_CHANNEL 10
+#define AUDIO_CHANNEL 0x11
+#define STREAM_ID 1
+
+static long packetCount = 20000;
+
+static long sendCalls = 0;
+
+extern "C" {
+ssize_t __real_send(int socket, const void *buffer, size_t length, int flags);
+ssize_t __real_sendmsg(int socket, const struct msghdr *message, int flags);
+
+ssize_t __wrap_send(int socket, const void *buffer, size_t length, int flags) {
+    sendCalls++;
+    return __real_send(socket, buffer, length, flags);
+}
+
+ssize_t __wrap_sendmsg(int socket, const struct msghdr *message, int flags) {
+    sendCalls++;
+    return __real_sendmsg(socket, message, flags);
+}
+}
+
+static long nowNanos() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000000000L + ts.tv_nsec;
+}
+
+/**
+ * 第 index 个数据包的大小, 每 5 个数据包中 2 个视频帧 3 个 AAC 数据包, 每 60 个视频帧一个关键帧
+ */
+static int packetSize(long index) {
+    long frame = index * 2 / 5;
+    if (index % 5 == 0 || index % 5 == 2) {
+        return frame % 60 == 0 ? 60 * 1024 : 4 * 1024;
+    }
+    return 370;
+}
+
+static int isVideo(long index) {
+    return index % 5 == 0 || index % 5 == 2;
+}
+
+/**
+ * 数据包内容, 接收端据此校验
+ */
+static uint8_t bodyByte(long index, uint32_t offset) {
+    return (uint8_t) (index * 31 + offset * 7);
+}
+
+static RTMPPacket *createPacket(long index) {
+    int size = packetSize(index);
+    RTMPPacket *packet = new RTMPPacket;
+    memset(packet, 0, sizeof(RTMPPacket));
+    char *buffer = static_cast<char *>(malloc(size + RTMP_MAX_HEADER_SIZE));
+    packet->m_body = buffer + RTMP_MAX_HEADER_SIZE;
+    for (int i = 0; i < size; i++) {
+        packet->m_body[i] = bodyByte(index, i);
+    }
+    packet->m_nBodySize = size;
+    packet->m_packetType = isVideo(index) ? RTMP_PACKET_TYPE_VIDEO : RTMP_PACKET_TYPE_AUDIO;
+    packet->m_nChannel = isVideo(index) ? VIDEO_CHANNEL : AUDIO_CHANNEL;
+    packet->m_headerType = isVideo(index) ? RTMP_PACKET_SIZE_MEDIUM : RTMP_PACKET_SIZE_LARGE;
+    packet->m_nTimeStamp = isVideo(index) ? (uint32_t) (index * 2 / 5 * 33) : (uint32_t) (index * 3 / 5 * 23);
+    packet->m_nInfoField2 = STREAM_ID;
+    return packet;
+}
+
+static void freePacket(RTMPPacket *packet) {
+    free(packet->m_body - RTMP_MAX_HEADER_SIZE);
+    delete packet;
+}
+
+// ---------------------------------------------------------------- RTMP 服务器替身
+
+/**
+ * 接收端重组消息时, 每个块流的状态
+ */
+struct ReceiveStream {
+    uint32_t length;
+    uint8_t type;
+    uint32_t received;
+    int extended;
+    std::vector<uint8_t> body;
+};
+
+struct ReceiveResult {
+    int socket;
+    long bytes;
+    long mediaMessages;
+    long errors;
+};
+
+static int readFully(int socket, uint8_t *buffer, int length, long *bytes) {
+    int offset = 0;
+    while (offset < length) {
+        ssize_t n = read(socket, buffer + offset, length - offset);
+        if (n <= 0) {
+            return 0;
+        }
+        offset += n;
+    }
+    *bytes += length;
+    return 1;
+}
+
+static void *receiveThread(void *args) {
+    ReceiveResult *result = static_cast<ReceiveResult *>(args);
+    int chunkSize = 128;
+    std::map<int, ReceiveStream> streams;
+    uint8_t header[16];
+
+    while (true) {
+        if (!readFully(result->socket, header, 1, &result->bytes)) {
+            break;
+        }
+        int fmt = header[0] >> 6;
+        int channel = header[0] & 0x3F;
+        ReceiveStream &stream = streams[channel];
+        static const int MESSAGE_HEADER_SIZE[] = {11, 7, 3, 0};
+        int headerSize = MESSAGE_HEADER_SIZE[fmt];
+        if (headerSize && !readFully(result->socket, header, headerSize, &result->bytes)) {
+            break;
+        }
+        if (fmt <= 1) {
+            stream.length = (header[3] << 16) | (header[4] << 8) | header[5];
+            stream.type = header[6];
+        }
+        if (fmt <= 2) {
+            uint32_t timestamp = (header[0] << 16) | (header[1] << 8) | header[2];
+            stream.extended = timestamp == 0xFFFFFF;
+        }
+        if (stream.extended && !readFully(result->socket, header, 4, &result->bytes)) {
+            break;
+        }
+        if (stream.received == 0) {
+            stream.body.resize(stream.length);
+        }
+        uint32_t chunk = stream.length - stream.received;
+        if (chunk > (uint32_t) chunkSize) {
+            chunk = chunkSize;
+        }
+        if (chunk && !readFully(result->socket, &stream.body[stream.received], chunk, &result->bytes)) {
+            break;
+        }
+        stream.received += chunk;
+        if (stream.received < stream.length) {
+            continue;
+        }
+        stream.received = 0;
+
+        if (stream.type == 0x01) {
+            // Set Chunk Size
+            chunkSize = (stream.body[0] << 24) | (stream.body[1] << 16) | (stream.body[2] << 8) | stream.body[3];
+            continue;
+        }
+        // 校验音视频消息内容
+        long index = result->mediaMessages++;
+        int expectedType = isVideo(index) ? RTMP_PACKET_TYPE_VIDEO : RTMP_PACKET_TYPE_AUDIO;
+        if (stream.type != expectedType || stream.length != (uint32_t) packetSize(index)) {
+            result->errors++;
+            continue;
+        }
+        // 只校验前 16 字节与最后 16 字节, RTMP_SendPacket 会将后续块头写入数据包中间
+        for (uint32_t i = 0; i < stream.length; i++) {
+            if ((i < 16 || i + 16 >= stream.length) && stream.body[i] != bodyByte(index, i)) {
+                result->errors++;
+                break;
+            }
+        }
+    }
+    return 0;
+}
+
+// ---------------------------------------------------------------- 推流端
+
+struct RunResult {
+    double nanosPerPacket;
+    long calls;
+    long headerBytes;
+    long errors;
+};
+
+/**
+ * @param chunkSize 块大小
+ * @param useWriter 是否使用 RtmpChunkWriter, 否则使用 RTMP_SendPacket
+ */
+static RunResult run(int chunkSize, int useWriter) {
+    int sockets[2];
+    socketpair(AF_UNIX, SOCK_STREAM, 0, sockets);
+
+    ReceiveResult receiveResult;
+    memset(&receiveResult, 0, sizeof(receiveResult));
+    receiveResult.socket = sockets[1];
+    pthread_t receiver;
+    pthread_create(&receiver, 0, receiveThread, &receiveResult);
+
+    RTMP *rtmp = RTMP_Alloc();
+    RTMP_Init(rtmp);
+    rtmp->m_sb.sb_socket = sockets[0];
+    // RtmpChunkWriter 使用连接的流 ID, 与数据包中的流 ID 一致
+    rtmp->m_stream_id = STREAM_ID;
+
+    RtmpChunkWriter writer;
+    writer.attach(rtmp);
+    if (chunkSize != 128) {
+        writer.setChunkSize(chunkSize);
+    }
+    if (!useWriter) {
+        // 关联后 socket 是非阻塞的, RTMP_SendPacket 需要阻塞 socket, 设置块大小后取消关联
+        writer.attach(0);
+    }
+
+    std::vector<RTMPPacket *> packets;
+    for (long i = 0; i < packetCount; i++) {
+        packets.push_back(createPacket(i));
+    }
+
+    long bodyBytes = 0;
+    for (long i = 0; i < packetCount; i++) {
+        bodyBytes += packets[i]->m_nBodySize;
+    }
+
+    sendCalls = 0;
+    long start = nowNanos();
+    if (useWriter) {
+        for (long i = 0; i < packetCount; i += SEND_BATCH_SIZE) {
+            long count = packetCount - i < SEND_BATCH_SIZE ? packetCount - i : SEND_BATCH_SIZE;
+            writer.send(&packets[i], (int) count);
+        }
+    } else {
+        for (long i = 0; i < packetCount; i++) {
+            RTMP_SendPacket(rtmp, packets[i], FALSE);
+        }
+    }
+    long elapsed = nowNanos() - start;
+    long calls = sendCalls;
+
+    shutdown(sockets[0], SHUT_WR);
+    pthread_join(receiver, 0);
+    close(sockets[0]);
+    close(sockets[1]);
+    // RTMP_Free 会关闭 socket, 这里已经关闭
+    rtmp->m_sb.sb_socket = -1;
+    RTMP_Free(rtmp);
+    for (long i = 0; i < packetCount; i++) {
+        freePacket(packets[i]);
+    }
+
+    RunResult result;
+    result.nanosPerPacket = (double) elapsed / packetCount;
+    result.calls = calls;
+    // 接收到的总字节数减去消息数据, 减去 Set Chunk Size 消息的 4 字节数据
+    result.headerBytes = receiveResult.bytes - bodyBytes - (chunkSize != 128 ? 4 : 0);
+    result.errors = receiveResult.errors + (receiveResult.mediaMessages != packetCount);
+    return result;
+}
+
+static void print(const char *name, RunResult result) {
+    // 30 fps 视频时每秒约 75 个数据包
+    double packetsPerSecond = 75.0;
+    printf("%-36s : %7.0f ns/packet, 系统调用 %.1f 次/秒, 块头 %.0f 字节/秒%s\n",
+           name, result.nanosPerPacket,
+           result.calls * packetsPerSecond / packetCount,
+           result.headerBytes * packetsPerSecond / packetCount,
+           result.errors ? ", 校验失败" : "");
+}
+
+int main(int argc, char **argv) {
+    if (argc > 1) {
+        packetCount = atol(argv[1]);
+    }
+
+    RunResult librtmp128 = run(128, 0);
+    RunResult librtmp4096 = run(4096, 0);
+    RunResult writer4096 = run(4096, 1);
+
+    print("RTMP_SendPacket, 块大小 128", librtmp128);
+    print("RTMP_SendPacket, 块大小 4096", librtmp4096);
+    print("RtmpChunkWriter, 块大小 4096, 合并 8 个", writer4096);
+
+    return (librtmp128.errors || librtmp4096.errors || writer4096.errors) ? 1 : 0;
+}
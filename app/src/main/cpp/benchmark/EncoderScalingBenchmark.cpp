@@ -0,0 +1,127 @@
+//
+// Created by octopus on 2020/7/2.
+//
+
+/**
+ * x264 多线程编码扩展性基准测试
+ *
+ * 使用 VedioChannel 编码合成的 NV21 画面 ( 包括 NV21 旋转转换, x264 编码, RTMP 数据包封装 ),
+ * 分别使用 1 ~ N 个 条带多线程 / 帧级多线程 编码, 统计编码帧率与相对单线程的加速比
+ *
+ * 运行方式 : encoder_scaling_benchmark [宽度] [高度] [帧数] [最大线程数] [预设]
+ *      默认 1280 720 300 CPU 核数 ultrafast
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include "../VedioChannel.h"
+#include "SyntheticMedia.h"
+
+/**
+ * 合成画面的个数, 循环使用
+ */
+#define SOURCE_FRAMES 16
+
+/**
+ * 正式计时之前预热编码的帧数, 帧级多线程需要先填满编码流水线
+ */
+#define WARM_UP_FRAMES 30
+
+static PacketPool packetPool;
+
+/**
+ * 编码输出的 RTMP 数据包个数与字节数
+ */
+static long outputPackets = 0;
+static long outputBytes = 0;
+
+static long nowNanos() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000000000L + ts.tv_nsec;
+}
+
+static void onPacket(RTMPPacket *packet) {
+    outputPackets++;
+    outputBytes += packet->m_nBodySize;
+    packetPool.recycle(packet);
+}
+
+/**
+ * 使用指定的线程配置编码, 返回编码帧率
+ */
+static double run(uint8_t **frames, int width, int height, int frameCount, const char *preset,
+                  int threads, int slicedThreads) {
+    EncoderProfile profile;
+    strncpy(profile.preset, preset, sizeof(profile.preset) - 1);
+    profile.threads = threads;
+    profile.slicedThreads = slicedThreads;
+
+    VedioChannel *channel = new VedioChannel;
+    channel->setPacketPool(&packetPool);
+    channel->setRTMPPacketPackUpCallBack(onPacket);
+    channel->setVideoEncoderParameters(width, height, 30, 2000000, profile);
+
+    uint32_t timestamp = 0;
+    for (int i = 0; i < WARM_UP_FRAMES; i++, timestamp += 33) {
+        channel->encodeCameraData(reinterpret_cast<int8_t *>(frames[i % SOURCE_FRAMES]),
+                                  timestamp);
+    }
+
+    outputPackets = 0;
+    outputBytes = 0;
+    long start = nowNanos();
+    for (int i = 0; i < frameCount; i++, timestamp += 33) {
+        channel->encodeCameraData(reinterpret_cast<int8_t *>(frames[i % SOURCE_FRAMES]),
+                                  timestamp);
+    }
+    long elapsed = nowNanos() - start;
+    delete channel;
+
+    double fps = frameCount * 1e9 / elapsed;
+    printf("%-8s threads %2d  %7.1f fps  %6.2f ms/frame  packets %ld  %.1f KB/frame\n",
+           slicedThreads ? "sliced" : "frame", threads, fps, elapsed / 1e6 / frameCount,
+           outputPackets, outputBytes / 1024.0 / (outputPackets > 0 ? outputPackets : 1));
+    return fps;
+}
+
+int main(int argc, char **argv) {
+    int width = argc > 1 ? atoi(argv[1]) : 1280;
+    int height = argc > 2 ? atoi(argv[2]) : 720;
+    int frameCount = argc > 3 ? atoi(argv[3]) : 300;
+    int maxThreads = argc > 4 ? atoi(argv[4]) : static_cast<int>(sysconf(_SC_NPROCESSORS_ONLN));
+    const char *preset = argc > 5 ? argv[5] : "ultrafast";
+    if (maxThreads < 1) {
+        maxThreads = 1;
+    }
+
+    uint8_t *frames[SOURCE_FRAMES];
+    for (int i = 0; i < SOURCE_FRAMES; i++) {
+        frames[i] = new uint8_t[width * height * 3 / 2];
+        fillSyntheticNV21(frames[i], width, height, i);
+    }
+
+    printf("%dx%d %d frames, preset %s, 1 ~ %d threads\n", width, height, frameCount, preset,
+           maxThreads);
+
+    double slicedBase = 0;
+    double frameBase = 0;
+    for (int threads = 1; threads <= maxThreads; threads++) {
+        double sliced = run(frames, width, height, frameCount, preset, threads, 1);
+        double frame = run(frames, width, height, frameCount, preset, threads, 0);
+        if (threads == 1) {
+            slicedBase = sliced;
+            frameBase = frame;
+        }
+        printf("         threads %2d  speedup sliced %.2fx  frame %.2fx\n", threads,
+               sliced / slicedBase, frame / frameBase);
+    }
+
+    for (int i = 0; i < SOURCE_FRAMES; i++) {
+        delete[] frames[i];
+    }
+    return 0;
+}
@@ -0,0 +1,255 @@
+//
+// Created by octopus on 2020/7/14.
+//
+
+/**
+ * GOP 缓存正确性测试
+ *
+ * 重连预热只能从关键帧开始, 覆盖 GOP 缓存的裁剪规则 :
+ *      收到第一个关键帧之前的音频与视频帧直接归还, 不缓存
+ *      只保留最新的 AAC / AVC 序列头, 新的关键帧到来时归还上一个 GOP
+ *      当前 GOP 超过缓存上限时整个 GOP 作废, 直到下一个关键帧
+ *      预热数据包的顺序 : AAC 序列头, AVC 序列头, 当前 GOP; 没有 AVC 序列头时不输出 GOP
+ * 以及重连时是否发送缓存 GOP 的判断 : 待发送队列中的第一个视频帧是否是关键帧
+ *
+ * 运行方式 : gop_cache_test
+ */
+
+#include <string.h>
+#include <vector>
+#include "../GopCache.h"
+#include "../CongestionController.h"
+#include "HostTest.h"
+
+static int releasedPackets = 0;
+
+static void releasePacket(RTMPPacket *&packet) {
+    delete[] packet->m_body;
+    delete packet;
+    packet = 0;
+    releasedPackets++;
+}
+
+static RTMPPacket *createPacket(uint8_t type, uint32_t timestamp, const uint8_t *body,
+                                uint32_t size) {
+    RTMPPacket *packet = new RTMPPacket;
+    memset(packet, 0, sizeof(RTMPPacket));
+    packet->m_packetType = type;
+    packet->m_nTimeStamp = timestamp;
+    packet->m_nBodySize = size;
+    packet->m_body = new char[size];
+    memcpy(packet->m_body, body, size);
+    return packet;
+}
+
+static RTMPPacket *audioHeader() {
+    static const uint8_t body[] = {0xAF, 0x00, 0x12, 0x10};
+    return createPacket(RTMP_PACKET_TYPE_AUDIO, 0, body, sizeof(body));
+}
+
+static RTMPPacket *audio(uint32_t timestamp) {
+    static const uint8_t body[] = {0xAF, 0x01, 0x21, 0x22, 0x23, 0x24};
+    return createPacket(RTMP_PACKET_TYPE_AUDIO, timestamp, body, sizeof(body));
+}
+
+static RTMPPacket *videoHeader() {
+    static const uint8_t body[] = {0x17, 0x00, 0x00, 0x00, 0x00, 0x01, 0x42, 0xC0, 0x1F};
+    return createPacket(RTMP_PACKET_TYPE_VIDEO, 0, body, sizeof(body));
+}
+
+/**
+ * 视频帧, 一个 NAL 单元
+ * @param frameType  1 关键帧, 2 非关键帧
+ * @param nalHeader  NAL 头 : 0x65 IDR 条带, 0x41 参考帧条带, 0x01 非参考帧条带
+ */
+static RTMPPacket *videoFrame(uint32_t timestamp, int frameType, uint8_t nalHeader,
+                              uint32_t nalLength) {
+    std::vector<uint8_t> body(9 + nalLength, 0x5A);
+    body[0] = static_cast<uint8_t>((frameType << 4) | 7);
+    body[1] = 0x01;
+    body[2] = body[3] = body[4] = 0x00;
+    body[5] = static_cast<uint8_t>(nalLength >> 24);
+    body[6] = static_cast<uint8_t>(nalLength >> 16);
+    body[7] = static_cast<uint8_t>(nalLength >> 8);
+    body[8] = static_cast<uint8_t>(nalLength);
+    body[9] = nalHeader;
+    return createPacket(RTMP_PACKET_TYPE_VIDEO, timestamp, body.data(), body.size());
+}
+
+static RTMPPacket *keyFrame(uint32_t timestamp, uint32_t nalLength = 100) {
+    return videoFrame(timestamp, 1, 0x65, nalLength);
+}
+
+static RTMPPacket *interFrame(uint32_t timestamp, uint32_t nalLength = 40) {
+    return videoFrame(timestamp, 2, 0x41, nalLength);
+}
+
+static RTMPPacket *disposableFrame(uint32_t timestamp) {
+    return videoFrame(timestamp, 2, 0x01, 20);
+}
+
+/**
+ * 取出预热数据包, 同时检查返回值与输出的数据包个数一致
+ */
+static std::vector<RTMPPacket *> warmUp(GopCache &cache, int includeGop) {
+    std::vector<RTMPPacket *> packets;
+    CHECK_EQ(cache.getWarmUpPackets(packets, includeGop), packets.size());
+    return packets;
+}
+
+/**
+ * 第一个关键帧之前的数据包不缓存, 序列头只保留最新的
+ */
+static void testBeforeFirstKeyFrame() {
+    GopCache cache;
+    cache.setReleaseHandle(releasePacket);
+    releasedPackets = 0;
+
+    RTMPPacket *oldVideoHeader = videoHeader();
+    cache.onSent(oldVideoHeader);
+    cache.onSent(audioHeader());
+    cache.onSent(audio(10));
+    cache.onSent(interFrame(33));
+    cache.onSent(disposableFrame(66));
+    CHECK_EQ(3, releasedPackets);
+    CHECK_EQ(0, cache.getGopPackets());
+
+    // 新的 AVC 序列头 ( 如重新设置编码参数 ) 替换旧的
+    RTMPPacket *newVideoHeader = videoHeader();
+    cache.onSent(newVideoHeader);
+    CHECK_EQ(4, releasedPackets);
+
+    // 没有有效的 GOP, 即使要求包含 GOP 也只输出序列头, 顺序为 AAC, AVC
+    std::vector<RTMPPacket *> packets = warmUp(cache, 1);
+    CHECK_EQ(2, packets.size());
+    CHECK_EQ(RTMP_PACKET_TYPE_AUDIO, packets[0]->m_packetType);
+    CHECK(packets[1] == newVideoHeader);
+
+    cache.clear();
+    CHECK_EQ(6, releasedPackets);
+    CHECK_EQ(0, warmUp(cache, 1).size());
+}
+
+/**
+ * 只缓存从最新的关键帧开始的数据包
+ */
+static void testLatestGop() {
+    GopCache cache;
+    cache.setReleaseHandle(releasePacket);
+    releasedPackets = 0;
+
+    cache.onSent(audioHeader());
+    cache.onSent(videoHeader());
+    RTMPPacket *firstKeyFrame = keyFrame(0);
+    cache.onSent(firstKeyFrame);
+    cache.onSent(audio(10));
+    cache.onSent(interFrame(33));
+    cache.onSent(disposableFrame(66));
+    CHECK_EQ(4, cache.getGopPackets());
+    CHECK_EQ(0, releasedPackets);
+
+    std::vector<RTMPPacket *> packets = warmUp(cache, 1);
+    CHECK_EQ(6, packets.size());
+    CHECK(packets[2] == firstKeyFrame);
+    CHECK_EQ(66, packets[5]->m_nTimeStamp);
+
+    // 不包含 GOP ( 待发送队列已经从关键帧开始 ) 时只输出序列头
+    CHECK_EQ(2, warmUp(cache, 0).size());
+
+    // 新的关键帧, 上一个 GOP 全部归还
+    long gopBytes = cache.getGopBytes();
+    RTMPPacket *secondKeyFrame = keyFrame(2000);
+    cache.onSent(secondKeyFrame);
+    cache.onSent(audio(2010));
+    CHECK_EQ(4, releasedPackets);
+    CHECK_EQ(2, cache.getGopPackets());
+    CHECK_EQ(secondKeyFrame->m_nBodySize + 6, cache.getGopBytes());
+    CHECK(cache.getGopBytes() < gopBytes);
+
+    packets = warmUp(cache, 1);
+    CHECK_EQ(4, packets.size());
+    CHECK(packets[2] == secondKeyFrame);
+    CHECK_EQ(2010, packets[3]->m_nTimeStamp);
+}
+
+/**
+ * 当前 GOP 超过缓存上限时作废, 直到下一个关键帧
+ */
+static void testMaxBytes() {
+    GopCache cache;
+    cache.setReleaseHandle(releasePacket);
+    cache.setMaxBytes(1000);
+    releasedPackets = 0;
+
+    cache.onSent(audioHeader());
+    cache.onSent(videoHeader());
+    cache.onSent(keyFrame(0, 600));
+    cache.onSent(interFrame(33, 300));
+    CHECK_EQ(2, cache.getGopPackets());
+
+    // 超过上限, 整个 GOP 归还
+    cache.onSent(interFrame(66, 300));
+    CHECK_EQ(3, releasedPackets);
+    CHECK_EQ(0, cache.getGopPackets());
+    CHECK_EQ(0, cache.getGopBytes());
+
+    // 之后的非关键帧与音频不再缓存, 预热只有序列头
+    cache.onSent(interFrame(100));
+    cache.onSent(audio(110));
+    CHECK_EQ(5, releasedPackets);
+    CHECK_EQ(2, warmUp(cache, 1).size());
+
+    // 下一个关键帧重新开始缓存
+    cache.onSent(keyFrame(2000, 200));
+    cache.onSent(interFrame(2033, 100));
+    CHECK_EQ(2, cache.getGopPackets());
+    CHECK_EQ(4, warmUp(cache, 1).size());
+}
+
+/**
+ * 没有 AVC 序列头时不输出 GOP, 服务器没有序列头无法解码
+ */
+static void testWithoutVideoHeader() {
+    GopCache cache;
+    cache.setReleaseHandle(releasePacket);
+    cache.onSent(audioHeader());
+    cache.onSent(keyFrame(0));
+    cache.onSent(audio(10));
+    CHECK_EQ(2, cache.getGopPackets());
+    CHECK_EQ(1, warmUp(cache, 1).size());
+}
+
+/**
+ * 重连时根据待发送队列中的第一个视频帧是否是关键帧, 决定是否发送缓存的 GOP
+ */
+static void testBacklogStartsWithKeyFrame() {
+    CongestionController backlog;
+    backlog.setReleaseHandle(releasePacket);
+    backlog.push(videoHeader());
+    backlog.push(audio(10));
+    CHECK_EQ(0, backlog.startsWithKeyFrame());
+    backlog.push(keyFrame(33));
+    backlog.push(interFrame(66));
+    CHECK_EQ(1, backlog.startsWithKeyFrame());
+
+    // 接续断线前的 GOP, 需要先发送缓存的 GOP
+    backlog.clear();
+    backlog.push(audio(100));
+    backlog.push(disposableFrame(133));
+    backlog.push(keyFrame(166));
+    CHECK_EQ(0, backlog.startsWithKeyFrame());
+
+    // 裁剪到最新的关键帧之后从关键帧开始
+    backlog.trimToLatestKeyFrame();
+    CHECK_EQ(1, backlog.startsWithKeyFrame());
+    CHECK_EQ(1, backlog.size());
+}
+
+int main() {
+    testBeforeFirstKeyFrame();
+    testLatestGop();
+    testMaxBytes();
+    testWithoutVideoHeader();
+    testBacklogStartsWithKeyFrame();
+    return hostTestResult("gop_cache_test");
+}
@@ -0,0 +1,50 @@
+//
+// Created by octopus on 2020/7/14.
+//
+
+#ifndef RTMP_PUSHER_BENCHMARK_HOSTTEST_H
+#define RTMP_PUSHER_BENCHMARK_HOSTTEST_H
+
+/**
+ * 主机端行为测试使用的断言宏
+ *
+ * 不依赖测试框架, 每个测试是一个可执行文件, 通过 ctest 运行
+ * 断言失败时输出文件名, 行号与表达式, 继续执行后面的检查, 最后由 hostTestResult 返回进程退出码
+ */
+
+#include <stdio.h>
+
+static int hostTestFailures = 0;
+static int hostTestChecks = 0;
+
+#define CHECK(expression) \
+    do { \
+        hostTestChecks++; \
+        if (!(expression)) { \
+            hostTestFailures++; \
+            printf("%s:%d: 检查失败 : %s\n", __FILE__, __LINE__, #expression); \
+        } \
+    } while (0)
+
+#define CHECK_EQ(expected, actual) \
+    do { \
+        hostTestChecks++; \
+        long long hostTestExpected = static_cast<long long>(expected); \
+        long long hostTestActual = static_cast<long long>(actual); \
+        if (hostTestExpected != hostTestActual) { \
+            hostTestFailures++; \
+            printf("%s:%d: 检查失败 : %s == %s, 期望 %lld, 实际 %lld\n", __FILE__, __LINE__, \
+                   #expected, #actual, hostTestExpected, hostTestActual); \
+        } \
+    } while (0)
+
+/**
+ * 输出检查结果
+ * @return 进程退出码, 全部通过时为 0
+ */
+static inline int hostTestResult(const char *name) {
+    printf("%s : %d 项检查, %d 项失败\n", name, hostTestChecks, hostTestFailures);
+    return hostTestFailures ? 1 : 0;
+}
+
+#endif //RTMP_PUSHER_BENCHMARK_HOSTTEST_H
@@ -0,0 +1,874 @@
+//
+// Created by octopus on 2020/7/6.
+//
+
+/**
+ * 本地回环推流测试, 在主机 ( x86_64 Linux ) 上运行, 不需要访问网络
+ *
+ * 与 native-lib.cpp 一起编译, 使用与 App 相同的推流路径 :
+ *      VedioChannel / AudioChannel 编码合成的 NV21 / PCM 数据, 按照真实时间送入
+ *      native-lib.cpp 中的 startRtmpPush 分发线程与各个目的地的推流线程 ( librtmp 连接 + RtmpChunkWriter 发送 )
+ *      推流到本进程中的 RtmpLoopbackServer, 服务器记录每个数据包的时间戳与到达时间
+ * 指定 --scenario 时, 推流端与服务器之间经过 ImpairmentProxy, 按照脚本限制带宽, 增加延迟抖动, 断流
+ * 指定 --destinations 时同时推流到多个服务器, 网络损伤只作用于主目的地, 其它目的地直接连接服务器
+ * 指定 --record 时同时录制 FLV 文件, 推流结束后解析该文件, 检查文件结构与 onMetaData
+ *
+ * 推流线程与服务器使用同一个 CLOCK_MONOTONIC 时钟, 可以直接计算 采集 到 服务器收到 的端到端延迟
+ *
+ * 输出 :
+ *      每秒 : 服务器收到的码率与视频帧数, 端到端延迟, 推流线程的发送延迟, 待发送队列与数据包队列长度
+ *      汇总 : 持续码率, 端到端延迟百分位数 ( 全部 / 音频 / 视频 ), 发送调度统计,
+ *             数据包顺序检查 ( 序列头在前, 每一路时间戳不回退, 音频领先视频不超过 SCHEDULER_AUDIO_LEAD_MS )
+ *      网络损伤的每个阶段 : 该阶段采集的视频帧送达的比例, 端到端延迟
+ *
+ * 运行方式 :
+ *      loopback_push_harness [--seconds 10] [--size 1280x720] [--fps 30] [--bitrate 2000000]
+ *                            [--preset ultrafast] [--chunk-size 4096] [--scenario lift]
+ *                            [--camera-switch 5] [--switch-repeat 1] [--destinations 2]
+ *                            [--record /tmp/loopback.flv] [--audio-priority 1] [--proxy-buffer 64]
+ *                            [--send-timeout 5000] [--static-scene 5]
+ *      --scenario  网络损伤脚本或预置场景, 格式见 ImpairmentProxy.h, 不指定 --seconds 时推流时长为脚本时长
+ *      --camera-switch  在第 N 秒模拟切换摄像头 : 与 App 相同, 以相同尺寸设置两次编码参数,
+ *                       之后 CAMERA_REOPEN_MS 毫秒内没有新的画面
+ *      --switch-repeat  切换摄像头期间是否重复编码上一帧画面, 默认 1
+ *      --destinations   推流目的地个数, 默认 1, 其它目的地单独输出 收到的数据, 端到端延迟, 顺序检查
+ *      --record         录制文件路径, 输出 录制的音视频 tag 个数, write 调用次数, 丢弃的数据包与文件检查结果
+ *      --audio-priority 是否启用音频优先的发送调度, 默认 1, 为 0 时按照时间戳顺序发送
+ *      --proxy-buffer   网络损伤代理的上行缓冲区 ( 路由器队列 ) 大小, 单位 KB, 默认 64
+ *      --send-timeout   写入截止时间, 单位毫秒, 默认 DEFAULT_SEND_TIMEOUT_MS
+ *                       blackout 阶段超过该时间时断开连接后重连, 推流结束时处于 blackout 阶段可以检查停止推流的耗时
+ *      --static-scene   启用静止画面检测, 从第 N 秒开始输入画面不再变化, N-M 表示第 M 秒画面恢复变化,
+ *                       输出跳过编码的帧数, 估计节省的编码耗时与数据量,
+ *                       静止期间视频帧与关键帧的最大间隔
+ *      数据包顺序检查失败, 或者没有收到数据时, 返回值为 1
+ */
+
+#include <jni.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <pthread.h>
+#include <string>
+#include <vector>
+#include <algorithm>
+#include "../RingQueue.h"
+#include "../CongestionController.h"
+#include "../FlvRecorder.h"
+#include "../PushDestination.h"
+#include "../StreamStats.h"
+#include "../VedioChannel.h"
+#include "../AudioChannel.h"
+#include "loopback/RtmpLoopbackServer.h"
+#include "loopback/ImpairmentProxy.h"
+#include "SyntheticMedia.h"
+
+#define AUDIO_SAMPLE_RATE 44100
+#define AUDIO_CHANNELS 2
+
+/**
+ * 每次送入 10 ms 的 PCM 数据, 与 AudioRecord 读取的粒度相近
+ */
+#define AUDIO_CHUNK_FRAMES (AUDIO_SAMPLE_RATE / 100)
+
+/**
+ * 合成画面的个数, 循环使用
+ */
+#define SOURCE_FRAMES 16
+
+/**
+ * 等待推流端连接与 publish 的超时时间, 单位毫秒
+ */
+#define PUBLISH_TIMEOUT_MS 5000
+
+/**
+ * 模拟切换摄像头时, 重新打开 Camera 的耗时, 单位毫秒
+ */
+#define CAMERA_REOPEN_MS 700
+
+/*
+    native-lib.cpp 中的推流状态与推流线程
+    JNI 方法需要 JNIEnv, 这里直接调用不依赖 JNIEnv 的部分
+ */
+extern VedioChannel *mVedioChannel;
+extern AudioChannel *mAudioChannel;
+extern int isStartRtmpPush;
+extern int readyForPush;
+extern int64_t pushStartTimeMs;
+extern int rtmpChunkSize;
+extern RingQueue<RTMPPacket *> packets;
+extern StreamStats streamStats;
+extern PushDestination destinations[MAX_PUSH_DESTINATIONS];
+extern FlvRecorder flvRecorder;
+extern std::string recordPath;
+extern int videoWidth;
+extern int videoHeight;
+extern int videoFps;
+
+void *startRtmpPush(void *args);
+
+void onCameraFrameDone(int encoded, long elapsedUs, uint32_t timestamp);
+
+extern "C" JNIEXPORT void JNICALL
+Java_kim_hsl_rtmp_LivePusher_native_1init(JNIEnv *env, jobject thiz);
+
+extern "C" JNIEXPORT void JNICALL
+Java_kim_hsl_rtmp_LivePusher_native_1setAudioPriority(JNIEnv *env, jobject thiz,
+                                                      jboolean enabled);
+
+extern "C" JNIEXPORT void JNICALL
+Java_kim_hsl_rtmp_LivePusher_native_1setSendTimeout(JNIEnv *env, jobject thiz, jint timeout_ms);
+
+static int64_t nowUs() {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return now.tv_sec * 1000000LL + now.tv_nsec / 1000;
+}
+
+static void sleepUntilUs(int64_t deadlineUs) {
+    struct timespec deadline;
+    deadline.tv_sec = deadlineUs / 1000000;
+    deadline.tv_nsec = (deadlineUs % 1000000) * 1000;
+    while (clock_nanosleep(CLOCK_MONOTONIC, TIMER_ABSTIME, &deadline, 0)) {
+    }
+}
+
+/**
+ * 与 native-lib.cpp 中的 toStreamTimestamp 相同, 相对于开始推流时间的 RTMP 时间戳
+ */
+static uint32_t streamTimestamp(int64_t timeUs) {
+    int64_t timestamp = timeUs / 1000 - pushStartTimeMs;
+    return timestamp > 0 ? static_cast<uint32_t>(timestamp) : 0;
+}
+
+static double percentile(std::vector<int64_t> &samples, double p) {
+    if (samples.empty()) {
+        return 0;
+    }
+    size_t index = static_cast<size_t>(p * (samples.size() - 1) + 0.5);
+    return samples[index];
+}
+
+/**
+ * 推流端每秒的采样
+ */
+struct PusherSample {
+    int64_t sendLatencyAvgMs;
+    int64_t sendLatencyMaxMs;
+    int64_t backlogPackets;
+    int64_t queuePackets;
+};
+
+/**
+ * 服务器端每秒的统计
+ */
+struct SinkSecond {
+    long bytes;
+    long tags;
+    long videoFrames;
+    int64_t latencyTotalMs;
+    int64_t latencyMaxMs;
+};
+
+/**
+ * 网络损伤每个阶段的统计, 视频帧按照采集时间归入阶段
+ */
+struct PhaseReport {
+    long videoFrames;
+    std::vector<int64_t> latencies;
+};
+
+/**
+ * 检查数据包顺序, 断线重连后的每个连接单独检查
+ *      第一个视频数据包是 AVC 序列头, 序列头之后的第一帧是关键帧
+ *      第一个音频数据包是 AAC 序列头
+ *      音频与视频各自的时间戳不回退
+ *      音频可以越过视频帧提前发送 ( SendScheduler ), 但最多领先 SCHEDULER_AUDIO_LEAD_MS 毫秒
+ * @return 发现的问题个数
+ */
+static int checkOrdering(const std::vector<ReceivedTag> &tags) {
+    int errors = 0;
+    int videoSeen = 0;
+    int videoFrameSeen = 0;
+    int audioSeen = 0;
+    long regressions = 0;
+    long reorders = 0;
+    uint32_t maxReorderMs = 0;
+    uint32_t lastAudioTimestamp = 0;
+    uint32_t lastVideoTimestamp = 0;
+    uint32_t maxTimestamp = 0;
+    for (size_t i = 0; i < tags.size(); i++) {
+        const ReceivedTag &tag = tags[i];
+        if (i > 0 && tag.session != tags[i - 1].session) {
+            // 新的连接, 服务器端重新开始解码
+            videoSeen = 0;
+            videoFrameSeen = 0;
+            audioSeen = 0;
+            lastAudioTimestamp = 0;
+            lastVideoTimestamp = 0;
+            maxTimestamp = 0;
+        }
+        if (tag.type == RTMP_PACKET_TYPE_VIDEO) {
+            if (!videoSeen && !tag.sequenceHeader) {
+                printf("顺序错误 : 第一个视频数据包不是 AVC 序列头\n");
+                errors++;
+            }
+            if (!tag.sequenceHeader && !videoFrameSeen) {
+                videoFrameSeen = 1;
+                if (!tag.keyframe) {
+                    printf("顺序错误 : 第一帧视频不是关键帧\n");
+                    errors++;
+                }
+            }
+            videoSeen = 1;
+        } else if (tag.type == RTMP_PACKET_TYPE_AUDIO) {
+            if (!audioSeen && !tag.sequenceHeader) {
+                printf("顺序错误 : 第一个音频数据包不是 AAC 序列头\n");
+                errors++;
+            }
+            audioSeen = 1;
+        }
+        uint32_t &lastTimestamp = tag.type == RTMP_PACKET_TYPE_AUDIO ? lastAudioTimestamp
+                                                                      : lastVideoTimestamp;
+        if (tag.timestamp < lastTimestamp) {
+            if (regressions < 5) {
+                printf("顺序错误 : 第 %zu 个数据包 ( 类型 %d ) 时间戳 %u 小于同类型的前一个数据包 %u\n",
+                       i, tag.type, tag.timestamp, lastTimestamp);
+            }
+            regressions++;
+        }
+        lastTimestamp = tag.timestamp;
+        if (tag.timestamp < maxTimestamp) {
+            // 另一路提前发送的数据包时间戳更大
+            reorders++;
+            maxReorderMs = std::max(maxReorderMs, maxTimestamp - tag.timestamp);
+        }
+        maxTimestamp = std::max(maxTimestamp, tag.timestamp);
+    }
+    if (regressions) {
+        printf("顺序错误 : 时间戳回退 %ld 次\n", regressions);
+        errors++;
+    }
+    if (maxReorderMs > SCHEDULER_AUDIO_LEAD_MS) {
+        printf("顺序错误 : 音视频交错 %ld 次, 最多相差 %u ms\n", reorders, maxReorderMs);
+        errors++;
+    }
+    if (!videoSeen || !audioSeen) {
+        printf("没有收到%s数据\n", !videoSeen ? "视频" : "音频");
+        errors++;
+    }
+    return errors;
+}
+
+static uint32_t readUint24(const uint8_t *in) {
+    return (in[0] << 16) | (in[1] << 8) | in[2];
+}
+
+static uint32_t readUint32(const uint8_t *in) {
+    return ((uint32_t) in[0] << 24) | (in[1] << 16) | (in[2] << 8) | in[3];
+}
+
+/**
+ * 在 onMetaData 中查找数值属性, 属性名之后是 AMF 数值类型标记与 8 字节大端 double
+ * @return 没有找到时返回 -1
+ */
+static double findMetaDataNumber(const uint8_t *body, uint32_t size, const char *name) {
+    size_t length = strlen(name);
+    for (size_t i = 2; i + length + 9 <= size; i++) {
+        size_t nameLength = (static_cast<size_t>(body[i - 2]) << 8) | body[i - 1];
+        if (nameLength == length && !memcmp(body + i, name, length)
+            && body[i + length] == AMF_NUMBER) {
+            return AMF_DecodeNumber(reinterpret_cast<const char *>(body + i + length + 1));
+        }
+    }
+    return -1;
+}
+
+/**
+ * 解析录制的 FLV 文件并检查 :
+ *      文件头, 每个 tag 之后的 PreviousTagSize 与 tag 长度一致, 文件在 tag 边界结束
+ *      第一个视频 tag 是 AVC 序列头, 之后的第一帧是关键帧, 时间戳不回退
+ *      onMetaData 中的 duration 与最后一个 tag 的时间戳一致, filesize 与文件大小一致
+ * @return 发现的问题个数
+ */
+static int checkRecordFile(const char *path) {
+    FILE *file = fopen(path, "rb");
+    if (!file) {
+        printf("录制文件检查 : 无法打开 %s\n", path);
+        return 1;
+    }
+    std::vector<uint8_t> data;
+    uint8_t chunk[64 * 1024];
+    size_t read;
+    while ((read = fread(chunk, 1, sizeof(chunk), file)) > 0) {
+        data.insert(data.end(), chunk, chunk + read);
+    }
+    fclose(file);
+
+    int errors = 0;
+    if (data.size() < 13 || memcmp(data.data(), "FLV", 3) || readUint32(data.data() + 5) != 9) {
+        printf("录制文件检查 : 文件头错误\n");
+        return 1;
+    }
+    long videoTags = 0;
+    long audioTags = 0;
+    long regressions = 0;
+    int videoState = 0;
+    uint32_t lastTimestamp = 0;
+    double duration = -1;
+    double fileSize = -1;
+    size_t offset = 13;
+    while (offset + 11 <= data.size()) {
+        const uint8_t *tag = data.data() + offset;
+        uint32_t size = readUint24(tag + 1);
+        uint32_t timestamp = readUint24(tag + 4) | (tag[7] << 24);
+        if (offset + 11 + size + 4 > data.size()) {
+            printf("录制文件检查 : 位置 %zu 的 tag 不完整\n", offset);
+            errors++;
+            break;
+        }
+        if (readUint32(tag + 11 + size) != 11 + size) {
+            printf("录制文件检查 : 位置 %zu 的 PreviousTagSize 错误\n", offset);
+            errors++;
+            break;
+        }
+        const uint8_t *body = tag + 11;
+        if (tag[0] == RTMP_PACKET_TYPE_INFO) {
+            duration = findMetaDataNumber(body, size, "duration");
+            fileSize = findMetaDataNumber(body, size, "filesize");
+        } else {
+            if (timestamp < lastTimestamp) {
+                regressions++;
+            }
+            lastTimestamp = timestamp;
+            if (tag[0] == RTMP_PACKET_TYPE_VIDEO) {
+                videoTags++;
+                if (videoState == 0) {
+                    videoState = size > 1 && body[1] == 0 ? 1 : -1;
+                } else if (videoState == 1) {
+                    videoState = (body[0] >> 4) == 1 ? 2 : -1;
+                }
+            } else if (tag[0] == RTMP_PACKET_TYPE_AUDIO) {
+                audioTags++;
+            }
+        }
+        offset += 11 + size + 4;
+    }
+    if (errors == 0 && offset != data.size()) {
+        printf("录制文件检查 : 文件没有在 tag 边界结束\n");
+        errors++;
+    }
+    if (videoState != 2) {
+        printf("录制文件检查 : 视频不是从 AVC 序列头与关键帧开始\n");
+        errors++;
+    }
+    if (regressions) {
+        printf("录制文件检查 : 时间戳回退 %ld 次\n", regressions);
+        errors++;
+    }
+    if (duration < 0 || duration * 1000 + 1 < lastTimestamp || duration * 1000 - 1 > lastTimestamp
+        || fileSize != data.size()) {
+        printf("录制文件检查 : onMetaData 错误, duration %.3f s, 最后时间戳 %u ms, "
+               "filesize %.0f, 文件大小 %zu\n", duration, lastTimestamp, fileSize, data.size());
+        errors++;
+    }
+    printf("录制文件 : 视频 %ld 个, 音频 %ld 个, 时长 %.3f s, %zu 字节, write 调用 %lld 次, "
+           "丢弃数据包 %lld 个\n", videoTags, audioTags, duration, data.size(),
+           static_cast<long long>(flvRecorder.getWriteCalls()),
+           static_cast<long long>(flvRecorder.getDroppedPackets()));
+    printf("录制文件检查 : %s\n", errors ? "失败" : "通过");
+    return errors;
+}
+
+int main(int argc, char **argv) {
+    int seconds = 10;
+    int width = 1280;
+    int height = 720;
+    int fps = 30;
+    int bitrate = 2000000;
+    const char *preset = "ultrafast";
+    const char *scenario = 0;
+    int secondsSet = 0;
+    int cameraSwitchSecond = 0;
+    int switchRepeat = 1;
+    int destinationCount = 1;
+    const char *recordFile = 0;
+    int audioPriority = 1;
+    int proxyBufferBytes = DEFAULT_IMPAIRMENT_BUFFER_BYTES;
+    int sendTimeoutMs = DEFAULT_SEND_TIMEOUT_MS;
+    int staticSceneSecond = 0;
+    int staticSceneEndSecond = 0;
+
+    for (int i = 1; i < argc; i++) {
+        const char *arg = argv[i];
+        const char *value = i + 1 < argc ? argv[i + 1] : 0;
+        if (!value) {
+            fprintf(stderr, "参数 %s 缺少取值\n", arg);
+            return 2;
+        }
+        if (!strcmp(arg, "--seconds")) {
+            seconds = atoi(value);
+            secondsSet = 1;
+        } else if (!strcmp(arg, "--size")) {
+            if (sscanf(value, "%dx%d", &width, &height) != 2 || width < 16 || height < 16
+                || width % 2 || height % 2) {
+                fprintf(stderr, "无效的分辨率 %s\n", value);
+                return 2;
+            }
+        } else if (!strcmp(arg, "--fps")) {
+            fps = atoi(value);
+        } else if (!strcmp(arg, "--bitrate")) {
+            bitrate = atoi(value);
+        } else if (!strcmp(arg, "--preset")) {
+            preset = value;
+        } else if (!strcmp(arg, "--chunk-size")) {
+            rtmpChunkSize = atoi(value);
+        } else if (!strcmp(arg, "--scenario")) {
+            scenario = value;
+        } else if (!strcmp(arg, "--camera-switch")) {
+            cameraSwitchSecond = atoi(value);
+        } else if (!strcmp(arg, "--switch-repeat")) {
+            switchRepeat = atoi(value);
+        } else if (!strcmp(arg, "--destinations")) {
+            destinationCount = atoi(value);
+            if (destinationCount < 1 || destinationCount > MAX_PUSH_DESTINATIONS) {
+                fprintf(stderr, "目的地个数取值范围 1 ~ %d\n", MAX_PUSH_DESTINATIONS);
+                return 2;
+            }
+        } else if (!strcmp(arg, "--record")) {
+            recordFile = value;
+        } else if (!strcmp(arg, "--send-timeout")) {
+            sendTimeoutMs = atoi(value);
+        } else if (!strcmp(arg, "--static-scene")) {
+            if (sscanf(value, "%d-%d", &staticSceneSecond, &staticSceneEndSecond) < 1) {
+                fprintf(stderr, "无效的静止画面时间 %s\n", value);
+                return 2;
+            }
+        } else if (!strcmp(arg, "--audio-priority")) {
+            audioPriority = atoi(value);
+        } else if (!strcmp(arg, "--proxy-buffer")) {
+            proxyBufferBytes = atoi(value) * 1024;
+        } else {
+            fprintf(stderr, "未知参数 %s\n", arg);
+            return 2;
+        }
+        i++;
+    }
+    std::vector<ImpairmentPhase> phases;
+    if (scenario) {
+        if (!parseImpairmentScenario(scenario, phases)) {
+            return 2;
+        }
+        if (!secondsSet) {
+            int durationMs = 0;
+            for (size_t i = 0; i < phases.size(); i++) {
+                durationMs += phases[i].durationMs;
+            }
+            seconds = (durationMs + 999) / 1000;
+        }
+    }
+    if (seconds <= 0) {
+        seconds = 1;
+    }
+    if (fps <= 0) {
+        fps = 30;
+    }
+
+    // 每个目的地一个服务器, 服务器同一时间只服务一个连接
+    RtmpLoopbackServer servers[MAX_PUSH_DESTINATIONS];
+    int ports[MAX_PUSH_DESTINATIONS];
+    for (int d = 0; d < destinationCount; d++) {
+        ports[d] = servers[d].start();
+        if (!ports[d]) {
+            fprintf(stderr, "本地 RTMP 服务器启动失败\n");
+            return 2;
+        }
+    }
+    RtmpLoopbackServer &server = servers[0];
+    int port = ports[0];
+    ImpairmentProxy proxy;
+    int pushPort = port;
+    if (scenario) {
+        pushPort = proxy.start(port, phases, proxyBufferBytes);
+        if (!pushPort) {
+            fprintf(stderr, "网络损伤代理启动失败\n");
+            return 2;
+        }
+    }
+
+    // 与 LivePusher 的初始化顺序相同
+    Java_kim_hsl_rtmp_LivePusher_native_1init(0, 0);
+    Java_kim_hsl_rtmp_LivePusher_native_1setAudioPriority(0, 0, audioPriority);
+    Java_kim_hsl_rtmp_LivePusher_native_1setSendTimeout(0, 0, sendTimeoutMs);
+    if (staticSceneSecond > 0) {
+        mVedioChannel->setStaticSceneDetection(1, 0);
+    }
+    EncoderProfile profile;
+    strncpy(profile.preset, preset, sizeof(profile.preset) - 1);
+    profile.preset[sizeof(profile.preset) - 1] = '\0';
+    mVedioChannel->setVideoEncoderParameters(width, height, fps, bitrate, profile);
+    mAudioChannel->setAudioEncoderParameters(AUDIO_SAMPLE_RATE, AUDIO_CHANNELS);
+    // 与 native_setVideoEncoderParameters / native_setRecordFile 相同
+    videoWidth = width;
+    videoHeight = height;
+    videoFps = fps;
+    if (recordFile) {
+        recordPath = recordFile;
+    }
+
+    std::vector<uint8_t *> frames;
+    for (int i = 0; i < SOURCE_FRAMES; i++) {
+        uint8_t *frame = new uint8_t[width * height * 3 / 2];
+        fillSyntheticNV21(frame, width, height, i);
+        frames.push_back(frame);
+    }
+    std::vector<int16_t> pcm(AUDIO_CHUNK_FRAMES * AUDIO_CHANNELS);
+
+    // 与 native_startRtmpPush 相同, 推流地址拷贝到堆内存中, 以 0 结尾, 由分发线程释放
+    char url[64];
+    char **pushPaths = new char *[destinationCount + 1];
+    for (int d = 0; d < destinationCount; d++) {
+        snprintf(url, sizeof(url), "rtmp://127.0.0.1:%d/live/loopback", d ? ports[d] : pushPort);
+        pushPaths[d] = new char[strlen(url) + 1];
+        strcpy(pushPaths[d], url);
+    }
+    pushPaths[destinationCount] = 0;
+    snprintf(url, sizeof(url), "rtmp://127.0.0.1:%d/live/loopback", pushPort);
+    isStartRtmpPush = TRUE;
+    pthread_t pushThread;
+    pthread_create(&pushThread, 0, startRtmpPush, pushPaths);
+
+    // 推流线程开始后立即允许编码, 与连接服务器同时进行, 不等待服务器开始接收
+    while (!readyForPush) {
+        sleepUntilUs(nowUs() + 1000);
+    }
+
+    printf("推流 %s, %dx%d %d fps %d bps, 预设 %s, 块大小 %d, %d 秒\n", url, width, height,
+           fps, bitrate, preset, rtmpChunkSize, seconds);
+    for (int d = 1; d < destinationCount; d++) {
+        printf("目的地 %d : rtmp://127.0.0.1:%d/live/loopback\n", d, ports[d]);
+    }
+    if (scenario) {
+        printf("网络损伤 %s :\n", scenario);
+        for (size_t i = 0; i < phases.size(); i++) {
+            printf("    %6d ms  %s\n", phases[i].durationMs, phases[i].name);
+        }
+    }
+
+    // 按照真实时间交替送入视频帧与 10 ms 的 PCM 数据
+    std::vector<PusherSample> pusherSamples;
+    int64_t stats[STAT_COUNT];
+    int64_t startUs = nowUs();
+    proxy.startScenario();
+    int64_t endUs = startUs + seconds * 1000000LL;
+    int64_t nextVideoUs = startUs;
+    int64_t nextAudioUs = startUs;
+    int64_t nextSampleUs = startUs + 1000000;
+    long videoFrames = 0;
+    long repeatedFrames = 0;
+    int64_t switchUs = cameraSwitchSecond > 0 ? startUs + cameraSwitchSecond * 1000000LL : 0;
+    int64_t staticUs = staticSceneSecond > 0 ? startUs + staticSceneSecond * 1000000LL : 0;
+    int64_t staticEndUs = staticSceneEndSecond > staticSceneSecond
+                          ? startUs + staticSceneEndSecond * 1000000LL : 0;
+    int64_t reconfigureUs = -1;
+    long audioChunks = 0;
+    while (1) {
+        int64_t next = std::min(nextVideoUs, std::min(nextAudioUs, nextSampleUs));
+        if (next > endUs) {
+            break;
+        }
+        sleepUntilUs(next);
+        if (next == nextSampleUs) {
+            destinations[0].stats.snapshot(stats);
+            PusherSample sample;
+            sample.sendLatencyAvgMs = stats[STAT_SEND_LATENCY_AVG_MS];
+            sample.sendLatencyMaxMs = stats[STAT_SEND_LATENCY_MAX_MS];
+            sample.backlogPackets = stats[STAT_BACKLOG_PACKETS];
+            sample.queuePackets = packets.size() + destinations[0].queue.size();
+            pusherSamples.push_back(sample);
+            nextSampleUs += 1000000;
+        } else if (next == nextAudioUs) {
+            fillSyntheticPcm(pcm.data(), AUDIO_CHUNK_FRAMES, AUDIO_CHANNELS, AUDIO_SAMPLE_RATE,
+                             audioChunks * AUDIO_CHUNK_FRAMES);
+            audioChunks++;
+            nextAudioUs = startUs + audioChunks * 10000;
+            mAudioChannel->encodeAudioSamples(reinterpret_cast<int8_t *>(pcm.data()),
+                                              AUDIO_CHUNK_FRAMES * AUDIO_CHANNELS * 2,
+                                              streamTimestamp(nowUs()));
+        } else {
+            int64_t captureUs = nowUs();
+            if (switchUs && captureUs >= switchUs && reconfigureUs < 0) {
+                // 切换摄像头 : 打开 Camera 时 setPreviewSize 与 setCameraPreviewOrientation 各设置一次编码参数
+                mVedioChannel->setVideoEncoderParameters(width, height, fps, bitrate, profile);
+                mVedioChannel->setVideoEncoderParameters(width, height, fps, bitrate, profile);
+                reconfigureUs = nowUs() - captureUs;
+                captureUs = nowUs();
+            }
+            if (switchUs && captureUs >= switchUs
+                && captureUs < switchUs + CAMERA_REOPEN_MS * 1000LL) {
+                // 重新打开 Camera 期间没有新的画面
+                if (switchRepeat && mVedioChannel->encodeRepeatedFrame(streamTimestamp(captureUs))) {
+                    streamStats.onVideoFrameEncoded(nowUs() - captureUs);
+                    repeatedFrames++;
+                }
+            } else {
+                // 静止画面 : 之后一直输入同一帧画面
+                int still = staticUs && captureUs >= staticUs && (!staticEndUs || captureUs < staticEndUs);
+                int source = still ? 0 : videoFrames % SOURCE_FRAMES;
+                uint32_t timestamp = streamTimestamp(captureUs);
+                int encoded = mVedioChannel->encodeCameraData(
+                        reinterpret_cast<int8_t *>(frames[source]), timestamp);
+                onCameraFrameDone(encoded, nowUs() - captureUs, timestamp);
+            }
+            videoFrames++;
+            nextVideoUs = startUs + videoFrames * 1000000LL / fps;
+        }
+    }
+
+    // 停止推流, 等待推流线程关闭连接, 与 native_stopPush 相同
+    int64_t stopStartUs = nowUs();
+    isStartRtmpPush = FALSE;
+    packets.setWork(0);
+    pthread_join(pushThread, 0);
+    int64_t stopUs = nowUs() - stopStartUs;
+    int64_t waitUs = nowUs() + PUBLISH_TIMEOUT_MS * 1000LL;
+    while (server.getSessions() < 1 && nowUs() < waitUs) {
+        sleepUntilUs(nowUs() + 1000);
+    }
+    proxy.stop();
+    for (int d = 0; d < destinationCount; d++) {
+        servers[d].stop();
+    }
+
+    std::vector<ReceivedTag> tags = server.getTags();
+    if (tags.empty()) {
+        printf("服务器没有收到数据\n");
+        return 1;
+    }
+
+    // 服务器端按到达时间统计每秒的码率与端到端延迟
+    std::vector<SinkSecond> sinkSeconds(seconds + 1);
+    memset(sinkSeconds.data(), 0, sinkSeconds.size() * sizeof(SinkSecond));
+    std::vector<int64_t> latencies;
+    std::vector<int64_t> audioLatencies;
+    std::vector<int64_t> videoLatencies;
+    long videoTags = 0;
+    long audioTags = 0;
+    long keyframes = 0;
+    for (size_t i = 0; i < tags.size(); i++) {
+        const ReceivedTag &tag = tags[i];
+        if (tag.type == RTMP_PACKET_TYPE_VIDEO) {
+            videoTags++;
+            keyframes += tag.keyframe && !tag.sequenceHeader;
+            if (!tag.sequenceHeader) {
+                sinkSeconds[std::min<int64_t>(std::max<int64_t>(
+                        (tag.arrivalUs - startUs) / 1000000, 0), seconds)].videoFrames++;
+            }
+        } else if (tag.type == RTMP_PACKET_TYPE_AUDIO) {
+            audioTags++;
+        }
+        int64_t latencyMs = tag.arrivalUs / 1000 - pushStartTimeMs - tag.timestamp;
+        if (!tag.sequenceHeader) {
+            latencies.push_back(latencyMs);
+            if (tag.type == RTMP_PACKET_TYPE_AUDIO) {
+                audioLatencies.push_back(latencyMs);
+            } else if (tag.type == RTMP_PACKET_TYPE_VIDEO) {
+                videoLatencies.push_back(latencyMs);
+            }
+        }
+        int64_t second = (tag.arrivalUs - startUs) / 1000000;
+        if (second < 0) {
+            second = 0;
+        }
+        if (second > seconds) {
+            second = seconds;
+        }
+        SinkSecond &sink = sinkSeconds[second];
+        sink.bytes += tag.size;
+        sink.tags++;
+        sink.latencyTotalMs += latencyMs;
+        sink.latencyMaxMs = std::max(sink.latencyMaxMs, latencyMs);
+    }
+
+    printf("%6s %10s %8s %8s %10s %10s %10s %10s %8s %8s  %s\n", "second", "kbps", "tags",
+           "frames", "e2e avg", "e2e max", "send avg", "send max", "backlog", "queue",
+           scenario ? "phase" : "");
+    for (int s = 0; s < seconds; s++) {
+        const SinkSecond &sink = sinkSeconds[s];
+        printf("%6d %10.1f %8ld %8ld %10.1f %10lld", s + 1, sink.bytes * 8 / 1000.0, sink.tags,
+               sink.videoFrames,
+               sink.tags ? static_cast<double>(sink.latencyTotalMs) / sink.tags : 0.0,
+               static_cast<long long>(sink.latencyMaxMs));
+        if (s < static_cast<int>(pusherSamples.size())) {
+            const PusherSample &sample = pusherSamples[s];
+            printf(" %10lld %10lld %8lld %8lld", static_cast<long long>(sample.sendLatencyAvgMs),
+                   static_cast<long long>(sample.sendLatencyMaxMs),
+                   static_cast<long long>(sample.backlogPackets),
+                   static_cast<long long>(sample.queuePackets));
+        } else {
+            printf(" %10s %10s %8s %8s", "-", "-", "-", "-");
+        }
+        printf("  %s\n", scenario ? proxy.phaseAt(s * 1000LL).name : "");
+    }
+
+    // 持续码率按照第一个到最后一个数据包的到达时间计算
+    double spanSeconds = (tags.back().arrivalUs - tags.front().arrivalUs) / 1e6;
+    std::sort(latencies.begin(), latencies.end());
+    std::sort(audioLatencies.begin(), audioLatencies.end());
+    std::sort(videoLatencies.begin(), videoLatencies.end());
+    printf("编码 : 视频 %ld 帧, 音频 %ld 次 ( 10 ms )\n", videoFrames, audioChunks);
+    if (switchUs) {
+        // 服务器收到的相邻两个视频帧的最大时间戳间隔, 即观众看到的画面停顿时间
+        int64_t maxGapMs = 0;
+        const ReceivedTag *last = 0;
+        for (size_t i = 0; i < tags.size(); i++) {
+            const ReceivedTag &tag = tags[i];
+            if (tag.type != RTMP_PACKET_TYPE_VIDEO || tag.sequenceHeader) {
+                continue;
+            }
+            if (last && last->session == tag.session) {
+                maxGapMs = std::max<int64_t>(maxGapMs, (int64_t) tag.timestamp - last->timestamp);
+            }
+            last = &tag;
+        }
+        printf("切换摄像头 : 设置编码参数耗时 %.2f ms, 重复编码 %ld 帧, 视频帧最大间隔 %lld ms\n",
+               reconfigureUs / 1000.0, repeatedFrames, static_cast<long long>(maxGapMs));
+    }
+    if (staticUs) {
+        // 静止开始之后服务器收到的相邻视频帧 / 关键帧的最大时间戳间隔, 检查保活帧与关键帧间隔
+        // 画面恢复变化之后关键帧间隔同样不能超过配置的关键帧间隔
+        int64_t maxGapMs = 0;
+        int64_t maxKeyGapMs = 0;
+        const ReceivedTag *last = 0;
+        const ReceivedTag *lastKey = 0;
+        for (size_t i = 0; i < tags.size(); i++) {
+            const ReceivedTag &tag = tags[i];
+            if (tag.type != RTMP_PACKET_TYPE_VIDEO || tag.sequenceHeader
+                || tag.timestamp < staticSceneSecond * 1000U) {
+                continue;
+            }
+            if (last && last->session == tag.session) {
+                maxGapMs = std::max<int64_t>(maxGapMs, (int64_t) tag.timestamp - last->timestamp);
+            }
+            last = &tag;
+            if (tag.keyframe) {
+                if (lastKey && lastKey->session == tag.session) {
+                    maxKeyGapMs = std::max<int64_t>(maxKeyGapMs,
+                                                    (int64_t) tag.timestamp - lastKey->timestamp);
+                }
+                lastKey = &tag;
+            }
+        }
+        streamStats.snapshot(stats);
+        printf("静止画面 : 跳过编码 %lld 帧, 节省编码耗时 %lld ms, 节省数据 %lld 字节, "
+               "视频帧最大间隔 %lld ms, 关键帧最大间隔 %lld ms\n",
+               static_cast<long long>(stats[STAT_STATIC_SKIPPED_FRAMES]),
+               static_cast<long long>(stats[STAT_STATIC_SAVED_ENCODE_MS]),
+               static_cast<long long>(stats[STAT_STATIC_SAVED_BYTES]),
+               static_cast<long long>(maxGapMs), static_cast<long long>(maxKeyGapMs));
+    }
+    printf("收到 : 视频 %ld 个 ( 关键帧 %ld ), 音频 %ld 个, 共 %ld 字节, 连接 %d 次\n",
+           videoTags, keyframes, audioTags, server.getMediaBytes(), server.getSessions());
+    destinations[0].stats.snapshot(stats);
+    printf("推流端 : 重连 %lld 次, 写入超时 %lld 次, 拥塞丢弃视频帧 %ld 个, 停止推流耗时 %.1f ms\n",
+           static_cast<long long>(stats[STAT_RECONNECTS]),
+           static_cast<long long>(destinations[0].chunkWriter.getSendTimeouts()),
+           destinations[0].congestionController.getDroppedFrames(), stopUs / 1000.0);
+    // 首帧时间 : 开始推流 到 服务器收到第一个关键帧, 观众最早可以看到画面的时间
+    int64_t firstPictureMs = -1;
+    for (size_t i = 0; i < tags.size(); i++) {
+        if (tags[i].type == RTMP_PACKET_TYPE_VIDEO && tags[i].keyframe && !tags[i].sequenceHeader) {
+            firstPictureMs = tags[i].arrivalUs / 1000 - pushStartTimeMs;
+            break;
+        }
+    }
+    printf("首帧 : 连接耗时 %lld ms, 第一个关键帧发送 %lld ms, 服务器收到 %lld ms\n",
+           static_cast<long long>(stats[STAT_CONNECT_TIME_MS]),
+           static_cast<long long>(stats[STAT_FIRST_KEY_FRAME_MS]),
+           static_cast<long long>(firstPictureMs));
+    printf("持续码率 : %.1f kbps\n",
+           spanSeconds > 0 ? server.getMediaBytes() * 8 / spanSeconds / 1000 : 0.0);
+    printf("端到端延迟 ( 采集 到 服务器收到 ) : p50 %.0f ms, p90 %.0f ms, p99 %.0f ms, max %.0f ms\n",
+           percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99),
+           percentile(latencies, 1.0));
+    printf("    音频 : p50 %.0f ms, p99 %.0f ms, max %.0f ms, 视频 : p50 %.0f ms, p99 %.0f ms, max %.0f ms\n",
+           percentile(audioLatencies, 0.5), percentile(audioLatencies, 0.99),
+           percentile(audioLatencies, 1.0), percentile(videoLatencies, 0.5),
+           percentile(videoLatencies, 0.99), percentile(videoLatencies, 1.0));
+    SendScheduler &scheduler = destinations[0].scheduler;
+    printf("发送调度 : %s, 分片发送视频帧 %ld 个, 音频提前发送 %ld 个, 等待链路发送 %ld 次, "
+           "估计链路速率 %ld kbps, 块写入系统调用 %lld 次\n", audioPriority ? "音频优先" : "按时间戳顺序",
+           scheduler.getSlicedFrames(), scheduler.getAudioOvertakes(), scheduler.getPacingWaits(),
+           scheduler.getEstimatedBitrate() / 1000,
+           static_cast<long long>(destinations[0].chunkWriter.getWriteCalls()));
+
+    if (scenario) {
+        // 视频帧按照采集时间 ( 时间戳 ) 归入阶段, 统计送达的帧数占采集帧数的比例
+        std::vector<PhaseReport> reports(phases.size());
+        for (size_t i = 0; i < tags.size(); i++) {
+            const ReceivedTag &tag = tags[i];
+            if (tag.type != RTMP_PACKET_TYPE_VIDEO || tag.sequenceHeader) {
+                continue;
+            }
+            int64_t captureMs = pushStartTimeMs + tag.timestamp - startUs / 1000;
+            int64_t phaseEndMs = 0;
+            for (size_t p = 0; p < phases.size(); p++) {
+                phaseEndMs += phases[p].durationMs;
+                if (captureMs < phaseEndMs || p == phases.size() - 1) {
+                    reports[p].videoFrames++;
+                    reports[p].latencies.push_back(tag.arrivalUs / 1000 - pushStartTimeMs
+                                                   - tag.timestamp);
+                    break;
+                }
+            }
+        }
+        printf("%-40s %10s %10s %10s %10s\n", "phase", "frames", "delivered", "e2e p50",
+               "e2e max");
+        for (size_t p = 0; p < phases.size(); p++) {
+            PhaseReport &report = reports[p];
+            std::sort(report.latencies.begin(), report.latencies.end());
+            long captured = static_cast<long>(phases[p].durationMs) * fps / 1000;
+            printf("%-40s %10ld %9.1f%% %10.0f %10.0f\n", phases[p].name, report.videoFrames,
+                   captured ? report.videoFrames * 100.0 / captured : 0.0,
+                   percentile(report.latencies, 0.5), percentile(report.latencies, 1.0));
+        }
+        printf("代理转发 %ld 字节\n", proxy.getForwardedBytes());
+    }
+
+    int errors = checkOrdering(tags);
+    printf("数据包顺序检查 : %s\n", errors ? "失败" : "通过");
+
+    // 其它目的地直接连接服务器, 主目的地网络阻塞时不应该受到影响
+    for (int d = 1; d < destinationCount; d++) {
+        std::vector<ReceivedTag> destinationTags = servers[d].getTags();
+        std::vector<int64_t> destinationLatencies;
+        long destinationVideoTags = 0;
+        for (size_t i = 0; i < destinationTags.size(); i++) {
+            const ReceivedTag &tag = destinationTags[i];
+            destinationVideoTags += tag.type == RTMP_PACKET_TYPE_VIDEO && !tag.sequenceHeader;
+            if (!tag.sequenceHeader) {
+                destinationLatencies.push_back(tag.arrivalUs / 1000 - pushStartTimeMs
+                                               - tag.timestamp);
+            }
+        }
+        std::sort(destinationLatencies.begin(), destinationLatencies.end());
+        printf("目的地 %d : 收到视频 %ld 个, 共 %ld 字节, 连接 %d 次, 拥塞丢弃视频帧 %ld 个, "
+               "端到端延迟 p50 %.0f ms, p99 %.0f ms, max %.0f ms\n",
+               d, destinationVideoTags, servers[d].getMediaBytes(), servers[d].getSessions(),
+               destinations[d].congestionController.getDroppedFrames(),
+               percentile(destinationLatencies, 0.5), percentile(destinationLatencies, 0.99),
+               percentile(destinationLatencies, 1.0));
+        int destinationErrors = destinationTags.empty() ? 1 : checkOrdering(destinationTags);
+        printf("目的地 %d 数据包顺序检查 : %s\n", d, destinationErrors ? "失败" : "通过");
+        errors += destinationErrors;
+    }
+
+    if (recordFile) {
+        errors += checkRecordFile(recordFile);
+    }
+
+    for (size_t i = 0; i < frames.size(); i++) {
+        delete[] frames[i];
+    }
+    return errors ? 1 : 0;
+}
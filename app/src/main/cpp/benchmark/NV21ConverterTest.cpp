@@ -0,0 +1,163 @@
+//
+// Created by octopus on 2020/7/14.
+//
+
+/**
+ * NV21 旋转转换正确性测试
+ *
+ * nv21RotateToI420 的 SIMD 实现按 8 x 8 小块转置, 不足 8 像素的边角交给标量实现
+ * 这里逐字节比较 SIMD 实现与 nv21RotateToI420Scalar 的输出, 覆盖 :
+ *      4 个旋转角度 x 是否镜像
+ *      宽高是 8 / 16 / 64 的倍数, 以及不是 8 的倍数的尺寸 ( NV21 要求宽高是偶数 )
+ *      目标平面一行的字节数大于图像宽度 ( x264 编码图片可能有行尾填充 ), 填充字节不能被改写
+ * 另外用逐像素定义的旋转公式检查标量实现本身
+ *
+ * 运行方式 : nv21_converter_test
+ */
+
+#include <vector>
+#include "../NV21Converter.h"
+#include "HostTest.h"
+#include "SyntheticMedia.h"
+
+/**
+ * 目标平面行尾填充的字节数, 以及填充字节的值
+ */
+#define STRIDE_PADDING 24
+#define PADDING_BYTE 0xA5
+
+/**
+ * 一幅 I420 目标图像, 每个平面都有行尾填充
+ */
+struct I420Image {
+    std::vector<uint8_t> y;
+    std::vector<uint8_t> u;
+    std::vector<uint8_t> v;
+    I420Planes planes;
+
+    I420Image(int width, int height) {
+        planes.yStride = width + STRIDE_PADDING;
+        planes.uStride = width / 2 + STRIDE_PADDING;
+        planes.vStride = width / 2 + STRIDE_PADDING;
+        y.assign(planes.yStride * height, PADDING_BYTE);
+        u.assign(planes.uStride * height / 2, PADDING_BYTE);
+        v.assign(planes.vStride * height / 2, PADDING_BYTE);
+        planes.y = y.data();
+        planes.u = u.data();
+        planes.v = v.data();
+    }
+};
+
+/**
+ * 目标图像 ( dx, dy ) 处的像素对应的源图像坐标, 先顺时针旋转, 再水平镜像
+ */
+static void sourcePoint(int rotation, int mirror, int dstWidth, int dstHeight, int dx, int dy,
+                        int *sx, int *sy) {
+    if (mirror) {
+        dx = dstWidth - 1 - dx;
+    }
+    switch (rotation) {
+        case 90:
+            *sx = dy;
+            *sy = dstWidth - 1 - dx;
+            break;
+        case 180:
+            *sx = dstWidth - 1 - dx;
+            *sy = dstHeight - 1 - dy;
+            break;
+        case 270:
+            *sx = dstHeight - 1 - dy;
+            *sy = dx;
+            break;
+        default:
+            *sx = dx;
+            *sy = dy;
+            break;
+    }
+}
+
+/**
+ * 按照旋转公式逐像素检查标量实现
+ */
+static void checkScalarDefinition(const uint8_t *src, int width, int height, int rotation,
+                                  int mirror) {
+    int transposed = rotation == 90 || rotation == 270;
+    int dstWidth = transposed ? height : width;
+    int dstHeight = transposed ? width : height;
+    I420Image image(dstWidth, dstHeight);
+    nv21RotateToI420Scalar(src, width, height, rotation, mirror, image.planes);
+
+    int mismatches = 0;
+    for (int dy = 0; dy < dstHeight; dy++) {
+        for (int dx = 0; dx < dstWidth; dx++) {
+            int sx, sy;
+            sourcePoint(rotation, mirror, dstWidth, dstHeight, dx, dy, &sx, &sy);
+            mismatches += image.y[dy * image.planes.yStride + dx] != src[sy * width + sx];
+        }
+    }
+    const uint8_t *vu = src + width * height;
+    for (int dy = 0; dy < dstHeight / 2; dy++) {
+        for (int dx = 0; dx < dstWidth / 2; dx++) {
+            int sx, sy;
+            sourcePoint(rotation, mirror, dstWidth / 2, dstHeight / 2, dx, dy, &sx, &sy);
+            mismatches += image.v[dy * image.planes.vStride + dx] != vu[sy * width + sx * 2];
+            mismatches += image.u[dy * image.planes.uStride + dx] != vu[sy * width + sx * 2 + 1];
+        }
+    }
+    if (mismatches) {
+        printf("标量实现 %dx%d 旋转 %d 镜像 %d : %d 个像素与旋转公式不一致\n",
+               width, height, rotation, mirror, mismatches);
+    }
+    CHECK_EQ(0, mismatches);
+}
+
+/**
+ * 逐字节比较 SIMD 实现与标量实现的输出, 包括行尾填充
+ */
+static void checkSimdMatchesScalar(const uint8_t *src, int width, int height, int rotation,
+                                   int mirror) {
+    int transposed = rotation == 90 || rotation == 270;
+    int dstWidth = transposed ? height : width;
+    int dstHeight = transposed ? width : height;
+    I420Image expected(dstWidth, dstHeight);
+    I420Image actual(dstWidth, dstHeight);
+    nv21RotateToI420Scalar(src, width, height, rotation, mirror, expected.planes);
+    nv21RotateToI420(src, width, height, rotation, mirror, actual.planes);
+
+    int same = expected.y == actual.y && expected.u == actual.u && expected.v == actual.v;
+    if (!same) {
+        printf("SIMD 实现 %dx%d 旋转 %d 镜像 %d : 输出与标量实现不一致\n",
+               width, height, rotation, mirror);
+    }
+    CHECK(same);
+}
+
+int main() {
+    // 宽高 : 8 的倍数, 64 的倍数, 不是 8 的倍数, 小于一个 8 x 8 小块, 常见的 Camera 预览尺寸
+    static const int SIZES[][2] = {
+            {2, 2}, {6, 4}, {8, 8}, {10, 6}, {16, 16}, {18, 34}, {64, 64}, {66, 130},
+            {70, 62}, {126, 98}, {176, 144}, {320, 240}, {642, 362}, {1280, 720}
+    };
+    static const int ROTATIONS[] = {0, 90, 180, 270};
+
+    for (size_t s = 0; s < sizeof(SIZES) / sizeof(SIZES[0]); s++) {
+        int width = SIZES[s][0];
+        int height = SIZES[s][1];
+        std::vector<uint8_t> src(width * height * 3 / 2);
+        if (width >= 16 && height >= 16) {
+            fillSyntheticNV21(src.data(), width, height, static_cast<int>(s));
+        } else {
+            // 合成画面需要放下一个方块, 很小的尺寸直接填充序号
+            for (size_t i = 0; i < src.size(); i++) {
+                src[i] = static_cast<uint8_t>(i * 7 + 3);
+            }
+        }
+        for (int r = 0; r < 4; r++) {
+            for (int mirror = 0; mirror < 2; mirror++) {
+                checkScalarDefinition(src.data(), width, height, ROTATIONS[r], mirror);
+                checkSimdMatchesScalar(src.data(), width, height, ROTATIONS[r], mirror);
+            }
+        }
+    }
+    return hostTestResult("nv21_converter_test");
+}
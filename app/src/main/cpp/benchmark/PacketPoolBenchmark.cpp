@@ -0,0 +1,135 @@
+//
+// Created by octopus on 2020/6/26.
+//
+
+/**
+ * RTMP 数据包分配微基准测试
+ *
+ * 模拟 30 fps 视频 + 44100 Hz AAC 音频推流时的数据包大小分布 :
+ *      每 60 帧一个 I 帧 ( 约 60 KB ), 其余为 P 帧 ( 约 4 KB ), 每个视频帧之后约 1.5 个 AAC 数据包 ( 约 370 B )
+ * 编码线程封装数据包, 推流线程发送后释放, 待发送队列中保持 QUEUE_DEPTH 个数据包
+ * 对比 new RTMPPacket + calloc ( RTMPPacket_Alloc ) 与 PacketPool 的耗时, 以及稳定后的堆内存申请次数
+ *
+ * 运行方式 : packet_pool_benchmark [数据包个数]
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include "../PacketPool.h"
+
+/**
+ * 待发送队列中的数据包个数, 模拟推流线程的发送延迟
+ */
+#define QUEUE_DEPTH 32
+
+static long packetCount = 2000000;
+
+static long nowNanos() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000000000L + ts.tv_nsec;
+}
+
+/**
+ * 第 index 个数据包的大小
+ */
+static int packetSize(long index) {
+    long frame = index * 2 / 5;
+    if (index % 5 == 0 || index % 5 == 2) {
+        return frame % 60 == 0 ? 60 * 1024 : 4 * 1024;
+    }
+    return 370;
+}
+
+/**
+ * 模拟封装数据包, 写入 m_body 的全部字节
+ */
+static void fill(RTMPPacket *packet, int size) {
+    memset(packet->m_body, 0x27, size);
+    packet->m_nBodySize = size;
+}
+
+static void *heapObtain(int size) {
+    RTMPPacket *packet = new RTMPPacket;
+    memset(packet, 0, sizeof(RTMPPacket));
+    char *ptr = static_cast<char *>(calloc(1, size + RTMP_MAX_HEADER_SIZE));
+    packet->m_body = ptr + RTMP_MAX_HEADER_SIZE;
+    return packet;
+}
+
+static void heapRelease(RTMPPacket *packet) {
+    free(packet->m_body - RTMP_MAX_HEADER_SIZE);
+    delete packet;
+}
+
+static double runHeap() {
+    RTMPPacket *queue[QUEUE_DEPTH] = {0};
+    long start = nowNanos();
+    for (long i = 0; i < packetCount; i++) {
+        int size = packetSize(i);
+        RTMPPacket *packet = static_cast<RTMPPacket *>(heapObtain(size));
+        fill(packet, size);
+        RTMPPacket *&slot = queue[i % QUEUE_DEPTH];
+        if (slot) {
+            heapRelease(slot);
+        }
+        slot = packet;
+    }
+    for (int i = 0; i < QUEUE_DEPTH; i++) {
+        if (queue[i]) {
+            heapRelease(queue[i]);
+        }
+    }
+    return (double) (nowNanos() - start) / packetCount;
+}
+
+static double runPool(PacketPool &pool, int64_t *steadyAllocations) {
+    RTMPPacket *queue[QUEUE_DEPTH] = {0};
+    int64_t warmUpAllocations = 0;
+    long start = nowNanos();
+    for (long i = 0; i < packetCount; i++) {
+        if (i == packetCount / 10) {
+            warmUpAllocations = pool.getHeapAllocations();
+        }
+        int size = packetSize(i);
+        RTMPPacket *packet = pool.obtain(size);
+        fill(packet, size);
+        RTMPPacket *&slot = queue[i % QUEUE_DEPTH];
+        if (slot) {
+            pool.recycle(slot);
+        }
+        slot = packet;
+    }
+    for (int i = 0; i < QUEUE_DEPTH; i++) {
+        pool.recycle(queue[i]);
+    }
+    *steadyAllocations = pool.getHeapAllocations() - warmUpAllocations;
+    return (double) (nowNanos() - start) / packetCount;
+}
+
+int main(int argc, char **argv) {
+    if (argc > 1) {
+        packetCount = atol(argv[1]);
+    }
+
+    double heapNanos = runHeap();
+    printf("new + calloc : %.1f ns/packet\n", heapNanos);
+
+    PacketPool pool;
+    int64_t steadyAllocations = 0;
+    double poolNanos = runPool(pool, &steadyAllocations);
+    printf("PacketPool   : %.1f ns/packet, 峰值使用 %lld 字节, 持有 %lld 字节, 堆内存申请 %lld 次 ( 预热后 %lld 次 )\n",
+           poolNanos, static_cast<long long>(pool.getPeakInUseBytes()),
+           static_cast<long long>(pool.getPooledBytes()),
+           static_cast<long long>(pool.getHeapAllocations()),
+           static_cast<long long>(steadyAllocations));
+
+    if (pool.getInUseBytes() != 0) {
+        printf("错误 : 数据包没有全部归还, 使用中 %lld 字节\n",
+               static_cast<long long>(pool.getInUseBytes()));
+        return 1;
+    }
+    return 0;
+}
@@ -0,0 +1,166 @@
+//
+// Created by octopus on 2020/7/14.
+//
+
+/**
+ * PCM 音频帧组装正确性测试
+ *
+ * 把一段连续的 PCM 数据按照各种读取长度 ( 不足一帧, 恰好一帧, 跨越多帧, 每次 1 字节, 随机长度 ) 放入组装器,
+ * 回调的帧依次拼接后必须与输入数据完全一致, 剩余不足一帧的字节数与输入总长度一致
+ * 另外检查 :
+ *      读取数据本身就是完整的帧时, 回调直接使用读取的数据, 不经过内部缓冲区拷贝
+ *      reset / setFrameBytes 丢弃未凑满一帧的数据
+ *
+ * 运行方式 : pcm_frame_assembler_test
+ */
+
+#include <stdlib.h>
+#include <string.h>
+#include <vector>
+#include "../PcmFrameAssembler.h"
+#include "HostTest.h"
+
+/**
+ * FAAC 一次编码 1024 个样本, 双声道 16 位
+ */
+#define FRAME_BYTES (1024 * 2 * 2)
+
+/**
+ * 收集回调的帧
+ */
+struct FrameCollector {
+    int frameBytes;
+    std::vector<int8_t> frames;
+    std::vector<const int8_t *> pointers;
+};
+
+static void onFrame(void *context, int8_t *frame) {
+    FrameCollector *collector = static_cast<FrameCollector *>(context);
+    collector->frames.insert(collector->frames.end(), frame, frame + collector->frameBytes);
+    collector->pointers.push_back(frame);
+}
+
+/**
+ * 连续的 PCM 数据, 每个字节都不相同 ( 周期是质数, 与帧长度不对齐 )
+ */
+static std::vector<int8_t> createPcm(int length) {
+    std::vector<int8_t> pcm(length);
+    for (int i = 0; i < length; i++) {
+        pcm[i] = static_cast<int8_t>(i % 251);
+    }
+    return pcm;
+}
+
+/**
+ * 按照 readSizes 依次读取 ( 循环使用 ), 直到输入数据全部放入组装器
+ */
+static void checkAssembly(const char *name, const std::vector<int> &readSizes, int totalBytes) {
+    std::vector<int8_t> pcm = createPcm(totalBytes);
+    PcmFrameAssembler assembler;
+    assembler.setFrameBytes(FRAME_BYTES);
+    FrameCollector collector;
+    collector.frameBytes = FRAME_BYTES;
+
+    int offset = 0;
+    int callbacks = 0;
+    for (size_t i = 0; offset < totalBytes; i++) {
+        int size = readSizes[i % readSizes.size()];
+        if (size > totalBytes - offset) {
+            size = totalBytes - offset;
+        }
+        callbacks += assembler.append(pcm.data() + offset, size, onFrame, &collector);
+        offset += size;
+    }
+
+    int expectedFrames = totalBytes / FRAME_BYTES;
+    CHECK_EQ(expectedFrames, callbacks);
+    CHECK_EQ(expectedFrames, collector.pointers.size());
+    CHECK_EQ(totalBytes % FRAME_BYTES, assembler.getPendingBytes());
+    int same = collector.frames.size() == (size_t) expectedFrames * FRAME_BYTES
+               && memcmp(collector.frames.data(), pcm.data(), collector.frames.size()) == 0;
+    if (!same) {
+        printf("%s : 回调的帧与输入数据不一致\n", name);
+    }
+    CHECK(same);
+}
+
+/**
+ * 完整的帧直接使用读取的数据回调, 跨越两次读取的帧使用内部缓冲区
+ */
+static void testZeroCopy() {
+    std::vector<int8_t> pcm = createPcm(FRAME_BYTES * 4);
+    PcmFrameAssembler assembler;
+    assembler.setFrameBytes(FRAME_BYTES);
+    FrameCollector collector;
+    collector.frameBytes = FRAME_BYTES;
+
+    // 恰好两帧 : 两次回调都指向读取的数据
+    CHECK_EQ(2, assembler.append(pcm.data(), FRAME_BYTES * 2, onFrame, &collector));
+    CHECK(collector.pointers[0] == pcm.data());
+    CHECK(collector.pointers[1] == pcm.data() + FRAME_BYTES);
+
+    // 半帧 + 一帧半 : 第一帧跨越两次读取, 使用内部缓冲区, 第二帧直接使用读取的数据
+    int8_t *second = pcm.data() + FRAME_BYTES * 2;
+    CHECK_EQ(0, assembler.append(second, FRAME_BYTES / 2, onFrame, &collector));
+    CHECK_EQ(FRAME_BYTES / 2, assembler.getPendingBytes());
+    CHECK_EQ(2, assembler.append(second + FRAME_BYTES / 2, FRAME_BYTES * 3 / 2, onFrame,
+                                 &collector));
+    CHECK(collector.pointers[2] < pcm.data() || collector.pointers[2] >= pcm.data() + pcm.size());
+    CHECK(collector.pointers[3] == second + FRAME_BYTES);
+    CHECK_EQ(0, assembler.getPendingBytes());
+    CHECK(memcmp(collector.frames.data(), pcm.data(), pcm.size()) == 0);
+}
+
+/**
+ * reset / setFrameBytes 丢弃未凑满一帧的数据, 之后从新的数据开始组装
+ */
+static void testReset() {
+    std::vector<int8_t> pcm = createPcm(FRAME_BYTES * 2);
+    PcmFrameAssembler assembler;
+    assembler.setFrameBytes(FRAME_BYTES);
+    FrameCollector collector;
+    collector.frameBytes = FRAME_BYTES;
+
+    CHECK_EQ(0, assembler.append(pcm.data(), 100, onFrame, &collector));
+    assembler.reset();
+    CHECK_EQ(0, assembler.getPendingBytes());
+    // 重置前的 100 字节不能出现在下一帧中
+    CHECK_EQ(1, assembler.append(pcm.data() + FRAME_BYTES, FRAME_BYTES, onFrame, &collector));
+    CHECK(memcmp(collector.frames.data(), pcm.data() + FRAME_BYTES, FRAME_BYTES) == 0);
+
+    // 帧长度变化 ( 重新设置音频编码参数 )
+    CHECK_EQ(0, assembler.append(pcm.data(), 100, onFrame, &collector));
+    assembler.setFrameBytes(FRAME_BYTES / 2);
+    CHECK_EQ(FRAME_BYTES / 2, assembler.getFrameBytes());
+    CHECK_EQ(0, assembler.getPendingBytes());
+
+    // 没有设置帧长度, 无效的输入
+    PcmFrameAssembler empty;
+    CHECK_EQ(0, empty.append(pcm.data(), FRAME_BYTES, onFrame, &collector));
+    CHECK_EQ(0, assembler.append(0, FRAME_BYTES, onFrame, &collector));
+    CHECK_EQ(0, assembler.append(pcm.data(), 0, onFrame, &collector));
+}
+
+int main() {
+    int total = FRAME_BYTES * 20 + 123;
+
+    checkAssembly("恰好一帧", std::vector<int>(1, FRAME_BYTES), FRAME_BYTES * 20);
+    checkAssembly("每次 1 字节", std::vector<int>(1, 1), FRAME_BYTES * 3 + 7);
+    checkAssembly("不足一帧", std::vector<int>(1, FRAME_BYTES / 3 + 1), total);
+    checkAssembly("跨越多帧", std::vector<int>(1, FRAME_BYTES * 2 + 17), total);
+
+    // AudioRecord.read 返回的长度不固定 : 有时只读到一部分, 有时读满整个缓冲区
+    int mixed[] = {FRAME_BYTES - 1, 1, FRAME_BYTES + 1, FRAME_BYTES * 3, 2, FRAME_BYTES - 3};
+    checkAssembly("混合长度", std::vector<int>(mixed, mixed + 6), total);
+
+    srand(20200714);
+    std::vector<int> randomSizes;
+    for (int i = 0; i < 200; i++) {
+        randomSizes.push_back(1 + rand() % (FRAME_BYTES * 3));
+    }
+    checkAssembly("随机长度", randomSizes, FRAME_BYTES * 100 + 999);
+
+    testZeroCopy();
+    testReset();
+    return hostTestResult("pcm_frame_assembler_test");
+}
@@ -0,0 +1,417 @@
+//
+// Created by octopus on 2020/7/3.
+//
+
+/**
+ * 编码 / 封装流水线基准测试, 在主机 ( x86_64 Linux ) 上运行, 用于在构建机上发现 native 推流代码的性能退化
+ *
+ * 与推流时相同, 使用 VedioChannel 编码 NV21 画面, AudioChannel 编码 PCM 数据, 封装为 RTMP 数据包
+ * 视频 30 fps, 音频 44100 Hz 立体声, 按照时间交替送入, 音频每次送入 10 ms 数据, 与 AudioRecord 读取的粒度相近
+ * 对每个 预设 x 分辨率 组合统计 :
+ *      视频 : 编码帧率, 每帧 转换 + 编码 + 封装 耗时的百分位数, 每帧输出字节数
+ *      音频 : 每个 AAC 帧 组装 + 编码 + 封装 耗时的百分位数, 输出字节数
+ *
+ * 运行方式 :
+ *      pipeline_benchmark [--frames 300] [--presets ultrafast,superfast,veryfast]
+ *                         [--sizes 640x360,1280x720] [--threads 1] [--bitrate 2000000]
+ *                         [--y4m input.y4m] [--csv] [--min-fps 0]
+ *      --y4m       使用 Y4M 文件 ( 4:2:0 ) 中的画面代替合成画面, 分辨率由文件决定, 忽略 --sizes
+ *      --csv       输出 CSV 格式, 便于构建机收集结果
+ *      --min-fps   任意一组视频编码帧率低于该值时, 返回值为 1
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <vector>
+#include <string>
+#include <algorithm>
+#include "../VedioChannel.h"
+#ifdef PIPELINE_BENCHMARK_AUDIO
+#include "../AudioChannel.h"
+#endif
+#include "SyntheticMedia.h"
+
+#define VIDEO_FPS 30
+#define AUDIO_SAMPLE_RATE 44100
+#define AUDIO_CHANNELS 2
+
+/**
+ * 每次送入 10 ms 的 PCM 数据
+ */
+#define AUDIO_CHUNK_FRAMES (AUDIO_SAMPLE_RATE / 100)
+
+/**
+ * 合成画面的个数, 循环使用
+ */
+#define SOURCE_FRAMES 16
+
+/**
+ * 正式计时之前预热编码的帧数
+ */
+#define WARM_UP_FRAMES 10
+
+static PacketPool packetPool;
+
+/**
+ * 编码输出统计, 数据包封装完成回调中累加
+ */
+struct OutputCounter {
+    long videoPackets;
+    long videoBytes;
+    long audioPackets;
+    long audioBytes;
+};
+
+static OutputCounter output;
+
+static long nowNanos() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000000000L + ts.tv_nsec;
+}
+
+static void onPacket(RTMPPacket *packet) {
+    if (packet->m_packetType == RTMP_PACKET_TYPE_VIDEO) {
+        output.videoPackets++;
+        output.videoBytes += packet->m_nBodySize;
+    } else {
+        output.audioPackets++;
+        output.audioBytes += packet->m_nBodySize;
+    }
+    packetPool.recycle(packet);
+}
+
+/**
+ * 耗时样本的百分位数, 单位毫秒
+ */
+static double percentile(std::vector<long> &samples, double p) {
+    if (samples.empty()) {
+        return 0;
+    }
+    size_t index = static_cast<size_t>(p * (samples.size() - 1) + 0.5);
+    return samples[index] / 1e6;
+}
+
+/**
+ * 输入画面, NV21 格式
+ */
+struct Source {
+    int width;
+    int height;
+    std::vector<uint8_t *> frames;
+};
+
+static void releaseSource(Source &source) {
+    for (size_t i = 0; i < source.frames.size(); i++) {
+        delete[] source.frames[i];
+    }
+    source.frames.clear();
+}
+
+static void createSyntheticSource(Source &source, int width, int height) {
+    source.width = width;
+    source.height = height;
+    for (int i = 0; i < SOURCE_FRAMES; i++) {
+        uint8_t *frame = new uint8_t[width * height * 3 / 2];
+        fillSyntheticNV21(frame, width, height, i);
+        source.frames.push_back(frame);
+    }
+}
+
+/**
+ * 读取 Y4M 文件中的画面, 将 I420 转换为 Camera 输出的 NV21 格式
+ * @param maxFrames 最多读取的帧数
+ * @return 成功返回 1
+ */
+static int loadY4mSource(Source &source, const char *path, int maxFrames) {
+    FILE *file = fopen(path, "rb");
+    if (!file) {
+        fprintf(stderr, "无法打开 %s\n", path);
+        return 0;
+    }
+    char header[256];
+    if (!fgets(header, sizeof(header), file) || strncmp(header, "YUV4MPEG2", 9) != 0) {
+        fprintf(stderr, "%s 不是 Y4M 文件\n", path);
+        fclose(file);
+        return 0;
+    }
+    int width = 0;
+    int height = 0;
+    for (char *token = strtok(header + 9, " \n"); token; token = strtok(0, " \n")) {
+        if (token[0] == 'W') {
+            width = atoi(token + 1);
+        } else if (token[0] == 'H') {
+            height = atoi(token + 1);
+        } else if (token[0] == 'C' && strncmp(token + 1, "420", 3) != 0) {
+            fprintf(stderr, "只支持 4:2:0 格式, 当前格式 %s\n", token + 1);
+            fclose(file);
+            return 0;
+        }
+    }
+    if (width <= 0 || height <= 0) {
+        fprintf(stderr, "%s 中没有画面尺寸\n", path);
+        fclose(file);
+        return 0;
+    }
+
+    source.width = width;
+    source.height = height;
+    int ySize = width * height;
+    int uvSize = ySize / 4;
+    std::vector<uint8_t> i420(ySize + uvSize * 2);
+    char frameHeader[64];
+    while (static_cast<int>(source.frames.size()) < maxFrames
+           && fgets(frameHeader, sizeof(frameHeader), file)
+           && strncmp(frameHeader, "FRAME", 5) == 0
+           && fread(&i420[0], 1, i420.size(), file) == i420.size()) {
+        uint8_t *nv21 = new uint8_t[i420.size()];
+        memcpy(nv21, &i420[0], ySize);
+        const uint8_t *u = &i420[ySize];
+        const uint8_t *v = &i420[ySize + uvSize];
+        for (int i = 0; i < uvSize; i++) {
+            nv21[ySize + i * 2] = v[i];
+            nv21[ySize + i * 2 + 1] = u[i];
+        }
+        source.frames.push_back(nv21);
+    }
+    fclose(file);
+    if (source.frames.empty()) {
+        fprintf(stderr, "%s 中没有画面\n", path);
+        return 0;
+    }
+    return 1;
+}
+
+/**
+ * 一组配置的测试结果
+ */
+struct Result {
+    double videoFps;
+    double videoP50;
+    double videoP90;
+    double videoP99;
+    double videoMax;
+    double videoBytesPerFrame;
+    long audioFrames;
+    double audioP50;
+    double audioP99;
+    double audioBytesPerFrame;
+};
+
+static Result run(Source &source, const char *preset, int threads, int bitrate, int frameCount) {
+    EncoderProfile profile;
+    strncpy(profile.preset, preset, sizeof(profile.preset) - 1);
+    profile.threads = threads;
+    profile.slicedThreads = threads > 1;
+
+    VedioChannel *video = new VedioChannel;
+    video->setPacketPool(&packetPool);
+    video->setRTMPPacketPackUpCallBack(onPacket);
+    video->setVideoEncoderParameters(source.width, source.height, VIDEO_FPS, bitrate, profile);
+
+#ifdef PIPELINE_BENCHMARK_AUDIO
+    AudioChannel *audio = new AudioChannel;
+    audio->setPacketPool(&packetPool);
+    audio->setRTMPPacketPackUpCallBack(onPacket);
+    audio->setAudioEncoderParameters(AUDIO_SAMPLE_RATE, AUDIO_CHANNELS);
+    int16_t pcm[AUDIO_CHUNK_FRAMES * AUDIO_CHANNELS];
+    long audioSampleFrames = 0;
+#endif
+
+    std::vector<long> videoLatency;
+    std::vector<long> audioLatency;
+    videoLatency.reserve(frameCount);
+    audioLatency.reserve(frameCount * 2);
+    long videoTotal = 0;
+
+    int totalFrames = WARM_UP_FRAMES + frameCount;
+    for (int i = 0; i < totalFrames; i++) {
+        if (i == WARM_UP_FRAMES) {
+            memset(&output, 0, sizeof(output));
+        }
+        uint32_t timestamp = static_cast<uint32_t>(i * 1000L / VIDEO_FPS);
+
+        long start = nowNanos();
+        video->encodeCameraData(
+                reinterpret_cast<int8_t *>(source.frames[i % source.frames.size()]), timestamp);
+        long elapsed = nowNanos() - start;
+        if (i >= WARM_UP_FRAMES) {
+            videoLatency.push_back(elapsed);
+            videoTotal += elapsed;
+        }
+
+#ifdef PIPELINE_BENCHMARK_AUDIO
+        // 送入到当前视频帧时间为止的音频数据
+        long targetSampleFrames = (i + 1) * static_cast<long>(AUDIO_SAMPLE_RATE) / VIDEO_FPS;
+        while (audioSampleFrames + AUDIO_CHUNK_FRAMES <= targetSampleFrames) {
+            fillSyntheticPcm(pcm, AUDIO_CHUNK_FRAMES, AUDIO_CHANNELS, AUDIO_SAMPLE_RATE,
+                             audioSampleFrames);
+            audioSampleFrames += AUDIO_CHUNK_FRAMES;
+            uint32_t audioTimestamp = static_cast<uint32_t>(
+                    audioSampleFrames * 1000 / AUDIO_SAMPLE_RATE);
+            start = nowNanos();
+            int frames = audio->encodeAudioSamples(reinterpret_cast<int8_t *>(pcm), sizeof(pcm),
+                                                   audioTimestamp);
+            elapsed = nowNanos() - start;
+            if (frames > 0 && i >= WARM_UP_FRAMES) {
+                audioLatency.push_back(elapsed / frames);
+            }
+        }
+#endif
+    }
+
+    delete video;
+#ifdef PIPELINE_BENCHMARK_AUDIO
+    delete audio;
+#endif
+
+    std::sort(videoLatency.begin(), videoLatency.end());
+    std::sort(audioLatency.begin(), audioLatency.end());
+
+    Result result;
+    result.videoFps = videoTotal > 0 ? frameCount * 1e9 / videoTotal : 0;
+    result.videoP50 = percentile(videoLatency, 0.5);
+    result.videoP90 = percentile(videoLatency, 0.9);
+    result.videoP99 = percentile(videoLatency, 0.99);
+    result.videoMax = percentile(videoLatency, 1);
+    result.videoBytesPerFrame = output.videoPackets > 0
+                                ? output.videoBytes / static_cast<double>(output.videoPackets) : 0;
+    result.audioFrames = static_cast<long>(audioLatency.size());
+    result.audioP50 = percentile(audioLatency, 0.5);
+    result.audioP99 = percentile(audioLatency, 0.99);
+    result.audioBytesPerFrame = output.audioPackets > 0
+                                ? output.audioBytes / static_cast<double>(output.audioPackets) : 0;
+    return result;
+}
+
+/**
+ * 按逗号分隔参数
+ */
+static std::vector<std::string> split(const char *value) {
+    std::vector<std::string> items;
+    std::string item;
+    for (const char *p = value; ; p++) {
+        if (*p == ',' || *p == '\0') {
+            if (!item.empty()) {
+                items.push_back(item);
+            }
+            item.clear();
+            if (*p == '\0') {
+                break;
+            }
+        } else {
+            item += *p;
+        }
+    }
+    return items;
+}
+
+int main(int argc, char **argv) {
+    int frameCount = 300;
+    int threads = 1;
+    int bitrate = 2000000;
+    double minFps = 0;
+    int csv = 0;
+    const char *y4mPath = 0;
+    std::vector<std::string> presets = split("ultrafast,superfast,veryfast");
+    std::vector<std::string> sizes = split("640x360,1280x720");
+
+    for (int i = 1; i < argc; i++) {
+        const char *arg = argv[i];
+        const char *value = i + 1 < argc ? argv[i + 1] : 0;
+        if (!strcmp(arg, "--csv")) {
+            csv = 1;
+            continue;
+        }
+        if (!value) {
+            fprintf(stderr, "参数 %s 缺少取值\n", arg);
+            return 2;
+        }
+        if (!strcmp(arg, "--frames")) {
+            frameCount = atoi(value);
+        } else if (!strcmp(arg, "--presets")) {
+            presets = split(value);
+        } else if (!strcmp(arg, "--sizes")) {
+            sizes = split(value);
+        } else if (!strcmp(arg, "--threads")) {
+            threads = atoi(value);
+        } else if (!strcmp(arg, "--bitrate")) {
+            bitrate = atoi(value);
+        } else if (!strcmp(arg, "--y4m")) {
+            y4mPath = value;
+        } else if (!strcmp(arg, "--min-fps")) {
+            minFps = atof(value);
+        } else {
+            fprintf(stderr, "未知参数 %s\n", arg);
+            return 2;
+        }
+        i++;
+    }
+    if (frameCount <= 0) {
+        frameCount = 1;
+    }
+
+    std::vector<Source> sources;
+    if (y4mPath) {
+        Source source;
+        if (!loadY4mSource(source, y4mPath, WARM_UP_FRAMES + frameCount)) {
+            return 2;
+        }
+        sources.push_back(source);
+    } else {
+        for (size_t i = 0; i < sizes.size(); i++) {
+            int width = 0;
+            int height = 0;
+            if (sscanf(sizes[i].c_str(), "%dx%d", &width, &height) != 2 || width < 16
+                || height < 16 || width % 2 || height % 2) {
+                fprintf(stderr, "无效的分辨率 %s\n", sizes[i].c_str());
+                return 2;
+            }
+            Source source;
+            createSyntheticSource(source, width, height);
+            sources.push_back(source);
+        }
+    }
+
+    if (csv) {
+        printf("preset,width,height,threads,video_fps,video_p50_ms,video_p90_ms,video_p99_ms,"
+               "video_max_ms,video_bytes_per_frame,audio_frames,audio_p50_ms,audio_p99_ms,"
+               "audio_bytes_per_frame\n");
+    } else {
+        printf("%d frames, %d threads, %d bps, %s\n", frameCount, threads, bitrate,
+               y4mPath ? y4mPath : "synthetic NV21 / PCM");
+        printf("%-10s %-10s %8s %8s %8s %8s %8s %10s %8s %8s %8s\n", "preset", "size", "fps",
+               "p50 ms", "p90 ms", "p99 ms", "max ms", "B/frame", "aac p50", "aac p99",
+               "B/aac");
+    }
+
+    int regression = 0;
+    for (size_t s = 0; s < sources.size(); s++) {
+        for (size_t p = 0; p < presets.size(); p++) {
+            Result r = run(sources[s], presets[p].c_str(), threads, bitrate, frameCount);
+            if (csv) {
+                printf("%s,%d,%d,%d,%.2f,%.3f,%.3f,%.3f,%.3f,%.0f,%ld,%.3f,%.3f,%.0f\n",
+                       presets[p].c_str(), sources[s].width, sources[s].height, threads,
+                       r.videoFps, r.videoP50, r.videoP90, r.videoP99, r.videoMax,
+                       r.videoBytesPerFrame, r.audioFrames, r.audioP50, r.audioP99,
+                       r.audioBytesPerFrame);
+            } else {
+                char size[32];
+                snprintf(size, sizeof(size), "%dx%d", sources[s].width, sources[s].height);
+                printf("%-10s %-10s %8.1f %8.2f %8.2f %8.2f %8.2f %10.0f %8.3f %8.3f %8.0f\n",
+                       presets[p].c_str(), size, r.videoFps, r.videoP50, r.videoP90, r.videoP99,
+                       r.videoMax, r.videoBytesPerFrame, r.audioP50, r.audioP99,
+                       r.audioBytesPerFrame);
+            }
+            if (minFps > 0 && r.videoFps < minFps) {
+                regression = 1;
+                fprintf(stderr, "%s %dx%d 编码帧率 %.1f 低于 %.1f\n", presets[p].c_str(),
+                        sources[s].width, sources[s].height, r.videoFps, minFps);
+            }
+        }
+        releaseSource(sources[s]);
+    }
+    return regression;
+}
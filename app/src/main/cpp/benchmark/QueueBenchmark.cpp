@@ -0,0 +1,169 @@
+//
+// Created by octopus on 2020/6/23.
+//
+
+/**
+ * RTMP 数据包队列微基准测试
+ *
+ * 模拟推流时的数据流向 : 视频编码线程, 音频编码线程 两个生产者向队列中放入数据包
+ * 推流线程 一个消费者从队列中取出数据包
+ * 对比 SafeQueue ( 互斥锁 + 条件变量 + std::queue ) 与 RingQueue ( 无锁环形队列 ) 的吞吐量
+ *
+ * 运行方式 : queue_benchmark [每个生产者放入的元素个数]
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <time.h>
+#include <pthread.h>
+#include <atomic>
+#include "../SafeQueue.h"
+#include "../RingQueue.h"
+
+/**
+ * 生产者线程个数, 对应 音频编码线程 与 视频编码线程
+ */
+#define PRODUCER_COUNT 2
+
+/**
+ * 消费者每次最多取出的元素个数, 与 native-lib.cpp 中的 PACKET_BATCH_SIZE 一致
+ */
+#define BATCH_SIZE 64
+
+static long itemsPerProducer = 2000000;
+
+static long nowNanos() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000000000L + ts.tv_nsec;
+}
+
+static void releaseItem(long &) {
+    // 基准测试中的元素是整数, 不需要释放
+}
+
+static void syncItems(queue<long> &) {
+}
+
+/**
+ * 消费者取出的元素个数 与 元素之和, 用于校验没有丢失数据
+ */
+struct ConsumerResult {
+    long count;
+    long sum;
+};
+
+// ---------------------------------------------------------------- SafeQueue
+
+static SafeQueue<long> *safeQueue;
+
+static void *safeQueueProducer(void *) {
+    for (long i = 1; i <= itemsPerProducer; i++) {
+        safeQueue->push(i);
+    }
+    return 0;
+}
+
+static void *safeQueueConsumer(void *args) {
+    ConsumerResult *result = static_cast<ConsumerResult *>(args);
+    long total = itemsPerProducer * PRODUCER_COUNT;
+    long value;
+    while (result->count < total && safeQueue->pop(value)) {
+        result->count++;
+        result->sum += value;
+    }
+    return 0;
+}
+
+// ---------------------------------------------------------------- RingQueue
+
+/**
+ * 静态对象, 保证 RingQueue 中 alignas 的缓存行对齐生效
+ * C++17 之前 new 不保证超过 alignof(std::max_align_t) 的对齐, 堆上的对象可能失去缓存行填充
+ */
+static RingQueue<long> ringQueue(1024);
+
+/**
+ * 队列已满时被拒绝的元素个数
+ * RingQueue 是有界队列, 满时 push 会释放元素, 这里生产者遇到队列满时重试, 保证对比的数据量一致
+ */
+static std::atomic<long> ringQueueRetries(0);
+
+static void *ringQueueProducer(void *) {
+    for (long i = 1; i <= itemsPerProducer; i++) {
+        while (!ringQueue.push(i)) {
+            ringQueueRetries.fetch_add(1, std::memory_order_relaxed);
+            sched_yield();
+        }
+    }
+    return 0;
+}
+
+static void *ringQueueConsumer(void *args) {
+    ConsumerResult *result = static_cast<ConsumerResult *>(args);
+    long total = itemsPerProducer * PRODUCER_COUNT;
+    long batch[BATCH_SIZE];
+    while (result->count < total) {
+        int count = ringQueue.waitAndDrain(batch, BATCH_SIZE);
+        if (count == 0) {
+            break;
+        }
+        for (int i = 0; i < count; i++) {
+            result->count++;
+            result->sum += batch[i];
+        }
+    }
+    return 0;
+}
+
+/**
+ * 运行一次测试
+ * @return 耗时, 单位纳秒
+ */
+static long run(const char *name, void *(*producer)(void *), void *(*consumer)(void *)) {
+    pthread_t producers[PRODUCER_COUNT];
+    pthread_t consumerPid;
+    ConsumerResult result = {0, 0};
+
+    long start = nowNanos();
+    pthread_create(&consumerPid, 0, consumer, &result);
+    for (int i = 0; i < PRODUCER_COUNT; i++) {
+        pthread_create(&producers[i], 0, producer, 0);
+    }
+    for (int i = 0; i < PRODUCER_COUNT; i++) {
+        pthread_join(producers[i], 0);
+    }
+    pthread_join(consumerPid, 0);
+    long elapsed = nowNanos() - start;
+
+    long total = itemsPerProducer * PRODUCER_COUNT;
+    long expectedSum = (itemsPerProducer * (itemsPerProducer + 1) / 2) * PRODUCER_COUNT;
+    printf("%-10s items %ld  time %8.2f ms  %7.2f ns/item  %8.2f Mitems/s  %s\n",
+           name, result.count, elapsed / 1e6, (double) elapsed / total,
+           total * 1e3 / elapsed,
+           result.count == total && result.sum == expectedSum ? "OK" : "MISMATCH");
+    return elapsed;
+}
+
+int main(int argc, char **argv) {
+    if (argc > 1) {
+        itemsPerProducer = atol(argv[1]);
+    }
+
+    safeQueue = new SafeQueue<long>();
+    safeQueue->setReleaseHandle(releaseItem);
+    safeQueue->setSyncHandle(syncItems);
+    safeQueue->setWork(1);
+
+    ringQueue.setReleaseHandle(releaseItem);
+    ringQueue.setWork(1);
+
+    long safeQueueTime = run("SafeQueue", safeQueueProducer, safeQueueConsumer);
+    long ringQueueTime = run("RingQueue", ringQueueProducer, ringQueueConsumer);
+
+    printf("RingQueue full retries %ld, speedup %.2fx\n",
+           ringQueueRetries.load(), (double) safeQueueTime / ringQueueTime);
+
+    delete safeQueue;
+    return 0;
+}
@@ -0,0 +1,307 @@
+//
+// Created by octopus on 2020/7/14.
+//
+
+/**
+ * RTMP 块头压缩正确性测试
+ *
+ * RtmpChunkWriter 写入 socketpair, 从另一端读出全部字节, 与按照 RTMP 规范手工构造的字节流逐字节比较 :
+ *      fmt 0 : 块流的第一个消息, 时间戳回退
+ *      fmt 1 : 消息长度或类型变化, 时间戳增量
+ *      fmt 2 : 只有时间戳变化
+ *      fmt 3 : 同一个消息的后续块
+ *      扩展时间戳 : 绝对时间戳 / 时间戳增量超过 0xFFFFFF, fmt 3 后续块同样附加扩展时间戳
+ * 同时检查 getHeaderBytes / getBodyBytes 与实际写入的字节数一致
+ *
+ * 运行方式 : rtmp_chunk_writer_test
+ */
+
+#include <string.h>
+#include <unistd.h>
+#include <sys/socket.h>
+#include <vector>
+#include "../RtmpChunkWriter.h"
+#include "HostTest.h"
+
+#define VIDEO_CHANNEL 4
+#define AUDIO_CHANNEL 5
+#define STREAM_ID 1
+
+/**
+ * 测试数据包, 数据部分是按序号递增的字节
+ */
+struct TestPacket {
+    std::vector<char> body;
+    RTMPPacket packet;
+
+    TestPacket(int channel, uint8_t type, uint32_t timestamp, uint32_t size) : body(size) {
+        for (uint32_t i = 0; i < size; i++) {
+            body[i] = static_cast<char>(i * 13 + channel);
+        }
+        memset(&packet, 0, sizeof(packet));
+        packet.m_nChannel = channel;
+        packet.m_packetType = type;
+        packet.m_nTimeStamp = timestamp;
+        packet.m_nBodySize = size;
+        packet.m_body = body.data();
+    }
+};
+
+/**
+ * 按照 RTMP 规范构造期望的字节流
+ */
+class ExpectedStream {
+
+public:
+
+    std::vector<uint8_t> bytes;
+    long headerBytes = 0;
+    long bodyBytes = 0;
+
+    /**
+     * 消息的第一个块的块头
+     * @param timestampField 绝对时间戳 ( fmt 0 ) 或时间戳增量 ( fmt 1 / 2 )
+     */
+    void messageHeader(int fmt, const TestPacket &test, uint32_t timestampField) {
+        size_t start = bytes.size();
+        const RTMPPacket &packet = test.packet;
+        uint32_t timestamp24 = timestampField >= 0xFFFFFF ? 0xFFFFFF : timestampField;
+        bytes.push_back(static_cast<uint8_t>((fmt << 6) | packet.m_nChannel));
+        bytes.push_back(static_cast<uint8_t>(timestamp24 >> 16));
+        bytes.push_back(static_cast<uint8_t>(timestamp24 >> 8));
+        bytes.push_back(static_cast<uint8_t>(timestamp24));
+        if (fmt <= 1) {
+            bytes.push_back(static_cast<uint8_t>(packet.m_nBodySize >> 16));
+            bytes.push_back(static_cast<uint8_t>(packet.m_nBodySize >> 8));
+            bytes.push_back(static_cast<uint8_t>(packet.m_nBodySize));
+            bytes.push_back(packet.m_packetType);
+        }
+        if (fmt == 0) {
+            // 消息流 ID 小端字节序
+            bytes.push_back(STREAM_ID);
+            bytes.push_back(0);
+            bytes.push_back(0);
+            bytes.push_back(0);
+        }
+        extendedTimestamp(timestampField);
+        headerBytes += bytes.size() - start;
+    }
+
+    /**
+     * 同一个消息的后续块的块头
+     */
+    void continuationHeader(const TestPacket &test, uint32_t timestampField) {
+        size_t start = bytes.size();
+        bytes.push_back(static_cast<uint8_t>(0xC0 | test.packet.m_nChannel));
+        extendedTimestamp(timestampField);
+        headerBytes += bytes.size() - start;
+    }
+
+    void body(const TestPacket &test, uint32_t offset, uint32_t length) {
+        bytes.insert(bytes.end(), test.body.begin() + offset, test.body.begin() + offset + length);
+        bodyBytes += length;
+    }
+
+    /**
+     * 一个消息拆分成的所有块
+     */
+    void message(int fmt, const TestPacket &test, uint32_t timestampField, uint32_t chunkSize) {
+        messageHeader(fmt, test, timestampField);
+        for (uint32_t offset = 0; offset < test.packet.m_nBodySize; offset += chunkSize) {
+            if (offset > 0) {
+                continuationHeader(test, timestampField);
+            }
+            uint32_t remaining = test.packet.m_nBodySize - offset;
+            body(test, offset, remaining < chunkSize ? remaining : chunkSize);
+        }
+    }
+
+private:
+
+    void extendedTimestamp(uint32_t timestampField) {
+        if (timestampField >= 0xFFFFFF) {
+            bytes.push_back(static_cast<uint8_t>(timestampField >> 24));
+            bytes.push_back(static_cast<uint8_t>(timestampField >> 16));
+            bytes.push_back(static_cast<uint8_t>(timestampField >> 8));
+            bytes.push_back(static_cast<uint8_t>(timestampField));
+        }
+    }
+};
+
+/**
+ * 读出 socket 中的全部数据, 写入已经完成, 数据都在 socketpair 的缓冲区中, 不阻塞等待
+ * @param maxLength 最多读出的字节数
+ */
+static std::vector<uint8_t> receive(int socket, size_t maxLength) {
+    std::vector<uint8_t> received(maxLength);
+    size_t offset = 0;
+    while (offset < maxLength) {
+        ssize_t count = recv(socket, received.data() + offset, maxLength - offset, MSG_DONTWAIT);
+        if (count <= 0) {
+            break;
+        }
+        offset += count;
+    }
+    received.resize(offset);
+    return received;
+}
+
+/**
+ * 比较收到的字节流与期望的字节流, 不一致时输出第一个不同字节的位置
+ */
+static void checkStream(const char *name, const std::vector<uint8_t> &expected,
+                        const std::vector<uint8_t> &actual) {
+    size_t i = 0;
+    while (i < expected.size() && i < actual.size() && expected[i] == actual[i]) {
+        i++;
+    }
+    int same = i == expected.size() && i == actual.size();
+    if (!same) {
+        printf("%s : 第 %zu 字节开始不一致, 期望 %zu 字节, 实际 %zu 字节\n",
+               name, i, expected.size(), actual.size());
+    }
+    CHECK(same);
+}
+
+/**
+ * 建立 socketpair 连接, 关联块写入器
+ */
+struct TestConnection {
+    int sockets[2];
+    RTMP *rtmp;
+    RtmpChunkWriter writer;
+
+    TestConnection() {
+        socketpair(AF_UNIX, SOCK_STREAM, 0, sockets);
+        rtmp = RTMP_Alloc();
+        RTMP_Init(rtmp);
+        rtmp->m_sb.sb_socket = sockets[0];
+        rtmp->m_stream_id = STREAM_ID;
+        writer.attach(rtmp);
+    }
+
+    ~TestConnection() {
+        writer.attach(0);
+        close(sockets[0]);
+        close(sockets[1]);
+        // RTMP_Free 会关闭 socket, 这里已经关闭
+        rtmp->m_sb.sb_socket = -1;
+        RTMP_Free(rtmp);
+    }
+
+    /**
+     * 检查写入器的块头 / 数据字节数, 读出写入的字节流与期望的字节流比较
+     */
+    void check(const char *name, const ExpectedStream &expected) {
+        CHECK_EQ(expected.headerBytes, writer.getHeaderBytes());
+        CHECK_EQ(expected.bodyBytes, writer.getBodyBytes());
+        // 多读一个字节, 写入的数据比期望的多时同样可以发现
+        checkStream(name, expected.bytes, receive(sockets[1], expected.bytes.size() + 1));
+    }
+};
+
+/**
+ * fmt 0 / 1 / 2 的选择, 一次写入多个数据包, 两个块流交错
+ */
+static void testHeaderCompression() {
+    TestConnection connection;
+    ExpectedStream expected;
+
+    // 视频块流 : 第一个消息 fmt 0, 长度变化 fmt 1, 只有时间戳变化 fmt 2, 类型变化 fmt 1
+    TestPacket video0(VIDEO_CHANNEL, RTMP_PACKET_TYPE_VIDEO, 1000, 40);
+    TestPacket video1(VIDEO_CHANNEL, RTMP_PACKET_TYPE_VIDEO, 1033, 60);
+    TestPacket video2(VIDEO_CHANNEL, RTMP_PACKET_TYPE_VIDEO, 1066, 60);
+    TestPacket info(VIDEO_CHANNEL, RTMP_PACKET_TYPE_INFO, 1066, 60);
+    // 音频块流 : 与视频块流互不影响, 第一个消息同样是 fmt 0
+    TestPacket audio0(AUDIO_CHANNEL, RTMP_PACKET_TYPE_AUDIO, 1010, 20);
+    TestPacket audio1(AUDIO_CHANNEL, RTMP_PACKET_TYPE_AUDIO, 1033, 20);
+
+    RTMPPacket *batch[] = {&video0.packet, &audio0.packet, &video1.packet, &audio1.packet,
+                           &video2.packet, &info.packet};
+    CHECK_EQ(RtmpChunkWriter::WRITE_DONE, connection.writer.send(batch, 6));
+    expected.message(0, video0, 1000, 128);
+    expected.message(0, audio0, 1010, 128);
+    expected.message(1, video1, 33, 128);
+    expected.message(2, audio1, 23, 128);
+    expected.message(2, video2, 33, 128);
+    expected.message(1, info, 0, 128);
+
+    // 时间戳回退 ( 如重新推流, 时间戳修正 ) 使用绝对时间戳 fmt 0
+    TestPacket rewind(VIDEO_CHANNEL, RTMP_PACKET_TYPE_INFO, 500, 60);
+    batch[0] = &rewind.packet;
+    CHECK_EQ(RtmpChunkWriter::WRITE_DONE, connection.writer.send(batch, 1));
+    expected.message(0, rewind, 500, 128);
+
+    connection.check("fmt 0 / 1 / 2", expected);
+}
+
+/**
+ * fmt 3 后续块, 设置块大小之后按照新的块大小拆分, 分片写入
+ */
+static void testContinuationChunks() {
+    TestConnection connection;
+    CHECK(connection.writer.setChunkSize(256));
+    // Set Chunk Size 消息由 librtmp 发送, 不计入写入器的字节数, 先读出丢弃
+    std::vector<uint8_t> control = receive(connection.sockets[1], 16);
+    CHECK_EQ(16, control.size());
+
+    ExpectedStream expected;
+    TestPacket keyFrame(VIDEO_CHANNEL, RTMP_PACKET_TYPE_VIDEO, 0, 1000);
+    RTMPPacket *batch[] = {&keyFrame.packet};
+    CHECK_EQ(RtmpChunkWriter::WRITE_DONE, connection.writer.send(batch, 1));
+    expected.message(0, keyFrame, 0, 256);
+
+    // 分片写入 : 每个分片是整数个块, 第一个分片之后都是 fmt 3 块, 分片之间插入其它块流的消息
+    TestPacket sliced(VIDEO_CHANNEL, RTMP_PACKET_TYPE_VIDEO, 40, 700);
+    TestPacket audio(AUDIO_CHANNEL, RTMP_PACKET_TYPE_AUDIO, 40, 30);
+    uint32_t offset = 0;
+    CHECK_EQ(RtmpChunkWriter::WRITE_DONE, connection.writer.sendSlice(&sliced.packet, offset, 300));
+    CHECK_EQ(512, offset);
+    batch[0] = &audio.packet;
+    CHECK_EQ(RtmpChunkWriter::WRITE_DONE, connection.writer.send(batch, 1));
+    CHECK_EQ(RtmpChunkWriter::WRITE_DONE, connection.writer.sendSlice(&sliced.packet, offset, 300));
+    CHECK_EQ(700, offset);
+
+    // 与 keyFrame 长度不同, fmt 1
+    expected.messageHeader(1, sliced, 40);
+    expected.body(sliced, 0, 256);
+    expected.continuationHeader(sliced, 40);
+    expected.body(sliced, 256, 256);
+    expected.message(0, audio, 40, 256);
+    expected.continuationHeader(sliced, 40);
+    expected.body(sliced, 512, 188);
+
+    connection.check("fmt 3", expected);
+}
+
+/**
+ * 扩展时间戳 : 绝对时间戳与时间戳增量, fmt 3 后续块同样附加
+ */
+static void testExtendedTimestamp() {
+    TestConnection connection;
+    ExpectedStream expected;
+
+    // 绝对时间戳恰好是 0xFFFFFF 时同样使用扩展时间戳
+    TestPacket first(VIDEO_CHANNEL, RTMP_PACKET_TYPE_VIDEO, 0xFFFFFF, 300);
+    TestPacket small(VIDEO_CHANNEL, RTMP_PACKET_TYPE_VIDEO, 0xFFFFFF + 40, 300);
+    TestPacket large(VIDEO_CHANNEL, RTMP_PACKET_TYPE_VIDEO, 0xFFFFFF + 40 + 0x1000000, 300);
+    TestPacket after(VIDEO_CHANNEL, RTMP_PACKET_TYPE_VIDEO, 0xFFFFFF + 80 + 0x1000000, 100);
+    RTMPPacket *batch[] = {&first.packet, &small.packet, &large.packet, &after.packet};
+    CHECK_EQ(RtmpChunkWriter::WRITE_DONE, connection.writer.send(batch, 4));
+
+    expected.message(0, first, 0xFFFFFF, 128);
+    // 之前的消息使用了扩展时间戳, 增量本身没有超过 0xFFFFFF 时不附加
+    expected.message(2, small, 40, 128);
+    // 增量超过 0xFFFFFF
+    expected.message(2, large, 0x1000000, 128);
+    expected.message(1, after, 40, 128);
+
+    connection.check("扩展时间戳", expected);
+}
+
+int main() {
+    testHeaderCompression();
+    testContinuationChunks();
+    testExtendedTimestamp();
+    return hostTestResult("rtmp_chunk_writer_test");
+}
@@ -0,0 +1,64 @@
+//
+// Created by octopus on 2020/7/15.
+//
+
+/**
+ * RTMP 时间戳转换正确性测试
+ *
+ * 采集时间 ( System.nanoTime() ) 与开始推流时间都是 CLOCK_MONOTONIC 时钟, 转换结果只与两者之差有关 :
+ *      开机时长超过 2^31 微秒 ( 约 35.8 分钟 ) 与 2^32 毫秒 ( 约 49.7 天 ) 时, 第一个时间戳仍然是 0
+ *      开始推流之前采集的数据, 时间戳为 0
+ *      monotonicTimeUs 与 System.nanoTime() 对应的纳秒时间转换到同一个时间戳
+ *
+ * 运行方式 : stream_timestamp_test
+ */
+
+#include "../MonotonicClock.h"
+#include "HostTest.h"
+
+#define NANOS_PER_MS 1000000LL
+
+/**
+ * 开机时长为 startTimeMs 时开始推流, 检查之后的时间戳
+ */
+static void checkStartTime(int64_t startTimeMs) {
+    int64_t startNanos = startTimeMs * NANOS_PER_MS;
+    CHECK_EQ(0, streamTimestampMs(startNanos, startTimeMs));
+    CHECK_EQ(0, streamTimestampMs(startNanos + NANOS_PER_MS - 1, startTimeMs));
+    CHECK_EQ(1, streamTimestampMs(startNanos + NANOS_PER_MS, startTimeMs));
+    CHECK_EQ(1500, streamTimestampMs(startNanos + 1500 * NANOS_PER_MS, startTimeMs));
+    // 推流 10 小时
+    CHECK_EQ(36000000, streamTimestampMs(startNanos + 36000000 * NANOS_PER_MS, startTimeMs));
+    // 开始推流之前采集的数据
+    CHECK_EQ(0, streamTimestampMs(startNanos - 33 * NANOS_PER_MS, startTimeMs));
+}
+
+/**
+ * 发送完成时间由 monotonicTimeUs 换算为纳秒, 与采集时间使用同一个时钟, 两者之差是发送延迟
+ */
+static void testSameClock() {
+    int64_t nowUs = monotonicTimeUs();
+    CHECK(nowUs > 0);
+    int64_t startTimeMs = nowUs / 1000;
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    int64_t captureNanos = now.tv_sec * 1000000000LL + now.tv_nsec;
+    uint32_t captureTimestamp = streamTimestampMs(captureNanos, startTimeMs);
+    uint32_t sentTimestamp = streamTimestampMs(monotonicTimeUs() * 1000, startTimeMs);
+    CHECK(captureTimestamp < 1000);
+    CHECK(sentTimestamp >= captureTimestamp);
+    CHECK(sentTimestamp - captureTimestamp < 1000);
+}
+
+int main() {
+    // 开机不久
+    checkStartTime(5000);
+    // 开机时长超过 2^31 微秒 ( 32 位 long 表示的微秒数溢出 )
+    checkStartTime((1LL << 31) / 1000 + 1);
+    // 开机时长超过 2^32 毫秒 ( 32 位时间戳回绕 )
+    checkStartTime((1LL << 32) + 12345);
+    // 开机 200 天
+    checkStartTime(200LL * 24 * 3600 * 1000);
+    testSameClock();
+    return hostTestResult("stream_timestamp_test");
+}
@@ -0,0 +1,65 @@
+//
+// Created by octopus on 2020/7/3.
+//
+
+#ifndef RTMP_PUSHER_BENCHMARK_SYNTHETICMEDIA_H
+#define RTMP_PUSHER_BENCHMARK_SYNTHETICMEDIA_H
+
+/**
+ * 基准测试使用的合成音视频数据
+ */
+
+#include <stdint.h>
+#include <math.h>
+
+/**
+ * 生成一帧 NV21 画面 : 随帧序号移动的渐变背景, 加上一个移动的方块和少量噪声
+ * 纯色或静止画面 x264 几乎不需要计算, 无法体现编码的真实耗时
+ */
+inline void fillSyntheticNV21(uint8_t *nv21, int width, int height, int index) {
+    uint8_t *y = nv21;
+    uint8_t *vu = nv21 + width * height;
+    unsigned int seed = index * 2654435761u;
+    int box = width < height ? width / 8 : height / 8;
+    int boxX = (index * 7) % (width - box);
+    int boxY = (index * 5) % (height - box);
+    for (int row = 0; row < height; row++) {
+        for (int col = 0; col < width; col++) {
+            seed = seed * 1103515245u + 12345u;
+            int value = (row + col + index * 3) & 0xFF;
+            if (col >= boxX && col < boxX + box && row >= boxY && row < boxY + box) {
+                value = 255 - value;
+            }
+            y[row * width + col] = static_cast<uint8_t>(value ^ ((seed >> 16) & 0x07));
+        }
+    }
+    for (int row = 0; row < height / 2; row++) {
+        for (int col = 0; col < width / 2; col++) {
+            vu[row * width + col * 2] = static_cast<uint8_t>(128 + ((row + index) & 0x1F));
+            vu[row * width + col * 2 + 1] = static_cast<uint8_t>(128 - ((col + index) & 0x1F));
+        }
+    }
+}
+
+/**
+ * 生成 16 位交错存储的 PCM 数据 : 440 Hz 正弦波加少量噪声
+ * @param pcm           输出缓冲区
+ * @param sampleFrames  每个声道的样本个数
+ * @param channels      声道数
+ * @param sampleRate    采样率
+ * @param offset        起始样本序号, 保证多次调用生成的波形连续
+ */
+inline void fillSyntheticPcm(int16_t *pcm, int sampleFrames, int channels, int sampleRate,
+                             long offset) {
+    unsigned int seed = static_cast<unsigned int>(offset);
+    for (int i = 0; i < sampleFrames; i++) {
+        double phase = 2 * M_PI * 440 * (offset + i) / sampleRate;
+        seed = seed * 1103515245u + 12345u;
+        int16_t value = static_cast<int16_t>(8000 * sin(phase) + ((seed >> 16) & 0xFF) - 128);
+        for (int c = 0; c < channels; c++) {
+            pcm[i * channels + c] = value;
+        }
+    }
+}
+
+#endif //RTMP_PUSHER_BENCHMARK_SYNTHETICMEDIA_H
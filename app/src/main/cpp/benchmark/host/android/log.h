@@ -0,0 +1,30 @@
+//
+// Created by octopus on 2020/7/2.
+//
+
+#ifndef RTMP_PUSHER_BENCHMARK_ANDROID_LOG_H
+#define RTMP_PUSHER_BENCHMARK_ANDROID_LOG_H
+
+/**
+ * 主机端基准测试使用的 android/log.h 替代头文件
+ * 推流代码中的日志输出到标准错误输出
+ */
+
+#include <stdio.h>
+
+enum {
+    ANDROID_LOG_UNKNOWN = 0,
+    ANDROID_LOG_DEFAULT,
+    ANDROID_LOG_VERBOSE,
+    ANDROID_LOG_DEBUG,
+    ANDROID_LOG_INFO,
+    ANDROID_LOG_WARN,
+    ANDROID_LOG_ERROR,
+    ANDROID_LOG_FATAL,
+    ANDROID_LOG_SILENT
+};
+
+#define __android_log_print(priority, tag, ...) \
+    (fprintf(stderr, "%s: ", tag), fprintf(stderr, __VA_ARGS__), fputc('\n', stderr))
+
+#endif //RTMP_PUSHER_BENCHMARK_ANDROID_LOG_H
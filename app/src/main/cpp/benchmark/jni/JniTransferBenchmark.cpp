@@ -0,0 +1,71 @@
+//
+// Created by octopus on 2020/6/28.
+//
+
+/**
+ * JNI 数据传递方式基准测试的 native 部分, 参考 JniTransferBenchmark.java
+ */
+
+#include <jni.h>
+#include <stdint.h>
+#include <vector>
+#include "../../NV21Converter.h"
+
+#define MODE_ARRAY_ELEMENTS 0
+#define MODE_ARRAY_CRITICAL 1
+
+static int frameWidth;
+static int frameHeight;
+static std::vector<uint8_t> i420;
+
+/**
+ * 模拟编码前的处理 : 只传递时读取首尾字节, 转换时执行 NV21 旋转 90 度转 I420
+ */
+static jlong consume(const jbyte *data, jboolean convert) {
+    if (!convert) {
+        return data[0] + data[frameWidth * frameHeight * 3 / 2 - 1];
+    }
+    // 旋转 90 度, 输出宽高交换
+    I420Planes planes;
+    planes.y = &i420[0];
+    planes.u = planes.y + frameWidth * frameHeight;
+    planes.v = planes.u + frameWidth * frameHeight / 4;
+    planes.yStride = frameHeight;
+    planes.uStride = frameHeight / 2;
+    planes.vStride = frameHeight / 2;
+    nv21RotateToI420(reinterpret_cast<const uint8_t *>(data), frameWidth, frameHeight, 90, 0, planes);
+    return i420[0];
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_JniTransferBenchmark_init(JNIEnv *env, jclass clazz, jint width, jint height) {
+    frameWidth = width;
+    frameHeight = height;
+    i420.resize(width * height * 3 / 2);
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_JniTransferBenchmark_encodeArray(JNIEnv *env, jclass clazz, jint mode, jbyteArray array,
+                                      jboolean convert) {
+    jlong result;
+    if (mode == MODE_ARRAY_ELEMENTS) {
+        jbyte *data = env->GetByteArrayElements(array, NULL);
+        result = consume(data, convert);
+        env->ReleaseByteArrayElements(array, data, 0);
+    } else {
+        jbyte *data = static_cast<jbyte *>(env->GetPrimitiveArrayCritical(array, NULL));
+        result = consume(data, convert);
+        env->ReleasePrimitiveArrayCritical(array, data, JNI_ABORT);
+    }
+    return result;
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_JniTransferBenchmark_encodeBuffer(JNIEnv *env, jclass clazz, jobject buffer,
+                                       jboolean convert) {
+    jbyte *data = static_cast<jbyte *>(env->GetDirectBufferAddress(buffer));
+    return consume(data, convert);
+}
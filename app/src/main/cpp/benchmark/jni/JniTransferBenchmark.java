@@ -0,0 +1,81 @@
+import java.nio.ByteBuffer;
+
+/**
+ * JNI 数据传递方式基准测试, 主机端 ( x86_64 Linux, HotSpot ) 运行
+ *
+ * 对比 native_encodeCameraData 修改前后的数据传递方式 :
+ *      1. GetByteArrayElements + ReleaseByteArrayElements(0)   ( 修改前 )
+ *      2. GetPrimitiveArrayCritical + ReleasePrimitiveArrayCritical(JNI_ABORT)
+ *      3. GetDirectBufferAddress ( DirectByteBuffer )
+ * 每种方式分别测试 只传递数据 与 传递数据后执行 NV21 旋转转换 两种情况
+ *
+ * HotSpot 的 GetByteArrayElements 总是拷贝数组, 与 Android 上大数组的行为一致
+ * 设备上的数值需要在 ART 上测量, 这里用于对比不同方式之间的相对开销
+ *
+ * 运行方式 :
+ *      javac -d build/benchmark app/src/main/cpp/benchmark/jni/JniTransferBenchmark.java
+ *      java -Djava.library.path=build/benchmark -cp build/benchmark JniTransferBenchmark [宽度] [高度]
+ */
+public class JniTransferBenchmark {
+
+    static final int MODE_ARRAY_ELEMENTS = 0;
+    static final int MODE_ARRAY_CRITICAL = 1;
+    static final int MODE_DIRECT_BUFFER = 2;
+
+    static final String[] MODE_NAMES = {
+            "GetByteArrayElements",
+            "GetPrimitiveArrayCritical",
+            "GetDirectBufferAddress"
+    };
+
+    static native void init(int width, int height);
+
+    static native long encodeArray(int mode, byte[] data, boolean convert);
+
+    static native long encodeBuffer(ByteBuffer data, boolean convert);
+
+    public static void main(String[] args) {
+        System.loadLibrary("jni_transfer_benchmark");
+
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 1280;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 720;
+        int frameBytes = width * height * 3 / 2;
+        init(width, height);
+
+        byte[] array = new byte[frameBytes];
+        ByteBuffer buffer = ByteBuffer.allocateDirect(frameBytes);
+        for (int i = 0; i < frameBytes; i++) {
+            array[i] = (byte) i;
+            buffer.put(i, (byte) i);
+        }
+
+        System.out.printf("NV21 %d x %d, %d 字节%n", width, height, frameBytes);
+        for (int convert = 0; convert < 2; convert++) {
+            for (int mode = 0; mode < MODE_NAMES.length; mode++) {
+                // 预热
+                run(mode, array, buffer, convert == 1, 200);
+                int iterations = convert == 1 ? 500 : 5000;
+                double micros = run(mode, array, buffer, convert == 1, iterations);
+                System.out.printf("%-28s %-10s : %8.1f us/帧%n", MODE_NAMES[mode],
+                        convert == 1 ? "传递+旋转" : "只传递", micros);
+            }
+        }
+    }
+
+    static double run(int mode, byte[] array, ByteBuffer buffer, boolean convert, int iterations) {
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            if (mode == MODE_DIRECT_BUFFER) {
+                checksum += encodeBuffer(buffer, convert);
+            } else {
+                checksum += encodeArray(mode, array, convert);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (checksum == 42) {
+            System.out.println();
+        }
+        return elapsed / 1000.0 / iterations;
+    }
+}
@@ -0,0 +1,446 @@
+//
+// Created by octopus on 2020/7/7.
+//
+
+#include "ImpairmentProxy.h"
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include <errno.h>
+#include <poll.h>
+#include <algorithm>
+#include <sys/socket.h>
+#include <netinet/in.h>
+#include <netinet/tcp.h>
+#include <arpa/inet.h>
+
+/**
+ * 每次从推流端读取的最大字节数, 也是延迟与抖动的最小单位
+ */
+#define PROXY_READ_SIZE (16 * 1024)
+
+/**
+ * 带宽限制的令牌桶容量, 单位毫秒, 允许的突发数据量为该时长对应的字节数
+ */
+#define PROXY_BURST_MS 20
+
+/**
+ * 代理接收推流端数据的 socket 缓冲区大小
+ */
+#define PROXY_SOCKET_BUFFER_BYTES (32 * 1024)
+
+/**
+ * 代理接受的连接的 MSS, 与以太网相同
+ * 回环接口的 MSS 接近 64 KB, 推流端的数据会以接收窗口大小的块突发发送, 与真实网络不同
+ */
+#define PROXY_MSS 1448
+
+/**
+ * poll 的最长等待时间, 单位毫秒, 保证阶段切换及时生效
+ */
+#define PROXY_POLL_MS 10
+
+/**
+ * 预置的网络损伤场景
+ */
+static const char *PRESET_SCENARIOS[][2] = {
+        // 进电梯 : 正常网络, 断流 6 秒, 恢复
+        {"lift",      "5s:bw=4000,delay=30;6s:blackout;10s:bw=4000,delay=30"},
+        // 3G 网络 : 带宽 1 Mbps, 延迟高, 抖动大
+        {"3g",        "20s:bw=1000,delay=150,jitter=80"},
+        // 拥塞 : 带宽短时间下降到 600 kbps, 低于默认的视频码率
+        {"congested", "5s:bw=4000,delay=30;10s:bw=600,delay=80;10s:bw=4000,delay=30"},
+        // 连接中断 : 断开连接后恢复正常网络
+        {"flap",      "5s:bw=4000,delay=30;1s:reset;10s:bw=4000,delay=30"},
+};
+
+static int64_t nowUs() {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return now.tv_sec * 1000000LL + now.tv_nsec / 1000;
+}
+
+/**
+ * 解析一个阶段, 如 "10s:bw=800,delay=150,jitter=50"
+ */
+static int parsePhase(const char *text, size_t length, ImpairmentPhase &phase) {
+    memset(&phase, 0, sizeof(phase));
+    char spec[128];
+    if (length == 0 || length >= sizeof(spec)) {
+        return 0;
+    }
+    memcpy(spec, text, length);
+    spec[length] = '\0';
+
+    char *end = 0;
+    double duration = strtod(spec, &end);
+    if (end == spec || duration <= 0) {
+        return 0;
+    }
+    if (!strncmp(end, "ms", 2)) {
+        phase.durationMs = static_cast<int>(duration);
+        end += 2;
+    } else if (*end == 's') {
+        phase.durationMs = static_cast<int>(duration * 1000);
+        end++;
+    } else {
+        return 0;
+    }
+
+    const char *options = end;
+    if (*options == ':') {
+        options++;
+    } else if (*options) {
+        return 0;
+    }
+    snprintf(phase.name, sizeof(phase.name), "%s", *options ? options : "normal");
+
+    while (*options) {
+        const char *next = strchr(options, ',');
+        size_t size = next ? static_cast<size_t>(next - options) : strlen(options);
+        if (!strncmp(options, "bw=", 3)) {
+            phase.bandwidthKbps = atoi(options + 3);
+        } else if (!strncmp(options, "delay=", 6)) {
+            phase.delayMs = atoi(options + 6);
+        } else if (!strncmp(options, "jitter=", 7)) {
+            phase.jitterMs = atoi(options + 7);
+        } else if (size == 8 && !strncmp(options, "blackout", 8)) {
+            phase.blackout = 1;
+        } else if (size == 5 && !strncmp(options, "reset", 5)) {
+            phase.reset = 1;
+        } else {
+            return 0;
+        }
+        options = next ? next + 1 : options + size;
+    }
+    return 1;
+}
+
+int parseImpairmentScenario(const char *script, std::vector<ImpairmentPhase> &phases) {
+    for (size_t i = 0; i < sizeof(PRESET_SCENARIOS) / sizeof(PRESET_SCENARIOS[0]); i++) {
+        if (!strcmp(script, PRESET_SCENARIOS[i][0])) {
+            script = PRESET_SCENARIOS[i][1];
+            break;
+        }
+    }
+
+    phases.clear();
+    while (*script) {
+        const char *next = strchr(script, ';');
+        size_t length = next ? static_cast<size_t>(next - script) : strlen(script);
+        ImpairmentPhase phase;
+        if (!parsePhase(script, length, phase)) {
+            fprintf(stderr, "无效的网络损伤阶段 %.*s\n", static_cast<int>(length), script);
+            return 0;
+        }
+        phases.push_back(phase);
+        script = next ? next + 1 : script + length;
+    }
+    return !phases.empty();
+}
+
+ImpairmentProxy::ImpairmentProxy() : mUpstreamPort(0), mBufferBytes(DEFAULT_IMPAIRMENT_BUFFER_BYTES),
+                                     mListenFd(-1), mRunning(0), mScenarioStartUs(0),
+                                     mForwardedBytes(0), mBufferedBytes(0), mThreadStarted(0),
+                                     mSeed(1) {
+    mWakeFds[0] = -1;
+    mWakeFds[1] = -1;
+}
+
+ImpairmentProxy::~ImpairmentProxy() {
+    stop();
+}
+
+int ImpairmentProxy::start(int upstreamPort, const std::vector<ImpairmentPhase> &phases,
+                           int bufferBytes) {
+    if (phases.empty()) {
+        return 0;
+    }
+    mPhases = phases;
+    mUpstreamPort = upstreamPort;
+    mBufferBytes = bufferBytes > PROXY_READ_SIZE ? bufferBytes : PROXY_READ_SIZE;
+
+    mListenFd = socket(AF_INET, SOCK_STREAM, 0);
+    if (mListenFd < 0 || pipe(mWakeFds) < 0) {
+        stop();
+        return 0;
+    }
+    int on = 1;
+    setsockopt(mListenFd, SOL_SOCKET, SO_REUSEADDR, &on, sizeof(on));
+    // 回环连接的 socket 缓冲区可以自动增长到几 MB, 会掩盖上行拥塞
+    // 在 listen 之前设置接收缓冲区, 接受的连接继承该设置
+    // 上行缓冲区设置得较小时 ( 模拟较小的路由器队列 ), 接收缓冲区同样减小, 积压的数据留在推流端
+    int receiveBuffer = std::min(PROXY_SOCKET_BUFFER_BYTES, mBufferBytes);
+    setsockopt(mListenFd, SOL_SOCKET, SO_RCVBUF, &receiveBuffer, sizeof(receiveBuffer));
+    int mss = PROXY_MSS;
+    setsockopt(mListenFd, IPPROTO_TCP, TCP_MAXSEG, &mss, sizeof(mss));
+
+    struct sockaddr_in address;
+    memset(&address, 0, sizeof(address));
+    address.sin_family = AF_INET;
+    address.sin_addr.s_addr = htonl(INADDR_LOOPBACK);
+    address.sin_port = 0;
+    socklen_t length = sizeof(address);
+    if (bind(mListenFd, reinterpret_cast<sockaddr *>(&address), sizeof(address)) < 0
+        || listen(mListenFd, 1) < 0
+        || getsockname(mListenFd, reinterpret_cast<sockaddr *>(&address), &length) < 0) {
+        stop();
+        return 0;
+    }
+
+    mRunning = 1;
+    if (pthread_create(&mThread, 0, run, this)) {
+        mRunning = 0;
+        stop();
+        return 0;
+    }
+    mThreadStarted = 1;
+    return ntohs(address.sin_port);
+}
+
+void ImpairmentProxy::stop() {
+    mRunning = 0;
+    if (mThreadStarted) {
+        char wake = 0;
+        write(mWakeFds[1], &wake, 1);
+        pthread_join(mThread, 0);
+        mThreadStarted = 0;
+    }
+    if (mListenFd >= 0) {
+        close(mListenFd);
+        mListenFd = -1;
+    }
+    for (int i = 0; i < 2; i++) {
+        if (mWakeFds[i] >= 0) {
+            close(mWakeFds[i]);
+            mWakeFds[i] = -1;
+        }
+    }
+}
+
+void ImpairmentProxy::startScenario() {
+    mScenarioStartUs = nowUs();
+}
+
+int64_t ImpairmentProxy::elapsedMs() {
+    int64_t startUs = mScenarioStartUs;
+    return startUs ? (nowUs() - startUs) / 1000 : 0;
+}
+
+const ImpairmentPhase &ImpairmentProxy::phaseAt(int64_t elapsedMs) {
+    int64_t end = 0;
+    for (size_t i = 0; i < mPhases.size(); i++) {
+        end += mPhases[i].durationMs;
+        if (elapsedMs < end) {
+            return mPhases[i];
+        }
+    }
+    return mPhases.back();
+}
+
+int ImpairmentProxy::getScenarioDurationMs() {
+    int duration = 0;
+    for (size_t i = 0; i < mPhases.size(); i++) {
+        duration += mPhases[i].durationMs;
+    }
+    return duration;
+}
+
+long ImpairmentProxy::getForwardedBytes() {
+    return mForwardedBytes;
+}
+
+long ImpairmentProxy::getBufferedBytes() {
+    return mBufferedBytes;
+}
+
+void *ImpairmentProxy::run(void *args) {
+    static_cast<ImpairmentProxy *>(args)->loop();
+    return 0;
+}
+
+void ImpairmentProxy::loop() {
+    while (mRunning) {
+        struct pollfd fds[2];
+        fds[0].fd = mListenFd;
+        fds[0].events = POLLIN;
+        fds[1].fd = mWakeFds[0];
+        fds[1].events = POLLIN;
+        if (poll(fds, 2, -1) < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            break;
+        }
+        if (fds[1].revents || !mRunning) {
+            break;
+        }
+        int clientFd = accept(mListenFd, 0, 0);
+        if (clientFd >= 0) {
+            proxy(clientFd);
+            close(clientFd);
+        }
+    }
+}
+
+void ImpairmentProxy::proxy(int clientFd) {
+    int upstreamFd = socket(AF_INET, SOCK_STREAM, 0);
+    struct sockaddr_in address;
+    memset(&address, 0, sizeof(address));
+    address.sin_family = AF_INET;
+    address.sin_addr.s_addr = htonl(INADDR_LOOPBACK);
+    address.sin_port = htons(mUpstreamPort);
+    if (upstreamFd < 0
+        || connect(upstreamFd, reinterpret_cast<sockaddr *>(&address), sizeof(address)) < 0) {
+        if (upstreamFd >= 0) {
+            close(upstreamFd);
+        }
+        return;
+    }
+    int on = 1;
+    setsockopt(clientFd, IPPROTO_TCP, TCP_NODELAY, &on, sizeof(on));
+    setsockopt(upstreamFd, IPPROTO_TCP, TCP_NODELAY, &on, sizeof(on));
+
+    std::deque<Segment> queue;
+    long buffered = 0;
+    double tokens = 0;
+    int64_t lastRefillUs = nowUs();
+    int64_t lastReleaseUs = 0;
+    const ImpairmentPhase *lastPhase = &phaseAt(elapsedMs());
+    int clientClosed = 0;
+    int upstreamBlocked = 0;
+    char buffer[PROXY_READ_SIZE];
+
+    while (mRunning) {
+        int64_t now = nowUs();
+        const ImpairmentPhase &phase = phaseAt(elapsedMs());
+        if (&phase != lastPhase) {
+            lastPhase = &phase;
+            if (phase.reset) {
+                // 进入断开连接的阶段, 推流端与服务器都会看到连接断开
+                break;
+            }
+        }
+
+        // 令牌桶按照当前阶段的带宽补充令牌, 单位字节
+        double burst = 0;
+        if (phase.bandwidthKbps > 0) {
+            double bytesPerUs = phase.bandwidthKbps * 1000.0 / 8 / 1000000;
+            burst = bytesPerUs * PROXY_BURST_MS * 1000;
+            if (burst < 1500) {
+                burst = 1500;
+            }
+            tokens += (now - lastRefillUs) * bytesPerUs;
+            if (tokens > burst) {
+                tokens = burst;
+            }
+        }
+        lastRefillUs = now;
+
+        // 转发已经到达释放时间的数据
+        upstreamBlocked = 0;
+        while (!phase.blackout && !queue.empty() && queue.front().releaseUs <= now) {
+            Segment &segment = queue.front();
+            size_t remaining = segment.data.size() - segment.offset;
+            size_t allowed = remaining;
+            if (phase.bandwidthKbps > 0) {
+                if (tokens < 1) {
+                    break;
+                }
+                allowed = tokens < remaining ? static_cast<size_t>(tokens) : remaining;
+            }
+            ssize_t written = send(upstreamFd, segment.data.data() + segment.offset, allowed,
+                                   MSG_DONTWAIT | MSG_NOSIGNAL);
+            if (written < 0) {
+                if (errno == EAGAIN || errno == EWOULDBLOCK) {
+                    upstreamBlocked = 1;
+                    break;
+                }
+                goto done;
+            }
+            segment.offset += written;
+            buffered -= written;
+            mForwardedBytes += written;
+            if (phase.bandwidthKbps > 0) {
+                tokens -= written;
+            }
+            if (segment.offset == segment.data.size()) {
+                queue.pop_front();
+            }
+        }
+        mBufferedBytes = buffered;
+
+        if (clientClosed && queue.empty()) {
+            // 推流端已经关闭, 数据全部转发完毕后关闭上游连接
+            break;
+        }
+
+        // 计算下一次需要处理的时间
+        int timeoutMs = PROXY_POLL_MS;
+        if (!phase.blackout && !queue.empty() && !upstreamBlocked) {
+            int64_t waitUs = queue.front().releaseUs - now;
+            if (waitUs <= 0 && phase.bandwidthKbps > 0) {
+                waitUs = static_cast<int64_t>((1 - tokens) * 8 * 1000 / phase.bandwidthKbps);
+            }
+            if (waitUs < timeoutMs * 1000) {
+                timeoutMs = waitUs > 0 ? static_cast<int>((waitUs + 999) / 1000) : 0;
+            }
+        }
+
+        struct pollfd fds[3];
+        fds[0].fd = !clientClosed && buffered < mBufferBytes ? clientFd : -1;
+        fds[0].events = POLLIN;
+        fds[1].fd = upstreamFd;
+        fds[1].events = POLLIN | (upstreamBlocked ? POLLOUT : 0);
+        fds[2].fd = mWakeFds[0];
+        fds[2].events = POLLIN;
+        if (poll(fds, 3, timeoutMs) < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            break;
+        }
+        if (fds[2].revents) {
+            break;
+        }
+
+        if (fds[0].fd >= 0 && fds[0].revents) {
+            size_t space = static_cast<size_t>(mBufferBytes - buffered);
+            ssize_t length = recv(clientFd, buffer, space < sizeof(buffer) ? space : sizeof(buffer),
+                                  0);
+            if (length <= 0) {
+                clientClosed = 1;
+            } else {
+                // 抖动不改变数据顺序, 释放时间不早于上一段数据
+                int64_t delayUs = phase.delayMs * 1000LL;
+                if (phase.jitterMs > 0) {
+                    mSeed = mSeed * 1103515245u + 12345u;
+                    delayUs += ((mSeed >> 8) % (phase.jitterMs * 1000));
+                }
+                Segment segment;
+                segment.releaseUs = std::max(nowUs() + delayUs, lastReleaseUs);
+                segment.data.assign(buffer, buffer + length);
+                segment.offset = 0;
+                lastReleaseUs = segment.releaseUs;
+                queue.push_back(segment);
+                buffered += length;
+            }
+        }
+
+        if (fds[1].revents & (POLLIN | POLLHUP | POLLERR)) {
+            // 下行数据 ( 服务器的命令回复, 确认消息 ) 直接转发
+            ssize_t length = recv(upstreamFd, buffer, sizeof(buffer), 0);
+            if (length <= 0 || send(clientFd, buffer, length, MSG_NOSIGNAL) != length) {
+                break;
+            }
+        }
+    }
+
+    done:
+    mBufferedBytes = 0;
+    shutdown(clientFd, SHUT_RDWR);
+    close(upstreamFd);
+}
@@ -0,0 +1,161 @@
+//
+// Created by octopus on 2020/7/7.
+//
+
+#ifndef RTMP_PUSHER_BENCHMARK_IMPAIRMENTPROXY_H
+#define RTMP_PUSHER_BENCHMARK_IMPAIRMENTPROXY_H
+
+#include <pthread.h>
+#include <stdint.h>
+#include <atomic>
+#include <deque>
+#include <vector>
+
+/**
+ * 代理内部的上行缓冲区大小 ( 相当于路由器的队列 ), 单位字节
+ * 缓冲区满后不再从推流端读取数据, 推流端的 socket 写操作会阻塞, 与真实的网络拥塞一致
+ */
+#define DEFAULT_IMPAIRMENT_BUFFER_BYTES (64 * 1024)
+
+/**
+ * 一个网络损伤阶段, 持续 durationMs 毫秒
+ */
+struct ImpairmentPhase {
+    /**
+     * 阶段描述, 输出报告使用
+     */
+    char name[48];
+    /**
+     * 持续时间, 单位毫秒
+     */
+    int durationMs;
+    /**
+     * 上行带宽, 单位 kbps, 0 表示不限制
+     */
+    int bandwidthKbps;
+    /**
+     * 单向延迟, 单位毫秒
+     */
+    int delayMs;
+    /**
+     * 延迟抖动, 每段数据的延迟在 delayMs ~ delayMs + jitterMs 之间随机, 不会改变数据顺序
+     */
+    int jitterMs;
+    /**
+     * 断流 : 不转发任何上行数据, 连接保持
+     */
+    int blackout;
+    /**
+     * 进入该阶段时断开连接
+     */
+    int reset;
+};
+
+/**
+ * 解析网络损伤脚本
+ *
+ * 各阶段之间用 ';' 分隔, 每个阶段为 时长 [: 参数, 参数 ...]
+ *      时长     : 10s / 500ms
+ *      bw=N     : 上行带宽 N kbps
+ *      delay=N  : 单向延迟 N ms
+ *      jitter=N : 延迟抖动 N ms
+ *      blackout : 断流
+ *      reset    : 进入该阶段时断开连接
+ * 例如 "10s:bw=4000,delay=30;4s:blackout;10s:bw=800,delay=150,jitter=50"
+ *
+ * 也可以使用预置的场景名称, 见 ImpairmentProxy.cpp 中的 PRESET_SCENARIOS
+ *
+ * @return 解析成功返回 1
+ */
+int parseImpairmentScenario(const char *script, std::vector<ImpairmentPhase> &phases);
+
+/**
+ * 网络损伤代理, 主机端测试推流使用
+ *
+ * 监听 127.0.0.1, 接受推流端的连接后连接上游服务器 ( 如 RtmpLoopbackServer ), 双向转发数据
+ * 推流端 到 服务器 的上行数据按照当前阶段限制带宽, 增加延迟与抖动, 或者断流
+ * 服务器 到 推流端 的下行数据直接转发
+ *
+ * 所有连接在一个线程中通过 poll 处理, 同一时间只转发一个连接
+ */
+class ImpairmentProxy {
+
+public:
+    ImpairmentProxy();
+
+    ~ImpairmentProxy();
+
+    /**
+     * 开始监听
+     * @param upstreamPort  上游服务器端口, 127.0.0.1
+     * @param phases        网络损伤阶段, 最后一个阶段结束后保持最后一个阶段的设置
+     * @param bufferBytes   上行缓冲区大小
+     * @return 代理监听的端口, 失败返回 0
+     */
+    int start(int upstreamPort, const std::vector<ImpairmentPhase> &phases,
+              int bufferBytes = DEFAULT_IMPAIRMENT_BUFFER_BYTES);
+
+    /**
+     * 断开连接, 停止监听
+     */
+    void stop();
+
+    /**
+     * 从现在开始按照脚本切换阶段, 调用之前使用第一个阶段的设置
+     */
+    void startScenario();
+
+    /**
+     * 开始脚本后经过 elapsedMs 毫秒时所处的阶段
+     */
+    const ImpairmentPhase &phaseAt(int64_t elapsedMs);
+
+    /**
+     * 脚本总时长, 单位毫秒
+     */
+    int getScenarioDurationMs();
+
+    /**
+     * 已经转发给上游服务器的字节数
+     */
+    long getForwardedBytes();
+
+    /**
+     * 代理上行缓冲区中等待转发的字节数
+     */
+    long getBufferedBytes();
+
+private:
+    /**
+     * 上行缓冲区中的一段数据, 到达 releaseUs 后才能转发
+     */
+    struct Segment {
+        int64_t releaseUs;
+        std::vector<char> data;
+        size_t offset;
+    };
+
+    static void *run(void *args);
+
+    void loop();
+
+    void proxy(int clientFd);
+
+    int64_t elapsedMs();
+
+    std::vector<ImpairmentPhase> mPhases;
+    int mUpstreamPort;
+    int mBufferBytes;
+    int mListenFd;
+    int mWakeFds[2];
+    std::atomic<int> mRunning;
+    std::atomic<int64_t> mScenarioStartUs;
+    std::atomic<long> mForwardedBytes;
+    std::atomic<long> mBufferedBytes;
+    pthread_t mThread;
+    int mThreadStarted;
+    unsigned int mSeed;
+};
+
+
+#endif //RTMP_PUSHER_BENCHMARK_IMPAIRMENTPROXY_H
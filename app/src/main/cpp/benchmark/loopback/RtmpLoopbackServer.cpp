@@ -0,0 +1,353 @@
+//
+// Created by octopus on 2020/7/6.
+//
+
+#include "RtmpLoopbackServer.h"
+
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include <errno.h>
+#include <sys/socket.h>
+#include <netinet/in.h>
+#include <netinet/tcp.h>
+#include <arpa/inet.h>
+
+/**
+ * 服务器通知推流端的窗口确认大小与对端带宽
+ */
+#define LOOPBACK_WINDOW_ACK_SIZE 5000000
+
+/**
+ * createStream 返回的流 ID
+ */
+#define LOOPBACK_STREAM_ID 1
+
+/**
+ * rtmp.h 中只定义了音视频数据的消息类型, 下面是服务端需要处理的其它消息类型
+ */
+#define MESSAGE_TYPE_CHUNK_SIZE 0x01
+#define MESSAGE_TYPE_WINDOW_ACK_SIZE 0x05
+#define MESSAGE_TYPE_PEER_BANDWIDTH 0x06
+#define MESSAGE_TYPE_COMMAND 0x14
+
+static int64_t nowUs() {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return now.tv_sec * 1000000LL + now.tv_nsec / 1000;
+}
+
+static AVal makeAVal(const char *value) {
+    AVal av;
+    av.av_val = const_cast<char *>(value);
+    av.av_len = static_cast<int>(strlen(value));
+    return av;
+}
+
+static int matchAVal(const AVal &av, const char *value) {
+    int length = static_cast<int>(strlen(value));
+    return av.av_len == length && !memcmp(av.av_val, value, length);
+}
+
+/**
+ * 发送控制消息 / 命令消息, body 之前预留了 RTMP_MAX_HEADER_SIZE 字节的块头空间
+ */
+static int sendMessage(RTMP *rtmp, int channel, int type, int streamId, char *body, int size) {
+    RTMPPacket packet;
+    memset(&packet, 0, sizeof(packet));
+    packet.m_nChannel = channel;
+    packet.m_headerType = RTMP_PACKET_SIZE_LARGE;
+    packet.m_packetType = type;
+    packet.m_nInfoField2 = streamId;
+    packet.m_body = body;
+    packet.m_nBodySize = size;
+    return RTMP_SendPacket(rtmp, &packet, FALSE);
+}
+
+/**
+ * 编码 { level, code, description } 状态对象
+ */
+static char *encodeStatus(char *enc, char *end, const char *code, const char *description) {
+    AVal level = makeAVal("level");
+    AVal status = makeAVal("status");
+    AVal codeName = makeAVal("code");
+    AVal codeValue = makeAVal(code);
+    AVal descriptionName = makeAVal("description");
+    AVal descriptionValue = makeAVal(description);
+    *enc++ = AMF_OBJECT;
+    enc = AMF_EncodeNamedString(enc, end, &level, &status);
+    enc = AMF_EncodeNamedString(enc, end, &codeName, &codeValue);
+    enc = AMF_EncodeNamedString(enc, end, &descriptionName, &descriptionValue);
+    *enc++ = 0;
+    *enc++ = 0;
+    *enc++ = AMF_OBJECT_END;
+    return enc;
+}
+
+RtmpLoopbackServer::RtmpLoopbackServer() : mListenFd(-1), mClientFd(-1), mRunning(0),
+                                           mPublishing(0), mSessions(0), mMediaBytes(0),
+                                           mThreadStarted(0) {
+    pthread_mutex_init(&mMutex, 0);
+    pthread_cond_init(&mCond, 0);
+}
+
+RtmpLoopbackServer::~RtmpLoopbackServer() {
+    stop();
+    pthread_cond_destroy(&mCond);
+    pthread_mutex_destroy(&mMutex);
+}
+
+int RtmpLoopbackServer::start(int port) {
+    mListenFd = socket(AF_INET, SOCK_STREAM, 0);
+    if (mListenFd < 0) {
+        return 0;
+    }
+    int on = 1;
+    setsockopt(mListenFd, SOL_SOCKET, SO_REUSEADDR, &on, sizeof(on));
+
+    struct sockaddr_in address;
+    memset(&address, 0, sizeof(address));
+    address.sin_family = AF_INET;
+    address.sin_addr.s_addr = htonl(INADDR_LOOPBACK);
+    address.sin_port = htons(port);
+    socklen_t length = sizeof(address);
+    if (bind(mListenFd, reinterpret_cast<sockaddr *>(&address), sizeof(address)) < 0
+        || listen(mListenFd, 1) < 0
+        || getsockname(mListenFd, reinterpret_cast<sockaddr *>(&address), &length) < 0) {
+        close(mListenFd);
+        mListenFd = -1;
+        return 0;
+    }
+
+    mRunning = 1;
+    if (pthread_create(&mThread, 0, run, this)) {
+        mRunning = 0;
+        close(mListenFd);
+        mListenFd = -1;
+        return 0;
+    }
+    mThreadStarted = 1;
+    return ntohs(address.sin_port);
+}
+
+void RtmpLoopbackServer::stop() {
+    if (!mThreadStarted) {
+        return;
+    }
+    mRunning = 0;
+    // shutdown 唤醒阻塞在 accept / recv 上的服务线程, 文件描述符由服务线程关闭
+    shutdown(mListenFd, SHUT_RDWR);
+    dropConnection();
+    pthread_join(mThread, 0);
+    mThreadStarted = 0;
+    close(mListenFd);
+    mListenFd = -1;
+}
+
+void RtmpLoopbackServer::dropConnection() {
+    int fd = mClientFd.load();
+    if (fd >= 0) {
+        shutdown(fd, SHUT_RDWR);
+    }
+}
+
+int RtmpLoopbackServer::waitPublishing(int timeoutMs) {
+    struct timespec deadline;
+    clock_gettime(CLOCK_REALTIME, &deadline);
+    deadline.tv_sec += timeoutMs / 1000;
+    deadline.tv_nsec += (timeoutMs % 1000) * 1000000L;
+    if (deadline.tv_nsec >= 1000000000L) {
+        deadline.tv_sec++;
+        deadline.tv_nsec -= 1000000000L;
+    }
+    pthread_mutex_lock(&mMutex);
+    while (!mPublishing && mRunning) {
+        if (pthread_cond_timedwait(&mCond, &mMutex, &deadline) == ETIMEDOUT) {
+            break;
+        }
+    }
+    int publishing = mPublishing;
+    pthread_mutex_unlock(&mMutex);
+    return publishing;
+}
+
+int RtmpLoopbackServer::isPublishing() {
+    return mPublishing;
+}
+
+int RtmpLoopbackServer::getSessions() {
+    return mSessions;
+}
+
+std::vector<ReceivedTag> RtmpLoopbackServer::getTags() {
+    pthread_mutex_lock(&mMutex);
+    std::vector<ReceivedTag> tags = mTags;
+    pthread_mutex_unlock(&mMutex);
+    return tags;
+}
+
+long RtmpLoopbackServer::getMediaBytes() {
+    return mMediaBytes;
+}
+
+void *RtmpLoopbackServer::run(void *args) {
+    RtmpLoopbackServer *server = static_cast<RtmpLoopbackServer *>(args);
+    while (server->mRunning) {
+        int fd = accept(server->mListenFd, 0, 0);
+        if (fd < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            break;
+        }
+        int on = 1;
+        setsockopt(fd, IPPROTO_TCP, TCP_NODELAY, &on, sizeof(on));
+        server->mClientFd = fd;
+        server->serve(fd);
+        server->mClientFd = -1;
+
+        pthread_mutex_lock(&server->mMutex);
+        server->mPublishing = 0;
+        server->mSessions++;
+        pthread_cond_broadcast(&server->mCond);
+        pthread_mutex_unlock(&server->mMutex);
+    }
+    return 0;
+}
+
+void RtmpLoopbackServer::serve(int fd) {
+    RTMP *rtmp = RTMP_Alloc();
+    RTMP_Init(rtmp);
+    rtmp->m_sb.sb_socket = fd;
+
+    if (RTMP_Serve(rtmp)) {
+        RTMPPacket packet;
+        memset(&packet, 0, sizeof(packet));
+        while (mRunning && RTMP_IsConnected(rtmp) && RTMP_ReadPacket(rtmp, &packet)) {
+            if (!RTMPPacket_IsReady(&packet)) {
+                continue;
+            }
+            int keep = 1;
+            switch (packet.m_packetType) {
+                case MESSAGE_TYPE_CHUNK_SIZE:
+                    if (packet.m_nBodySize >= 4) {
+                        rtmp->m_inChunkSize = AMF_DecodeInt32(packet.m_body);
+                    }
+                    break;
+                case MESSAGE_TYPE_COMMAND:
+                    keep = handleCommand(rtmp, &packet);
+                    break;
+                case RTMP_PACKET_TYPE_AUDIO:
+                case RTMP_PACKET_TYPE_VIDEO:
+                case RTMP_PACKET_TYPE_INFO:
+                    recordTag(&packet);
+                    break;
+                default:
+                    break;
+            }
+            RTMPPacket_Free(&packet);
+            if (!keep) {
+                break;
+            }
+        }
+        RTMPPacket_Free(&packet);
+    }
+
+    // 服务端没有发布流, RTMP_Close 只关闭连接并释放块缓存
+    RTMP_Close(rtmp);
+    RTMP_Free(rtmp);
+}
+
+int RtmpLoopbackServer::handleCommand(RTMP *rtmp, RTMPPacket *packet) {
+    if (!packet->m_nBodySize || packet->m_body[0] != AMF_STRING) {
+        return 1;
+    }
+    AMFObject obj;
+    if (AMF_Decode(&obj, packet->m_body, packet->m_nBodySize, FALSE) < 0) {
+        return 1;
+    }
+    AVal method;
+    AMFProp_GetString(AMF_GetProp(&obj, NULL, 0), &method);
+    double transactionId = AMFProp_GetNumber(AMF_GetProp(&obj, NULL, 1));
+
+    char buffer[512];
+    char *body = buffer + RTMP_MAX_HEADER_SIZE;
+    char *end = buffer + sizeof(buffer);
+    char *enc = body;
+    AVal result = makeAVal("_result");
+    int ret = 1;
+
+    if (matchAVal(method, "connect")) {
+        // 窗口确认大小, 对端带宽, 然后返回连接成功
+        AMF_EncodeInt32(body, end, LOOPBACK_WINDOW_ACK_SIZE);
+        sendMessage(rtmp, 0x02, MESSAGE_TYPE_WINDOW_ACK_SIZE, 0, body, 4);
+        AMF_EncodeInt32(body, end, LOOPBACK_WINDOW_ACK_SIZE);
+        body[4] = 2;
+        sendMessage(rtmp, 0x02, MESSAGE_TYPE_PEER_BANDWIDTH, 0, body, 5);
+
+        AVal fmsVerName = makeAVal("fmsVer");
+        AVal fmsVer = makeAVal("FMS/3,0,1,123");
+        AVal capabilities = makeAVal("capabilities");
+        enc = AMF_EncodeString(enc, end, &result);
+        enc = AMF_EncodeNumber(enc, end, transactionId);
+        *enc++ = AMF_OBJECT;
+        enc = AMF_EncodeNamedString(enc, end, &fmsVerName, &fmsVer);
+        enc = AMF_EncodeNamedNumber(enc, end, &capabilities, 31);
+        *enc++ = 0;
+        *enc++ = 0;
+        *enc++ = AMF_OBJECT_END;
+        enc = encodeStatus(enc, end, "NetConnection.Connect.Success", "Connection succeeded.");
+        ret = sendMessage(rtmp, 0x03, MESSAGE_TYPE_COMMAND, 0, body, enc - body);
+    } else if (matchAVal(method, "createStream")) {
+        enc = AMF_EncodeString(enc, end, &result);
+        enc = AMF_EncodeNumber(enc, end, transactionId);
+        *enc++ = AMF_NULL;
+        enc = AMF_EncodeNumber(enc, end, LOOPBACK_STREAM_ID);
+        ret = sendMessage(rtmp, 0x03, MESSAGE_TYPE_COMMAND, 0, body, enc - body);
+    } else if (matchAVal(method, "publish")) {
+        AVal onStatus = makeAVal("onStatus");
+        enc = AMF_EncodeString(enc, end, &onStatus);
+        enc = AMF_EncodeNumber(enc, end, 0);
+        *enc++ = AMF_NULL;
+        enc = encodeStatus(enc, end, "NetStream.Publish.Start", "Start publishing.");
+        ret = sendMessage(rtmp, 0x05, MESSAGE_TYPE_COMMAND, LOOPBACK_STREAM_ID, body,
+                          enc - body);
+
+        pthread_mutex_lock(&mMutex);
+        mPublishing = 1;
+        pthread_cond_broadcast(&mCond);
+        pthread_mutex_unlock(&mMutex);
+    } else if (matchAVal(method, "FCUnpublish") || matchAVal(method, "deleteStream")) {
+        mPublishing = 0;
+    }
+    // releaseStream, FCPublish 等其它命令不需要回复
+
+    AMF_Reset(&obj);
+    return ret;
+}
+
+void RtmpLoopbackServer::recordTag(RTMPPacket *packet) {
+    ReceivedTag tag;
+    tag.session = mSessions;
+    tag.type = packet->m_packetType;
+    tag.timestamp = packet->m_nTimeStamp;
+    tag.size = packet->m_nBodySize;
+    tag.arrivalUs = nowUs();
+    tag.keyframe = 0;
+    tag.sequenceHeader = 0;
+
+    const uint8_t *body = reinterpret_cast<const uint8_t *>(packet->m_body);
+    if (tag.type == RTMP_PACKET_TYPE_VIDEO && tag.size >= 2) {
+        // 第 1 字节高 4 位为帧类型 ( 1 关键帧 ), 低 4 位为编码 ID ( 7 AVC ), 第 2 字节 0 为序列头
+        tag.keyframe = (body[0] >> 4) == 1;
+        tag.sequenceHeader = (body[0] & 0x0F) == 7 && body[1] == 0;
+    } else if (tag.type == RTMP_PACKET_TYPE_AUDIO && tag.size >= 2) {
+        // 第 1 字节高 4 位为音频格式 ( 10 AAC ), 第 2 字节 0 为 AAC 序列头
+        tag.sequenceHeader = (body[0] >> 4) == 10 && body[1] == 0;
+    }
+
+    mMediaBytes += tag.size;
+    pthread_mutex_lock(&mMutex);
+    mTags.push_back(tag);
+    pthread_mutex_unlock(&mMutex);
+}
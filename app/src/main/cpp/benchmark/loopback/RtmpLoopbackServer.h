@@ -0,0 +1,136 @@
+//
+// Created by octopus on 2020/7/6.
+//
+
+#ifndef RTMP_PUSHER_BENCHMARK_RTMPLOOPBACKSERVER_H
+#define RTMP_PUSHER_BENCHMARK_RTMPLOOPBACKSERVER_H
+
+#include <pthread.h>
+#include <stdint.h>
+#include <atomic>
+#include <vector>
+#include "../../librtmp/rtmp.h"
+
+/**
+ * 接收到的一个 FLV 音视频数据包
+ */
+struct ReceivedTag {
+    /**
+     * 第几次连接收到的数据包, 从 0 开始
+     */
+    int session;
+    /**
+     * RTMP_PACKET_TYPE_AUDIO / RTMP_PACKET_TYPE_VIDEO / RTMP_PACKET_TYPE_INFO
+     */
+    uint8_t type;
+    /**
+     * 是否是关键帧, 只对视频有效
+     */
+    uint8_t keyframe;
+    /**
+     * 是否是 AVC / AAC 序列头 ( 解码信息 )
+     */
+    uint8_t sequenceHeader;
+    /**
+     * RTMP 时间戳, 单位毫秒
+     */
+    uint32_t timestamp;
+    /**
+     * 数据大小, 字节
+     */
+    uint32_t size;
+    /**
+     * 完整接收到该数据包的时间, CLOCK_MONOTONIC 时钟, 单位微秒
+     */
+    int64_t arrivalUs;
+};
+
+/**
+ * 本地回环 RTMP 服务器, 主机端测试推流使用, 不需要访问网络
+ *
+ * 只监听 127.0.0.1, 同一时间只服务一个推流连接, 连接断开后继续等待下一个连接
+ * 完成 握手, connect, createStream, publish 流程, 其它命令忽略
+ * 使用 librtmp 的服务端握手 ( RTMP_Serve ) 与块读取 ( RTMP_ReadPacket ), 解析推流端发送的块
+ * 与推流端的 RtmpChunkWriter 是两份独立的实现, 可以同时验证块写入的正确性
+ *
+ * 记录每个音视频数据包的类型, 时间戳, 大小, 到达时间
+ */
+class RtmpLoopbackServer {
+
+public:
+    RtmpLoopbackServer();
+
+    ~RtmpLoopbackServer();
+
+    /**
+     * 开始监听, 在单独的线程中接受连接
+     * @param port 监听端口, 0 表示由系统分配
+     * @return 实际监听的端口, 失败返回 0
+     */
+    int start(int port = 0);
+
+    /**
+     * 断开当前连接, 停止监听, 等待服务线程结束
+     */
+    void stop();
+
+    /**
+     * 断开当前连接, 继续等待下一个连接, 用于模拟服务器断开
+     */
+    void dropConnection();
+
+    /**
+     * 等待推流端发送 publish 命令
+     * @param timeoutMs 超时时间, 单位毫秒
+     * @return 是否已经开始推流
+     */
+    int waitPublishing(int timeoutMs);
+
+    /**
+     * 当前连接是否已经开始推流
+     */
+    int isPublishing();
+
+    /**
+     * 已经接受的连接个数
+     */
+    int getSessions();
+
+    /**
+     * 接收到的音视频数据包
+     */
+    std::vector<ReceivedTag> getTags();
+
+    /**
+     * 接收到的音视频数据总字节数 ( 不包含块头 )
+     */
+    long getMediaBytes();
+
+private:
+    static void *run(void *args);
+
+    void serve(int fd);
+
+    /**
+     * 处理命令消息, 返回 0 表示需要断开连接
+     */
+    int handleCommand(RTMP *rtmp, RTMPPacket *packet);
+
+    void recordTag(RTMPPacket *packet);
+
+    int mListenFd;
+    std::atomic<int> mClientFd;
+    std::atomic<int> mRunning;
+    std::atomic<int> mPublishing;
+    std::atomic<int> mSessions;
+    std::atomic<long> mMediaBytes;
+    pthread_t mThread;
+    int mThreadStarted;
+
+    pthread_mutex_t mMutex;
+    pthread_cond_t mCond;
+    std::vector<ReceivedTag> mTags;
+};
+
+
+#endif //RTMP_PUSHER_BENCHMARK_RTMPLOOPBACKSERVER_H
@@ -1,16 +1,145 @@
 #include <jni.h>
-#include <android/log.h>
 #include <string>
+#include <time.h>
+#include <unistd.h>
+#include <signal.h>
+#include <algorithm>
+#include <vector>
 #include "librtmp/rtmp.h"
-#include "SafeQueue.h"
+#include "RingQueue.h"
+#include "AVInterleaver.h"
+#include "CongestionController.h"
+#include "FlvRecorder.h"
+#include "GopCache.h"
+#include "MonotonicClock.h"
+#include "BitrateController.h"
+#include "PacketPool.h"
+#include "PushDestination.h"
+#include "RtmpChunkWriter.h"
+#include "RtmpLog.h"
+#include "StreamStats.h"
 #include "VedioChannel.h"
 #include "AudioChannel.h"
 
+/**
+ * RTMP 数据包队列容量
+ * 30 fps 视频 + 44100 Hz AAC 音频, 每秒钟约 75 个数据包, 可以缓存 10 秒以上的数据
+ */
+#define PACKET_QUEUE_CAPACITY 1024
+
+/**
+ * 推流线程每次从队列中最多取出的数据包个数
+ */
+#define PACKET_BATCH_SIZE 64
+
+/**
+ * 推流线程每次最多合并发送的数据包个数
+ * 这些数据包的所有块通过一次 sendmsg 系统调用发送
+ */
+#define SEND_BATCH_SIZE 8
+
+/**
+ * 默认的最大连续重连次数, 超过后停止推流, 0 表示不限制
+ */
+#define DEFAULT_RECONNECT_MAX_ATTEMPTS 10
+
+/**
+ * 默认的第一次重连等待时间, 单位毫秒, 之后每次加倍
+ */
+#define DEFAULT_RECONNECT_INITIAL_DELAY_MS 500
+
+/**
+ * 默认的最大重连等待时间, 单位毫秒
+ */
+#define DEFAULT_RECONNECT_MAX_DELAY_MS 8000
+
+/**
+ * 等待重连 与 连接服务器期间, 每隔该时间从队列中取出一次数据包, 单位毫秒
+ */
+#define PENDING_DRAIN_INTERVAL_MS 10
+
+/**
+ * RTMPPacket 数据包池
+ * 音视频编码线程从池中获取数据包, 推流线程发送完毕后归还, 稳定推流后不再申请内存
+ * 必须在 packets 队列之前定义, 保证队列析构释放剩余数据包时数据包池仍然有效
+ */
+PacketPool packetPool;
+
 /**
  * RTMPPacket 结构体是打包好的 RTMP 数据包
  * 将该数据包发送到 RTMP 服务器中
+ * 音频编码线程 和 视频编码线程 向队列中放入数据包, 分发线程从队列中取出数据包
+ */
+RingQueue<RTMPPacket *> packets(PACKET_QUEUE_CAPACITY);
+
+/**
+ * 音视频交织器, 分发线程从 packets 队列中取出的数据包按时间戳排序后再分发给各个推流目的地
+ */
+AVInterleaver interleaver;
+
+/**
+ * 最近一次跳过编码的静止画面的时间戳, 视频编码线程写入, 分发线程告知交织器视频一路已经前进到该时间
+ */
+std::atomic<uint32_t> skippedVideoTimestamp(0);
+
+/**
+ * 推流目的地, 每个目的地有独立的推流线程, 数据包队列, 拥塞控制, GOP 缓存与块写入器
+ * 网络上行阻塞, 待发送数据超出延迟预算或字节预算时, 各个目的地分别按 GOP 丢弃视频帧
+ * 必须在 packetPool 之后定义, 保证释放剩余数据包时数据包池仍然有效
+ */
+PushDestination destinations[MAX_PUSH_DESTINATIONS];
+
+/**
+ * 本次推流的目的地个数, 由分发线程在开始推流时设置
+ */
+int destinationCount = 0;
+
+/**
+ * 本地 FLV 录制, 与推流目的地共享分发线程分发的数据包
+ * 必须在 packetPool 之后定义, 保证释放剩余数据包时数据包池仍然有效
+ */
+FlvRecorder flvRecorder;
+
+/**
+ * 录制文件路径, 为空时不录制, 下一次开始推流时生效
+ */
+std::string recordPath;
+
+/**
+ * 自适应码率控制
+ * 根据推流线程的发送速率与待发送队列的变化, 调整 x264 编码码率
+ */
+BitrateController bitrateController;
+
+/**
+ * 发送块大小, 连接 RTMP 流之后通过 Set Chunk Size 消息通知服务器
+ */
+int rtmpChunkSize = DEFAULT_CHUNK_SIZE;
+
+/**
+ * 断线重连策略, 下一次重连时生效
  */
-SafeQueue<RTMPPacket *> packets;
+int reconnectMaxAttempts = DEFAULT_RECONNECT_MAX_ATTEMPTS;
+int reconnectInitialDelayMs = DEFAULT_RECONNECT_INITIAL_DELAY_MS;
+int reconnectMaxDelayMs = DEFAULT_RECONNECT_MAX_DELAY_MS;
+
+/**
+ * 推流统计数据, 各线程只更新原子计数器, Java 层通过 LivePusher.getStats() 采样
+ * 这里只统计编码相关的数据, 发送相关的数据由各个推流目的地分别统计
+ */
+StreamStats streamStats;
+
+/**
+ * 当前设置的视频编码码率, 作为自适应码率的初始码率, 单位 bps
+ */
+int videoBitrate = 0;
+
+/**
+ * 当前设置的视频尺寸与帧率, 写入录制文件的 onMetaData
+ */
+int videoWidth = 0;
+int videoHeight = 0;
+int videoFps = 0;
 
 /**
  * 视频处理对象
@@ -36,15 +165,29 @@ int isStartRtmpPush = FALSE;
  */
 pthread_t startRtmpPushPid;
 
+/**
+ * 推流线程是否已经创建, 并且还没有被回收
+ */
+int rtmpPushThreadStarted = FALSE;
+
 /**
  * 当前是否准备完毕, 进行推流
  */
 int readyForPush = FALSE;
 
 /**
- * 开始推流的时间
+ * 开始推流的时间, CLOCK_MONOTONIC 时钟, 单位毫秒
+ * 与 Java 层 System.nanoTime() 是同一个时钟, 数据包时间戳都相对于该时间
  */
-uint32_t pushStartTime;
+int64_t pushStartTimeMs;
+
+/**
+ * 将 Java 层 System.nanoTime() 获取的采集时间, 转为相对于开始推流时间的 RTMP 时间戳, 单位毫秒
+ * 开始推流之前采集的数据, 时间戳为 0
+ */
+static uint32_t toStreamTimestamp(jlong captureTimeNanos) {
+    return streamTimestampMs(captureTimeNanos, pushStartTimeMs);
+}
 
 /**
  * 线程安全队列 SafeQueue<RTMPPacket *> packets 释放元素的方法
@@ -55,20 +198,23 @@ uint32_t pushStartTime;
  */
 void releaseRTMPPackets(RTMPPacket * & rtmpPacket){
     if(rtmpPacket){
-        delete rtmpPacket;
-        rtmpPacket = 0;
+        // 数据包由数据包池分配, 归还到池中复用
+        packetPool.recycle(rtmpPacket);
     }
 }
 
 /**
  * 函数指针实现, 当 RTMPPacket 数据包封装完毕后调用该回调函数
  * 将该封装好的 RTMPPacket 数据包放入线程安全队列中
+ * 数据包的时间戳已经由编码器按照采集时间设置, 这里不再修改
  * typedef void (*RTMPPacketPackUpCallBack)(RTMPPacket* packet);
  */
 void RTMPPacketPackUpCallBack(RTMPPacket* rtmpPacket){
     if (rtmpPacket) {
-        rtmpPacket->m_nTimeStamp = RTMP_GetTime() - pushStartTime;
-        packets.push(rtmpPacket);
+        if (!packets.push(rtmpPacket)) {
+            // 队列已满或者已经停止推流, 数据包已被释放
+            streamStats.onQueueFullDropped();
+        }
     }
 }
 
@@ -79,12 +225,24 @@ Java_kim_hsl_rtmp_LivePusher_native_1init(JNIEnv *env, jobject thiz) {
     //    使用该工具类, 对数据进行编码
     mVedioChannel = new VedioChannel;
 
+    // 1. 预先分配 RTMP 数据包, 音频数据包 与 视频 P 帧 最多, 关键帧较少
+    static int packetPoolWarmedUp = 0;
+    if (!packetPoolWarmedUp) {
+        packetPoolWarmedUp = 1;
+        packetPool.preallocate(512, 32);
+        packetPool.preallocate(8 * 1024, 16);
+        packetPool.preallocate(32 * 1024, 8);
+        packetPool.preallocate(128 * 1024, 2);
+    }
+    mVedioChannel->setPacketPool(&packetPool);
+
     // 2. 设置 封装 RTMPPacket 包完成回调函数
     // 通过该回调函数, 将封装好的 RTMP 包放入 SafeQueue<RTMPPacket *> packets 队列中
     mVedioChannel->setRTMPPacketPackUpCallBack(RTMPPacketPackUpCallBack);
 
     // 初始化音频处理器
     mAudioChannel = new AudioChannel;
+    mAudioChannel->setPacketPool(&packetPool);
 
     // 2. 设置 封装 RTMPPacket 包完成回调函数
     // 通过该回调函数, 将封装好的 RTMP 包放入 SafeQueue<RTMPPacket *> packets 队列中
@@ -93,8 +251,68 @@ Java_kim_hsl_rtmp_LivePusher_native_1init(JNIEnv *env, jobject thiz) {
     // 3. 数据队列, 用于存储打包好的数据
     //    在单独的线程中将该队列中的数据发送给服务器
     packets.setReleaseHandle(releaseRTMPPackets);
+    interleaver.setReleaseHandle(releaseRTMPPackets);
+    for (int i = 0; i < MAX_PUSH_DESTINATIONS; i++) {
+        destinations[i].queue.setReleaseHandle(releaseRTMPPackets);
+        destinations[i].congestionController.setReleaseHandle(releaseRTMPPackets);
+        destinations[i].gopCache.setReleaseHandle(releaseRTMPPackets);
+        destinations[i].scheduler.setReleaseHandle(releaseRTMPPackets);
+    }
+    flvRecorder.setReleaseHandle(releaseRTMPPackets);
+}
+
+
+/**
+ * 读取 Java 层 EncoderProfile 对象中的字符串字段, 拷贝到 native 配置中
+ * 字段为 null 时设置为空字符串
+ */
+static void readProfileString(JNIEnv *env, jobject profile, jclass clazz, const char *name,
+                              char *out, size_t size) {
+    jstring value = static_cast<jstring>(env->GetObjectField(
+            profile, env->GetFieldID(clazz, name, "Ljava/lang/String;")));
+    out[0] = '\0';
+    if (value) {
+        const char *chars = env->GetStringUTFChars(value, 0);
+        strncpy(out, chars, size - 1);
+        out[size - 1] = '\0';
+        env->ReleaseStringUTFChars(value, chars);
+        env->DeleteLocalRef(value);
+    }
 }
 
+/**
+ * 将 Java 层 EncoderProfile 对象转换为 native 配置, 字段名称与 EncoderProfile.java 一致
+ * @param profile   Java 层配置, 为 null 时使用默认配置
+ */
+static EncoderProfile readEncoderProfile(JNIEnv *env, jobject profile) {
+    EncoderProfile encoderProfile;
+    if (!profile) {
+        return encoderProfile;
+    }
+    jclass clazz = env->GetObjectClass(profile);
+    readProfileString(env, profile, clazz, "mPreset", encoderProfile.preset,
+                      sizeof(encoderProfile.preset));
+    readProfileString(env, profile, clazz, "mTune", encoderProfile.tune,
+                      sizeof(encoderProfile.tune));
+    readProfileString(env, profile, clazz, "mProfile", encoderProfile.profile,
+                      sizeof(encoderProfile.profile));
+    encoderProfile.levelIdc = env->GetIntField(profile, env->GetFieldID(clazz, "mLevelIdc", "I"));
+    encoderProfile.threads = env->GetIntField(profile, env->GetFieldID(clazz, "mThreads", "I"));
+    encoderProfile.slicedThreads = env->GetBooleanField(
+            profile, env->GetFieldID(clazz, "mSlicedThreads", "Z"));
+    encoderProfile.lookahead = env->GetIntField(profile,
+                                                env->GetFieldID(clazz, "mLookahead", "I"));
+    encoderProfile.keyintSeconds = env->GetIntField(
+            profile, env->GetFieldID(clazz, "mKeyintSeconds", "I"));
+    encoderProfile.bframes = env->GetIntField(profile, env->GetFieldID(clazz, "mBframes", "I"));
+    encoderProfile.rateControl = env->GetIntField(
+            profile, env->GetFieldID(clazz, "mRateControl", "I"));
+    encoderProfile.rateFactor = env->GetFloatField(
+            profile, env->GetFieldID(clazz, "mRateFactor", "F"));
+    encoderProfile.qp = env->GetIntField(profile, env->GetFieldID(clazz, "mQp", "I"));
+    env->DeleteLocalRef(clazz);
+    return encoderProfile;
+}
 
 /**
  * 设置视频编码参数
@@ -103,206 +321,802 @@ extern "C"
 JNIEXPORT void JNICALL
 Java_kim_hsl_rtmp_LivePusher_native_1setVideoEncoderParameters(JNIEnv *env, jobject thiz,
                                                                jint width, jint height, jint fps,
-                                                               jint bitrate) {
-    mVedioChannel->setVideoEncoderParameters(width, height, fps, bitrate);
-}
+                                                               jint bitrate, jobject profile) {
+    videoBitrate = bitrate;
+    videoWidth = width;
+    videoHeight = height;
+    videoFps = fps;
+    EncoderProfile encoderProfile = readEncoderProfile(env, profile);
+    LOGI("视频编码参数 %dx%d %d fps %d bps, 预设 %s / %s, 线程 %d%s, 码率控制 %d",
+         width, height, fps, bitrate, encoderProfile.preset, encoderProfile.tune,
+         encoderProfile.threads, encoderProfile.slicedThreads ? " ( 条带多线程 )" : "",
+         encoderProfile.rateControl);
+    mVedioChannel->setVideoEncoderParameters(width, height, fps, bitrate, encoderProfile);
 
+    // 重新打开编码器后 ( 如横竖屏切换 ), 继续使用自适应码率当前的码率
+    int adaptedBitrate = bitrateController.getBitrate();
+    if (adaptedBitrate > 0 && adaptedBitrate != bitrate) {
+        mVedioChannel->updateBitrate(adaptedBitrate);
+    }
+}
 
 /**
- * 开始推流任务线程
- * 主要是调用 RTMPDump 进行推流
- * @param args
- * @return
+ * 设置 Camera 采集图像的旋转角度
  */
-void* startRtmpPush (void* args){
-    // 0. 获取 Rtmp 推流地址
-    char* pushPath = static_cast<char *>(args);
+extern "C"
+JNIEXPORT void JNICALL
+Java_kim_hsl_rtmp_LivePusher_native_1setVideoRotation(JNIEnv *env, jobject thiz,
+                                                      jint rotation, jboolean mirror) {
+    if (mVedioChannel) {
+        mVedioChannel->setVideoRotation(rotation, mirror);
+    }
+}
 
-    // rtmp 推流器
-    RTMP* rtmp = 0;
-    // rtmp 推流数据包
-    RTMPPacket *packet = 0;
 
-    /*
-        将推流核心执行内容放在 do while 循环中
-        在出错后, 随时 break 退出循环, 执行后面的释放资源的代码
-        可以保证, 在最后将资源释放掉, 避免内存泄漏
-        避免执行失败, 直接 return, 导致资源没有释放
-     */
-    do {
-        // 1. 创建 RTMP 对象, 申请内存
-        rtmp = RTMP_Alloc();
-        if (!rtmp) {
-            __android_log_print(ANDROID_LOG_INFO, "RTMP", "申请 RTMP 内存失败");
-            break;
-        }
+/**
+ * 连接 RTMP 服务器, 发布 RTMP 流, 并设置发送块大小
+ * @param destination   推流目的地, 连接成功后关联该目的地的块写入器
+ * @param url       与推流地址等长的缓冲区, librtmp 解析地址时会修改字符串, 并在连接期间引用其中的内容
+ *                  因此每次连接都将推流地址拷贝到该缓冲区中
+ * @return 失败返回 0
+ */
+static RTMP *connectRtmp(PushDestination &destination, char *url) {
+    const char *pushPath = destination.pushPath;
+
+    // 1. 创建 RTMP 对象, 申请内存
+    RTMP *rtmp = RTMP_Alloc();
+    if (!rtmp) {
+        LOGE("申请 RTMP 内存失败");
+        return 0;
+    }
 
-        // 2. 初始化 RTMP
-        RTMP_Init(rtmp);
-        // 设置超时时间 5 秒
-        rtmp->Link.timeout = 5;
+    // 2. 初始化 RTMP
+    RTMP_Init(rtmp);
+    // 设置超时时间 5 秒, 作用于 TCP 连接与握手阶段的读操作
+    // 停止推流时块写入器 shutdown 连接过程中的 socket, 不需要等待超时
+    // 推流阶段的写操作由块写入器的写入截止时间限制
+    rtmp->Link.timeout = 5;
 
+    do {
         // 3. 设置 RTMP 推流服务器地址
-        int ret = RTMP_SetupURL(rtmp, pushPath);
-        if (!ret) {
-            __android_log_print(ANDROID_LOG_INFO, "RTMP", "设置 RTMP 推流服务器地址 %s 失败", pushPath);
+        strcpy(url, pushPath);
+        if (!RTMP_SetupURL(rtmp, url)) {
+            LOGE("设置 RTMP 推流服务器地址 %s 失败", pushPath);
             break;
         }
 
         // 4. 启用 RTMP 写出功能
         RTMP_EnableWrite(rtmp);
 
-        // 5. 连接 RTMP 服务器
-        ret = RTMP_Connect(rtmp, 0);
-        if (!ret) {
-            __android_log_print(ANDROID_LOG_INFO, "RTMP", "连接 RTMP 服务器 %s 失败", pushPath);
+        // 5. 连接 RTMP 服务器, 由块写入器连接, 停止推流时可以中断 TCP 连接
+        if (!destination.chunkWriter.connectServer(rtmp)) {
+            LOGE("连接 RTMP 服务器 %s 失败", pushPath);
             break;
         }
 
-        // 6. 连接 RTMP 流
-        ret = RTMP_ConnectStream(rtmp, 0);
-        if (!ret) {
-            __android_log_print(ANDROID_LOG_INFO, "RTMP", "连接 RTMP 流 %s 失败", pushPath);
+        // 6. 连接 RTMP 流, 之后停止推流不再 shutdown 该 socket
+        int streamConnected = RTMP_ConnectStream(rtmp, 0);
+        destination.chunkWriter.endConnect();
+        if (!streamConnected) {
+            LOGE("连接 RTMP 流 %s 失败", pushPath);
             break;
         }
 
-        // 准备推流相关的数据, 如线程安全队列
-        readyForPush = TRUE;
-        // 记录推流开始时间
-        pushStartTime = RTMP_GetTime();
-        // 线程安全队列开始工作
-        packets.setWork(1);
+        // 7. 设置发送块大小, 默认 128 字节的块会将关键帧拆分成几百个块
+        // 关联块写入器后 socket 变为非阻塞, 之后只能通过块写入器发送
+        destination.chunkWriter.attach(rtmp);
+        if (!destination.chunkWriter.setChunkSize(rtmpChunkSize)) {
+            LOGE("设置 RTMP 块大小 %d 失败", rtmpChunkSize);
+            destination.chunkWriter.attach(0);
+            break;
+        }
+        // 新连接的链路速率重新估计
+        destination.scheduler.reset();
+        return rtmp;
+    } while (0);
+
+    RTMP_Close(rtmp);
+    RTMP_Free(rtmp);
+    return 0;
+}
 
-        // 将 AAC 音频解码信息先放到 RTMP 数据包线程安全队列中
-        if(mAudioChannel) {
-            RTMPPacketPackUpCallBack(mAudioChannel->getAudioDecodeInfo());
+/**
+ * 关闭与 RTMP 服务器的连接, 释放 RTMP 对象
+ * @param connectionLost    连接已经断开, 不再发送 FCUnpublish / deleteStream 消息
+ *                          librtmp 写失败时会再次调用 RTMP_Close, 在已经断开的连接上发送这两个消息会无限递归
+ */
+static void closeRtmp(PushDestination &destination, RTMP *&rtmp, int connectionLost = 0) {
+    if (rtmp) {
+        // 写入超时或者被中断后, 连接中有写了一部分的块, socket 发送缓冲区已满时 librtmp 会阻塞在写操作上
+        // 这两种情况都不再发送控制消息, 直接关闭 socket
+        if (!connectionLost && !destination.chunkWriter.canSendControl()) {
+            connectionLost = 1;
+        }
+        // 取消关联, socket 恢复为阻塞模式, librtmp 按原来的方式发送控制消息
+        destination.chunkWriter.attach(0);
+        if (connectionLost) {
+            rtmp->m_stream_id = 0;
         }
+        RTMP_Close(rtmp);
+        RTMP_Free(rtmp);
+        rtmp = 0;
+    }
+}
 
-        __android_log_print(ANDROID_LOG_INFO, "RTMP", "开始直播, 推流地址 %s", pushPath);
-        while (isStartRtmpPush) {
-            // 从线程安全队列中
-            // 取出一包已经打包好的 RTMP 数据包
-            __android_log_print(ANDROID_LOG_INFO, "RTMP", "从 packets 取出数据 开始 %d", packets.size());
-            packets.pop(packet);
-            __android_log_print(ANDROID_LOG_INFO, "RTMP", "从 packets 取出数据 结束 %d", packets.size());
+/**
+ * 发布目的地待发送队列的状态
+ */
+static void publishBacklog(PushDestination &destination) {
+    destination.stats.publishBacklog(destination.congestionController.size(),
+                                     destination.congestionController.bytes(),
+                                     destination.congestionController.duration());
+}
+
+/**
+ * 从目的地的数据包队列中一次性取出所有已经分发的数据包, 放入待发送队列
+ * 待发送数据超出延迟预算或字节预算时, 丢弃非参考帧 / 整个 GOP
+ * @param batch     取出数据包使用的数组
+ * @param wait      待发送队列为空时是否阻塞等待
+ */
+static void drainPackets(PushDestination &destination, RTMPPacket **batch, int wait) {
+    CongestionController &congestionController = destination.congestionController;
+    int batchCount;
+    if (wait && congestionController.empty()) {
+        batchCount = destination.queue.waitAndDrain(batch, PACKET_BATCH_SIZE);
+    } else {
+        batchCount = destination.queue.drain(batch, PACKET_BATCH_SIZE);
+    }
 
-            // 确保当前处于推流状态
+    // 分发线程已经按时间戳交织排序, 直接放入待发送队列
+    for (int i = 0; i < batchCount; i++) {
+        congestionController.push(batch[i]);
+    }
+    congestionController.sync();
+}
+
+/**
+ * 在单独的线程中连接 RTMP 服务器
+ */
+struct ConnectTask {
+    PushDestination *destination;
+    char *url;
+    RTMP *rtmp;
+    std::atomic<int> done;
+};
+
+static void *runConnectTask(void *args) {
+    ConnectTask *task = static_cast<ConnectTask *>(args);
+    task->rtmp = connectRtmp(*task->destination, task->url);
+    task->done.store(1);
+    return 0;
+}
+
+/**
+ * 连接 RTMP 服务器, 握手与发布流在单独的线程中进行
+ * 连接期间推流线程继续从队列中取出数据包放入待发送队列 ( 预缓冲 ), 不会因为队列已满而丢弃新编码的数据包
+ * 预缓冲的时间跨度由拥塞控制的延迟预算限制, 超出时按 GOP 丢弃
+ * @return 连接失败, 或者连接期间停止推流时返回 0
+ */
+static RTMP *connectRtmpWhileDraining(PushDestination &destination, char *url,
+                                      RTMPPacket **batch) {
+    ConnectTask task;
+    task.destination = &destination;
+    task.url = url;
+    task.rtmp = 0;
+    task.done.store(0);
+    pthread_t connectPid;
+    if (pthread_create(&connectPid, 0, runConnectTask, &task) != 0) {
+        return connectRtmp(destination, url);
+    }
+    while (!task.done.load()) {
+        drainPackets(destination, batch, 0);
+        publishBacklog(destination);
+        usleep(PENDING_DRAIN_INTERVAL_MS * 1000);
+    }
+    pthread_join(connectPid, 0);
+    if (!isStartRtmpPush) {
+        closeRtmp(destination, task.rtmp);
+    }
+    return task.rtmp;
+}
+
+/**
+ * 第 attempt 次重连之前的等待时间, 单位毫秒
+ * 从初始等待时间开始每次加倍, 不超过最大等待时间, 再加上 0 ~ 1/4 的随机抖动, 避免大量推流端同时重连
+ */
+static int reconnectDelayMs(int attempt) {
+    int64_t delayMs = reconnectInitialDelayMs;
+    for (int i = 1; i < attempt && delayMs < reconnectMaxDelayMs; i++) {
+        delayMs *= 2;
+    }
+    if (delayMs > reconnectMaxDelayMs) {
+        delayMs = reconnectMaxDelayMs;
+    }
+    return static_cast<int>(delayMs + (delayMs > 4 ? rand() % (delayMs / 4) : 0));
+}
+
+/**
+ * 等待重连, 等待期间编码线程继续编码
+ * 数据包继续进入待发送队列, 断线时间超出延迟预算时由拥塞控制按 GOP 丢弃, 不会无限堆积
+ * @return 等待期间停止推流返回 0
+ */
+static int waitReconnect(PushDestination &destination, int delayMs, RTMPPacket **batch) {
+    int64_t deadlineUs = monotonicTimeUs() + delayMs * 1000LL;
+    while (isStartRtmpPush) {
+        drainPackets(destination, batch, 0);
+        publishBacklog(destination);
+        int64_t remainingUs = deadlineUs - monotonicTimeUs();
+        if (remainingUs <= 0) {
+            return 1;
+        }
+        // 停止推流时被唤醒, 立即返回
+        destination.chunkWriter.sleep(static_cast<int>(
+                std::min<int64_t>(remainingUs, PENDING_DRAIN_INTERVAL_MS * 1000)));
+    }
+    return 0;
+}
+
+/**
+ * 重连成功后, 先重新发送缓存的 AAC 序列头 与 AVC 序列头
+ * 待发送队列中的视频帧不是从关键帧开始时 ( 接续断线前的 GOP ), 再发送缓存的 GOP, 服务器端可以立即解码出画面
+ * 待发送队列中的第一个视频帧已经是关键帧时, 缓存的 GOP 已经过时, 不再发送
+ * @return 发送失败返回 0
+ */
+static int sendWarmUpPackets(PushDestination &destination) {
+    std::vector<RTMPPacket *> warmUp;
+    destination.gopCache.getWarmUpPackets(warmUp,
+                                          !destination.congestionController.startsWithKeyFrame());
+    for (size_t offset = 0; offset < warmUp.size(); offset += SEND_BATCH_SIZE) {
+        int count = std::min<int>(SEND_BATCH_SIZE, warmUp.size() - offset);
+        int bytes = 0;
+        for (int i = 0; i < count; i++) {
+            bytes += warmUp[offset + i]->m_nBodySize;
+        }
+        // 数据包仍然属于 GOP 缓存, 发送后不归还
+        if (destination.chunkWriter.send(&warmUp[offset], count) != RtmpChunkWriter::WRITE_DONE) {
+            return 0;
+        }
+        destination.stats.onPacketsSent(count, bytes);
+    }
+    LOGI("重连预热 : 发送 %zu 个缓存的数据包", warmUp.size());
+    return 1;
+}
+
+/**
+ * 推流目的地的推流线程
+ *
+ * 从目的地的数据包队列中取出分发线程分发的数据包, 经过拥塞控制后发送到该目的地
+ * 连接服务器的同时缓存数据包, 连接成功后从最新的关键帧开始发送
+ * 发送失败时关闭连接并按照指数退避自动重连, 断线期间分发线程继续分发, 其它目的地继续推流
+ * 重连成功后先发送缓存的序列头与 GOP, 再继续发送待发送队列中的数据包, 时间戳保持连续
+ * @param args  PushDestination 对象
+ * @return
+ */
+static void *startDestinationPush(void *args) {
+    PushDestination &destination = *static_cast<PushDestination *>(args);
+    const char *pushPath = destination.pushPath;
+    CongestionController &congestionController = destination.congestionController;
+    // 只有主目的地调整编码码率
+    int adaptBitrate = destination.index == 0;
+    // 每次连接时拷贝推流地址使用的缓冲区
+    char* url = new char[strlen(pushPath) + 1];
+
+    // rtmp 推流器
+    RTMP* rtmp = 0;
+    // rtmp 推流数据包, 每次从队列中取出一批数据包
+    RTMPPacket *batch[PACKET_BATCH_SIZE];
+    // 一次合并发送的数据包
+    RTMPPacket *sendBatch[SEND_BATCH_SIZE];
+    // 连续连接失败的次数, 连接成功并发送数据后清零
+    int failedAttempts = 0;
+    // 是否已经连接成功过
+    int published = FALSE;
+    // 是否已经发送过关键帧
+    int keyFrameSent = FALSE;
+
+    while (isStartRtmpPush) {
+        if (!rtmp) {
+            if (failedAttempts > 0) {
+                if (reconnectMaxAttempts < 0
+                    || (reconnectMaxAttempts > 0 && failedAttempts > reconnectMaxAttempts)) {
+                    LOGE("连续 %d 次连接失败, 停止向 %s 推流", failedAttempts, pushPath);
+                    break;
+                }
+                int delayMs = reconnectDelayMs(failedAttempts);
+                LOGW("%d ms 后第 %d 次重连 %s", delayMs, failedAttempts, pushPath);
+                if (!waitReconnect(destination, delayMs, batch)) {
+                    break;
+                }
+            }
+            failedAttempts++;
+            rtmp = connectRtmpWhileDraining(destination, url, batch);
+            if (!rtmp) {
+                continue;
+            }
+
+            if (!published) {
+                // 第一次连接成功, 预缓冲的数据从最新的关键帧开始发送
+                published = TRUE;
+                int64_t connectTimeMs = monotonicTimeUs() / 1000 - pushStartTimeMs;
+                destination.stats.onConnected(connectTimeMs);
+                drainPackets(destination, batch, 0);
+                int trimmed = congestionController.trimToLatestKeyFrame();
+                LOGI("开始直播, 推流地址 %s, 连接耗时 %lld ms, 预缓冲 %d 个数据包, 丢弃关键帧之前的 %d 个数据包",
+                     pushPath, static_cast<long long>(connectTimeMs), congestionController.size(),
+                     trimmed);
+            } else {
+                destination.stats.onReconnect();
+                LOGI("重连成功, 推流地址 %s", pushPath);
+                if (!sendWarmUpPackets(destination)) {
+                    LOGE("重连预热数据发送失败");
+                    closeRtmp(destination, rtmp, 1);
+                    continue;
+                }
+            }
+        }
+
+        // 待发送队列为空, 并且没有分片发送了一部分的视频帧时才阻塞等待
+        drainPackets(destination, batch, !destination.scheduler.hasPending());
+
+        // 8. 由发送调度器选择数据写入 : 音频优先, 大的视频帧分片发送, 链路积压时暂停发送视频
+        // 数据包可能同时由其它目的地发送, 不修改数据包内容, 流 ID 由块写入器使用本连接的流 ID
+        // 统计发送耗时, 网络上行阻塞时等待 socket 可写, 最长等待到写入截止时间
+        int sendCount = 0;
+        int sendBytes = 0;
+        int64_t sendStartUs = monotonicTimeUs();
+        int scheduled = destination.scheduler.schedule(congestionController,
+                                                       destination.chunkWriter, sendBatch,
+                                                       SEND_BATCH_SIZE, &sendCount, &sendBytes);
+        if (scheduled == SendScheduler::SCHEDULE_IDLE) {
+            continue;
+        }
+        if (scheduled == SendScheduler::SCHEDULE_WAIT) {
+            // 等待链路发送积压的数据, 等待期间到来的音频在下一次调度时优先发送
+            // 等待时间与等待 socket 可写一样, 计入发送耗时, 停止推流或者修改配置时被唤醒
+            int waitUs = destination.scheduler.getWaitUs();
+            destination.chunkWriter.sleep(waitUs);
+            if (adaptBitrate) {
+                bitrateController.onPacketSent(0, waitUs);
+            }
+            publishBacklog(destination);
+            continue;
+        }
+        int ret = scheduled == SendScheduler::SCHEDULE_SENT;
+        if (adaptBitrate) {
+            bitrateController.onPacketSent(sendBytes, monotonicTimeUs() - sendStartUs);
+        }
+
+        // 统计发送延迟 : 数据采集 到 发送完成
+        // 与采集时间使用同一个时钟转换, 两者之差才是发送延迟
+        uint32_t sentTime = streamTimestampMs(monotonicTimeUs() * 1000, pushStartTimeMs);
+        for (int i = 0; i < sendCount; i++) {
+            uint32_t timestamp = sendBatch[i]->m_nTimeStamp;
+            destination.stats.onSendLatency(sentTime > timestamp ? sentTime - timestamp : 0);
+        }
+        destination.stats.onPacketsSent(sendCount, sendBytes);
+        publishBacklog(destination);
+        for (int i = 0; ret && !keyFrameSent && i < sendCount; i++) {
+            if (CongestionController::kindOf(sendBatch[i]) == CongestionController::KIND_KEY_FRAME) {
+                // 观众端最早可以解码出画面的时间
+                keyFrameSent = TRUE;
+                destination.stats.onKeyFrameSent(sentTime);
+            }
+        }
+
+        // RTMP 数据包使用完毕后, 交给 GOP 缓存, 不需要缓存的数据包归还本目的地持有的引用
+        // 发送失败的数据包也进入缓存, 重连后随缓存的 GOP 重新发送
+        for (int i = 0; i < sendCount; i++) {
+            destination.gopCache.onSent(sendBatch[i]);
+        }
+
+        if (!ret) {
             if (!isStartRtmpPush) {
+                // 停止推流中断了正在进行的写入
                 break;
             }
+            LOGE("RTMP 数据包推流失败, 断开与 %s 的连接后重连", pushPath);
+            closeRtmp(destination, rtmp, 1);
+            continue;
+        }
+        failedAttempts = 0;
 
-            // 确保不会取出空的 RTMP 数据包
-            if (!packet) {
-                continue;
+        // 根据主目的地的发送速率与待发送队列的时间跨度, 调整视频编码码率
+        if (adaptBitrate) {
+            int targetBitrate = bitrateController.onSample(RTMP_GetTime(),
+                                                           congestionController.duration());
+            if (targetBitrate > 0 && mVedioChannel) {
+                LOGI("调整视频码率 %d bps", targetBitrate);
+                mVedioChannel->updateBitrate(targetBitrate);
             }
+        }
+    }
+
+    // 推流结束, 关闭与 RTMP 服务器连接
+    closeRtmp(destination, rtmp);
 
-            // 设置直播的流 ID
-            packet->m_nInfoField2 = rtmp->m_stream_id;
+    // 不再接收分发的数据包, 归还本目的地持有的所有数据包引用
+    destination.active.store(0);
+    destination.queue.setWork(0);
+    destination.queue.clear();
+    congestionController.clear();
+    destination.scheduler.clear();
+    destination.gopCache.clear();
 
-            // 7. 将 RTMP 数据包发送到服务器中
-            ret = RTMP_SendPacket(rtmp, packet, 1);
+    LOGI("推流目的地 %d %s : 拥塞丢弃视频帧 %ld 个, 块写入系统调用 %lld 次, 块头 %lld 字节, 数据 %lld 字节, 写入超时 %lld 次",
+         destination.index, pushPath, congestionController.getDroppedFrames(),
+         static_cast<long long>(destination.chunkWriter.getWriteCalls()),
+         static_cast<long long>(destination.chunkWriter.getHeaderBytes()),
+         static_cast<long long>(destination.chunkWriter.getBodyBytes()),
+         static_cast<long long>(destination.chunkWriter.getSendTimeouts()));
+    LOGI("推流目的地 %d 发送调度 : 分片发送视频帧 %ld 个, 音频提前发送 %ld 个, 等待链路发送 %ld 次",
+         destination.index, destination.scheduler.getSlicedFrames(),
+         destination.scheduler.getAudioOvertakes(), destination.scheduler.getPacingWaits());
 
-            // RTMP 数据包使用完毕后, 释放该数据包
-            if (packet) {
-                RTMPPacket_Free(packet);
-                delete packet;
-                packet = 0;
+    delete[] url;
+    return 0;
+}
+
+/**
+ * 是否还有仍在推流的目的地
+ */
+static int hasActiveDestination() {
+    for (int i = 0; i < destinationCount; i++) {
+        if (destinations[i].active.load()) {
+            return TRUE;
+        }
+    }
+    return FALSE;
+}
+
+/**
+ * 将交织排序后的数据包分发给所有仍在推流的目的地, 在分发线程中调用
+ * 数据包增加引用计数后放入各个目的地的队列, 不拷贝数据, 所有目的地都归还后数据包才回到数据包池
+ * 某个目的地的队列已满时 ( 推流线程长时间阻塞 ), 只丢弃该目的地的数据包,
+ * 并跳过该目的地之后的非关键帧, 直到下一个关键帧, 保证该目的地发送的视频帧可以解码
+ * 正在本地录制时, 录制器同样持有一个引用
+ */
+static void dispatchPacket(RTMPPacket *packet) {
+    CongestionController::PacketKind kind = CongestionController::kindOf(packet);
+    int videoFrame = kind == CongestionController::KIND_KEY_FRAME
+                     || kind == CongestionController::KIND_INTER_FRAME
+                     || kind == CongestionController::KIND_DISPOSABLE_FRAME;
+
+    PushDestination *targets[MAX_PUSH_DESTINATIONS];
+    int targetCount = 0;
+    for (int i = 0; i < destinationCount; i++) {
+        PushDestination &destination = destinations[i];
+        if (!destination.active.load()) {
+            continue;
+        }
+        if (videoFrame && destination.waitKeyFrame) {
+            if (kind != CongestionController::KIND_KEY_FRAME) {
+                continue;
             }
+            destination.waitKeyFrame = 0;
+        }
+        targets[targetCount++] = &destination;
+    }
+    int recording = flvRecorder.isRecording();
+    if (targetCount == 0 && !recording) {
+        releaseRTMPPackets(packet);
+        return;
+    }
 
-            if (!ret) {
-                __android_log_print(ANDROID_LOG_INFO, "RTMP", "RTMP 数据包推流失败");
-                break;
+    // 每个目的地与录制器各持有一个引用, obtain 时已经有一个引用
+    packetPool.retain(packet, targetCount + recording - 1);
+    if (recording) {
+        flvRecorder.push(packet);
+    }
+    for (int i = 0; i < targetCount; i++) {
+        if (!targets[i]->queue.push(packet) && targets[i]->active.load()) {
+            // 队列已满, 该目的地的引用已经归还
+            targets[i]->stats.onQueueFullDropped();
+            if (videoFrame) {
+                targets[i]->waitKeyFrame = 1;
             }
         }
-    }while (0);
+    }
+}
 
+/**
+ * 开始推流任务线程 ( 分发线程 )
+ * 主要是调用 RTMPDump 进行推流
+ *
+ * 为每个推流地址启动一个推流目的地的推流线程, 之后从 packets 队列中取出编码好的数据包,
+ * 按时间戳交织排序后分发给所有目的地, 每个数据包只编码一次
+ * 线程开始后立即允许编码, 各个目的地连接服务器的同时缓存分发的数据包
+ * 所有目的地都放弃重连后停止推流
+ * @param args  推流地址数组, 以 0 结尾, 数组与地址都是堆内存, 由本线程释放
+ * @return
+ */
+void* startRtmpPush (void* args){
+    // 0. 获取 Rtmp 推流地址
+    char **pushPaths = static_cast<char **>(args);
+    // 每次从 packets 队列中取出一批数据包
+    RTMPPacket *batch[PACKET_BATCH_SIZE];
 
-    // 面的部分是收尾部分, 释放资源
+    // 连接断开后 librtmp 关闭连接时仍然会发送 FCUnpublish / deleteStream 消息, 写已经断开的 socket 会产生 SIGPIPE 信号
+    // 屏蔽该信号, 写操作返回 EPIPE 错误, 不会结束整个进程, 之后创建的推流线程继承该设置
+    sigset_t sigpipeMask;
+    sigemptyset(&sigpipeMask);
+    sigaddset(&sigpipeMask, SIGPIPE);
+    pthread_sigmask(SIG_BLOCK, &sigpipeMask, 0);
 
+    // 记录推流开始时间, 在允许编码之前设置, 编码线程根据该时间计算时间戳
+    // 重连时不修改, 重连前后的时间戳是连续的
+    pushStartTimeMs = monotonicTimeUs() / 1000;
+    streamStats.reset();
+    // 线程安全队列开始工作
+    packets.setWork(1);
 
-    // 8. 推流结束, 关闭与 RTMP 服务器连接, 释放资源
-    if(rtmp){
-        RTMP_Close(rtmp);
-        RTMP_Free(rtmp);
+    // 为每个推流地址启动推流线程
+    destinationCount = 0;
+    for (int i = 0; pushPaths[i]; i++) {
+        if (destinationCount >= MAX_PUSH_DESTINATIONS) {
+            LOGE("最多同时推流到 %d 个目的地, 忽略推流地址 %s", MAX_PUSH_DESTINATIONS, pushPaths[i]);
+            delete[] pushPaths[i];
+            continue;
+        }
+        PushDestination &destination = destinations[destinationCount];
+        destination.index = destinationCount;
+        destination.pushPath = pushPaths[i];
+        destination.waitKeyFrame = 0;
+        destination.stats.reset();
+        destination.chunkWriter.resetInterrupt();
+        destination.queue.setWork(1);
+        destination.active.store(1);
+        destinationCount++;
+        destination.threadStarted =
+                pthread_create(&destination.pid, 0, startDestinationPush, &destination) == 0;
+        if (!destination.threadStarted) {
+            LOGE("创建推流线程失败, 推流地址 %s", destination.pushPath);
+            destination.active.store(0);
+            destination.queue.setWork(0);
+        }
     }
+    delete[] pushPaths;
 
-    // 推流数据包 线程安全队列释放
-    // 防止中途退出导致没有释放资源, 造成内存泄漏
-    if (packet) {
-        RTMPPacket_Free(packet);
-        delete packet;
-        packet = 0;
+    // 开始本地录制, 录制文件从第一个关键帧开始
+    if (!recordPath.empty()) {
+        flvRecorder.start(recordPath.c_str(), videoWidth, videoHeight, videoFps);
+    }
+
+    // 不等待连接服务器, 立即开始编码, 第一帧编码为关键帧
+    skippedVideoTimestamp.store(0);
+    if (mVedioChannel) {
+        mVedioChannel->requestKeyFrame();
     }
+    readyForPush = TRUE;
 
-    // 释放推流地址
-    if(pushPath){
-        delete pushPath;
-        pushPath = 0;
+    // 将 AAC 音频解码信息先放到 RTMP 数据包线程安全队列中
+    if(mAudioChannel) {
+        RTMPPacketPackUpCallBack(mAudioChannel->getAudioDecodeInfo());
     }
+
+    while (isStartRtmpPush && hasActiveDestination()) {
+        // 在取出数据包之前读取, 跳过编码之前放入队列的视频数据包一定包含在本次取出的数据包中
+        uint32_t videoProgress = skippedVideoTimestamp.load();
+        int batchCount = packets.waitAndDrain(batch, PACKET_BATCH_SIZE);
+        interleaver.advanceVideo(videoProgress);
+
+        // 音频与视频在不同线程中编码, 按采集时间戳交织排序后再分发
+        // 交织排序会修正时间戳, 必须在分发之前完成, 分发后数据包由多个目的地共享
+        for (int i = 0; i < batchCount; i++) {
+            interleaver.push(batch[i]);
+        }
+        RTMPPacket *ordered;
+        while ((ordered = interleaver.pop())) {
+            dispatchPacket(ordered);
+        }
+    }
+    if (isStartRtmpPush) {
+        LOGE("所有推流目的地都已停止, 停止推流");
+    }
+
+
+    // 面的部分是收尾部分, 释放资源
+
+
+    // 9. 推流结束, 停止编码, 唤醒阻塞在队列上的推流线程, 中断正在进行的写入, 等待各个推流线程关闭连接
+    readyForPush = FALSE;
+    isStartRtmpPush = FALSE;
+    packets.setWork(0);
+    for (int i = 0; i < destinationCount; i++) {
+        destinations[i].queue.setWork(0);
+        destinations[i].chunkWriter.interrupt();
+    }
+    for (int i = 0; i < destinationCount; i++) {
+        PushDestination &destination = destinations[i];
+        if (destination.threadStarted) {
+            pthread_join(destination.pid, 0);
+            destination.threadStarted = FALSE;
+        }
+        // 推流线程退出时分发线程可能正在放入数据包, 回收线程后再清空一次
+        destination.queue.clear();
+        // 释放推流地址
+        delete[] destination.pushPath;
+        destination.pushPath = 0;
+    }
+
+    // 写入剩余的录制数据, 更新 onMetaData, 关闭录制文件
+    flvRecorder.stop();
+
+    // 推流数据包释放
+    // 防止中途退出导致没有释放资源, 造成内存泄漏
+    packets.clear();
+    LOGI("音视频交织 : 修正时间戳 %ld 个数据包", interleaver.getAdjustedPackets());
+    interleaver.clear();
+
+    LOGI("数据包池 : 使用中 %lld 字节, 峰值 %lld 字节, 持有 %lld 字节, 堆内存申请 %lld 次",
+         static_cast<long long>(packetPool.getInUseBytes()),
+         static_cast<long long>(packetPool.getPeakInUseBytes()),
+         static_cast<long long>(packetPool.getPooledBytes()),
+         static_cast<long long>(packetPool.getHeapAllocations()));
     return 0;
 }
 
 /**
  * 开始向远程 RTMP 服务器推送数据
+ * @param paths     推流地址数组, 所有地址共享同一份编码数据, 第一个地址为主目的地
  */
 extern "C"
 JNIEXPORT void JNICALL
 Java_kim_hsl_rtmp_LivePusher_native_1startRtmpPush(JNIEnv *env, jobject thiz,
-                                                                jstring path) {
+                                                                jobjectArray paths) {
     if(isStartRtmpPush){
         // 防止该方法多次调用, 如果之前调用过, 那么屏蔽本次调用
         return;
     }
+    jsize pathCount = paths ? env->GetArrayLength(paths) : 0;
+    if (pathCount <= 0) {
+        LOGE("没有设置推流地址");
+        return;
+    }
+    if (rtmpPushThreadStarted) {
+        // 上一次推流的线程已经因为连接失败而退出, 回收该线程
+        pthread_join(startRtmpPushPid, 0);
+        rtmpPushThreadStarted = FALSE;
+    }
     // 执行过一次后, 马上标记已执行状态, 下一次就不再执行该方法了
     isStartRtmpPush = TRUE;
 
     // 获取 Rtmp 推流地址
-    // 该 pushPathFromJava 引用是局部引用, 超过作用域就无效了
-    // 局部引用不能跨方法 , 跨线程调用
-    const char* pushPathFromJava = env->GetStringUTFChars(path, 0);
-
-    // 获取地址的长度, 加上 '\0' 长度
-    char * pushPathNative = new char[strlen(pushPathFromJava) + 1];
-    // 拷贝 pushPathFromJava 到堆内存 pushPathNative 中
-    // 局部引用不能跨方法 , 跨线程调用, 这里需要在线程中使用该地址
-    // 因此需要将该局部引用拷贝到堆内存中, 然后传递到对应线程中
-    strcpy(pushPathNative, pushPathFromJava);
+    // 从 Java 层获取的字符串是局部引用, 超过作用域就无效了, 局部引用不能跨方法 , 跨线程调用
+    // 因此需要将地址拷贝到堆内存中, 然后传递到推流线程中, 数组以 0 结尾
+    char **pushPaths = new char *[pathCount + 1];
+    int count = 0;
+    for (jsize i = 0; i < pathCount; i++) {
+        jstring path = static_cast<jstring>(env->GetObjectArrayElement(paths, i));
+        if (!path) {
+            continue;
+        }
+        const char* pushPathFromJava = env->GetStringUTFChars(path, 0);
+        pushPaths[count] = new char[strlen(pushPathFromJava) + 1];
+        strcpy(pushPaths[count], pushPathFromJava);
+        count++;
+        // 释放从 Java 层获取的字符串
+        env->ReleaseStringUTFChars(path, pushPathFromJava);
+        env->DeleteLocalRef(path);
+    }
+    pushPaths[count] = 0;
 
     // 创建线程
-    pthread_create(&startRtmpPushPid, 0, startRtmpPush, pushPathNative);
+    if (pthread_create(&startRtmpPushPid, 0, startRtmpPush, pushPaths) == 0) {
+        rtmpPushThreadStarted = TRUE;
+    } else {
+        isStartRtmpPush = FALSE;
+        for (int i = 0; i < count; i++) {
+            delete[] pushPaths[i];
+        }
+        delete[] pushPaths;
+    }
+}
 
-    // 释放从 Java 层获取的字符串
-    // 释放局部引用
-    env->ReleaseStringUTFChars(path, pushPathFromJava);
+/**
+ * 一帧 Camera 画面处理完毕, 记录编码耗时, 或者估计跳过静止画面节省的编码耗时与数据量
+ * @param encoded       encodeCameraData 的返回值
+ * @param elapsedUs     本帧处理耗时 ( 跳过时是静止画面检测的耗时 ), 单位微秒
+ * @param timestamp     本帧的时间戳, 单位毫秒
+ */
+void onCameraFrameDone(int encoded, long elapsedUs, uint32_t timestamp) {
+    if (encoded) {
+        streamStats.onVideoFrameEncoded(elapsedUs);
+        return;
+    }
+    // 跳过时编码器中没有延迟输出的画面, 之前的视频数据包都已经放入 packets 队列
+    skippedVideoTimestamp.store(timestamp);
+    long averageUs = mVedioChannel->getAverageEncodeTimeUs();
+    streamStats.onVideoFrameSkipped(averageUs > elapsedUs ? averageUs - elapsedUs : 0,
+                                    mVedioChannel->getAverageFrameBytes());
 }
 
+/**
+ * GetPrimitiveArrayCritical 获取的数组, 在 NV21 数据转换完成后释放
+ */
+struct CriticalArray {
+    JNIEnv *env;
+    jbyteArray array;
+    jbyte *data;
+};
+
+/**
+ * VedioChannel 输入数据使用完毕回调, 退出临界区
+ * 使用 JNI_ABORT, 数据没有被修改, 不需要写回 Java 数组
+ */
+static void releaseCriticalArray(void *context) {
+    CriticalArray *criticalArray = static_cast<CriticalArray *>(context);
+    if (criticalArray->data) {
+        criticalArray->env->ReleasePrimitiveArrayCritical(criticalArray->array,
+                                                          criticalArray->data, JNI_ABORT);
+        criticalArray->data = 0;
+    }
+}
 
 extern "C"
 JNIEXPORT void JNICALL
-Java_kim_hsl_rtmp_LivePusher_native_1encodeCameraData(JNIEnv *env, jobject thiz, jbyteArray data) {
+Java_kim_hsl_rtmp_LivePusher_native_1encodeCameraData(JNIEnv *env, jobject thiz, jbyteArray data,
+                                                      jlong capture_time_nanos) {
     if(!mVedioChannel || !readyForPush){
         // 如果 vedioChannel 还没有进行初始化, 推流没有准备好了, 直接 return
-        __android_log_print(ANDROID_LOG_INFO, "RTMP", "还没有准备完毕, 稍后再尝试调用该方法 %d, %d", mVedioChannel, readyForPush);
+        // 每帧都会调用, 限流输出日志
+        LOGW_RATE_LIMITED(1000, "视频还没有准备完毕, 稍后再尝试调用该方法 %p, %d", mVedioChannel, readyForPush);
         return;
     }
 
-    // 将 Java 层的 byte 数组类型 jbyteArray 转为 jbyte* 指针类型
-    // 注意这是局部引用变量, 不能跨线程, 跨方法调用, 需要将其存放在堆内存中
-    jbyte* dataFromJava = env->GetByteArrayElements(data, NULL);
+    /*
+        GetByteArrayElements 在很多虚拟机上会拷贝整个数组, ReleaseByteArrayElements 模式 0 还会再拷贝回去
+        这里使用 GetPrimitiveArrayCritical 直接访问 Java 数组, 临界区内不能调用其它 JNI 方法, 也不能长时间阻塞
+        因此只在 NV21 转 I420 期间持有数组, x264 编码之前通过回调退出临界区
+     */
+    CriticalArray criticalArray;
+    criticalArray.env = env;
+    criticalArray.array = data;
+    criticalArray.data = static_cast<jbyte *>(env->GetPrimitiveArrayCritical(data, NULL));
+    if (!criticalArray.data) {
+        return;
+    }
 
     // jbyte 是 int8_t 类型的, 因此这里我们将 encodeCameraData 的参数设置成 int8_t* 类型
     // typedef int8_t   jbyte;    /* signed 8 bits */
-    mVedioChannel->encodeCameraData(dataFromJava);
+    int64_t encodeStartUs = monotonicTimeUs();
+    uint32_t timestamp = toStreamTimestamp(capture_time_nanos);
+    int encoded = mVedioChannel->encodeCameraData(criticalArray.data, timestamp,
+                                                  releaseCriticalArray, &criticalArray);
+    onCameraFrameDone(encoded, monotonicTimeUs() - encodeStartUs, timestamp);
+
+    // 编码过程中没有调用回调时 ( 如编码器还没有创建 ), 在这里退出临界区
+    releaseCriticalArray(&criticalArray);
+}
 
-    // 释放局部引用变量
-    env->ReleaseByteArrayElements(data, dataFromJava, 0);
+/**
+ * 重复编码上一帧画面, 重新打开 Camera 期间调用
+ */
+extern "C"
+JNIEXPORT void JNICALL
+Java_kim_hsl_rtmp_LivePusher_native_1encodeRepeatedFrame(JNIEnv *env, jobject thiz,
+                                                         jlong capture_time_nanos) {
+    if(!mVedioChannel || !readyForPush){
+        return;
+    }
+    int64_t encodeStartUs = monotonicTimeUs();
+    if (mVedioChannel->encodeRepeatedFrame(toStreamTimestamp(capture_time_nanos))) {
+        streamStats.onVideoFrameEncoded(monotonicTimeUs() - encodeStartUs);
+    }
 }
 
 
 extern "C"
 JNIEXPORT void JNICALL
 Java_kim_hsl_rtmp_LivePusher_native_1stopPush(JNIEnv *env, jobject thiz) {
-    // TODO: implement native_stopPush()
+    if (!rtmpPushThreadStarted) {
+        return;
+    }
+    // 推流线程在下一次循环时退出, 唤醒阻塞在队列上的分发线程
+    // 分发线程退出时中断各个推流线程正在进行的写入, 上行网络阻塞时同样可以立即停止
+    isStartRtmpPush = FALSE;
+    packets.setWork(0);
+    pthread_join(startRtmpPushPid, 0);
+    rtmpPushThreadStarted = FALSE;
 }
 
 extern "C"
@@ -340,23 +1154,271 @@ Java_kim_hsl_rtmp_LivePusher_native_1getInputSamples(JNIEnv *env, jobject thiz)
     return  -1;
 }
 
+/**
+ * 编码直接缓冲区 ( DirectByteBuffer ) 中的 PCM 数据
+ * AudioRecord 直接将采样数据读取到该缓冲区中, JNI 层直接访问缓冲区内存, 不需要拷贝
+ * 读取的字节数不足一帧时, 先累积起来, 凑满一帧再编码
+ *
+ * @param length    本次读取到的字节数
+ * @param capture_time_nanos    本次读取完成的时间, System.nanoTime()
+ */
 extern "C"
 JNIEXPORT void JNICALL
-Java_kim_hsl_rtmp_LivePusher_native_1encodeAudioData(JNIEnv *env, jobject thiz, jbyteArray data) {
+Java_kim_hsl_rtmp_LivePusher_native_1encodeAudioBuffer(JNIEnv *env, jobject thiz, jobject buffer,
+                                                       jint length, jlong capture_time_nanos) {
     if(!mAudioChannel || !readyForPush){
-        // 如果 mAudioChannel 还没有进行初始化, 推流没有准备好了, 直接 return
-        __android_log_print(ANDROID_LOG_INFO, "RTMP", "还没有准备完毕, 稍后再尝试调用该方法 %d, %d", mAudioChannel, readyForPush);
         return;
     }
 
-    // 将 Java 层的 byte 数组类型 jbyteArray 转为 jbyte* 指针类型
-    // 注意这是局部引用变量, 不能跨线程, 跨方法调用, 需要将其存放在堆内存中
-    jbyte* dataFromJava = env->GetByteArrayElements(data, NULL);
+    jbyte *data = static_cast<jbyte *>(env->GetDirectBufferAddress(buffer));
+    if (!data || length <= 0 || env->GetDirectBufferCapacity(buffer) < length) {
+        // 不是直接缓冲区, 或者读取长度超出缓冲区范围
+        return;
+    }
+    int frames = mAudioChannel->encodeAudioSamples(data, length,
+                                                   toStreamTimestamp(capture_time_nanos));
+    for (int i = 0; i < frames; i++) {
+        streamStats.onAudioFrameEncoded();
+    }
+}
 
-    // jbyte 是 int8_t 类型的, 因此这里我们将 encodeCameraData 的参数设置成 int8_t* 类型
-    // typedef int8_t   jbyte;    /* signed 8 bits */
-    mAudioChannel->encodeAudioData(dataFromJava);
+/**
+ * 丢弃上一次推流剩余的不完整 PCM 数据, 音频采样线程开始采样时调用
+ */
+extern "C"
+JNIEXPORT void JNICALL
+Java_kim_hsl_rtmp_LivePusher_native_1resetAudioSamples(JNIEnv *env, jobject thiz) {
+    if(mAudioChannel){
+        mAudioChannel->resetAudioSamples();
+    }
+}
 
-    // 释放局部引用变量
-    env->ReleaseByteArrayElements(data, dataFromJava, 0);
-}
\ No newline at end of file
+/**
+ * 设置所有推流目的地的拥塞控制预算
+ */
+extern "C"
+JNIEXPORT void JNICALL
+Java_kim_hsl_rtmp_LivePusher_native_1setCongestionBudget(JNIEnv *env, jobject thiz,
+                                                        jint latency_budget_ms, jint byte_budget) {
+    for (int i = 0; i < MAX_PUSH_DESTINATIONS; i++) {
+        destinations[i].congestionController.setBudget(latency_budget_ms, byte_budget);
+        destinations[i].chunkWriter.wakeup();
+    }
+}
+
+/**
+ * 设置一个推流目的地的拥塞控制预算
+ * @param index     目的地序号, 与开始推流时推流地址的顺序一致
+ */
+extern "C"
+JNIEXPORT void JNICALL
+Java_kim_hsl_rtmp_LivePusher_native_1setDestinationCongestionBudget(JNIEnv *env, jobject thiz,
+                                                                   jint index,
+                                                                   jint latency_budget_ms,
+                                                                   jint byte_budget) {
+    if (index >= 0 && index < MAX_PUSH_DESTINATIONS) {
+        destinations[index].congestionController.setBudget(latency_budget_ms, byte_budget);
+        destinations[index].chunkWriter.wakeup();
+    }
+}
+
+/**
+ * 获取主目的地拥塞控制丢弃的视频帧个数 与 GOP 个数
+ * @return long[2] 数组, [0] 丢弃的视频帧个数, [1] 丢弃的 GOP 个数
+ */
+extern "C"
+JNIEXPORT jlongArray JNICALL
+Java_kim_hsl_rtmp_LivePusher_native_1getCongestionDropCounts(JNIEnv *env, jobject thiz) {
+    jlong counts[2];
+    counts[0] = destinations[0].congestionController.getDroppedFrames();
+    counts[1] = destinations[0].congestionController.getDroppedGops();
+    jlongArray result = env->NewLongArray(2);
+    env->SetLongArrayRegion(result, 0, 2, counts);
+    return result;
+}
+
+/**
+ * 设置自适应码率范围, 单位 bps
+ * 初始码率为当前设置的视频编码码率, 最小码率 大于等于 最大码率 时关闭自适应码率
+ */
+extern "C"
+JNIEXPORT void JNICALL
+Java_kim_hsl_rtmp_LivePusher_native_1setBitrateRange(JNIEnv *env, jobject thiz,
+                                                    jint min_bitrate, jint max_bitrate) {
+    if (min_bitrate >= max_bitrate) {
+        bitrateController.setRange(0, 0, 0);
+        if (mVedioChannel && videoBitrate > 0) {
+            // 关闭自适应码率, 恢复为设置的视频编码码率
+            mVedioChannel->updateBitrate(videoBitrate);
+        }
+        return;
+    }
+    bitrateController.setRange(videoBitrate, min_bitrate, max_bitrate);
+    if (mVedioChannel && bitrateController.getBitrate() != videoBitrate) {
+        mVedioChannel->updateBitrate(bitrateController.getBitrate());
+    }
+}
+
+/**
+ * 获取当前的视频编码码率, 单位 bps
+ */
+extern "C"
+JNIEXPORT jint JNICALL
+Java_kim_hsl_rtmp_LivePusher_native_1getCurrentBitrate(JNIEnv *env, jobject thiz) {
+    int bitrate = bitrateController.getBitrate();
+    return bitrate > 0 ? bitrate : videoBitrate;
+}
+
+/**
+ * 设置发送块大小, 下一次开始推流时生效
+ */
+extern "C"
+JNIEXPORT void JNICALL
+Java_kim_hsl_rtmp_LivePusher_native_1setChunkSize(JNIEnv *env, jobject thiz, jint chunk_size) {
+    rtmpChunkSize = chunk_size;
+}
+
+/**
+ * 设置断线重连策略, 下一次重连时生效
+ * @param max_attempts  最大连续重连次数, 0 表示不限制, 负数表示不重连
+ */
+extern "C"
+JNIEXPORT void JNICALL
+Java_kim_hsl_rtmp_LivePusher_native_1setReconnectPolicy(JNIEnv *env, jobject thiz,
+                                                        jint max_attempts, jint initial_delay_ms,
+                                                        jint max_delay_ms) {
+    reconnectMaxAttempts = max_attempts;
+    reconnectInitialDelayMs = std::max(initial_delay_ms, 0);
+    reconnectMaxDelayMs = std::max(max_delay_ms, reconnectInitialDelayMs);
+}
+
+/**
+ * 由各个推流目的地分别统计的发送数据
+ */
+static const int DESTINATION_STATS[] = {
+        STAT_BACKLOG_PACKETS, STAT_BACKLOG_BYTES, STAT_BACKLOG_DURATION_MS,
+        STAT_PACKETS_SENT, STAT_BYTES_SENT, STAT_SEND_LATENCY_AVG_MS, STAT_SEND_LATENCY_MAX_MS,
+        STAT_RECONNECTS, STAT_CONNECT_TIME_MS, STAT_FIRST_KEY_FRAME_MS
+};
+
+/**
+ * 采样一个推流目的地的统计数据, 编码相关的数据取自全局的 streamStats
+ * @return long[STAT_COUNT] 数组, 各项数据的位置参考 StreamStats.h 中的 StatIndex
+ */
+static jlongArray snapshotStats(JNIEnv *env, PushDestination &destination) {
+    int64_t stats[STAT_COUNT];
+    int64_t destinationStats[STAT_COUNT];
+    streamStats.snapshot(stats);
+    destination.stats.snapshot(destinationStats);
+    for (size_t i = 0; i < sizeof(DESTINATION_STATS) / sizeof(DESTINATION_STATS[0]); i++) {
+        stats[DESTINATION_STATS[i]] = destinationStats[DESTINATION_STATS[i]];
+    }
+    stats[STAT_QUEUE_PACKETS] = packets.size() + destination.queue.size();
+    stats[STAT_QUEUE_FULL_DROPPED] += destinationStats[STAT_QUEUE_FULL_DROPPED];
+    stats[STAT_CONGESTION_DROPPED_FRAMES] = destination.congestionController.getDroppedFrames();
+    stats[STAT_CONGESTION_DROPPED_GOPS] = destination.congestionController.getDroppedGops();
+    int bitrate = bitrateController.getBitrate();
+    stats[STAT_CURRENT_BITRATE] = bitrate > 0 ? bitrate : videoBitrate;
+    stats[STAT_POOL_IN_USE_BYTES] = packetPool.getInUseBytes();
+    stats[STAT_WRITE_CALLS] = destination.chunkWriter.getWriteCalls();
+    stats[STAT_SEND_TIMEOUTS] = destination.chunkWriter.getSendTimeouts();
+    stats[STAT_RECORD_BYTES] = flvRecorder.getWrittenBytes();
+    stats[STAT_RECORD_DROPPED] = flvRecorder.getDroppedPackets();
+
+    jlong result[STAT_COUNT];
+    for (int i = 0; i < STAT_COUNT; i++) {
+        result[i] = stats[i];
+    }
+    jlongArray array = env->NewLongArray(STAT_COUNT);
+    env->SetLongArrayRegion(array, 0, STAT_COUNT, result);
+    return array;
+}
+
+/**
+ * 采样推流统计数据, 发送相关的数据是主目的地的数据
+ * @return long[STAT_COUNT] 数组, 各项数据的位置参考 StreamStats.h 中的 StatIndex
+ */
+extern "C"
+JNIEXPORT jlongArray JNICALL
+Java_kim_hsl_rtmp_LivePusher_native_1getStats(JNIEnv *env, jobject thiz) {
+    return snapshotStats(env, destinations[0]);
+}
+
+/**
+ * 采样一个推流目的地的统计数据
+ * @param index     目的地序号, 与开始推流时推流地址的顺序一致
+ * @return long[STAT_COUNT] 数组, 序号超出本次推流的目的地个数时返回 null
+ */
+extern "C"
+JNIEXPORT jlongArray JNICALL
+Java_kim_hsl_rtmp_LivePusher_native_1getDestinationStats(JNIEnv *env, jobject thiz, jint index) {
+    if (index < 0 || index >= destinationCount) {
+        return 0;
+    }
+    return snapshotStats(env, destinations[index]);
+}
+
+/**
+ * 设置是否启用音频优先的发送调度, 对所有推流目的地生效
+ * @param enabled   关闭时按照时间戳顺序发送, 关键帧完整写入之后才能发送后面的音频
+ */
+extern "C"
+JNIEXPORT void JNICALL
+Java_kim_hsl_rtmp_LivePusher_native_1setAudioPriority(JNIEnv *env, jobject thiz,
+                                                      jboolean enabled) {
+    for (int i = 0; i < MAX_PUSH_DESTINATIONS; i++) {
+        destinations[i].scheduler.setEnabled(enabled);
+        destinations[i].chunkWriter.wakeup();
+    }
+}
+
+/**
+ * 设置静止画面检测, 下一帧画面开始生效
+ * @param enabled   启用后与上一次编码的画面相比没有变化的帧跳过编码
+ * @param threshold 区块差异阈值, 区块内每个采样点的平均亮度差, 小于等于 0 时使用默认值
+ */
+extern "C"
+JNIEXPORT void JNICALL
+Java_kim_hsl_rtmp_LivePusher_native_1setStaticSceneDetection(JNIEnv *env, jobject thiz,
+                                                             jboolean enabled, jint threshold) {
+    if (mVedioChannel) {
+        mVedioChannel->setStaticSceneDetection(enabled, threshold);
+    }
+}
+
+/**
+ * 设置写入截止时间, 对所有推流目的地立即生效
+ * @param timeout_ms    一批数据包或者一个视频分片超过该时间没有写完时断开连接后重连, 小于等于 0 时恢复默认值
+ */
+extern "C"
+JNIEXPORT void JNICALL
+Java_kim_hsl_rtmp_LivePusher_native_1setSendTimeout(JNIEnv *env, jobject thiz, jint timeout_ms) {
+    for (int i = 0; i < MAX_PUSH_DESTINATIONS; i++) {
+        destinations[i].chunkWriter.setSendTimeout(timeout_ms);
+    }
+}
+
+/**
+ * 设置本地录制文件, 下一次开始推流时生效, 推流期间持续录制, 停止推流时关闭文件
+ * @param path  FLV 文件路径, null 表示不录制
+ */
+extern "C"
+JNIEXPORT void JNICALL
+Java_kim_hsl_rtmp_LivePusher_native_1setRecordFile(JNIEnv *env, jobject thiz, jstring path) {
+    if (!path) {
+        recordPath.clear();
+        return;
+    }
+    const char *recordPathFromJava = env->GetStringUTFChars(path, 0);
+    recordPath = recordPathFromJava;
+    env->ReleaseStringUTFChars(path, recordPathFromJava);
+}
+
+/**
+ * 设置 native 层日志输出级别, 取值为 android/log.h 中的 ANDROID_LOG_* 常量
+ */
+extern "C"
+JNIEXPORT void JNICALL
+Java_kim_hsl_rtmp_LivePusher_native_1setLogLevel(JNIEnv *env, jobject thiz, jint level) {
+    rtmpLogLevel().store(level);
+}
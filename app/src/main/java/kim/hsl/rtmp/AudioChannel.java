@@ -4,6 +4,8 @@ import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.MediaRecorder;
 
+import java.nio.ByteBuffer;
+
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -68,6 +70,11 @@ public class AudioChannel {
      */
     private int mAudioRecordReadCount;
 
+    /**
+     * 音频采样读取统计, 采样不足 / 采样溢出次数
+     */
+    private AudioReadMonitor mReadMonitor;
+
     public AudioChannel(LivePusher mLivePusher) {
         this.mLivePusher = mLivePusher;
 
@@ -133,6 +140,11 @@ public class AudioChannel {
                 AudioFormat.ENCODING_PCM_16BIT, // 采样位数 16 位
                 maxBufferSizeInBytesForInitAudioRecord);                 // 最小采样缓冲区个数
 
+        // AudioRecord 内部缓冲区能容纳的音频时长, 采样线程超过该时长没有读取数据, 缓冲区就会溢出
+        // 44100 Hz 立体声 16 位采样, 每秒 44100 * 2 * 2 字节
+        long recordBufferDurationNanos = maxBufferSizeInBytesForInitAudioRecord * 1000000000L
+                / (SAMPLE_RATE_IN_HZ_44100 * AUDIO_CHANNEL_STEREO * BYTES_OF_A_SAMPLE);
+        mReadMonitor = new AudioReadMonitor(mFaacInputBytesCount, recordBufferDurationNanos);
 
     }
 
@@ -153,6 +165,22 @@ public class AudioChannel {
         isStartPush = false;
     }
 
+    /**
+     * 获取音频采样不足次数
+     * @return
+     */
+    public long getUnderruns() {
+        return mReadMonitor.getUnderruns();
+    }
+
+    /**
+     * 获取音频采样溢出次数
+     * @return
+     */
+    public long getOverruns() {
+        return mReadMonitor.getOverruns();
+    }
+
     public void release(){
         //释放音频录音对象
         mAudioRecord.release();
@@ -169,16 +197,30 @@ public class AudioChannel {
             // FAAC 编码器每次读取 mFaacInputSamplesCount 个样本
             // 注意 : 一个样本 2 字节
             // 字节个数是 mFaacInputBytesCount 个字节
-            byte[] readBuffer = new byte[mFaacInputBytesCount];
+            // 使用直接缓冲区, AudioRecord 直接将采样数据写入该缓冲区
+            // JNI 层通过 GetDirectBufferAddress 直接访问, 不需要在 Java 数组与 native 内存之间拷贝
+            ByteBuffer readBuffer = ByteBuffer.allocateDirect(mFaacInputBytesCount);
+
+            // 丢弃上一次推流剩余的不完整帧, 样本时钟从本次推流的第一次读取重新开始
+            mLivePusher.native_resetAudioSamples();
+
+            // 上一次推流最后的读取时间不参与本次推流的溢出判断
+            mReadMonitor.reset();
             while (isStartPush){
-                // 循环读取录音
-                int readLen = mAudioRecord.read(readBuffer, 0, readBuffer.length);
+                // 循环读取录音, 数据从缓冲区位置 0 开始写入
+                // 读取前后统计采样溢出 / 采样不足次数
+                mReadMonitor.beforeRead(System.nanoTime());
+                int readLen = mAudioRecord.read(readBuffer, mFaacInputBytesCount);
+                long lastReadNanos = System.nanoTime();
+                mReadMonitor.afterRead(readLen, lastReadNanos);
 
                 // 如果读取到的 PCM 音频采样数据大于 0
                 // 从到 JNI 层让 FAAC 编码器编码成 AAC 格式的音频数据
+                // 只传入实际读取到的字节数, 不足一帧的数据在 JNI 层累积, 凑满一帧再编码
                 if(readLen > 0){
                     // 将数据传入 JNI 层使用 FAAC 编码器进行编码
-                    mLivePusher.native_encodeAudioData(readBuffer);
+                    // 音频时间戳由 JNI 层按照样本个数计算, 读取完成的时间只用于对齐样本时钟
+                    mLivePusher.native_encodeAudioBuffer(readBuffer, readLen, lastReadNanos);
                 }
             }
 
@@ -0,0 +1,101 @@
+package kim.hsl.rtmp;
+
+/**
+ * 音频采样线程的读取统计
+ *
+ * 每次 AudioRecord.read 前后调用, 统计 :
+ *      采样不足 : 读取到的数据不足一帧, 或者读取出错
+ *      采样溢出 : 两次读取之间的间隔超过了 AudioRecord 缓冲区能容纳的时长, 期间的采样数据被丢弃
+ *
+ * 该类不依赖 Android API, 可以在主机端进行基准测试 ( 见 jmh 模块 )
+ * 只在采样线程中写入, 统计值可以在任意线程中读取
+ */
+public final class AudioReadMonitor {
+
+    /**
+     * FAAC 编码器一次输入的字节个数
+     */
+    private final int mFrameBytes;
+
+    /**
+     * AudioRecord 内部缓冲区能容纳的音频时长, 单位纳秒
+     */
+    private final long mBufferDurationNanos;
+
+    /**
+     * 上一次读取返回的时间, 0 表示还没有读取过
+     */
+    private long mLastReadNanos;
+
+    /**
+     * 音频采样不足次数
+     */
+    private volatile long mUnderruns;
+
+    /**
+     * 音频采样溢出次数
+     */
+    private volatile long mOverruns;
+
+    /**
+     * @param frameBytes
+     *          FAAC 编码器一次输入的字节个数
+     * @param bufferDurationNanos
+     *          AudioRecord 内部缓冲区能容纳的音频时长, 单位纳秒
+     */
+    public AudioReadMonitor(int frameBytes, long bufferDurationNanos) {
+        mFrameBytes = frameBytes;
+        mBufferDurationNanos = bufferDurationNanos;
+    }
+
+    /**
+     * 开始新一次推流, 上一次推流最后的读取时间不再参与溢出判断
+     * 统计值保持累加
+     */
+    public void reset() {
+        mLastReadNanos = 0;
+    }
+
+    /**
+     * 读取前调用
+     * @param nowNanos
+     *          当前时间, {@link System#nanoTime()}
+     */
+    public void beforeRead(long nowNanos) {
+        if (mLastReadNanos != 0 && nowNanos - mLastReadNanos > mBufferDurationNanos) {
+            // 编码耗时太长, AudioRecord 缓冲区已经写满, 期间的采样数据被丢弃
+            mOverruns++;
+        }
+    }
+
+    /**
+     * 读取完成后调用
+     * @param readLen
+     *          AudioRecord.read 的返回值
+     * @param nowNanos
+     *          读取完成的时间, {@link System#nanoTime()}
+     */
+    public void afterRead(int readLen, long nowNanos) {
+        mLastReadNanos = nowNanos;
+        if (readLen < mFrameBytes) {
+            // 读取到的数据不足一帧, 或者读取出错
+            mUnderruns++;
+        }
+    }
+
+    /**
+     * 获取音频采样不足次数
+     * @return
+     */
+    public long getUnderruns() {
+        return mUnderruns;
+    }
+
+    /**
+     * 获取音频采样溢出次数
+     * @return
+     */
+    public long getOverruns() {
+        return mOverruns;
+    }
+}
@@ -7,7 +7,6 @@ import android.util.Log;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 
-import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -46,14 +45,16 @@ public class CameraManager implements SurfaceHolder.Callback, Camera.PreviewCall
     private Camera mCamera;
 
     /**
-     * Camera 预览数据 NV21 格式
+     * 默认的 Camera 预览缓冲区个数
      */
-    private byte[] mNv21DataPreviewBuffer;
+    public static final int DEFAULT_PREVIEW_BUFFER_COUNT = 3;
 
     /**
-     * 存储实际向 JNI 层传输的数据
+     * Camera 预览缓冲区个数
+     * 只有一个缓冲区时, 编码期间 Camera 没有缓冲区可用, 只能丢帧
+     * 多个缓冲区轮流使用, 一个缓冲区在编码时, Camera 可以向其它缓冲区中写入数据
      */
-    private byte[] mNv21DataBuffer;
+    private int mPreviewBufferCount = DEFAULT_PREVIEW_BUFFER_COUNT;
 
     /**
      * 画面显示画布 Holder
@@ -89,6 +90,17 @@ public class CameraManager implements SurfaceHolder.Callback, Camera.PreviewCall
         } else {
             mCameraFacing = Camera.CameraInfo.CAMERA_FACING_BACK;
         }
+        restartCamera();
+    }
+
+    /**
+     * 重新打开 Camera
+     * 重新打开期间 ( 通常几百毫秒 ) 没有新的画面, 先通知编码端重复编码上一帧画面, 保持推流不中断
+     */
+    private void restartCamera() {
+        if (mCamera != null) {
+            mOnChangedSizeListener.onCameraRestart();
+        }
         stopCameraNV21DataPreview();
         startCameraNV21DataPreview();
     }
@@ -96,7 +108,7 @@ public class CameraManager implements SurfaceHolder.Callback, Camera.PreviewCall
     /**
      * 释放 Camera 摄像头
      */
-    private void stopCameraNV21DataPreview() {
+    private synchronized void stopCameraNV21DataPreview() {
         if (mCamera != null) {
             // 下面的 API 都是 Android 提供的
 
@@ -128,10 +140,11 @@ public class CameraManager implements SurfaceHolder.Callback, Camera.PreviewCall
             setCameraPreviewOrientation(parameters);
             mCamera.setParameters(parameters);
             // 6. 计算出 NV21 格式图像 mWidth * mHeight 像素数据大小
-            mNv21DataPreviewBuffer = new byte[mWidth * mHeight * 3 / 2];
-            mNv21DataBuffer = new byte[mWidth * mHeight * 3 / 2];
-            // 7. 设置 Camera 预览数据缓存区
-            mCamera.addCallbackBuffer(mNv21DataPreviewBuffer);
+            // 7. 设置 Camera 预览数据缓存区, 多个缓冲区轮流使用
+            //    每次打开 Camera 都创建新的缓冲区, 上一个 Camera 的缓冲区可能还在编码线程中使用
+            for (int i = 0; i < mPreviewBufferCount; i++) {
+                mCamera.addCallbackBuffer(new byte[mWidth * mHeight * 3 / 2]);
+            }
             // 8. 设置 Camera 数据采集回调函数, 采集完数据后
             //    就会回调此 PreviewCallback 接口的
             //    void onPreviewFrame(byte[] data, Camera camera) 方法
@@ -185,6 +198,9 @@ public class CameraManager implements SurfaceHolder.Callback, Camera.PreviewCall
         mScreenRotation = mActivity.getWindowManager().getDefaultDisplay().getRotation();
 
         int degrees = 0;
+        // 编码图像的宽高, 默认与 Camera 预览尺寸相同
+        int encodeWidth = mWidth;
+        int encodeHeight = mHeight;
         switch (mScreenRotation) {
             case Surface.ROTATION_0:
                 degrees = 0;
@@ -195,23 +211,21 @@ public class CameraManager implements SurfaceHolder.Callback, Camera.PreviewCall
                     这里需要通知 Native 层的 x264 编码器, 修改编码参数 , 按照 400 x 800 的尺寸进行编码
                     需要重新设置 x264 的编码参数
                  */
-                mOnChangedSizeListener.onChanged(mHeight, mWidth);
-                //mOnChangedSizeListener.onChanged(mWidth, mHeight);
+                encodeWidth = mHeight;
+                encodeHeight = mWidth;
                 break;
             case Surface.ROTATION_90:
                 degrees = 90;
-                mOnChangedSizeListener.onChanged(mWidth, mHeight);
                 break;
             case Surface.ROTATION_180:
                 //degrees = 180;
-                //mOnChangedSizeListener.onChanged(mHeight, mWidth);
-                //mOnChangedSizeListener.onChanged(mWidth, mHeight);
                 break;
             case Surface.ROTATION_270:
-                mOnChangedSizeListener.onChanged(mWidth, mHeight);
                 degrees = 270;
                 break;
         }
+        // 打开 Camera 时只通知一次编码尺寸, 尺寸没有改变时 JNI 层继续使用当前的编码器
+        mOnChangedSizeListener.onChanged(encodeWidth, encodeHeight);
         int result;
         if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
             result = (info.orientation + degrees) % 360;
@@ -220,6 +234,17 @@ public class CameraManager implements SurfaceHolder.Callback, Camera.PreviewCall
             result = (info.orientation - degrees + 360) % 360;
         }
         mCamera.setDisplayOrientation(result);
+
+        /*
+            通知 JNI 层 NV21 图像需要旋转的角度
+            竖屏时, 后置摄像头图像需要顺时针旋转 90 度, 前置摄像头需要顺时针旋转 270 度
+            旋转操作在 JNI 层编码前, 与 NV21 转 I420 一起完成
+         */
+        int frameRotation = 0;
+        if (mScreenRotation == Surface.ROTATION_0) {
+            frameRotation = mCameraFacing == Camera.CameraInfo.CAMERA_FACING_BACK ? 90 : 270;
+        }
+        mOnChangedSizeListener.onRotationChanged(frameRotation, false);
     }
 
     /**
@@ -248,42 +273,25 @@ public class CameraManager implements SurfaceHolder.Callback, Camera.PreviewCall
 
 
         // 2. 下面开始遍历获取与用户设置的宽高值最接近的, Camera 支持的宽高值
-
-
-        // 获取系统 Camera 摄像头支持的最低的摄像头
-        //      Camera.Size 中有宽度和高度参数
-        Camera.Size currentSupportSize = supportedPreviewSizes.get(0);
-        // 对比第 0 个系统支持的像素总数 与 用户设置的像素总数 差值
-        //      之后会逐个对比, 每个系统支持的像素总数 与 用户设置像素总数 差值
-        //      选择差值最小的那个像素值
-        int minDeltaOfPixels = Math.abs(currentSupportSize.height * currentSupportSize.width - mWidth * mHeight);
-        // 对比完成之后, 删除像素值
-        //supportedPreviewSizes.remove(0);
-
-        // 遍历系统支持的宽高像素集合, 如果
-        Iterator<Camera.Size> iterator = supportedPreviewSizes.iterator();
-        while (iterator.hasNext()) {
-            // 当前遍历的的系统支持的像素宽高
-            Camera.Size tmpSupportSize = iterator.next();
-            // 计算当前的设备支持宽高与用户设置的宽高的像素点个数差值
-            int tmpDeltaOfPixels = Math.abs(tmpSupportSize.height * tmpSupportSize.width - mWidth * mHeight);
-
-            // 如果当前的差分值 小于 当前最小像素差分值, 那么使用当前的数据替代
-            if (tmpDeltaOfPixels < minDeltaOfPixels) {
-                minDeltaOfPixels = tmpDeltaOfPixels;
-                currentSupportSize = tmpSupportSize;
-            }
+        //    对比方法在 PreviewSizeSelector 中, 不依赖 Android API, 可以在主机端进行基准测试
+        int count = supportedPreviewSizes.size();
+        int[] widths = new int[count];
+        int[] heights = new int[count];
+        for (int i = 0; i < count; i++) {
+            Camera.Size size = supportedPreviewSizes.get(i);
+            widths[i] = size.width;
+            heights[i] = size.height;
         }
+        int selected = PreviewSizeSelector.selectClosest(widths, heights, count, mWidth, mHeight);
+        Camera.Size currentSupportSize = supportedPreviewSizes.get(selected);
 
         // 3. 选择出了最合适的 Camera 支持的宽高值
         mWidth = currentSupportSize.width;
         mHeight = currentSupportSize.height;
 
         // 4. 为 Camera 设置最合适的像素值
+        //    编码尺寸还与屏幕方向有关, 在 setCameraPreviewOrientation 中一起通知
         parameters.setPreviewSize(mWidth, mHeight);
-
-        // 5. 设置大小改变监听
-        mOnChangedSizeListener.onChanged(mWidth, mHeight);
     }
 
 
@@ -300,6 +308,28 @@ public class CameraManager implements SurfaceHolder.Callback, Camera.PreviewCall
         mSurfaceHolder.addCallback(this);
     }
 
+    /**
+     * 设置 Camera 预览缓冲区个数, 下一次打开 Camera 时生效
+     * @param count
+     */
+    public void setPreviewBufferCount(int count) {
+        mPreviewBufferCount = Math.max(1, count);
+    }
+
+    /**
+     * 将使用完毕的预览缓冲区归还给 Camera, 可以在任意线程中调用
+     * 如果该缓冲区所属的 Camera 已经释放 ( 如切换了摄像头 ), 直接丢弃该缓冲区
+     * @param data
+     *          预览缓冲区
+     * @param camera
+     *          该缓冲区所属的 Camera
+     */
+    public synchronized void returnPreviewBuffer(byte[] data, Camera camera) {
+        if (mCamera != null && mCamera == camera) {
+            mCamera.addCallbackBuffer(data);
+        }
+    }
+
     public void setPreviewCallback(Camera.PreviewCallback previewCallback) {
         mPreviewCallback = previewCallback;
     }
@@ -320,8 +350,7 @@ public class CameraManager implements SurfaceHolder.Callback, Camera.PreviewCall
     @Override
     public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
         // 先释放 Camera, 然后重新启动
-        stopCameraNV21DataPreview();
-        startCameraNV21DataPreview();
+        restartCamera();
     }
 
     @Override
@@ -339,151 +368,30 @@ public class CameraManager implements SurfaceHolder.Callback, Camera.PreviewCall
      */
     @Override
     public void onPreviewFrame(byte[] data, Camera camera) {
-        // 处理 NV21 数据旋转问题
-        if(mScreenRotation == Surface.ROTATION_0){
-            // 获取到数据后, 先将数据旋转, 然后再处理下面的内容
-            nv21PictureDataClockwiseRotation90(data);
-        }else{
-            mNv21DataBuffer = data;
-        }
-
-        // 此时经过 nv21PictureDataClockwiseRotation90 方法处理后 NV21 数据图像方向是正的
-        // 通过该回调函数, 将旋转后的画面传递到 JNI 层
-        mPreviewCallback.onPreviewFrame(mNv21DataBuffer, camera);
-        camera.addCallbackBuffer(mNv21DataPreviewBuffer);
-    }
-
-    /**
-     * 将 NV21 格式的图片数据顺时针旋转 90 度
-     * 后置摄像头顺时针旋转 90 度
-     * 前置摄像头逆时针旋转 90 度
-     * @param data
-     */
-    private void nv21PictureDataClockwiseRotation90(byte[] data){
-        // Y 灰度数据的个数
-        int YByteCount = mWidth * mHeight;
-
-        // 色彩度 U, 饱和度 V 数据高度
-        int UVByteHeight = mHeight / 2;
-
-        // 色彩度 U, 饱和度 V 数据个数
-        int UVByteCount = YByteCount / 4;
-
-        // 数据处理索引值, 用于记录写入到 mNv21DataBuffer 中的元素个数
-        // 及下一个将要写入的元素的索引
-        int positionIndex = 0;
-
-        /*
-            后置摄像头处理
-            后置摄像头需要将图像顺时针旋转 90 度
-         */
-        if(mCameraFacing == Camera.CameraInfo.CAMERA_FACING_BACK){
-
-            /*
-                读取 Y 灰度数据
-                顺时针旋转 90 度
-                外层循环 : 逐行遍历, 从第一行遍历到最后一行, 从 0 到 mWidth - 1
-                内存循环 : 遍历每一行时, 从底部遍历到顶部, 从 mHeight - 1 到 0
-             */
-            for (int i = 0; i <= mWidth - 1; i++) {
-                // 第 i 行, 从每一列的最后一个像素 ( 索引 mHeight - 1 ) 遍历到第一个像素 ( 索引 0 )
-                for (int j = mHeight - 1; j >= 0; j--) {
-                    // 将读取到的 Y 灰度值存储到 mNv21DataBuffer 缓冲区中
-                    mNv21DataBuffer[positionIndex++] = data[mWidth * j + i];
-                }
-            }
-
-            /*
-                读取 UV 数据
-
-                Y 数据的高度与图像高度相等
-                UV 数据高度相当于 Y 数据高度的一半
-
-                UV 数据排列 : V 色彩值在前, U 饱和度在后, UV 数据交替排列
-                UV 数据交替排列, 一行 mWidth 中, 排布了 mWidth / 2 组 UV 数据
-
-                UV 数据组有 mWidth / 2 行, mHeight / 2 列, 因此遍历时, 有如下规则 :
-                按照行遍历 : 遍历 mWidth / 2 次
-                按照列遍历 : 遍历 mHeight / 2 次
-
-                外层遍历 : 遍历行从 0 到 mWidth / 2
-                外层按照行遍历时, 每隔 2 行, 遍历一次, 遍历 mWidth / 2 次
-
-                内层遍历时 : 遍历列, 从 mHeight / 2 - 1 遍历到 0
-                UV 数据也需要倒着读 , 从 mHeight / 2 - 1 遍历到 0
-             */
-            for (int i = 0; i <= mWidth / 2 - 1; i ++) {
-                for (int j = UVByteHeight - 1; j >= 0; j--) {
-                    // 读取数据时, 要从 YByteCount 之后的数据开始遍历
-                    // 使用 mWidth 和 UVByteHeight 定位要遍历的位置
-                    // 拷贝 V 色彩值数据
-                    mNv21DataBuffer[positionIndex++] = data[YByteCount + mWidth / 2 * 2 * j + i];
-                    // 拷贝 U 饱和度数据
-                    mNv21DataBuffer[positionIndex++] = data[YByteCount + mWidth / 2 * 2 * j + i + 1];
-                }
-            }
-
-        }else if(mCameraFacing == Camera.CameraInfo.CAMERA_FACING_FRONT){
-            /*
-                前置摄像头处理
-                前置摄像头与后置摄像头相反, 后置摄像头顺时针旋转 90 度
-                前置摄像头需要将图像逆时针旋转 90 度
-             */
-
-            /*
-                读取 Y 灰度数据
-                逆时针旋转 90 度
-                外层循环 : 逐行遍历, 从最后一行遍历到第一行, 从 mWidth - 1 到 0
-                内存循环 : 遍历第 i 行时, 从顶部遍历到底部, 从 0 到 mHeight - 1
-             */
-            for (int i = mWidth - 1; i >= 0; i--) {
-                // 第 i 行, 从每一列的最后一个像素 ( 索引 mHeight - 1 ) 遍历到第一个像素 ( 索引 0 )
-                for (int j = 0; j < mHeight; j++) {
-                    // 将读取到的 Y 灰度值存储到 mNv21DataBuffer 缓冲区中
-                    mNv21DataBuffer[positionIndex++] = data[mWidth * j + i];
-                }
-            }
-
-            /*
-                读取 UV 数据
-
-                Y 数据的高度与图像高度相等
-                UV 数据高度相当于 Y 数据高度的一半
-
-                UV 数据排列 : V 色彩值在前, U 饱和度在后, UV 数据交替排列
-                UV 数据交替排列, 一行 mWidth 中, 排布了 mWidth / 2 组 UV 数据
-
-                UV 数据组有 mWidth / 2 行, mHeight / 2 列, 因此遍历时, 有如下规则 :
-                按照行遍历 : 遍历 mWidth / 2 次
-                按照列遍历 : 遍历 mHeight / 2 次
-
-                外层遍历 : 遍历行从 mWidth / 2 - 1 到 0
-                外层按照行遍历时, 每隔 2 行, 遍历一次, 遍历 mWidth / 2 次
-
-                内层遍历时 : 遍历列, 从 0 遍历到 mHeight / 2 - 1
-                UV 数据也需要倒着读 , 从 0 遍历到 mHeight / 2 - 1
-             */
-            for (int i = mWidth / 2 - 1; i >= 0 ; i --) {
-                for (int j = 0; j <= UVByteHeight - 1; j++) {
-                    // 读取数据时, 要从 YByteCount 之后的数据开始遍历
-                    // 使用 mWidth 和 UVByteHeight 定位要遍历的位置
-                    // 拷贝 V 色彩值数据
-                    mNv21DataBuffer[positionIndex++] = data[YByteCount + mWidth / 2 * 2 * j + i];
-                    // 拷贝 U 饱和度数据
-                    mNv21DataBuffer[positionIndex++] = data[YByteCount + mWidth / 2 * 2 * j + i + 1];
-                }
-            }
-
-        }
+        // NV21 数据的旋转在 JNI 层编码前完成, 这里直接将 Camera 采集的原始画面传递到 JNI 层
+        // 缓冲区使用完毕后, 由接收方调用 returnPreviewBuffer 方法归还给 Camera
+        mPreviewCallback.onPreviewFrame(data, camera);
     }
 
-
-
     public void setOnChangedSizeListener(OnChangedSizeListener listener) {
         mOnChangedSizeListener = listener;
     }
 
     public interface OnChangedSizeListener {
         void onChanged(int width, int heighht);
+
+        /**
+         * Camera 采集的图像需要旋转的角度改变
+         * @param rotation
+         *      顺时针旋转角度, 0 / 90 / 180 / 270
+         * @param mirror
+         *      旋转后是否水平镜像
+         */
+        void onRotationChanged(int rotation, boolean mirror);
+
+        /**
+         * Camera 即将重新打开 ( 切换摄像头, 横竖屏切换 ), 重新打开之前没有新的画面
+         */
+        void onCameraRestart();
     }
 }
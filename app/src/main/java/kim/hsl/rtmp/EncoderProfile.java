@@ -0,0 +1,272 @@
+package kim.hsl.rtmp;
+
+/**
+ * x264 视频编码器配置
+ *
+ * 通过 {@link LivePusher#setEncoderProfile(EncoderProfile)} 设置,
+ * 在 JNI 层 native_setVideoEncoderParameters 中应用到 x264_param_t,
+ * 先调用 x264_param_default_preset 加载 preset / tune, 再覆盖其余参数, 最后应用 profile 限制
+ *
+ * 默认配置与之前固定的参数一致 : ultrafast + zerolatency, 单线程, 没有 B 帧, 2 秒一个关键帧
+ */
+public class EncoderProfile {
+
+    /**
+     * 码率控制 : 平均码率, 码率由 LivePusher 的码率参数与自适应码率决定
+     */
+    public static final int RC_ABR = 0;
+
+    /**
+     * 码率控制 : 恒定质量因子, 码率参数作为 VBV 最大码率
+     */
+    public static final int RC_CRF = 1;
+
+    /**
+     * 码率控制 : 恒定量化参数, 不受码率参数与自适应码率控制
+     */
+    public static final int RC_CQP = 2;
+
+    /**
+     * 编码线程个数 : 由 x264 根据 CPU 核数自动决定
+     */
+    public static final int THREADS_AUTO = 0;
+
+    /**
+     * 使用 preset / tune 中的默认值
+     */
+    public static final int PRESET_DEFAULT = -1;
+
+    // 字段名称在 JNI 层通过 GetFieldID 读取, 修改时需要同步修改 native-lib.cpp
+
+    String mPreset = "ultrafast";
+    String mTune = "zerolatency";
+    String mProfile = null;
+    int mLevelIdc = 32;
+    int mThreads = 1;
+    boolean mSlicedThreads = false;
+    int mLookahead = PRESET_DEFAULT;
+    int mKeyintSeconds = 2;
+    int mBframes = 0;
+    int mRateControl = RC_ABR;
+    float mRateFactor = 23;
+    int mQp = 23;
+
+    /**
+     * 默认配置, 与之前固定的编码参数一致
+     * @return
+     */
+    public static EncoderProfile defaultProfile() {
+        return new EncoderProfile();
+    }
+
+    /**
+     * 多线程低延迟配置
+     * 使用条带多线程 ( sliced threads ), 一帧画面拆分成多个条带并行编码, 不增加编码延迟
+     * 帧级多线程每增加一个线程, 输出就会延迟一帧, 不适合直播
+     * @return
+     */
+    public static EncoderProfile multiThreadedProfile() {
+        return new EncoderProfile()
+                .setThreads(Math.min(Runtime.getRuntime().availableProcessors(), 8))
+                .setSlicedThreads(true);
+    }
+
+    /**
+     * 设置编码速度预设
+     * @param preset
+     *          ultrafast / superfast / veryfast / faster / fast / medium / slow / slower / veryslow / placebo
+     * @return
+     */
+    public EncoderProfile setPreset(String preset) {
+        mPreset = preset;
+        return this;
+    }
+
+    /**
+     * 设置编码场景
+     * @param tune
+     *          film / animation / grain / stillimage / psnr / ssim / fastdecode / zerolatency,
+     *          多个场景使用逗号分隔, null 表示不设置
+     * @return
+     */
+    public EncoderProfile setTune(String tune) {
+        mTune = tune;
+        return this;
+    }
+
+    /**
+     * 设置 H.264 规格限制
+     * @param profile
+     *          baseline / main / high, null 表示不限制
+     * @return
+     */
+    public EncoderProfile setProfile(String profile) {
+        mProfile = profile;
+        return this;
+    }
+
+    /**
+     * 设置 H.264 级别
+     * @param levelIdc
+     *          如 31 表示 3.1, 32 表示 3.2, 40 表示 4.0
+     * @return
+     */
+    public EncoderProfile setLevelIdc(int levelIdc) {
+        mLevelIdc = levelIdc;
+        return this;
+    }
+
+    /**
+     * 设置编码线程个数
+     * @param threads
+     *          线程个数, {@link #THREADS_AUTO} 表示自动
+     * @return
+     */
+    public EncoderProfile setThreads(int threads) {
+        mThreads = threads;
+        return this;
+    }
+
+    /**
+     * 设置是否使用条带多线程
+     * @param slicedThreads
+     *          true : 条带多线程, 不增加延迟; false : 帧级多线程, 吞吐量更高, 每个线程增加一帧延迟
+     * @return
+     */
+    public EncoderProfile setSlicedThreads(boolean slicedThreads) {
+        mSlicedThreads = slicedThreads;
+        return this;
+    }
+
+    /**
+     * 设置码率控制前向预测的帧数
+     * @param lookahead
+     *          帧数, 0 表示不预测, {@link #PRESET_DEFAULT} 表示使用 preset / tune 中的值
+     * @return
+     */
+    public EncoderProfile setLookahead(int lookahead) {
+        mLookahead = lookahead;
+        return this;
+    }
+
+    /**
+     * 设置关键帧间隔
+     * @param keyintSeconds
+     *          秒数, 关键帧最大间隔为 帧率 * 秒数
+     * @return
+     */
+    public EncoderProfile setKeyintSeconds(int keyintSeconds) {
+        mKeyintSeconds = keyintSeconds;
+        return this;
+    }
+
+    /**
+     * 设置 B 帧个数
+     * @param bframes
+     *          连续 B 帧的最大个数, 0 表示没有 B 帧, {@link #PRESET_DEFAULT} 表示使用 preset / tune 中的值
+     * @return
+     */
+    public EncoderProfile setBframes(int bframes) {
+        mBframes = bframes;
+        return this;
+    }
+
+    /**
+     * 使用平均码率控制
+     * @return
+     */
+    public EncoderProfile setAbrRateControl() {
+        mRateControl = RC_ABR;
+        return this;
+    }
+
+    /**
+     * 使用恒定质量因子码率控制
+     * @param rateFactor
+     *          质量因子, 0 ~ 51, 越小质量越高
+     * @return
+     */
+    public EncoderProfile setCrfRateControl(float rateFactor) {
+        mRateControl = RC_CRF;
+        mRateFactor = rateFactor;
+        return this;
+    }
+
+    /**
+     * 使用恒定量化参数码率控制
+     * @param qp
+     *          量化参数, 0 ~ 51, 越小质量越高
+     * @return
+     */
+    public EncoderProfile setCqpRateControl(int qp) {
+        mRateControl = RC_CQP;
+        mQp = qp;
+        return this;
+    }
+
+    public String getPreset() {
+        return mPreset;
+    }
+
+    public String getTune() {
+        return mTune;
+    }
+
+    public String getProfile() {
+        return mProfile;
+    }
+
+    public int getLevelIdc() {
+        return mLevelIdc;
+    }
+
+    public int getThreads() {
+        return mThreads;
+    }
+
+    public boolean isSlicedThreads() {
+        return mSlicedThreads;
+    }
+
+    public int getLookahead() {
+        return mLookahead;
+    }
+
+    public int getKeyintSeconds() {
+        return mKeyintSeconds;
+    }
+
+    public int getBframes() {
+        return mBframes;
+    }
+
+    public int getRateControl() {
+        return mRateControl;
+    }
+
+    public float getRateFactor() {
+        return mRateFactor;
+    }
+
+    public int getQp() {
+        return mQp;
+    }
+
+    @Override
+    public String toString() {
+        return "EncoderProfile{" +
+                "preset=" + mPreset +
+                ", tune=" + mTune +
+                ", profile=" + mProfile +
+                ", levelIdc=" + mLevelIdc +
+                ", threads=" + mThreads +
+                ", slicedThreads=" + mSlicedThreads +
+                ", lookahead=" + mLookahead +
+                ", keyintSeconds=" + mKeyintSeconds +
+                ", bframes=" + mBframes +
+                ", rateControl=" + mRateControl +
+                ", rateFactor=" + mRateFactor +
+                ", qp=" + mQp +
+                '}';
+    }
+}
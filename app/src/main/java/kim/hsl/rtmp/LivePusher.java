@@ -3,6 +3,8 @@ package kim.hsl.rtmp;
 import android.app.Activity;
 import android.view.SurfaceHolder;
 
+import java.nio.ByteBuffer;
+
 public class LivePusher {
     static {
         System.loadLibrary("native-lib");
@@ -19,10 +21,17 @@ public class LivePusher {
     private VideoChannel mVideoChannel;
 
     /**
-     * 是否已经开启过直播, 使用该变量, 控制开启直播的方法只调用一次
+     * 是否正在直播, 使用该变量, 控制开启直播的方法只调用一次, 停止直播后可以再次开启
      */
     private boolean mIsStartLive = false;
 
+    // 上一次调用 getStats 时的数据, 用于计算帧率与发送速率
+
+    private long mLastStatsTimeNanos;
+    private long mLastCapturedFrames;
+    private long mLastEncodedFrames;
+    private long mLastBytesSent;
+
     /**
      * 创建直播推流器
      * @param activity
@@ -56,6 +65,232 @@ public class LivePusher {
         mVideoChannel.setPreviewDisplay(surfaceHolder);
     }
 
+    /**
+     * 设置 Camera 预览缓冲区个数, 需要在 setPreviewDisplay 之前调用
+     * 多个缓冲区轮流使用, 编码一帧画面时 Camera 可以继续采集下一帧画面
+     * @param count
+     *          缓冲区个数, 默认 {@link CameraManager#DEFAULT_PREVIEW_BUFFER_COUNT} 个
+     */
+    public void setPreviewBufferCount(int count) {
+        mVideoChannel.setPreviewBufferCount(count);
+    }
+
+    /**
+     * 设置待编码帧队列
+     * Camera 采集的画面先放入该队列, 由单独的视频编码线程取出编码
+     * @param capacity
+     *          队列容量, 应小于 Camera 预览缓冲区个数
+     * @param dropPolicy
+     *          队列满时的丢帧策略 {@link VideoEncodeThread#DROP_OLDEST} / {@link VideoEncodeThread#DROP_NEWEST}
+     */
+    public void setFrameQueue(int capacity, int dropPolicy) {
+        mVideoChannel.setFrameQueue(capacity, dropPolicy);
+    }
+
+    /**
+     * 获取因编码不及时而丢弃的视频帧个数
+     * @return
+     */
+    public long getDroppedCameraFrames() {
+        return mVideoChannel.getDroppedFrames();
+    }
+
+    /**
+     * 设置 x264 编码器配置, 如 编码速度预设, 线程个数, 关键帧间隔, 码率控制方式
+     * 可以在开始直播之前或者直播过程中调用, 直播过程中调用会重新创建编码器
+     * @param encoderProfile
+     *          编码器配置, null 表示使用默认配置 {@link EncoderProfile#defaultProfile()}
+     */
+    public void setEncoderProfile(EncoderProfile encoderProfile) {
+        mVideoChannel.setEncoderProfile(encoderProfile);
+    }
+
+    /**
+     * 设置网络拥塞时的丢帧预算
+     * 待发送的视频帧时间跨度超过 latencyBudgetMs, 或者待发送数据超过 byteBudget 字节时,
+     * 先丢弃非参考帧, 再按 GOP 丢弃视频帧, 音频与音视频序列头不会被丢弃
+     * @param latencyBudgetMs
+     *          延迟预算, 单位毫秒, 0 表示不限制
+     * @param byteBudget
+     *          字节预算, 0 表示不限制
+     */
+    public void setCongestionBudget(int latencyBudgetMs, int byteBudget) {
+        native_setCongestionBudget(latencyBudgetMs, byteBudget);
+    }
+
+    /**
+     * 单独设置一个推流目的地的丢帧预算, 各个目的地的拥塞控制互相独立
+     * @param destination
+     *          目的地序号, 与 {@link #startLive(String...)} 中推流地址的顺序一致
+     * @param latencyBudgetMs
+     *          延迟预算, 单位毫秒, 0 表示不限制
+     * @param byteBudget
+     *          字节预算, 0 表示不限制
+     */
+    public void setCongestionBudget(int destination, int latencyBudgetMs, int byteBudget) {
+        native_setDestinationCongestionBudget(destination, latencyBudgetMs, byteBudget);
+    }
+
+    /**
+     * 获取主目的地网络拥塞时丢弃的视频帧个数
+     * @return
+     */
+    public long getCongestionDroppedFrames() {
+        return native_getCongestionDropCounts()[0];
+    }
+
+    /**
+     * 获取主目的地网络拥塞时丢弃的 GOP 个数
+     * @return
+     */
+    public long getCongestionDroppedGops() {
+        return native_getCongestionDropCounts()[1];
+    }
+
+    /**
+     * 设置自适应码率范围, 初始码率为创建推流器时设置的视频码率
+     * 网络拥塞时降低视频编码码率, 网络空闲时逐步恢复, 码率调整不需要重新创建编码器
+     * @param minBitrate
+     *          最小码率, 单位 bps
+     * @param maxBitrate
+     *          最大码率, 单位 bps, 最小码率 大于等于 最大码率 时关闭自适应码率
+     */
+    public void setBitrateRange(int minBitrate, int maxBitrate) {
+        native_setBitrateRange(minBitrate, maxBitrate);
+    }
+
+    /**
+     * 获取当前的视频编码码率
+     * @return 码率, 单位 bps
+     */
+    public int getCurrentBitrate() {
+        return native_getCurrentBitrate();
+    }
+
+    /**
+     * 设置 RTMP 发送块大小, 需要在 startLive 之前调用
+     * 块越大, 拆分关键帧产生的块头越少, 发送一帧需要的系统调用越少
+     * @param chunkSize
+     *          块大小, 单位字节, 取值范围 128 ~ 65536, 默认 4096
+     */
+    public void setChunkSize(int chunkSize) {
+        native_setChunkSize(chunkSize);
+    }
+
+    /**
+     * 设置断线重连策略
+     * 发送失败时自动重连, 重连等待时间从 initialDelayMs 开始每次加倍, 不超过 maxDelayMs
+     * 断线期间继续编码, 重连后先发送缓存的音视频序列头与最近的 GOP, 再继续推流
+     * @param maxAttempts
+     *          最大连续重连次数, 超过后停止推流, 0 表示不限制, 负数表示不重连, 默认 10 次
+     * @param initialDelayMs
+     *          第一次重连等待时间, 单位毫秒, 默认 500
+     * @param maxDelayMs
+     *          最大重连等待时间, 单位毫秒, 默认 8000
+     */
+    public void setReconnectPolicy(int maxAttempts, int initialDelayMs, int maxDelayMs) {
+        native_setReconnectPolicy(maxAttempts, initialDelayMs, maxDelayMs);
+    }
+
+    /**
+     * 设置是否启用音频优先的发送调度, 默认启用
+     * 启用时音频越过排队的视频帧优先发送, 大的关键帧分片发送, 上行带宽较低时关键帧不会导致音频卡顿
+     * @param enabled   关闭时按照时间戳顺序发送
+     */
+    public void setAudioPriority(boolean enabled) {
+        native_setAudioPriority(enabled);
+    }
+
+    /**
+     * 设置写入截止时间, 推流期间调用立即生效
+     * 上行网络中断, 服务器停止接收时, 一批数据包或者一个视频分片超过该时间没有写完, 断开连接后按照重连策略重连
+     * @param timeoutMs 单位毫秒, 默认 5000, 小于等于 0 时恢复默认值
+     */
+    public void setSendTimeout(int timeoutMs) {
+        native_setSendTimeout(timeoutMs);
+    }
+
+    /**
+     * 设置静止画面检测, 默认关闭, 推流期间调用从下一帧画面开始生效
+     * 启用后与上一次编码的画面相比没有变化的帧 ( 如屏幕前静止的画面, 幻灯片 ) 跳过 NV21 转换与 x264 编码,
+     * 观众端继续显示上一帧画面, 每秒至少输出一帧, 关键帧间隔按时间保持不变
+     * @param enabled   是否启用
+     * @param threshold 区块差异阈值, 64 x 64 像素区块内平均亮度差 ( 0 ~ 255 ) 超过该值认为画面有变化,
+     *                  小于等于 0 时使用默认值 3, 摄像头噪声较大时可以适当提高
+     */
+    public void setStaticSceneDetection(boolean enabled, int threshold) {
+        native_setStaticSceneDetection(enabled, threshold);
+    }
+
+    /**
+     * 设置本地录制文件, 推流的同时将编码数据写入 FLV 文件, 不需要再次编码
+     * 在 startLive 之前调用, 停止推流时关闭文件, 录制不受推流网络拥塞丢帧的影响
+     * @param path  FLV 文件路径, 文件已经存在时覆盖, null 表示不录制
+     */
+    public void setRecordFile(String path) {
+        native_setRecordFile(path);
+    }
+
+    /**
+     * 采样推流统计数据, 可以在任意线程中调用, 发送相关的数据是主目的地的数据
+     * 帧率与发送速率是距离上一次调用该方法之间的平均值, 建议每秒调用一次
+     * @return
+     */
+    public synchronized PushStats getStats() {
+        long[] nativeStats = native_getStats();
+        long capturedFrames = mVideoChannel.getCapturedFrames();
+        long encodedFrames = nativeStats[PushStats.STAT_VIDEO_FRAMES_ENCODED];
+        long bytesSent = nativeStats[PushStats.STAT_BYTES_SENT];
+        long now = System.nanoTime();
+
+        float captureFps = 0;
+        float encodeFps = 0;
+        long bytesPerSecond = 0;
+        if (mLastStatsTimeNanos != 0 && now > mLastStatsTimeNanos) {
+            float seconds = (now - mLastStatsTimeNanos) / 1e9f;
+            captureFps = (capturedFrames - mLastCapturedFrames) / seconds;
+            // 重新开始推流时 native 统计数据清零
+            encodeFps = Math.max(0, encodedFrames - mLastEncodedFrames) / seconds;
+            bytesPerSecond = (long) (Math.max(0, bytesSent - mLastBytesSent) / seconds);
+        }
+        mLastStatsTimeNanos = now;
+        mLastCapturedFrames = capturedFrames;
+        mLastEncodedFrames = encodedFrames;
+        mLastBytesSent = bytesSent;
+
+        return new PushStats(nativeStats, captureFps, encodeFps, bytesPerSecond,
+                capturedFrames, mVideoChannel.getDroppedFrames(),
+                mAudioChannel.getUnderruns(), mAudioChannel.getOverruns());
+    }
+
+    /**
+     * 采样一个推流目的地的统计数据, 可以在任意线程中调用
+     * 发送相关的数据是该目的地的数据, 编码相关的数据与 {@link #getStats()} 相同
+     * 不计算帧率与发送速率
+     * @param destination
+     *          目的地序号, 与 {@link #startLive(String...)} 中推流地址的顺序一致
+     * @return 序号超出推流地址个数时返回 null
+     */
+    public PushStats getDestinationStats(int destination) {
+        long[] nativeStats = native_getDestinationStats(destination);
+        if (nativeStats == null) {
+            return null;
+        }
+        return new PushStats(nativeStats, 0, 0, 0,
+                mVideoChannel.getCapturedFrames(), mVideoChannel.getDroppedFrames(),
+                mAudioChannel.getUnderruns(), mAudioChannel.getOverruns());
+    }
+
+    /**
+     * 设置 native 层日志输出级别
+     * @param level
+     *          {@link android.util.Log#DEBUG} / {@link android.util.Log#INFO} / {@link android.util.Log#WARN} / {@link android.util.Log#ERROR}
+     */
+    public void setLogLevel(int level) {
+        // android.util.Log 的级别与 android/log.h 中的 ANDROID_LOG_* 数值相同
+        native_setLogLevel(level);
+    }
+
     /**
      * 调用该方法可以切换摄像头
      */
@@ -65,8 +300,16 @@ public class LivePusher {
 
     /**
      * 调用该方法 , 就会启动推流过程
+     * 可以同时推流到多个地址 ( 如 主源站, 备用源站, CDN 合作方 ), 只采集编码一次, 所有地址共享编码数据
+     * 每个地址有独立的推流线程, 拥塞控制与断线重连, 某个地址网络阻塞不影响其它地址
+     * 自适应码率根据第一个地址 ( 主目的地 ) 的发送情况调整
+     * @param rtmpPushPaths
+     *          推流地址, 最多 4 个
      */
-    public void startLive(String rtmpPushPath) {
+    public void startLive(String... rtmpPushPaths) {
+        if (rtmpPushPaths == null || rtmpPushPaths.length == 0) {
+            return;
+        }
         if(mIsStartLive){
             // 如果直播已经开启过, 那么该方法就不再调用
             return;
@@ -75,7 +318,7 @@ public class LivePusher {
             mIsStartLive = true;
         }
 
-        native_startRtmpPush(rtmpPushPath);
+        native_startRtmpPush(rtmpPushPaths);
         mVideoChannel.startLive();
         mAudioChannel.startLive();
     }
@@ -84,9 +327,23 @@ public class LivePusher {
      * 停止推流方法
      */
     public void stopLive(){
+        if (!mIsStartLive) {
+            return;
+        }
         mVideoChannel.stopLive();
         mAudioChannel.stopLive();
+        // 等待推流线程关闭连接后才能再次开启直播
         native_stopPush();
+        mIsStartLive = false;
+    }
+
+    /**
+     * 释放推流器, 结束编码线程, 释放 native 层资源
+     */
+    public void release() {
+        mVideoChannel.release();
+        mAudioChannel.release();
+        native_release();
     }
 
 
@@ -98,9 +355,9 @@ public class LivePusher {
     /**
      * 开始向 RTMP 服务器推送数据
      * 连接远程 RTMP 服务器, 向该服务器推送数据
-     * @param path
+     * @param paths     推流地址, 第一个地址为主目的地
      */
-    public native void native_startRtmpPush(String path);
+    public native void native_startRtmpPush(String[] paths);
 
     /**
      * 设置视频编码参数
@@ -112,14 +369,35 @@ public class LivePusher {
      *          帧率
      * @param bitrate
      *          码率
+     * @param encoderProfile
+     *          x264 编码器配置, null 表示使用默认配置
+     */
+    public native void native_setVideoEncoderParameters(int width, int height, int fps, int bitrate,
+                                                        EncoderProfile encoderProfile);
+
+    /**
+     * 设置 Camera 采集图像需要旋转的角度
+     * @param rotation
+     *          顺时针旋转角度, 0 / 90 / 180 / 270
+     * @param mirror
+     *          旋转后是否水平镜像
      */
-    public native void native_setVideoEncoderParameters(int width, int height, int fps, int bitrate);
+    public native void native_setVideoRotation(int rotation, boolean mirror);
 
     /**
      * 执行视频数据编码操作
      * @param data
+     * @param captureTimeNanos
+     *          画面采集时间, {@link System#nanoTime()}, 用于计算 RTMP 时间戳
      */
-    public native void native_encodeCameraData(byte[] data);
+    public native void native_encodeCameraData(byte[] data, long captureTimeNanos);
+
+    /**
+     * 重复编码上一帧画面, 重新打开 Camera 期间保持视频数据连续
+     * @param captureTimeNanos
+     *          本帧的时间, {@link System#nanoTime()}
+     */
+    public native void native_encodeRepeatedFrame(long captureTimeNanos);
 
 
     /**
@@ -137,14 +415,115 @@ public class LivePusher {
     public native int native_getInputSamples();
 
     /**
-     * 执行音频数据编码操作
-     * @param data
+     * 执行音频数据编码操作, 数据存放在直接缓冲区中, JNI 层直接访问缓冲区内存, 不拷贝数据
+     * @param buffer
+     *          {@link ByteBuffer#allocateDirect(int)} 创建的缓冲区, 从位置 0 开始存放 PCM 数据
+     * @param length
+     *          本次读取到的字节数, 不足一帧时 JNI 层先累积, 凑满一帧再编码
+     * @param captureTimeNanos
+     *          读取完成的时间, {@link System#nanoTime()}, 用于对齐样本时钟
      */
-    public native void native_encodeAudioData(byte[] data);
+    public native void native_encodeAudioBuffer(ByteBuffer buffer, int length, long captureTimeNanos);
+
+    /**
+     * 丢弃 JNI 层还没有凑满一帧的 PCM 数据, 重置样本时钟
+     */
+    public native void native_resetAudioSamples();
 
 
 
 
+    /**
+     * 设置网络拥塞时的丢帧预算
+     * @param latencyBudgetMs   延迟预算, 单位毫秒
+     * @param byteBudget        字节预算
+     */
+    public native void native_setCongestionBudget(int latencyBudgetMs, int byteBudget);
+
+    /**
+     * 设置一个推流目的地的丢帧预算
+     * @param destination       目的地序号
+     * @param latencyBudgetMs   延迟预算, 单位毫秒
+     * @param byteBudget        字节预算
+     */
+    public native void native_setDestinationCongestionBudget(int destination, int latencyBudgetMs,
+                                                             int byteBudget);
+
+    /**
+     * 获取网络拥塞时丢弃的数据个数
+     * @return [0] 丢弃的视频帧个数, [1] 丢弃的 GOP 个数
+     */
+    public native long[] native_getCongestionDropCounts();
+
+    /**
+     * 设置自适应码率范围
+     * @param minBitrate    最小码率, 单位 bps
+     * @param maxBitrate    最大码率, 单位 bps
+     */
+    public native void native_setBitrateRange(int minBitrate, int maxBitrate);
+
+    /**
+     * 获取当前的视频编码码率
+     * @return 码率, 单位 bps
+     */
+    public native int native_getCurrentBitrate();
+
+    /**
+     * 设置 RTMP 发送块大小
+     * @param chunkSize     块大小, 单位字节
+     */
+    public native void native_setChunkSize(int chunkSize);
+
+    /**
+     * 设置断线重连策略
+     * @param maxAttempts       最大连续重连次数
+     * @param initialDelayMs    第一次重连等待时间, 单位毫秒
+     * @param maxDelayMs        最大重连等待时间, 单位毫秒
+     */
+    public native void native_setReconnectPolicy(int maxAttempts, int initialDelayMs, int maxDelayMs);
+
+    /**
+     * 采样推流统计数据
+     * @return 各项数据的位置参考 {@link PushStats} 中的 STAT_* 常量
+     */
+    public native long[] native_getStats();
+
+    /**
+     * 采样一个推流目的地的统计数据
+     * @param destination   目的地序号
+     * @return 序号超出推流地址个数时返回 null
+     */
+    public native long[] native_getDestinationStats(int destination);
+
+    /**
+     * 设置是否启用音频优先的发送调度
+     */
+    public native void native_setAudioPriority(boolean enabled);
+
+    /**
+     * 设置写入截止时间
+     * @param timeoutMs 单位毫秒
+     */
+    public native void native_setSendTimeout(int timeoutMs);
+
+    /**
+     * 设置静止画面检测
+     * @param threshold 区块差异阈值
+     */
+    public native void native_setStaticSceneDetection(boolean enabled, int threshold);
+
+    /**
+     * 设置本地录制文件
+     * @param path  FLV 文件路径, null 表示不录制
+     */
+    public native void native_setRecordFile(String path);
+
+    /**
+     * 设置 native 层日志输出级别
+     * @param level     android/log.h 中的 ANDROID_LOG_* 常量
+     */
+    public native void native_setLogLevel(int level);
+
     public native void native_stopPush();
 
     public native void native_release();
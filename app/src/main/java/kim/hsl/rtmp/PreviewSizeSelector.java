@@ -0,0 +1,46 @@
+package kim.hsl.rtmp;
+
+/**
+ * Camera 预览尺寸选择
+ *
+ * 摄像头支持的宽高值是固定的, 需要从 Camera 支持的一组宽高值中
+ * 选出像素总数与用户设置的像素总数最接近的一个
+ *
+ * 该类不依赖 Android API, 可以在主机端测试与进行基准测试 ( 见 jmh 模块 )
+ */
+public final class PreviewSizeSelector {
+
+    private PreviewSizeSelector() {
+    }
+
+    /**
+     * 选择与用户设置的宽高像素总数最接近的尺寸
+     * 像素差值相同时, 选择靠前的尺寸, 与 Camera 给出的顺序一致
+     *
+     * @param widths
+     *          Camera 支持的宽度
+     * @param heights
+     *          Camera 支持的高度, 与 widths 一一对应
+     * @param count
+     *          支持的尺寸个数
+     * @param width
+     *          用户设置的宽度
+     * @param height
+     *          用户设置的高度
+     * @return 选中的尺寸索引, count 为 0 时返回 -1
+     */
+    public static int selectClosest(int[] widths, int[] heights, int count, int width, int height) {
+        int targetPixels = width * height;
+        int selected = -1;
+        int minDeltaOfPixels = Integer.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            int deltaOfPixels = Math.abs(widths[i] * heights[i] - targetPixels);
+            // 只有差值更小时才替换, 差值相同保留靠前的尺寸
+            if (deltaOfPixels < minDeltaOfPixels) {
+                minDeltaOfPixels = deltaOfPixels;
+                selected = i;
+            }
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,341 @@
+package kim.hsl.rtmp;
+
+/**
+ * 推流统计数据, 由 {@link LivePusher#getStats()} 采样生成
+ *
+ * 累计数据从开始推流时计算
+ * 帧率, 发送速率, 发送延迟 是两次调用 getStats 之间的统计值
+ */
+public class PushStats {
+
+    // native 层统计数据数组中各项数据的位置, 与 StreamStats.h 中的 StatIndex 一致
+
+    static final int STAT_VIDEO_FRAMES_ENCODED = 0;
+    static final int STAT_AUDIO_FRAMES_ENCODED = 1;
+    static final int STAT_ENCODE_TIME_TOTAL_US = 2;
+    static final int STAT_ENCODE_TIME_HISTOGRAM = 3;
+    static final int ENCODE_TIME_BUCKETS = 7;
+    static final int STAT_QUEUE_PACKETS = STAT_ENCODE_TIME_HISTOGRAM + ENCODE_TIME_BUCKETS;
+    static final int STAT_BACKLOG_PACKETS = STAT_QUEUE_PACKETS + 1;
+    static final int STAT_BACKLOG_BYTES = STAT_QUEUE_PACKETS + 2;
+    static final int STAT_BACKLOG_DURATION_MS = STAT_QUEUE_PACKETS + 3;
+    static final int STAT_PACKETS_SENT = STAT_QUEUE_PACKETS + 4;
+    static final int STAT_BYTES_SENT = STAT_QUEUE_PACKETS + 5;
+    static final int STAT_SEND_LATENCY_AVG_MS = STAT_QUEUE_PACKETS + 6;
+    static final int STAT_SEND_LATENCY_MAX_MS = STAT_QUEUE_PACKETS + 7;
+    static final int STAT_CONGESTION_DROPPED_FRAMES = STAT_QUEUE_PACKETS + 8;
+    static final int STAT_CONGESTION_DROPPED_GOPS = STAT_QUEUE_PACKETS + 9;
+    static final int STAT_QUEUE_FULL_DROPPED = STAT_QUEUE_PACKETS + 10;
+    static final int STAT_RECONNECTS = STAT_QUEUE_PACKETS + 11;
+    static final int STAT_CURRENT_BITRATE = STAT_QUEUE_PACKETS + 12;
+    static final int STAT_POOL_IN_USE_BYTES = STAT_QUEUE_PACKETS + 13;
+    static final int STAT_WRITE_CALLS = STAT_QUEUE_PACKETS + 14;
+    static final int STAT_CONNECT_TIME_MS = STAT_QUEUE_PACKETS + 15;
+    static final int STAT_FIRST_KEY_FRAME_MS = STAT_QUEUE_PACKETS + 16;
+    static final int STAT_RECORD_BYTES = STAT_QUEUE_PACKETS + 17;
+    static final int STAT_RECORD_DROPPED = STAT_QUEUE_PACKETS + 18;
+    static final int STAT_SEND_TIMEOUTS = STAT_QUEUE_PACKETS + 19;
+    static final int STAT_STATIC_SKIPPED_FRAMES = STAT_QUEUE_PACKETS + 20;
+    static final int STAT_STATIC_SAVED_ENCODE_MS = STAT_QUEUE_PACKETS + 21;
+    static final int STAT_STATIC_SAVED_BYTES = STAT_QUEUE_PACKETS + 22;
+    static final int STAT_COUNT = STAT_QUEUE_PACKETS + 23;
+
+    /**
+     * 视频编码耗时直方图各区间的上限, 单位毫秒, 最后一个区间没有上限
+     */
+    public static final int[] ENCODE_TIME_BUCKET_BOUNDS_MS = {5, 10, 20, 33, 50, 100};
+
+    private final long[] mNativeStats;
+    private final float mCaptureFps;
+    private final float mEncodeFps;
+    private final long mBytesPerSecond;
+    private final long mCapturedFrames;
+    private final long mCameraDroppedFrames;
+    private final long mAudioUnderruns;
+    private final long mAudioOverruns;
+
+    PushStats(long[] nativeStats, float captureFps, float encodeFps, long bytesPerSecond,
+              long capturedFrames, long cameraDroppedFrames,
+              long audioUnderruns, long audioOverruns) {
+        mNativeStats = nativeStats;
+        mCaptureFps = captureFps;
+        mEncodeFps = encodeFps;
+        mBytesPerSecond = bytesPerSecond;
+        mCapturedFrames = capturedFrames;
+        mCameraDroppedFrames = cameraDroppedFrames;
+        mAudioUnderruns = audioUnderruns;
+        mAudioOverruns = audioOverruns;
+    }
+
+    /**
+     * Camera 采集帧率
+     */
+    public float getCaptureFps() {
+        return mCaptureFps;
+    }
+
+    /**
+     * 视频编码帧率, 不包括静止画面跳过编码的帧
+     */
+    public float getEncodeFps() {
+        return mEncodeFps;
+    }
+
+    /**
+     * Camera 采集的帧数
+     */
+    public long getCapturedFrames() {
+        return mCapturedFrames;
+    }
+
+    /**
+     * 编码的视频帧数
+     */
+    public long getEncodedVideoFrames() {
+        return mNativeStats[STAT_VIDEO_FRAMES_ENCODED];
+    }
+
+    /**
+     * 编码的音频帧数
+     */
+    public long getEncodedAudioFrames() {
+        return mNativeStats[STAT_AUDIO_FRAMES_ENCODED];
+    }
+
+    /**
+     * 视频帧平均编码耗时, 单位毫秒, 包括 NV21 转换
+     */
+    public float getAverageEncodeTimeMs() {
+        long frames = mNativeStats[STAT_VIDEO_FRAMES_ENCODED];
+        return frames > 0 ? mNativeStats[STAT_ENCODE_TIME_TOTAL_US] / 1000f / frames : 0;
+    }
+
+    /**
+     * 视频编码耗时直方图, 各区间的帧数, 区间划分参考 {@link #ENCODE_TIME_BUCKET_BOUNDS_MS}
+     */
+    public long[] getEncodeTimeHistogram() {
+        long[] histogram = new long[ENCODE_TIME_BUCKETS];
+        System.arraycopy(mNativeStats, STAT_ENCODE_TIME_HISTOGRAM, histogram, 0, ENCODE_TIME_BUCKETS);
+        return histogram;
+    }
+
+    /**
+     * 编码线程与推流线程之间的数据包队列中的数据包个数
+     */
+    public long getQueuedPackets() {
+        return mNativeStats[STAT_QUEUE_PACKETS];
+    }
+
+    /**
+     * 推流线程待发送队列中的数据包个数
+     */
+    public long getBacklogPackets() {
+        return mNativeStats[STAT_BACKLOG_PACKETS];
+    }
+
+    /**
+     * 推流线程待发送队列中的字节数
+     */
+    public long getBacklogBytes() {
+        return mNativeStats[STAT_BACKLOG_BYTES];
+    }
+
+    /**
+     * 推流线程待发送队列的时间跨度, 单位毫秒
+     */
+    public long getBacklogDurationMs() {
+        return mNativeStats[STAT_BACKLOG_DURATION_MS];
+    }
+
+    /**
+     * 发送的数据包个数
+     */
+    public long getPacketsSent() {
+        return mNativeStats[STAT_PACKETS_SENT];
+    }
+
+    /**
+     * 发送的字节数
+     */
+    public long getBytesSent() {
+        return mNativeStats[STAT_BYTES_SENT];
+    }
+
+    /**
+     * 发送速率, 单位 字节 / 秒
+     */
+    public long getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * 平均发送延迟, 数据包封装完成 到 发送完成 的时间, 单位毫秒
+     */
+    public long getAverageSendLatencyMs() {
+        return mNativeStats[STAT_SEND_LATENCY_AVG_MS];
+    }
+
+    /**
+     * 最大发送延迟, 单位毫秒
+     */
+    public long getMaxSendLatencyMs() {
+        return mNativeStats[STAT_SEND_LATENCY_MAX_MS];
+    }
+
+    /**
+     * 编码不及时, 视频编码线程丢弃的 Camera 画面个数
+     */
+    public long getCameraDroppedFrames() {
+        return mCameraDroppedFrames;
+    }
+
+    /**
+     * 音频采样不足的次数, 即 AudioRecord 读取到的数据不足一帧的次数
+     */
+    public long getAudioUnderruns() {
+        return mAudioUnderruns;
+    }
+
+    /**
+     * 音频采样溢出的次数, 即采样线程没有及时读取, AudioRecord 缓冲区可能已经丢弃数据的次数
+     */
+    public long getAudioOverruns() {
+        return mAudioOverruns;
+    }
+
+    /**
+     * 网络拥塞时丢弃的视频帧个数
+     */
+    public long getCongestionDroppedFrames() {
+        return mNativeStats[STAT_CONGESTION_DROPPED_FRAMES];
+    }
+
+    /**
+     * 网络拥塞时丢弃的 GOP 个数
+     */
+    public long getCongestionDroppedGops() {
+        return mNativeStats[STAT_CONGESTION_DROPPED_GOPS];
+    }
+
+    /**
+     * 数据包队列已满或已停止推流时丢弃的数据包个数
+     */
+    public long getQueueFullDroppedPackets() {
+        return mNativeStats[STAT_QUEUE_FULL_DROPPED];
+    }
+
+    /**
+     * 重新连接 RTMP 服务器的次数
+     */
+    public long getReconnects() {
+        return mNativeStats[STAT_RECONNECTS];
+    }
+
+    /**
+     * 当前视频编码码率, 单位 bps
+     */
+    public long getCurrentBitrate() {
+        return mNativeStats[STAT_CURRENT_BITRATE];
+    }
+
+    /**
+     * 数据包池中正在使用的字节数
+     */
+    public long getPoolInUseBytes() {
+        return mNativeStats[STAT_POOL_IN_USE_BYTES];
+    }
+
+    /**
+     * 发送数据的系统调用次数
+     */
+    public long getWriteCalls() {
+        return mNativeStats[STAT_WRITE_CALLS];
+    }
+
+    /**
+     * 开始推流 到 连接 RTMP 服务器成功 的时间, 单位毫秒, 还没有连接成功时为 -1
+     */
+    public long getConnectTimeMs() {
+        return mNativeStats[STAT_CONNECT_TIME_MS];
+    }
+
+    /**
+     * 开始推流 到 第一个关键帧发送完成 的时间, 单位毫秒, 观众最早可以看到画面的时间, 还没有发送时为 -1
+     */
+    public long getFirstKeyFrameMs() {
+        return mNativeStats[STAT_FIRST_KEY_FRAME_MS];
+    }
+
+    /**
+     * 本地录制已经写入文件的字节数, 没有录制时为 0
+     */
+    public long getRecordBytes() {
+        return mNativeStats[STAT_RECORD_BYTES];
+    }
+
+    /**
+     * 本地录制因为磁盘写入跟不上而丢弃的数据包个数
+     */
+    public long getRecordDroppedPackets() {
+        return mNativeStats[STAT_RECORD_DROPPED];
+    }
+
+    /**
+     * 超过写入截止时间而断开连接的次数, 上行网络中断时每次重连前计数一次
+     */
+    public long getSendTimeouts() {
+        return mNativeStats[STAT_SEND_TIMEOUTS];
+    }
+
+    /**
+     * 静止画面跳过编码的帧数, 参考 {@link LivePusher#setStaticSceneDetection(boolean, int)}
+     */
+    public long getStaticSkippedFrames() {
+        return mNativeStats[STAT_STATIC_SKIPPED_FRAMES];
+    }
+
+    /**
+     * 跳过静止画面估计节省的编码耗时, 单位毫秒, 按照非关键帧的平均编码耗时估计
+     */
+    public long getStaticSavedEncodeTimeMs() {
+        return mNativeStats[STAT_STATIC_SAVED_ENCODE_MS];
+    }
+
+    /**
+     * 跳过静止画面估计节省的数据量, 单位字节, 按照非关键帧的平均大小估计
+     */
+    public long getStaticSavedBytes() {
+        return mNativeStats[STAT_STATIC_SAVED_BYTES];
+    }
+
+    @Override
+    public String toString() {
+        return "PushStats{" +
+                "captureFps=" + mCaptureFps +
+                ", encodeFps=" + mEncodeFps +
+                ", averageEncodeTimeMs=" + getAverageEncodeTimeMs() +
+                ", queuedPackets=" + getQueuedPackets() +
+                ", backlogPackets=" + getBacklogPackets() +
+                ", backlogBytes=" + getBacklogBytes() +
+                ", backlogDurationMs=" + getBacklogDurationMs() +
+                ", bytesPerSecond=" + mBytesPerSecond +
+                ", averageSendLatencyMs=" + getAverageSendLatencyMs() +
+                ", maxSendLatencyMs=" + getMaxSendLatencyMs() +
+                ", cameraDroppedFrames=" + mCameraDroppedFrames +
+                ", audioUnderruns=" + mAudioUnderruns +
+                ", audioOverruns=" + mAudioOverruns +
+                ", congestionDroppedFrames=" + getCongestionDroppedFrames() +
+                ", queueFullDroppedPackets=" + getQueueFullDroppedPackets() +
+                ", reconnects=" + getReconnects() +
+                ", currentBitrate=" + getCurrentBitrate() +
+                ", connectTimeMs=" + getConnectTimeMs() +
+                ", firstKeyFrameMs=" + getFirstKeyFrameMs() +
+                ", recordBytes=" + getRecordBytes() +
+                ", recordDroppedPackets=" + getRecordDroppedPackets() +
+                ", sendTimeouts=" + getSendTimeouts() +
+                ", staticSkippedFrames=" + getStaticSkippedFrames() +
+                ", staticSavedEncodeTimeMs=" + getStaticSavedEncodeTimeMs() +
+                ", staticSavedBytes=" + getStaticSavedBytes() +
+                '}';
+    }
+}
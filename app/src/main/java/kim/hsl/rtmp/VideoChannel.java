@@ -8,7 +8,13 @@ import android.view.SurfaceHolder;
  * 处理视频通道数据
  * 主要管理直播推流器 LivePusher 和 Camera 摄像头管理对象 CameraManager
  */
-public class VideoChannel implements Camera.PreviewCallback, CameraManager.OnChangedSizeListener {
+public class VideoChannel implements Camera.PreviewCallback, CameraManager.OnChangedSizeListener,
+        VideoEncodeThread.FrameEncoder {
+
+    /**
+     * 默认的待编码帧队列容量
+     */
+    public static final int DEFAULT_FRAME_QUEUE_CAPACITY = 2;
 
 
     /**
@@ -31,10 +37,36 @@ public class VideoChannel implements Camera.PreviewCallback, CameraManager.OnCha
      */
     private int mFps;
 
+    /**
+     * x264 编码器配置
+     */
+    private volatile EncoderProfile mEncoderProfile = EncoderProfile.defaultProfile();
+
+    /**
+     * 当前编码图像宽高, Camera 尺寸确定之前为 0
+     */
+    private int mEncodeWidth;
+    private int mEncodeHeight;
+
     /**
      * 当前是否在直播
      */
-    private boolean mIsLiving = true;
+    private volatile boolean mIsLiving = true;
+
+    /**
+     * 视频编码线程, Camera 预览回调线程将画面交给该线程编码
+     */
+    private VideoEncodeThread mVideoEncodeThread;
+
+    /**
+     * 当前编码器接收的 NV21 图像字节数, 用于过滤切换摄像头前采集的尺寸不同的画面
+     */
+    private volatile int mFrameByteCount;
+
+    /**
+     * Camera 采集的帧数, 只在 Camera 预览回调线程中修改
+     */
+    private volatile long mCapturedFrames;
 
     public VideoChannel(LivePusher livePusher, Activity activity, int width, int height, int bitrate, int fps, int cameraId) {
         mLivePusher = livePusher;
@@ -50,6 +82,31 @@ public class VideoChannel implements Camera.PreviewCallback, CameraManager.OnCha
         // 3. 通过该回调接口, 可以获取到真实的 Camera 尺寸数据
         //    设置摄像头预览尺寸完成后, 会回调该接口
         mCameraManager.setOnChangedSizeListener(this);
+        // 4. 启动视频编码线程
+        setFrameQueue(DEFAULT_FRAME_QUEUE_CAPACITY, VideoEncodeThread.DROP_OLDEST);
+    }
+
+    /**
+     * 设置 Camera 预览缓冲区个数, 下一次打开 Camera 时生效
+     * @param count
+     */
+    public void setPreviewBufferCount(int count) {
+        mCameraManager.setPreviewBufferCount(count);
+    }
+
+    /**
+     * 设置待编码帧队列, 重新创建视频编码线程
+     * @param capacity
+     *      帧队列容量
+     * @param dropPolicy
+     *      丢帧策略 {@link VideoEncodeThread#DROP_OLDEST} / {@link VideoEncodeThread#DROP_NEWEST}
+     */
+    public void setFrameQueue(int capacity, int dropPolicy) {
+        if (mVideoEncodeThread != null) {
+            mVideoEncodeThread.quit();
+        }
+        mVideoEncodeThread = new VideoEncodeThread(this, capacity, dropPolicy);
+        mVideoEncodeThread.start();
     }
 
     /**
@@ -69,8 +126,77 @@ public class VideoChannel implements Camera.PreviewCallback, CameraManager.OnCha
      */
     @Override
     public void onPreviewFrame(byte[] data, Camera camera) {
+        mCapturedFrames++;
+        if (mIsLiving) {
+            // 只将画面放入编码线程的帧队列, 不在 Camera 回调线程中编码
+            // Camera1 不提供画面时间戳, 以预览回调的时间作为采集时间, 编码排队的时间不计入时间戳
+            mVideoEncodeThread.offer(data, camera, System.nanoTime());
+        } else {
+            mCameraManager.returnPreviewBuffer(data, camera);
+        }
+    }
+
+    /**
+     * 在视频编码线程中回调, 编码一帧画面
+     * @param data
+     */
+    @Override
+    public void encodeFrame(byte[] data, long captureTimeNanos) {
+        // 切换摄像头后, 队列中可能残留上一个 Camera 采集的画面, 尺寸不同的画面直接丢弃
+        if (mIsLiving && data.length == mFrameByteCount) {
+            // Camera 只能将画面写入 byte[] 预览缓冲区, JNI 层通过 GetPrimitiveArrayCritical 直接访问该数组
+            // 只在 NV21 转 I420 期间持有数组, 不拷贝数组, 也不写回
+            mLivePusher.native_encodeCameraData(data, captureTimeNanos);
+        }
+    }
+
+    /**
+     * 在视频编码线程中回调, 将缓冲区归还给 Camera
+     * @param data
+     * @param camera
+     */
+    @Override
+    public void releaseFrame(byte[] data, Camera camera) {
+        mCameraManager.returnPreviewBuffer(data, camera);
+    }
+
+    /**
+     * 在视频编码线程中回调, 重新打开 Camera 期间重复编码上一帧画面
+     * @param captureTimeNanos
+     */
+    @Override
+    public void repeatFrame(long captureTimeNanos) {
         if (mIsLiving) {
-            mLivePusher.native_encodeCameraData(data);
+            mLivePusher.native_encodeRepeatedFrame(captureTimeNanos);
+        }
+    }
+
+    /**
+     * 获取视频编码线程丢弃的帧个数
+     * @return
+     */
+    public long getDroppedFrames() {
+        return mVideoEncodeThread.getDroppedFrames();
+    }
+
+    /**
+     * 获取 Camera 采集的帧数
+     * @return
+     */
+    public long getCapturedFrames() {
+        return mCapturedFrames;
+    }
+
+    /**
+     * 设置 x264 编码器配置
+     * 如果已经获取到 Camera 尺寸, 立即重新创建编码器, 否则在获取到 Camera 尺寸后生效
+     * @param encoderProfile
+     */
+    public synchronized void setEncoderProfile(EncoderProfile encoderProfile) {
+        mEncoderProfile = encoderProfile != null ? encoderProfile : EncoderProfile.defaultProfile();
+        if (mEncodeWidth > 0 && mEncodeHeight > 0) {
+            mLivePusher.native_setVideoEncoderParameters(mEncodeWidth, mEncodeHeight, mFps, mBitrate,
+                    mEncoderProfile);
         }
     }
 
@@ -87,9 +213,34 @@ public class VideoChannel implements Camera.PreviewCallback, CameraManager.OnCha
      *      真实摄像头的高度
      */
     @Override
-    public void onChanged(int width, int height) {
-        // 设置视频参数, 宽度, 高度, 码率, 帧率
-        mLivePusher.native_setVideoEncoderParameters(width, height, mFps, mBitrate);
+    public synchronized void onChanged(int width, int height) {
+        // 设置视频参数, 宽度, 高度, 码率, 帧率, 编码器配置
+        mEncodeWidth = width;
+        mEncodeHeight = height;
+        mLivePusher.native_setVideoEncoderParameters(width, height, mFps, mBitrate, mEncoderProfile);
+        mFrameByteCount = width * height * 3 / 2;
+    }
+
+    /**
+     * Camera 采集的图像需要旋转的角度
+     *
+     * @param rotation
+     *      顺时针旋转角度
+     * @param mirror
+     *      旋转后是否水平镜像
+     */
+    @Override
+    public void onRotationChanged(int rotation, boolean mirror) {
+        mLivePusher.native_setVideoRotation(rotation, mirror);
+    }
+
+    /**
+     * Camera 即将重新打开, 重新打开期间按帧率重复编码上一帧画面, 观众端画面不会卡住
+     * 新 Camera 采集的画面尺寸改变时, JNI 层重新创建编码器, 不再重复编码
+     */
+    @Override
+    public void onCameraRestart() {
+        mVideoEncodeThread.startRepeating(1000000000L / Math.max(1, mFps));
     }
 
     public void startLive() {
@@ -98,5 +249,21 @@ public class VideoChannel implements Camera.PreviewCallback, CameraManager.OnCha
 
     public void stopLive() {
         mIsLiving = false;
+        // 归还队列中等待编码的缓冲区
+        mVideoEncodeThread.clear();
+    }
+
+    /**
+     * 释放视频通道, 结束视频编码线程
+     */
+    public void release() {
+        mIsLiving = false;
+        mVideoEncodeThread.quit();
+        // 等待编码线程结束, 之后才能释放 native 层的编码器
+        try {
+            mVideoEncodeThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
@@ -0,0 +1,347 @@
+package kim.hsl.rtmp;
+
+import android.hardware.Camera;
+
+/**
+ * 视频编码线程
+ *
+ * Camera 预览回调线程只负责将 NV21 数据缓冲区放入有界帧队列中, 然后立即返回
+ * 本线程从帧队列中取出数据, 调用 x264 进行编码
+ * 编码完成后, 将缓冲区归还给 Camera, Camera 再使用该缓冲区采集新的画面
+ *
+ * 帧队列满时, 按照设置的丢帧策略, 丢弃最旧的一帧, 或者丢弃最新的一帧
+ * 被丢弃的缓冲区同样要归还给 Camera
+ *
+ * 重新打开 Camera 期间没有新的画面, 可以调用 {@link #startRepeating(long)} 按帧间隔重复编码上一帧画面,
+ * 收到新 Camera 采集的画面后自动停止
+ */
+public class VideoEncodeThread extends Thread {
+
+    /**
+     * 丢帧策略 : 队列满时丢弃队列中最旧的一帧, 保证编码的画面是最新的, 延迟最低
+     */
+    public static final int DROP_OLDEST = 0;
+
+    /**
+     * 丢帧策略 : 队列满时丢弃新到来的一帧, 保证画面连续
+     */
+    public static final int DROP_NEWEST = 1;
+
+    /**
+     * 重复编码上一帧画面的最长时间, Camera 打开失败时不会一直重复下去
+     */
+    private static final long MAX_REPEAT_NANOS = 3000000000L;
+
+    /**
+     * 帧编码回调接口, 在编码线程中回调
+     */
+    public interface FrameEncoder {
+        /**
+         * 编码一帧画面
+         * @param data
+         *          NV21 格式图像数据
+         * @param captureTimeNanos
+         *          画面采集时间, {@link System#nanoTime()}
+         */
+        void encodeFrame(byte[] data, long captureTimeNanos);
+
+        /**
+         * 缓冲区使用完毕 ( 编码完成 / 被丢弃 ), 将其归还给 Camera
+         * @param data
+         *          NV21 格式图像数据缓冲区
+         * @param camera
+         *          采集该画面的 Camera
+         */
+        void releaseFrame(byte[] data, Camera camera);
+
+        /**
+         * 重复编码上一帧画面
+         * @param captureTimeNanos
+         *          本帧的时间, {@link System#nanoTime()}
+         */
+        void repeatFrame(long captureTimeNanos);
+    }
+
+    /**
+     * 帧编码回调
+     */
+    private final FrameEncoder mFrameEncoder;
+
+    /**
+     * 丢帧策略
+     */
+    private final int mDropPolicy;
+
+    /**
+     * 环形帧队列, 存放等待编码的 NV21 数据缓冲区
+     * 使用两个定长数组, 入队出队都不需要创建对象
+     */
+    private final byte[][] mFrames;
+
+    /**
+     * 与 mFrames 一一对应, 采集该画面的 Camera
+     */
+    private final Camera[] mCameras;
+
+    /**
+     * 与 mFrames 一一对应, 画面采集时间
+     */
+    private final long[] mCaptureTimes;
+
+    /**
+     * 队首索引
+     */
+    private int mHead;
+
+    /**
+     * 队列中的帧个数
+     */
+    private int mCount;
+
+    /**
+     * 丢弃的帧个数
+     */
+    private long mDroppedFrames;
+
+    /**
+     * 线程是否在运行
+     */
+    private boolean mRunning = true;
+
+    /**
+     * 最近一帧画面所属的 Camera
+     */
+    private Camera mLastCamera;
+
+    /**
+     * 重复编码的帧间隔, 0 表示没有在重复编码
+     */
+    private long mRepeatIntervalNanos;
+
+    /**
+     * 开始重复编码时的 Camera, 收到其它 Camera 采集的画面后停止重复编码
+     */
+    private Camera mRepeatCamera;
+
+    /**
+     * 下一次重复编码的时间
+     */
+    private long mNextRepeatNanos;
+
+    /**
+     * 停止重复编码的时间
+     */
+    private long mRepeatDeadlineNanos;
+
+    /**
+     * @param frameEncoder
+     *          帧编码回调
+     * @param capacity
+     *          帧队列容量, 应小于 Camera 预览缓冲区个数, 否则队列满时 Camera 没有空闲的缓冲区可用
+     * @param dropPolicy
+     *          丢帧策略 {@link #DROP_OLDEST} / {@link #DROP_NEWEST}
+     */
+    public VideoEncodeThread(FrameEncoder frameEncoder, int capacity, int dropPolicy) {
+        super("VideoEncodeThread");
+        mFrameEncoder = frameEncoder;
+        mDropPolicy = dropPolicy;
+        mFrames = new byte[Math.max(1, capacity)][];
+        mCameras = new Camera[mFrames.length];
+        mCaptureTimes = new long[mFrames.length];
+    }
+
+    /**
+     * 将 Camera 采集的画面放入帧队列, 在 Camera 预览回调线程中调用, 不会阻塞
+     * @param data
+     *          NV21 格式图像数据
+     * @param camera
+     *          采集该画面的 Camera
+     * @param captureTimeNanos
+     *          画面采集时间, {@link System#nanoTime()}
+     */
+    public void offer(byte[] data, Camera camera, long captureTimeNanos) {
+        byte[] droppedData = null;
+        Camera droppedCamera = null;
+
+        synchronized (this) {
+            mLastCamera = camera;
+            if (mRepeatIntervalNanos > 0 && camera != mRepeatCamera) {
+                // 新的 Camera 已经开始采集画面
+                mRepeatIntervalNanos = 0;
+            }
+            if (!mRunning) {
+                droppedData = data;
+                droppedCamera = camera;
+            } else if (mCount == mFrames.length) {
+                mDroppedFrames++;
+                if (mDropPolicy == DROP_OLDEST) {
+                    // 丢弃队首最旧的一帧, 新的一帧放到队尾
+                    droppedData = mFrames[mHead];
+                    droppedCamera = mCameras[mHead];
+                    mFrames[mHead] = data;
+                    mCameras[mHead] = camera;
+                    mCaptureTimes[mHead] = captureTimeNanos;
+                    mHead = (mHead + 1) % mFrames.length;
+                } else {
+                    droppedData = data;
+                    droppedCamera = camera;
+                }
+            } else {
+                int tail = (mHead + mCount) % mFrames.length;
+                mFrames[tail] = data;
+                mCameras[tail] = camera;
+                mCaptureTimes[tail] = captureTimeNanos;
+                mCount++;
+                notify();
+            }
+        }
+
+        // 在锁外归还缓冲区, 避免持有锁时调用 Camera
+        if (droppedData != null) {
+            mFrameEncoder.releaseFrame(droppedData, droppedCamera);
+        }
+    }
+
+    /**
+     * 按照帧间隔重复编码上一帧画面, 直到收到其它 Camera 采集的画面
+     * 在重新打开 Camera 之前调用, 队列中还有画面时先编码队列中的画面
+     * @param intervalNanos
+     *          帧间隔
+     */
+    public synchronized void startRepeating(long intervalNanos) {
+        long now = System.nanoTime();
+        mRepeatIntervalNanos = intervalNanos;
+        mRepeatCamera = mLastCamera;
+        mNextRepeatNanos = now + intervalNanos;
+        mRepeatDeadlineNanos = now + MAX_REPEAT_NANOS;
+        notify();
+    }
+
+    /**
+     * 等待队列中有画面, 或者到了重复编码的时间, 调用时已经持有锁
+     * @return 需要重复编码上一帧画面时返回 true
+     */
+    private boolean awaitFrame() {
+        while (mRunning && mCount == 0) {
+            long waitNanos = 0;
+            if (mRepeatIntervalNanos > 0) {
+                long now = System.nanoTime();
+                if (now - mRepeatDeadlineNanos >= 0) {
+                    mRepeatIntervalNanos = 0;
+                    continue;
+                }
+                waitNanos = mNextRepeatNanos - now;
+                if (waitNanos <= 0) {
+                    mNextRepeatNanos += mRepeatIntervalNanos;
+                    if (mNextRepeatNanos - now <= 0) {
+                        // 编码落后时不补帧, 从现在开始计算下一次重复编码的时间
+                        mNextRepeatNanos = now + mRepeatIntervalNanos;
+                    }
+                    return true;
+                }
+            }
+            try {
+                if (waitNanos > 0) {
+                    wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                } else {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                // 由 quit 方法结束等待
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            byte[] data;
+            Camera camera;
+            long captureTimeNanos;
+            synchronized (this) {
+                boolean repeat = awaitFrame();
+                if (!mRunning) {
+                    break;
+                }
+                if (repeat) {
+                    data = null;
+                    camera = null;
+                    captureTimeNanos = System.nanoTime();
+                } else {
+                    data = mFrames[mHead];
+                    camera = mCameras[mHead];
+                    captureTimeNanos = mCaptureTimes[mHead];
+                    mFrames[mHead] = null;
+                    mCameras[mHead] = null;
+                    mHead = (mHead + 1) % mFrames.length;
+                    mCount--;
+                    // 重复编码只填补没有画面的时间
+                    mNextRepeatNanos = captureTimeNanos + mRepeatIntervalNanos;
+                }
+            }
+
+            if (data == null) {
+                mFrameEncoder.repeatFrame(captureTimeNanos);
+                continue;
+            }
+            try {
+                mFrameEncoder.encodeFrame(data, captureTimeNanos);
+            } finally {
+                mFrameEncoder.releaseFrame(data, camera);
+            }
+        }
+
+        // 线程退出, 归还队列中剩余的缓冲区
+        clear();
+    }
+
+    /**
+     * 清空帧队列, 将所有缓冲区归还
+     * 切换摄像头时, 旧 Camera 的缓冲区不再使用, 需要调用该方法
+     */
+    public void clear() {
+        while (true) {
+            byte[] data;
+            Camera camera;
+            synchronized (this) {
+                if (mCount == 0) {
+                    return;
+                }
+                data = mFrames[mHead];
+                camera = mCameras[mHead];
+                mFrames[mHead] = null;
+                mCameras[mHead] = null;
+                mHead = (mHead + 1) % mFrames.length;
+                mCount--;
+            }
+            mFrameEncoder.releaseFrame(data, camera);
+        }
+    }
+
+    /**
+     * 结束编码线程
+     */
+    public void quit() {
+        synchronized (this) {
+            mRunning = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * 获取丢弃的帧个数
+     * @return
+     */
+    public synchronized long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * 获取当前队列中等待编码的帧个数
+     * @return
+     */
+    public synchronized int getQueuedFrames() {
+        return mCount;
+    }
+}
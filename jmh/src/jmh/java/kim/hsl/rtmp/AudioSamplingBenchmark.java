@@ -0,0 +1,77 @@
+package kim.hsl.rtmp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 音频采样线程循环体基准测试
+ *
+ * AudioRecord.read 与 JNI 编码不能在主机端运行, 这里用向直接缓冲区写入一帧 PCM 数据代替读取
+ * 测量的是循环体中 Java 层的开销 : 读取统计, 时间获取, 直接缓冲区的使用
+ * 循环体每次执行不应该产生任何内存分配 ( gc.alloc.rate.norm 为 0 )
+ *
+ * 帧大小为 FAAC 一次输入的字节数, 44100 Hz 立体声时为 1024 * 2 个样本, 4096 字节
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AudioSamplingBenchmark {
+
+    /**
+     * 模拟 AudioRecord 每次读取返回的字节数
+     * 等于一帧 : 正常读取; 小于一帧 : 采样不足
+     */
+    @Param({"4096", "2048"})
+    public int readLen;
+
+    /**
+     * FAAC 编码器一次输入的字节个数
+     */
+    private static final int FRAME_BYTES = 4096;
+
+    private ByteBuffer mReadBuffer;
+    private byte[] mPcm;
+    private AudioReadMonitor mReadMonitor;
+
+    @Setup
+    public void setup() {
+        mReadBuffer = ByteBuffer.allocateDirect(FRAME_BYTES);
+        mPcm = new byte[FRAME_BYTES];
+        for (int i = 0; i < mPcm.length; i++) {
+            mPcm[i] = (byte) i;
+        }
+        // AudioRecord 缓冲区时长取 2 帧, 与 AudioChannel 中的计算方式一致
+        long bufferDurationNanos = FRAME_BYTES * 2 * 1000000000L
+                / (AudioChannelConstants.SAMPLE_RATE * AudioChannelConstants.CHANNELS * AudioChannelConstants.BYTES_OF_A_SAMPLE);
+        mReadMonitor = new AudioReadMonitor(FRAME_BYTES, bufferDurationNanos);
+    }
+
+    @Benchmark
+    public long loopBody() {
+        mReadMonitor.beforeRead(System.nanoTime());
+        // 代替 mAudioRecord.read(readBuffer, mFaacInputBytesCount)
+        mReadBuffer.clear();
+        mReadBuffer.put(mPcm, 0, readLen);
+        long lastReadNanos = System.nanoTime();
+        mReadMonitor.afterRead(readLen, lastReadNanos);
+        return lastReadNanos + mReadBuffer.position();
+    }
+
+    /**
+     * AudioChannel 依赖 Android API, 不能在主机端加载, 这里复制其中的采样参数
+     */
+    static final class AudioChannelConstants {
+        static final int SAMPLE_RATE = 44100;
+        static final int CHANNELS = 2;
+        static final int BYTES_OF_A_SAMPLE = 2;
+    }
+}
@@ -0,0 +1,61 @@
+package kim.hsl.rtmp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Camera 预览尺寸选择基准测试
+ *
+ * 支持的尺寸列表取自常见设备后置摄像头 getSupportedPreviewSizes 的返回值
+ * 用户设置的尺寸分别为 480p / 720p / 1080p
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PreviewSizeSelectorBenchmark {
+
+    /**
+     * 常见设备支持的预览尺寸, 宽 x 高
+     */
+    private static final int[][] SUPPORTED_SIZES = {
+            {1920, 1080}, {1440, 1080}, {1280, 960}, {1280, 720}, {1088, 1088},
+            {960, 720}, {960, 540}, {864, 480}, {800, 480}, {720, 480},
+            {640, 480}, {640, 360}, {480, 360}, {352, 288}, {320, 240},
+            {176, 144}
+    };
+
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String size;
+
+    private int[] mWidths;
+    private int[] mHeights;
+    private int mWidth;
+    private int mHeight;
+
+    @Setup
+    public void setup() {
+        String[] wh = size.split("x");
+        mWidth = Integer.parseInt(wh[0]);
+        mHeight = Integer.parseInt(wh[1]);
+
+        mWidths = new int[SUPPORTED_SIZES.length];
+        mHeights = new int[SUPPORTED_SIZES.length];
+        for (int i = 0; i < SUPPORTED_SIZES.length; i++) {
+            mWidths[i] = SUPPORTED_SIZES[i][0];
+            mHeights[i] = SUPPORTED_SIZES[i][1];
+        }
+    }
+
+    @Benchmark
+    public int selectClosest() {
+        return PreviewSizeSelector.selectClosest(mWidths, mHeights, mWidths.length, mWidth, mHeight);
+    }
+}